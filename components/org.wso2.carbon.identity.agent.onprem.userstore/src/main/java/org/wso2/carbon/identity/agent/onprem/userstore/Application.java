@@ -25,6 +25,8 @@ import org.wso2.carbon.identity.agent.onprem.userstore.security.JWTSecurityInter
 import org.wso2.carbon.identity.agent.onprem.userstore.security.SecretManagerInitializer;
 import org.wso2.msf4j.MicroservicesRunner;
 
+import java.util.Timer;
+
 
 /**
  * Application entry point.
@@ -33,8 +35,11 @@ import org.wso2.msf4j.MicroservicesRunner;
  */
 
 public class Application {
+    private static final long CONFIG_WATCH_INTERVAL = 10 * 1000;
+
     public static void main(String[] args) {
         new SecretManagerInitializer().init();
+        new Timer(true).schedule(new UserStoreConfigWatchTask(), CONFIG_WATCH_INTERVAL, CONFIG_WATCH_INTERVAL);
         new MicroservicesRunner()
                 .addInterceptor(new JWTSecurityInterceptor())
                 .deploy(new UserResource(), new Authenticate(), new GroupResource(), new Status(), new ClaimResource())
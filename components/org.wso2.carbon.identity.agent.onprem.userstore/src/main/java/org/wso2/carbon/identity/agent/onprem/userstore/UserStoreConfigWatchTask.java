@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wso2.carbon.identity.agent.onprem.userstore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wso2.carbon.identity.agent.onprem.userstore.config.UserStoreConfiguration;
+import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
+import org.wso2.carbon.identity.agent.onprem.userstore.manager.common.UserStoreManagerBuilder;
+
+import java.util.TimerTask;
+
+/**
+ * Task to reload the UserStoreManager when the userstore configuration file is changed.
+ */
+public class UserStoreConfigWatchTask extends TimerTask {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserStoreConfigWatchTask.class);
+
+    public void run() {
+        if (!UserStoreConfiguration.getConfiguration().isModified()) {
+            return;
+        }
+        LOGGER.info("Change detected in the userstore configuration. Reloading the user store.");
+        try {
+            UserStoreManagerBuilder.reload();
+        } catch (UserStoreException e) {
+            LOGGER.error("Error while reloading the user store. Continuing with the previous configuration.", e);
+        }
+    }
+}
@@ -19,6 +19,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
 
+import java.util.Collections;
 import java.util.Map;
 
 /**
@@ -26,7 +27,8 @@ import java.util.Map;
  */
 public class UserStoreConfiguration {
     private static Logger log = LoggerFactory.getLogger(UserStoreConfiguration.class);
-    private Map<String, String> userStoreProperties;
+    private volatile Map<String, String> userStoreProperties;
+    private volatile long lastModified;
     private static UserStoreConfiguration instance = new UserStoreConfiguration();
 
     private UserStoreConfiguration() {
@@ -41,9 +43,12 @@ public class UserStoreConfiguration {
      *  Initializes the User Store properties.
      */
     private void init() throws UserStoreException {
+        long modified = UserStoreConfigurationXMLProcessor.getConfigurationFile().lastModified();
         UserStoreConfigurationXMLProcessor userStoreConfigurationXMLProcessor
                 = new UserStoreConfigurationXMLProcessor();
-        userStoreProperties = userStoreConfigurationXMLProcessor.buildUserStoreConfigurationFromFile();
+        userStoreProperties = Collections.unmodifiableMap(
+                userStoreConfigurationXMLProcessor.buildUserStoreConfigurationFromFile());
+        lastModified = modified;
     }
 
     /**
@@ -59,4 +64,35 @@ public class UserStoreConfiguration {
     public Map<String, String> getUserStoreProperties() {
         return userStoreProperties;
     }
+
+    /**
+     * @return true if userstore-config.xml has changed on disk since it was last loaded.
+     */
+    public boolean isModified() {
+        return UserStoreConfigurationXMLProcessor.getConfigurationFile().lastModified() != lastModified;
+    }
+
+    /**
+     * Reads userstore-config.xml again without applying it. The properties returned take effect only once they
+     * are passed to {@link #apply(Map)}, so the current properties stay in use if the new ones are rejected.
+     * @return The properties read from the file.
+     * @throws UserStoreException If an error occurs while reading the file.
+     */
+    public synchronized Map<String, String> reload() throws UserStoreException {
+        long modified = UserStoreConfigurationXMLProcessor.getConfigurationFile().lastModified();
+        try {
+            return Collections.unmodifiableMap(
+                    new UserStoreConfigurationXMLProcessor().buildUserStoreConfigurationFromFile());
+        } finally {
+            // A broken file is reported once, not on every check, until it is changed again.
+            lastModified = modified;
+        }
+    }
+
+    /**
+     * @param userStoreProperties Properties returned by {@link #reload()} which the UserStoreManager now runs on.
+     */
+    public void apply(Map<String, String> userStoreProperties) {
+        this.userStoreProperties = userStoreProperties;
+    }
 }
@@ -41,4 +41,14 @@ public class LDAPConstants {
     public static final String GROUP_NAME_ATTRIBUTE = "GroupNameAttribute";
     public static final String MEMBERSHIP_ATTRIBUTE = "MembershipAttribute";
     public static final String EMPTY_ROLES_ALLOWED = "EmptyRolesAllowed";
+    public static final String PAGED_SEARCH_PAGE_SIZE = "PagedSearchPageSize";
+    public static final String MAX_OPEN_PAGED_SEARCHES = "MaxOpenPagedSearches";
+    public static final String PAGED_SEARCH_TIMEOUT = "PagedSearchTimeout";
+    public static final String MEMBER_RESOLUTION_BATCH_SIZE = "MemberResolutionBatchSize";
+    public static final String MEMBER_RESOLUTION_THREADS = "MemberResolutionThreads";
+    public static final int DEFAULT_PAGED_SEARCH_PAGE_SIZE = 500;
+    public static final int DEFAULT_MAX_OPEN_PAGED_SEARCHES = 10;
+    public static final int DEFAULT_PAGED_SEARCH_TIMEOUT = 60000;   // ms
+    public static final int DEFAULT_MEMBER_RESOLUTION_BATCH_SIZE = 100;
+    public static final int DEFAULT_MEMBER_RESOLUTION_THREADS = 1;
 }
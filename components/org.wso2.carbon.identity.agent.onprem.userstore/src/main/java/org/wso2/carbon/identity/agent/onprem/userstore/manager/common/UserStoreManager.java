@@ -17,6 +17,7 @@
 package org.wso2.carbon.identity.agent.onprem.userstore.manager.common;
 
 import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
+import org.wso2.carbon.identity.agent.onprem.userstore.model.PagedResult;
 
 import java.util.Map;
 
@@ -50,6 +51,15 @@ public interface UserStoreManager {
      */
     String[] doListUsers(String filter, int maxItemLimit) throws UserStoreException;
 
+    /**
+     * @param filter Username filter String.
+     * @param pageSize Maximum number of usernames in the page.
+     * @param pageToken Token returned with the previous page, null to read the first page.
+     * @return The usernames in the page and the token of the next page.
+     * @throws UserStoreException If the page token is invalid or an error occurs while retrieving data.
+     */
+    PagedResult doListUsers(String filter, int pageSize, String pageToken) throws UserStoreException;
+
     /**
      * @param filter Group filter string
      * @param maxItemLimit Maximum size of the return group list
@@ -58,6 +68,15 @@ public interface UserStoreManager {
      */
     String[] doGetRoleNames(String filter, int maxItemLimit) throws UserStoreException;
 
+    /**
+     * @param filter Group filter string
+     * @param pageSize Maximum number of group names in the page.
+     * @param pageToken Token returned with the previous page, null to read the first page.
+     * @return The group names in the page and the token of the next page.
+     * @throws UserStoreException If the page token is invalid or an error occurs while retrieving data.
+     */
+    PagedResult doGetRoleNames(String filter, int pageSize, String pageToken) throws UserStoreException;
+
     /**
      * @param userName Username of the user whose role list is required.
      * @return The array of roles of the given user.
@@ -112,4 +131,10 @@ public interface UserStoreManager {
      * @throws UserStoreException If a required attribute of the UserStoreManager is missing.
      */
     void setUserStoreProperties(Map<String, String> userStoreProperties) throws UserStoreException;
+
+    /**
+     * Releases the connections and other resources held by this UserStoreManager. Called when the
+     * instance is replaced after a configuration change.
+     */
+    void close();
 }
@@ -25,22 +25,68 @@ import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreExcept
 import java.util.Map;
 
 /**
- *  Creates an instance of the Relevant UserStoreManager.
+ *  Creates and holds the instance of the Relevant UserStoreManager. The instance is shared by all requests and
+ *  replaced when the userstore configuration changes.
  */
 public class UserStoreManagerBuilder {
     private static Logger log = LoggerFactory.getLogger(UserStoreManagerBuilder.class);
+    private static volatile UserStoreManager userStoreManager;
 
     /**
-     * @return An instance of the UserStoreManager mentioned in the userstore-mgt.xml file.
+     * @return The instance of the UserStoreManager mentioned in the userstore-mgt.xml file.
      * @throws UserStoreException If an error occurs while loading the class or instantiating it.
      */
     public static UserStoreManager getUserStoreManager() throws UserStoreException {
-        Map<String, String> userStoreProperties = UserStoreConfiguration.getConfiguration().getUserStoreProperties();
+        UserStoreManager manager = userStoreManager;
+        if (manager == null) {
+            synchronized (UserStoreManagerBuilder.class) {
+                manager = userStoreManager;
+                if (manager == null) {
+                    manager = createUserStoreManager(
+                            UserStoreConfiguration.getConfiguration().getUserStoreProperties());
+                    userStoreManager = manager;
+                }
+            }
+        }
+        return manager;
+    }
+
+    /**
+     * Reloads userstore-mgt.xml and replaces the UserStoreManager with one built from the new configuration.
+     * The new configuration takes effect only once its UserStoreManager is built, so the previous instance and
+     * configuration are kept if it cannot be loaded. The previous instance is closed once it is replaced.
+     * Requests that already hold it finish on their own connections.
+     * @throws UserStoreException If the new configuration is invalid.
+     */
+    public static synchronized void reload() throws UserStoreException {
+        Map<String, String> userStoreProperties = UserStoreConfiguration.getConfiguration().reload();
+        UserStoreManager previous = userStoreManager;
+        userStoreManager = createUserStoreManager(userStoreProperties);
+        UserStoreConfiguration.getConfiguration().apply(userStoreProperties);
+        log.info("UserStoreManager reloaded with the updated userstore configuration.");
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * @param userStoreProperties Properties read from the userstore-mgt.xml file.
+     * @return A new instance of the UserStoreManager mentioned in the properties.
+     * @throws UserStoreException If an error occurs while loading the class or instantiating it.
+     */
+    private static UserStoreManager createUserStoreManager(Map<String, String> userStoreProperties)
+            throws UserStoreException {
         try {
             Class managerClass = UserStoreManagerBuilder.class.getClassLoader().
                     loadClass(userStoreProperties.get(XMLConfigurationConstants.LOCAL_NAME_CLASS));
             UserStoreManager userStoreManager = (UserStoreManager) managerClass.newInstance();
-            userStoreManager.setUserStoreProperties(userStoreProperties);
+            try {
+                userStoreManager.setUserStoreProperties(userStoreProperties);
+            } catch (UserStoreException | RuntimeException e) {
+                // releases the threads started before the failure
+                userStoreManager.close();
+                throw e;
+            }
             return userStoreManager;
         } catch (ClassNotFoundException e) {
             String message = "Error while loading the UserStoreManager";
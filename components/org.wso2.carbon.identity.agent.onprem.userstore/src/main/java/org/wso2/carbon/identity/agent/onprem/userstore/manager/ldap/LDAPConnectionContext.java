@@ -123,6 +123,33 @@ class LDAPConnectionContext {
         return (context);
     }
 
+    /**
+     * @param userStoreProperties Properties read from the userstore-mgt.xml file.
+     * @param propertyName Name of the property.
+     * @param defaultValue Value to use if the property is not set or is not a number.
+     * @return The integer value of the property.
+     */
+    static int getIntProperty(Map<String, String> userStoreProperties, String propertyName, int defaultValue) {
+        try {
+            return Integer.parseInt(userStoreProperties.get(propertyName).trim());
+        } catch (Exception e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return Connection context of the LDAP userstore which supports request controls.
+     * @throws UserStoreException If an error occurs while connecting to th userstore.
+     */
+    LdapContext getLdapContext() throws UserStoreException {
+        try {
+            return new InitialLdapContext(environment, null);
+        } catch (NamingException e) {
+            log.error("Error obtaining connection. " + e.getMessage(), e);
+            throw new UserStoreException("Error obtaining connection. " + e.getMessage(), e);
+        }
+    }
+
     /**
      * @param userDN Distinguished name of the user to be authenticated
      * @param password Password of the user to be authenticated
@@ -23,6 +23,7 @@ import org.apache.commons.logging.LogFactory;
 import org.wso2.carbon.identity.agent.onprem.userstore.constant.CommonConstants;
 import org.wso2.carbon.identity.agent.onprem.userstore.constant.LDAPConstants;
 import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
+import org.wso2.carbon.identity.agent.onprem.userstore.model.PagedResult;
 import org.wso2.carbon.identity.agent.onprem.userstore.manager.common.UserStoreManager;
 import org.wso2.carbon.identity.agent.onprem.userstore.util.JNDIUtil;
 import org.wso2.carbon.identity.agent.onprem.userstore.util.UserStoreUtils;
@@ -33,10 +34,20 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import javax.naming.AuthenticationException;
 import javax.naming.InvalidNameException;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.PartialResultException;
@@ -62,8 +73,13 @@ public class LDAPUserStoreManager implements UserStoreManager {
     private static final String MULTI_ATTRIBUTE_SEPARATOR = "MultiAttributeSeparator";
     private static final String PROPERTY_REFERRAL_IGNORE = "ignore";
     private static final String MEMBER_UID = "memberUid";
+    // option of the attribute ids in Active Directory ranged retrieval, e.g. member;range=0-1499
+    private static final String RANGE_OPTION = ";range=";
+    private static final String SERVICE_NAME_ATTRIBUTE = "sn";
     private boolean emptyRolesAllowed = false;
     private LDAPConnectionContext connectionSource;
+    private LDAPPagedSearch pagedSearch;
+    private ExecutorService memberResolutionExecutor;
 
     public LDAPUserStoreManager(){
     }
@@ -78,6 +94,39 @@ public class LDAPUserStoreManager implements UserStoreManager {
         // check if required configurations are in the user-mgt.xml
         checkRequiredUserStoreConfigurations();
         this.connectionSource = new LDAPConnectionContext(this.userStoreProperties);
+        this.pagedSearch = createPagedSearch();
+        this.memberResolutionExecutor = createMemberResolutionExecutor();
+    }
+
+    /**
+     * @return Paged search over the connections of the userstore.
+     */
+    private LDAPPagedSearch createPagedSearch() {
+        return new LDAPPagedSearch(connectionSource,
+                LDAPConnectionContext.getIntProperty(userStoreProperties, LDAPConstants.MAX_OPEN_PAGED_SEARCHES,
+                        LDAPConstants.DEFAULT_MAX_OPEN_PAGED_SEARCHES),
+                LDAPConnectionContext.getIntProperty(userStoreProperties, LDAPConstants.PAGED_SEARCH_TIMEOUT,
+                        LDAPConstants.DEFAULT_PAGED_SEARCH_TIMEOUT),
+                isIgnorePartialResultException());
+    }
+
+    /**
+     * @return Executor reading the members of a role in parallel, null if they are read sequentially.
+     */
+    private ExecutorService createMemberResolutionExecutor() {
+        int threads = LDAPConnectionContext.getIntProperty(userStoreProperties,
+                LDAPConstants.MEMBER_RESOLUTION_THREADS, LDAPConstants.DEFAULT_MEMBER_RESOLUTION_THREADS);
+        if (threads <= 1) {
+            return null;
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "LDAPMemberResolution");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     /**
@@ -437,7 +486,6 @@ public class LDAPUserStoreManager implements UserStoreManager {
         }
 
         int givenMax;
-        int searchTime;
 
         try {
             givenMax =
@@ -446,137 +494,117 @@ public class LDAPUserStoreManager implements UserStoreManager {
             givenMax = CommonConstants.MAX_USER_LIST;
         }
 
-        try {
-            searchTime =
-                    Integer.parseInt(userStoreProperties.get(CommonConstants.PROPERTY_MAX_SEARCH_TIME));
-        } catch (Exception e) {
-            searchTime = CommonConstants.MAX_SEARCH_TIME;
-        }
-
         if (maxItemLimit <= 0 || maxItemLimit > givenMax) {
             maxItemLimit = givenMax;
         }
 
-        SearchControls searchCtls = new SearchControls();
-        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        SearchControls searchCtls = getUserListSearchControls();
         searchCtls.setCountLimit(maxItemLimit);
-        searchCtls.setTimeLimit(searchTime);
-
-        if (filter.contains("?") || filter.contains("**")) {
-            throw new UserStoreException(
-                    "Invalid character sequence entered for user search. Please enter valid sequence.");
-        }
-
-        StringBuilder searchFilter =
-                new StringBuilder(
-                        userStoreProperties.get(LDAPConstants.USER_NAME_LIST_FILTER));
+        String finalFilter = getUserListFilter(filter);
         String searchBases = userStoreProperties.get(LDAPConstants.USER_SEARCH_BASE);
 
-        String userNameProperty =
-                userStoreProperties.get(LDAPConstants.USER_NAME_ATTRIBUTE);
-
-        String serviceNameAttribute = "sn";
-
-        StringBuilder finalFilter = new StringBuilder();
-
-        // read the display name attribute - if provided
-        String displayNameAttribute =
-                userStoreProperties.get(LDAPConstants.DISPLAY_NAME_ATTRIBUTE);
-
-        String[] returnedAtts;
-
-        if (StringUtils.isNotEmpty(displayNameAttribute)) {
-            returnedAtts =
-                    new String[]{userNameProperty, serviceNameAttribute,
-                            displayNameAttribute};
-            finalFilter.append("(&").append(searchFilter).append("(").append(displayNameAttribute)
-                    .append("=").append(escapeSpecialCharactersForFilterWithStarAsRegex(filter)).append("))");
-        } else {
-            returnedAtts = new String[]{userNameProperty, serviceNameAttribute};
-            finalFilter.append("(&").append(searchFilter).append("(").append(userNameProperty).append("=")
-                    .append(escapeSpecialCharactersForFilterWithStarAsRegex(filter)).append("))");
+        if (debug) {
+            log.debug("Listing users. SearchBase: " + searchBases + " Constructed-Filter: " + finalFilter);
+            log.debug("Search controls. Max Limit: " + maxItemLimit + " Max Time: " + searchCtls.getTimeLimit());
         }
 
+        List<String> list = pagedSearch.searchAll(getEscapedSearchBases(searchBases), finalFilter, searchCtls,
+                getPageSize(0), getUserNameMapper());
+        userNames = list.toArray(new String[list.size()]);
+        Arrays.sort(userNames);
+
         if (debug) {
-            log.debug("Listing users. SearchBase: " + searchBases + " Constructed-Filter: " + finalFilter.toString());
-            log.debug("Search controls. Max Limit: " + maxItemLimit + " Max Time: " + searchTime);
+            for (String username : userNames) {
+                log.debug("result: " + username);
+            }
         }
+        return userNames;
+    }
 
-        searchCtls.setReturningAttributes(returnedAtts);
-        DirContext dirContext = null;
-        NamingEnumeration<SearchResult> answer = null;
-        List<String> list = new ArrayList<>();
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PagedResult doListUsers(String filter, int pageSize, String pageToken) throws UserStoreException {
 
-        try {
-            dirContext = connectionSource.getContext();
-            // handle multiple search bases
-            String[] searchBaseArray = searchBases.split(CommonConstants.XML_PATTERN_SEPERATOR);
+        String finalFilter = getUserListFilter(filter);
+        String searchBases = userStoreProperties.get(LDAPConstants.USER_SEARCH_BASE);
+        if (log.isDebugEnabled()) {
+            log.debug("Listing users page. SearchBase: " + searchBases + " Constructed-Filter: " + finalFilter
+                    + " Page size: " + pageSize);
+        }
+        return pagedSearch.search(getEscapedSearchBases(searchBases), finalFilter, getUserListSearchControls(),
+                getPageSize(pageSize), pageToken, getUserNameMapper());
+    }
 
-            for (String searchBase : searchBaseArray) {
+    /**
+     * @param filter Username filter String.
+     * @return The search filter for listing the users matching the given filter.
+     * @throws UserStoreException If the filter has an invalid character sequence.
+     */
+    private String getUserListFilter(String filter) throws UserStoreException {
 
-                answer = dirContext.search(escapeDNForSearch(searchBase), finalFilter.toString(), searchCtls);
-                while (answer.hasMoreElements()) {
-                    SearchResult sr = answer.next();
-                    if (sr.getAttributes() != null) {
-                        log.debug("Result found ..");
-                        Attribute attr = sr.getAttributes().get(userNameProperty);
+        if (filter.contains("?") || filter.contains("**")) {
+            throw new UserStoreException(
+                    "Invalid character sequence entered for user search. Please enter valid sequence.");
+        }
 
-                        // If this is a service principle, just ignore and
-                        // iterate rest of the array. The entity is a service if
-                        // value of surname is Service
+        String searchFilter = userStoreProperties.get(LDAPConstants.USER_NAME_LIST_FILTER);
+        // read the display name attribute - if provided
+        String displayNameAttribute = userStoreProperties.get(LDAPConstants.DISPLAY_NAME_ATTRIBUTE);
+        String filterAttribute = StringUtils.isNotEmpty(displayNameAttribute) ? displayNameAttribute :
+                userStoreProperties.get(LDAPConstants.USER_NAME_ATTRIBUTE);
 
-                        Attribute attrSurname = sr.getAttributes().get(serviceNameAttribute);
+        return "(&" + searchFilter + "(" + filterAttribute + "="
+                + escapeSpecialCharactersForFilterWithStarAsRegex(filter) + "))";
+    }
 
-                        if (attrSurname != null) {
-                            if (debug) {
-                                log.debug(serviceNameAttribute + " : " + attrSurname);
-                            }
-                            String serviceName = (String) attrSurname.get();
-                            if (serviceName != null
-                                    && serviceName
-                                    .equals(LDAPConstants.SERVER_PRINCIPAL_ATTRIBUTE_VALUE)) {
-                                continue;
-                            }
-                        }
+    /**
+     * @return Search controls for listing users.
+     */
+    private SearchControls getUserListSearchControls() {
 
-                        if (attr != null) {
-                            String name = (String) attr.get();
-                            list.add(name);
-                        }
-                    }
-                }
-            }
-            userNames = list.toArray(new String[list.size()]);
-            Arrays.sort(userNames);
+        String userNameProperty = userStoreProperties.get(LDAPConstants.USER_NAME_ATTRIBUTE);
+        String displayNameAttribute = userStoreProperties.get(LDAPConstants.DISPLAY_NAME_ATTRIBUTE);
 
-            if (debug) {
-                for (String username : userNames) {
-                    log.debug("result: " + username);
-                }
-            }
-        } catch (PartialResultException e) {
-            // can be due to referrals in AD. so just ignore error
-            String errorMessage =
-                    "Error occurred while getting user list for filter : " + filter + "max limit : " + maxItemLimit;
-            if (isIgnorePartialResultException()) {
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setTimeLimit(getSearchTime());
+        if (StringUtils.isNotEmpty(displayNameAttribute)) {
+            searchCtls.setReturningAttributes(new String[] { userNameProperty, SERVICE_NAME_ATTRIBUTE,
+                    displayNameAttribute });
+        } else {
+            searchCtls.setReturningAttributes(new String[] { userNameProperty, SERVICE_NAME_ATTRIBUTE });
+        }
+        return searchCtls;
+    }
+
+    /**
+     * @return Mapper which reads the username of a user entry, skipping service principals.
+     */
+    private LDAPPagedSearch.ResultMapper getUserNameMapper() {
+
+        String userNameProperty = userStoreProperties.get(LDAPConstants.USER_NAME_ATTRIBUTE);
+        return searchResult -> {
+            if (searchResult.getAttributes() == null) {
+                return null;
+            }
+            log.debug("Result found ..");
+            // If this is a service principle, just ignore it. The entity is a service if
+            // value of surname is Service
+            Attribute attrSurname = searchResult.getAttributes().get(SERVICE_NAME_ATTRIBUTE);
+            if (attrSurname != null) {
                 if (log.isDebugEnabled()) {
-                    log.debug(errorMessage, e);
+                    log.debug(SERVICE_NAME_ATTRIBUTE + " : " + attrSurname);
+                }
+                String serviceName = (String) attrSurname.get();
+                if (serviceName != null && serviceName.equals(LDAPConstants.SERVER_PRINCIPAL_ATTRIBUTE_VALUE)) {
+                    return null;
                 }
-            } else {
-                throw new UserStoreException(errorMessage, e);
-            }
-        } catch (NamingException e) {
-            String errorMessage =
-                    "Error occurred while getting user list for filter : " + filter + "max limit : " + maxItemLimit;
-            if (log.isDebugEnabled()) {
-                log.debug(errorMessage, e);
             }
-            throw new UserStoreException(errorMessage, e);
-        } finally {
-            JNDIUtil.closeNamingEnumeration(answer);
-            JNDIUtil.closeContext(dirContext);
-        }
-        return userNames;
+            Attribute attr = searchResult.getAttributes().get(userNameProperty);
+            return attr != null ? (String) attr.get() : null;
+        };
     }
 
     /**
@@ -590,8 +618,6 @@ public class LDAPUserStoreManager implements UserStoreManager {
 
         int givenMax;
 
-        int searchTime;
-
         try {
             givenMax = Integer.parseInt(userStoreProperties.
                     get(CommonConstants.PROPERTY_MAX_ROLE_LIST));
@@ -599,33 +625,39 @@ public class LDAPUserStoreManager implements UserStoreManager {
             givenMax = CommonConstants.MAX_USER_LIST;
         }
 
-        try {
-            searchTime = Integer.parseInt(userStoreProperties.
-                    get(CommonConstants.PROPERTY_MAX_SEARCH_TIME));
-        } catch (Exception e) {
-            searchTime = CommonConstants.MAX_SEARCH_TIME;
-        }
-
         if (maxItemLimit < 0 || maxItemLimit > givenMax) {
             maxItemLimit = givenMax;
         }
 
-        List<String> externalRoles = new ArrayList<>();
-
         // handling multiple search bases
         String searchBases = userStoreProperties.get(LDAPConstants.GROUP_SEARCH_BASE);
-        String[] searchBaseArray = searchBases.split(CommonConstants.XML_PATTERN_SEPERATOR);
-        for (String searchBase : searchBaseArray) {
-            // get the role list from the group search base
-            externalRoles.addAll(getLDAPRoleNames(searchTime, filter, maxItemLimit,
-                    userStoreProperties.get(LDAPConstants.GROUP_NAME_LIST_FILTER),
-                    userStoreProperties.get(LDAPConstants.GROUP_NAME_ATTRIBUTE),
-                    searchBase));
-        }
+        List<String> externalRoles = getLDAPRoleNames(filter, maxItemLimit,
+                userStoreProperties.get(LDAPConstants.GROUP_NAME_LIST_FILTER),
+                userStoreProperties.get(LDAPConstants.GROUP_NAME_ATTRIBUTE),
+                searchBases);
 
         return externalRoles.toArray(new String[externalRoles.size()]);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PagedResult doGetRoleNames(String filter, int pageSize, String pageToken) throws UserStoreException {
+
+        String roleNameProperty = userStoreProperties.get(LDAPConstants.GROUP_NAME_ATTRIBUTE);
+        String searchBases = userStoreProperties.get(LDAPConstants.GROUP_SEARCH_BASE);
+        String finalFilter = getRoleListFilter(filter,
+                userStoreProperties.get(LDAPConstants.GROUP_NAME_LIST_FILTER), roleNameProperty);
+        if (log.isDebugEnabled()) {
+            log.debug("Listing roles page. SearchBase: " + searchBases + " ConstructedFilter: " + finalFilter
+                    + " Page size: " + pageSize);
+        }
+        return pagedSearch.search(getEscapedSearchBases(searchBases), finalFilter,
+                getRoleListSearchControls(roleNameProperty), getPageSize(pageSize), pageToken,
+                getAttributeMapper(roleNameProperty));
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -741,7 +773,7 @@ public class LDAPUserStoreManager implements UserStoreManager {
     public String[] doGetUserListOfRole(String roleName, int maxItemLimit) throws UserStoreException {
 
         boolean debug = log.isDebugEnabled();
-        List<String> userList = new ArrayList<String>();
+        List<String> userList;
         String[] names = new String[0];
         int givenMax = CommonConstants.MAX_USER_ROLE_LIST;
         int searchTime = CommonConstants.MAX_SEARCH_TIME;
@@ -780,7 +812,7 @@ public class LDAPUserStoreManager implements UserStoreManager {
             String membershipProperty = userStoreProperties.get(LDAPConstants.MEMBERSHIP_ATTRIBUTE);
             String returnedAtts[] = {membershipProperty};
             searchCtls.setReturningAttributes(returnedAtts);
-            List<String> userDNList = new ArrayList<String>();
+            List<String> userDNList;
 
             SearchResult sr = null;
             dirContext = connectionSource.getContext();
@@ -820,125 +852,330 @@ public class LDAPUserStoreManager implements UserStoreManager {
             }
 
             // read the member attribute and get DNs of the users
-            Attributes attributes = sr.getAttributes();
-            if (attributes != null) {
-                NamingEnumeration attributeEntry = null;
-                for (attributeEntry = attributes.getAll(); attributeEntry.hasMore(); ) {
-                    Attribute valAttribute = (Attribute) attributeEntry.next();
-                    if (membershipProperty.equals(valAttribute.getID())) {
-                        NamingEnumeration values = null;
-                        for (values = valAttribute.getAll(); values.hasMore();) {
-                            String value = values.next().toString();
-                            if (userDNList.size() >= maxItemLimit) {
-                                break;
-                            }
-                            userDNList.add(value);
-                            if (debug) {
-                                log.debug("Found attribute: " + membershipProperty + " value: " + value);
-                            }
-                        }
-                    }
+            userDNList = getMembershipValues(dirContext, sr.getNameInNamespace(), sr.getAttributes(),
+                    membershipProperty, maxItemLimit);
+            // released before the members are read, as each batch borrows its own connection
+            JNDIUtil.closeNamingEnumeration(answer);
+            answer = null;
+            JNDIUtil.closeContext(dirContext);
+            dirContext = null;
+
+            // when the GroupEntryObjectClass is posixGroup, membership attribute is memberUid, which holds the
+            // usernames of the members instead of their DNs.
+            boolean byUserName = MEMBER_UID.equals(userStoreProperties.get(LDAPConstants.MEMBERSHIP_ATTRIBUTE));
+            userList = getMemberNames(userDNList, byUserName);
+            names = userList.toArray(new String[userList.size()]);
+
+        } catch (PartialResultException e) {
+            // can be due to referrals in AD. so just ignore error
+            String errorMessage = "Error in reading user information in the user store";
+            if (isIgnorePartialResultException()) {
+                if (log.isDebugEnabled()) {
+                    log.debug(errorMessage, e);
                 }
+            } else {
+                throw new UserStoreException(errorMessage, e);
+            }
+        } catch (NamingException e) {
+            String errorMessage = "Error in reading user information in the user store";
+            if (log.isDebugEnabled()) {
+                log.debug(errorMessage, e);
             }
+            throw new UserStoreException(errorMessage, e);
+        } finally {
+            JNDIUtil.closeNamingEnumeration(answer);
+            JNDIUtil.closeContext(dirContext);
+        }
+        return names;
+    }
+
+    /**
+     * Reads the usernames and display names of the members of a role in batches, each with a single search
+     * instead of a read per member. Batches run in parallel if MemberResolutionThreads is more than one.
+     * @param members DNs of the members, or usernames if byUserName is true.
+     * @param byUserName Whether the members are given by their usernames.
+     * @return Names of the members combined with their display names.
+     * @throws UserStoreException If an error occurs while reading the members.
+     */
+    private List<String> getMemberNames(List<String> members, boolean byUserName) throws UserStoreException {
 
-            if (MEMBER_UID.equals(userStoreProperties.get(LDAPConstants.MEMBERSHIP_ATTRIBUTE))) {
-                /* when the GroupEntryObjectClass is posixGroup, membership attribute is memberUid. We have to
-                   retrieve the DN using the memberUid.
-                   This procedure has to make an extra call to ldap. alternatively this can be done with a single ldap
-                   search using the memberUid and retrieving the display name and username. */
-                List<String> userDNListNew = new ArrayList<>();
+        int batchSize = Math.max(1, LDAPConnectionContext.getIntProperty(userStoreProperties,
+                LDAPConstants.MEMBER_RESOLUTION_BATCH_SIZE, LDAPConstants.DEFAULT_MEMBER_RESOLUTION_BATCH_SIZE));
+        List<List<String>> batches = new ArrayList<>();
+        for (int i = 0; i < members.size(); i += batchSize) {
+            batches.add(members.subList(i, Math.min(i + batchSize, members.size())));
+        }
+
+        List<String> names = new ArrayList<>();
+        if (memberResolutionExecutor == null || batches.size() <= 1) {
+            for (List<String> batch : batches) {
+                names.addAll(getMemberNamesOfBatch(batch, byUserName));
+            }
+            return names;
+        }
 
-                for (String user : userDNList) {
-                    String userDN = getNameInSpaceForUserName(user);
-                    userDNListNew.add(userDN);
+        List<Future<List<String>>> futures = new ArrayList<>();
+        try {
+            for (List<String> batch : batches) {
+                try {
+                    futures.add(memberResolutionExecutor.submit(() -> getMemberNamesOfBatch(batch, byUserName)));
+                } catch (RejectedExecutionException e) {
+                    // the instance was closed after a configuration change, so the batch is read in this thread
+                    futures.add(CompletableFuture.completedFuture(getMemberNamesOfBatch(batch, byUserName)));
                 }
-                userDNList = userDNListNew;
             }
+            for (Future<List<String>> future : futures) {
+                names.addAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UserStoreException("Interrupted while reading user information in the user store", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UserStoreException) {
+                throw (UserStoreException) e.getCause();
+            }
+            throw new UserStoreException("Error in reading user information in the user store", e.getCause());
+        } finally {
+            for (Future<List<String>> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return names;
+    }
 
-            // iterate over users' DN list and get userName and display name
-            // attribute values
-            String userNameProperty = userStoreProperties.get(LDAPConstants.USER_NAME_ATTRIBUTE);
-            String displayNameAttribute = userStoreProperties.get(LDAPConstants.DISPLAY_NAME_ATTRIBUTE);
-            String[] returnedAttributes = {userNameProperty, displayNameAttribute};
+    /**
+     * @param members DNs of the members, or usernames if byUserName is true.
+     * @param byUserName Whether the members are given by their usernames.
+     * @return Names of the members combined with their display names.
+     * @throws UserStoreException If an error occurs while reading the members.
+     */
+    private List<String> getMemberNamesOfBatch(List<String> members, boolean byUserName)
+            throws UserStoreException {
 
-            for (String user : userDNList) {
-                if (debug) {
-                    log.debug("Getting name attributes of: " + user);
-                }
-                Attributes userAttributes;
-                try {
-                    // '\' and '"' characters need another level of escaping before searching
-                    userAttributes = dirContext.getAttributes(escapeDNForSearch(user), returnedAttributes);
-
-                    String displayName = null;
-                    String userName = null;
-                    if (userAttributes != null) {
-                        Attribute userNameAttribute = userAttributes.get(userNameProperty);
-                        if (userNameAttribute != null) {
-                            userName = (String) userNameAttribute.get();
-                            if (debug) {
-                                log.debug("UserName: " + userName);
-                            }
-                        }
-                        if (org.apache.commons.lang.StringUtils.isNotEmpty(displayNameAttribute)) {
-                            Attribute displayAttribute = userAttributes.get(displayNameAttribute);
-                            if (displayAttribute != null) {
-                                displayName = (String) displayAttribute.get();
-                            }
-                            if (debug) {
-                                log.debug("DisplayName: " + displayName);
-                            }
-                        }
-                    }
+        String userNameProperty = userStoreProperties.get(LDAPConstants.USER_NAME_ATTRIBUTE);
+        String displayNameAttribute = userStoreProperties.get(LDAPConstants.DISPLAY_NAME_ATTRIBUTE);
+        String[] returnedAttributes = StringUtils.isNotEmpty(displayNameAttribute) ?
+                new String[] { userNameProperty, displayNameAttribute } : new String[] { userNameProperty };
+        List<String> names = new ArrayList<>();
 
-                    // Username will be null in the special case where the
-                    // username attribute has changed to another
-                    // and having different userNameProperty than the current
-                    // user-mgt.xml
-                    if (userName != null) {
-                        user = UserStoreUtils.getCombinedName(userName, displayName);
-                        userList.add(user);
-                        if (debug) {
-                            log.debug(user + " is added to the result list");
-                        }
-                    } else {
-                        if (log.isDebugEnabled()) {
-                            log.debug("User " + user + " doesn't have the user name property : " +
-                                    userNameProperty);
-                        }
-                    }
+        DirContext dirContext = connectionSource.getContext();
+        try {
+            if (byUserName) {
+                StringBuilder filter = new StringBuilder("(&")
+                        .append(userStoreProperties.get(LDAPConstants.USER_NAME_LIST_FILTER)).append("(|");
+                for (String member : members) {
+                    filter.append("(").append(userNameProperty).append("=")
+                            .append(escapeSpecialCharactersForFilter(member)).append(")");
+                }
+                filter.append("))");
+                for (String searchBase : getEscapedSearchBases(
+                        userStoreProperties.get(LDAPConstants.USER_SEARCH_BASE))) {
+                    searchMemberNames(dirContext, searchBase, filter.toString(), SearchControls.SUBTREE_SCOPE,
+                            returnedAttributes, names);
+                }
+                return names;
+            }
 
-                } catch (NamingException e) {
+            // members under the same parent are read with one search on the RDNs of the members
+            Map<String, StringBuilder> filters = new LinkedHashMap<>();
+            for (String member : members) {
+                LdapName memberName;
+                try {
+                    memberName = new LdapName(member);
+                } catch (InvalidNameException e) {
                     if (log.isDebugEnabled()) {
-                        log.debug("Error in reading user information in the user store for the user " +
-                                user + e.getMessage(), e);
+                        log.debug("Invalid member DN " + member, e);
                     }
+                    continue;
                 }
-
+                Rdn rdn = memberName.isEmpty() ? null : memberName.getRdn(memberName.size() - 1);
+                if (rdn == null || rdn.size() != 1) {
+                    // multi valued RDNs are read one by one
+                    readMemberName(dirContext, member, returnedAttributes, names);
+                    continue;
+                }
+                String parentDN = memberName.getPrefix(memberName.size() - 1).toString();
+                filters.computeIfAbsent(parentDN, key -> new StringBuilder()).append("(").append(rdn.getType())
+                        .append("=").append(escapeSpecialCharactersForFilter(rdn.getValue().toString())).append(")");
             }
-            names = userList.toArray(new String[userList.size()]);
+            for (Map.Entry<String, StringBuilder> entry : filters.entrySet()) {
+                searchMemberNames(dirContext, escapeDNForSearch(entry.getKey()), "(|" + entry.getValue() + ")",
+                        SearchControls.ONELEVEL_SCOPE, returnedAttributes, names);
+            }
+        } finally {
+            JNDIUtil.closeContext(dirContext);
+        }
+        return names;
+    }
+
+    /**
+     * Searches the member entries and adds their names to the given list.
+     */
+    private void searchMemberNames(DirContext dirContext, String searchBase, String filter, int searchScope,
+            String[] returnedAttributes, List<String> names) throws UserStoreException {
+
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setSearchScope(searchScope);
+        searchCtls.setTimeLimit(getSearchTime());
+        searchCtls.setReturningAttributes(returnedAttributes);
 
+        if (log.isDebugEnabled()) {
+            log.debug("Searching members. SearchBase: " + searchBase + " SearchFilter: " + filter);
+        }
+        NamingEnumeration<SearchResult> answer = null;
+        try {
+            answer = dirContext.search(searchBase, filter, searchCtls);
+            while (answer.hasMore()) {
+                SearchResult sr = answer.next();
+                addMemberName(sr.getNameInNamespace(), sr.getAttributes(), names);
+            }
+        } catch (NameNotFoundException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Search base " + searchBase + " of members does not exist", e);
+            }
         } catch (PartialResultException e) {
             // can be due to referrals in AD. so just ignore error
-            String errorMessage = "Error in reading user information in the user store";
-            if (isIgnorePartialResultException()) {
-                if (log.isDebugEnabled()) {
-                    log.debug(errorMessage, e);
-                }
-            } else {
+            String errorMessage = "Error in reading user information in the user store. SearchBase: " + searchBase;
+            if (!isIgnorePartialResultException()) {
                 throw new UserStoreException(errorMessage, e);
             }
-        } catch (NamingException e) {
-            String errorMessage = "Error in reading user information in the user store";
             if (log.isDebugEnabled()) {
                 log.debug(errorMessage, e);
             }
-            throw new UserStoreException(errorMessage, e);
+        } catch (NamingException e) {
+            throw new UserStoreException("Error in reading user information in the user store. SearchBase: "
+                    + searchBase, e);
         } finally {
             JNDIUtil.closeNamingEnumeration(answer);
-            JNDIUtil.closeContext(dirContext);
         }
-        return names;
+    }
+
+    /**
+     * Reads the member entry and adds its name to the given list.
+     */
+    private void readMemberName(DirContext dirContext, String member, String[] returnedAttributes,
+            List<String> names) {
+
+        try {
+            // '\' and '"' characters need another level of escaping before searching
+            addMemberName(member, dirContext.getAttributes(escapeDNForSearch(member), returnedAttributes), names);
+        } catch (NamingException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Error in reading user information in the user store for the user " +
+                        member + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Adds the username of the member, combined with the display name, to the given list.
+     */
+    private void addMemberName(String member, Attributes userAttributes, List<String> names)
+            throws NamingException {
+
+        boolean debug = log.isDebugEnabled();
+        String userNameProperty = userStoreProperties.get(LDAPConstants.USER_NAME_ATTRIBUTE);
+        String displayNameAttribute = userStoreProperties.get(LDAPConstants.DISPLAY_NAME_ATTRIBUTE);
+        String displayName = null;
+        String userName = null;
+        if (userAttributes != null) {
+            Attribute userNameAttribute = userAttributes.get(userNameProperty);
+            if (userNameAttribute != null) {
+                userName = (String) userNameAttribute.get();
+                if (debug) {
+                    log.debug("UserName: " + userName);
+                }
+            }
+            if (StringUtils.isNotEmpty(displayNameAttribute)) {
+                Attribute displayAttribute = userAttributes.get(displayNameAttribute);
+                if (displayAttribute != null) {
+                    displayName = (String) displayAttribute.get();
+                }
+                if (debug) {
+                    log.debug("DisplayName: " + displayName);
+                }
+            }
+        }
+
+        // Username will be null in the special case where the
+        // username attribute has changed to another
+        // and having different userNameProperty than the current
+        // user-mgt.xml
+        if (userName != null) {
+            String user = UserStoreUtils.getCombinedName(userName, displayName);
+            names.add(user);
+            if (debug) {
+                log.debug(user + " is added to the result list");
+            }
+        } else if (debug) {
+            log.debug("User " + member + " doesn't have the user name property : " + userNameProperty);
+        }
+    }
+
+    /**
+     * Reads the values of the membership attribute of a group. Active Directory returns a limited number of
+     * values of an attribute in one read, as member;range=0-1499, so the rest of the values are read range by
+     * range until all of them or maxItemLimit values are read.
+     * @param dirContext Connection to the LDAP userstore.
+     * @param groupDN Distinguished name of the group.
+     * @param attributes Attributes of the group read with the membership attribute.
+     * @param membershipProperty Name of the membership attribute.
+     * @param maxItemLimit Maximum number of values required.
+     * @return Values of the membership attribute.
+     * @throws NamingException If an error occurs while reading the attribute values.
+     */
+    private List<String> getMembershipValues(DirContext dirContext, String groupDN, Attributes attributes,
+            String membershipProperty, int maxItemLimit) throws NamingException {
+
+        boolean debug = log.isDebugEnabled();
+        List<String> values = new ArrayList<>();
+        String rangePrefix = membershipProperty + RANGE_OPTION;
+
+        while (attributes != null && values.size() < maxItemLimit) {
+            int nextRangeStart = -1;
+            NamingEnumeration<? extends Attribute> attributeEntry = attributes.getAll();
+            try {
+                while (attributeEntry.hasMore()) {
+                    Attribute valAttribute = attributeEntry.next();
+                    String attributeId = valAttribute.getID();
+                    boolean ranged = attributeId.regionMatches(true, 0, rangePrefix, 0, rangePrefix.length());
+                    if (!ranged && !membershipProperty.equals(attributeId)) {
+                        continue;
+                    }
+                    NamingEnumeration<?> attributeValues = valAttribute.getAll();
+                    try {
+                        while (attributeValues.hasMore() && values.size() < maxItemLimit) {
+                            String value = attributeValues.next().toString();
+                            values.add(value);
+                            if (debug) {
+                                log.debug("Found attribute: " + attributeId + " value: " + value);
+                            }
+                        }
+                    } finally {
+                        JNDIUtil.closeNamingEnumeration(attributeValues);
+                    }
+                    if (ranged) {
+                        // the last range ends with *
+                        String rangeEnd = attributeId.substring(attributeId.lastIndexOf('-') + 1);
+                        if (!"*".equals(rangeEnd)) {
+                            nextRangeStart = Integer.parseInt(rangeEnd) + 1;
+                        }
+                    }
+                }
+            } finally {
+                JNDIUtil.closeNamingEnumeration(attributeEntry);
+            }
+
+            if (nextRangeStart < 0 || values.size() >= maxItemLimit) {
+                break;
+            }
+            if (debug) {
+                log.debug("Reading " + rangePrefix + nextRangeStart + "-* of group " + groupDN);
+            }
+            attributes = dirContext.getAttributes(escapeDNForSearch(groupDN),
+                    new String[] { rangePrefix + nextRangeStart + "-*" });
+        }
+        return values;
     }
 
     /**
@@ -1154,83 +1391,51 @@ public class LDAPUserStoreManager implements UserStoreManager {
         // check if required configurations are in the user-mgt.xml
         checkRequiredUserStoreConfigurations();
         this.connectionSource = new LDAPConnectionContext(this.userStoreProperties);
+        this.pagedSearch = createPagedSearch();
+        this.memberResolutionExecutor = createMemberResolutionExecutor();
     }
 
     /**
-     * Returns the list of role names for the given search base and other
+     * {@inheritDoc}
+     * Requests already running on this instance finish on their own connections. The member reads they
+     * started are completed before the threads stop.
+     */
+    @Override
+    public void close() {
+        if (memberResolutionExecutor != null) {
+            memberResolutionExecutor.shutdown();
+        }
+        if (pagedSearch != null) {
+            pagedSearch.close();
+        }
+    }
+
+    /**
+     * Returns the list of role names for the given search bases and other
      * parameters.
-     * @param searchTime Maximum search time
      * @param filter Filter for searching role names
      * @param maxItemLimit Maximum number of roles required
      * @param searchFilter Group name search filter
      * @param roleNameProperty Attribute name of the group in LDAP user store.
-     * @param searchBase Group search base.
-     * @return The list of roles in the given search base.
+     * @param searchBases Group search bases.
+     * @return The list of roles in the given search bases.
      * @throws UserStoreException If an error occurs while retrieving the required information.
      */
-    private List<String> getLDAPRoleNames(int searchTime, String filter, int maxItemLimit,
-                                          String searchFilter, String roleNameProperty,
-                                          String searchBase)
+    private List<String> getLDAPRoleNames(String filter, int maxItemLimit, String searchFilter,
+            String roleNameProperty, String searchBases)
             throws UserStoreException {
         boolean debug = log.isDebugEnabled();
-        List<String> roles = new ArrayList<>();
 
-        SearchControls searchCtls = new SearchControls();
-        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        SearchControls searchCtls = getRoleListSearchControls(roleNameProperty);
         searchCtls.setCountLimit(maxItemLimit);
-        searchCtls.setTimeLimit(searchTime);
-
-        String returnedAtts[] = {roleNameProperty};
-        searchCtls.setReturningAttributes(returnedAtts);
-
-        StringBuilder finalFilter = new StringBuilder();
-        finalFilter.append("(&").append(searchFilter).append("(").append(roleNameProperty).append("=")
-                .append(escapeSpecialCharactersForFilterWithStarAsRegex(filter)).append("))");
+        String finalFilter = getRoleListFilter(filter, searchFilter, roleNameProperty);
 
         if (debug) {
-            log.debug("Listing roles. SearchBase: " + searchBase + " ConstructedFilter: " +
-                    finalFilter.toString());
+            log.debug("Listing roles. SearchBase: " + searchBases + " ConstructedFilter: " + finalFilter);
         }
 
-        DirContext dirContext = null;
-        NamingEnumeration<SearchResult> answer = null;
-
-        try {
-            dirContext = connectionSource.getContext();
-            answer = dirContext.search(escapeDNForSearch(searchBase), finalFilter.toString(), searchCtls);
-
-            while (answer.hasMoreElements()) {
-                SearchResult sr = answer.next();
-                if (sr.getAttributes() != null) {
-                    Attribute attr = sr.getAttributes().get(roleNameProperty);
-                    if (attr != null) {
-                        String name = (String) attr.get();
-                        roles.add(name);
-                    }
-                }
-            }
-        } catch (PartialResultException e) {
-            // can be due to referrals in AD. so just ignore error
-            String errorMessage = "Error occurred while getting LDAP role names. SearchBase: "
-                    + searchBase + " ConstructedFilter: " + finalFilter.toString();
-            if (isIgnorePartialResultException()) {
-                if (log.isDebugEnabled()) {
-                    log.debug(errorMessage, e);
-                }
-            } else {
-                throw new UserStoreException(errorMessage, e);
-            }
-        } catch (NamingException e) {
-            String errorMessage = "Error occurred while getting LDAP role names. SearchBase: "
-                    + searchBase + " ConstructedFilter: " + finalFilter.toString();
-            if (log.isDebugEnabled()) {
-                log.debug(errorMessage, e);
-            }
-            throw new UserStoreException(errorMessage, e);
-        } finally {
-            JNDIUtil.closeNamingEnumeration(answer);
-            JNDIUtil.closeContext(dirContext);
-        }
+        List<String> roles = pagedSearch.searchAll(getEscapedSearchBases(searchBases), finalFilter, searchCtls,
+                getPageSize(0), getAttributeMapper(roleNameProperty));
 
         if (debug) {
             for (String role : roles) {
@@ -1241,6 +1446,85 @@ public class LDAPUserStoreManager implements UserStoreManager {
         return roles;
     }
 
+    /**
+     * @param filter Filter for searching role names
+     * @param searchFilter Group name search filter
+     * @param roleNameProperty Attribute name of the group in LDAP user store.
+     * @return The search filter for listing the roles matching the given filter.
+     */
+    private String getRoleListFilter(String filter, String searchFilter, String roleNameProperty) {
+        return "(&" + searchFilter + "(" + roleNameProperty + "="
+                + escapeSpecialCharactersForFilterWithStarAsRegex(filter) + "))";
+    }
+
+    /**
+     * @param roleNameProperty Attribute name of the group in LDAP user store.
+     * @return Search controls for listing roles.
+     */
+    private SearchControls getRoleListSearchControls(String roleNameProperty) {
+
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setTimeLimit(getSearchTime());
+        searchCtls.setReturningAttributes(new String[] { roleNameProperty });
+        return searchCtls;
+    }
+
+    /**
+     * @param attributeName Name of the attribute to be read.
+     * @return Mapper which reads the value of the given attribute of an entry.
+     */
+    private LDAPPagedSearch.ResultMapper getAttributeMapper(String attributeName) {
+        return searchResult -> {
+            if (searchResult.getAttributes() == null) {
+                return null;
+            }
+            Attribute attr = searchResult.getAttributes().get(attributeName);
+            return attr != null ? (String) attr.get() : null;
+        };
+    }
+
+    /**
+     * @param searchBases Search bases separated with the XML pattern separator.
+     * @return The search bases, escaped for searching.
+     */
+    private String[] getEscapedSearchBases(String searchBases) {
+
+        String[] searchBaseArray = searchBases.split(CommonConstants.XML_PATTERN_SEPERATOR);
+        for (int i = 0; i < searchBaseArray.length; i++) {
+            searchBaseArray[i] = escapeDNForSearch(searchBaseArray[i]);
+        }
+        return searchBaseArray;
+    }
+
+    /**
+     * @return Maximum time in milliseconds for a search.
+     */
+    private int getSearchTime() {
+        try {
+            return Integer.parseInt(userStoreProperties.get(CommonConstants.PROPERTY_MAX_SEARCH_TIME));
+        } catch (Exception e) {
+            return CommonConstants.MAX_SEARCH_TIME;
+        }
+    }
+
+    /**
+     * @param requestedPageSize Page size requested by the caller, 0 or less to use the configured page size.
+     * @return The page size to be used, never more than the configured maximum user list size.
+     */
+    private int getPageSize(int requestedPageSize) {
+
+        int maxPageSize;
+        try {
+            maxPageSize = Integer.parseInt(userStoreProperties.get(CommonConstants.PROPERTY_MAX_USER_LIST));
+        } catch (Exception e) {
+            maxPageSize = CommonConstants.MAX_USER_LIST;
+        }
+        int pageSize = requestedPageSize > 0 ? requestedPageSize : LDAPConnectionContext.getIntProperty(
+                userStoreProperties, LDAPConstants.PAGED_SEARCH_PAGE_SIZE, LDAPConstants.DEFAULT_PAGED_SEARCH_PAGE_SIZE);
+        return Math.min(pageSize, maxPageSize);
+    }
+
     /**
      * @param dn Distinguised name of the user to be used for connecting to the LDAP userstore.
      * @param credentials Password of the user to be used for connecting to the LDAP userstore.
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.onprem.userstore.model;
+
+/**
+ * Model representing one page of a user or role listing.
+ */
+public class PagedResult {
+    private final String[] items;
+    private final String nextPageToken;
+
+    /**
+     * @param items Names in the page.
+     * @param nextPageToken Token to read the next page with, null if this is the last page.
+     */
+    public PagedResult(String[] items, String nextPageToken) {
+        this.items = items;
+        this.nextPageToken = nextPageToken;
+    }
+
+    /**
+     * @return Names in the page.
+     */
+    public String[] getItems() {
+        return items;
+    }
+
+    /**
+     * @return Token to read the next page with, null if this is the last page.
+     */
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+}
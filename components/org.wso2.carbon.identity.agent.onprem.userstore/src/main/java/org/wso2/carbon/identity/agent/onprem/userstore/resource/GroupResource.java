@@ -32,6 +32,7 @@ import org.wso2.carbon.identity.agent.onprem.userstore.constant.CommonConstants;
 import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
 import org.wso2.carbon.identity.agent.onprem.userstore.manager.common.UserStoreManager;
 import org.wso2.carbon.identity.agent.onprem.userstore.manager.common.UserStoreManagerBuilder;
+import org.wso2.carbon.identity.agent.onprem.userstore.model.PagedResult;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
@@ -58,7 +59,10 @@ public class GroupResource {
 
     /**
      * @param limit Maximum number of the role names that should be returned.
-     * @return List of the role names in the userstore.
+     * @param pageSize Maximum number of role names in a page. The whole list is returned if neither the page size
+     *                 nor the page token is specified.
+     * @param pageToken Token returned with the previous page.
+     * @return List of the role names in the userstore, or the page of role names and the next page token.
      */
     @GET
     @Produces(MediaType.APPLICATION_JSON)
@@ -66,11 +70,24 @@ public class GroupResource {
             value = "Return the list of roles up to the given limit. ",
             notes = "Returns HTTP 500 if an internal error occurs at the server")
     @ApiResponses(value = {
-            @ApiResponse(code = 200, message = "{groups:[group1, group2, ... ]}"),
+            @ApiResponse(code = 200, message = "{groups:[group1, group2, ... ], nextPageToken:token}"),
             @ApiResponse(code = 500, message = "Particular exception message")})
-    public Response getAllRoleNames(@ApiParam(value = "Limit", required = false) @QueryParam("limit") String limit) {
+    public Response getAllRoleNames(@ApiParam(value = "Limit", required = false) @QueryParam("limit") String limit,
+                                    @ApiParam(value = "Page size", required = false)
+                                    @QueryParam("pageSize") String pageSize,
+                                    @ApiParam(value = "Page token", required = false)
+                                    @QueryParam("pageToken") String pageToken) {
         try {
             UserStoreManager userStoreManager = UserStoreManagerBuilder.getUserStoreManager();
+            if ((pageSize != null && !pageSize.isEmpty()) || (pageToken != null && !pageToken.isEmpty())) {
+                PagedResult page = userStoreManager.doGetRoleNames("*",
+                        pageSize == null || pageSize.isEmpty() ? 0 : Integer.parseInt(pageSize),
+                        pageToken == null || pageToken.isEmpty() ? null : pageToken);
+                JSONObject returnObject = new JSONObject();
+                returnObject.put("groups", new JSONArray(page.getItems()));
+                returnObject.putOpt("nextPageToken", page.getNextPageToken());
+                return Response.status(Response.Status.OK).entity(returnObject.toString()).build();
+            }
             if (limit == null || limit.isEmpty()) {
                 limit = String.valueOf(CommonConstants.MAX_USER_LIST);
             }
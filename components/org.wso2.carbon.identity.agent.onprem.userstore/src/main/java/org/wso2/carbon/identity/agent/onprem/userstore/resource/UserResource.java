@@ -36,6 +36,7 @@ import org.wso2.carbon.identity.agent.onprem.userstore.constant.CommonConstants;
 import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
 import org.wso2.carbon.identity.agent.onprem.userstore.manager.common.UserStoreManager;
 import org.wso2.carbon.identity.agent.onprem.userstore.manager.common.UserStoreManagerBuilder;
+import org.wso2.carbon.identity.agent.onprem.userstore.model.PagedResult;
 import java.util.Map;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
@@ -100,7 +101,10 @@ public class UserResource {
 
     /**
      * @param limit Maximum number of usernames required. Deafult value will be taken if not specified.
-     * @return The list of usernames up to the given limit.
+     * @param pageSize Maximum number of usernames in a page. The whole list is returned if neither the page size
+     *                 nor the page token is specified.
+     * @param pageToken Token returned with the previous page.
+     * @return The list of usernames up to the given limit, or the page of usernames and the next page token.
      */
     @GET
     @Produces(MediaType.APPLICATION_JSON)
@@ -108,15 +112,29 @@ public class UserResource {
             value = "Return the usernames in the user store up to the limit. ",
             notes = "Returns HTTP 500 if an internal error occurs at the server")
     @ApiResponses(value = {
-            @ApiResponse(code = 200, message = "{usernames:[username1, username2, ...]}"),
+            @ApiResponse(code = 200, message = "{usernames:[username1, username2, ...], nextPageToken:token}"),
             @ApiResponse(code = 500, message = "Particular exception message")})
-    public Response getAllUserNames(@ApiParam(value = "Limit", required = false) @QueryParam("limit") String limit) {
+    public Response getAllUserNames(@ApiParam(value = "Limit", required = false) @QueryParam("limit") String limit,
+                                    @ApiParam(value = "Page size", required = false)
+                                    @QueryParam("pageSize") String pageSize,
+                                    @ApiParam(value = "Page token", required = false)
+                                    @QueryParam("pageToken") String pageToken) {
         try {
             if (limit == null || limit.isEmpty()) {
                 limit = String.valueOf(CommonConstants.MAX_USER_LIST);
             }
             UserStoreManager userStoreManager = UserStoreManagerBuilder.getUserStoreManager();
 
+            if ((pageSize != null && !pageSize.isEmpty()) || (pageToken != null && !pageToken.isEmpty())) {
+                PagedResult page = userStoreManager.doListUsers(CommonConstants.WILD_CARD_FILTER,
+                        pageSize == null || pageSize.isEmpty() ? 0 : Integer.parseInt(pageSize),
+                        pageToken == null || pageToken.isEmpty() ? null : pageToken);
+                JSONObject jsonObject = new JSONObject();
+                jsonObject.put("usernames", new JSONArray(page.getItems()));
+                jsonObject.putOpt("nextPageToken", page.getNextPageToken());
+                return Response.status(Response.Status.OK).entity(jsonObject.toString()).build();
+            }
+
             String[] usernames = userStoreManager.
                     doListUsers(CommonConstants.WILD_CARD_FILTER, Integer.parseInt(limit));
             JSONObject jsonObject = new JSONObject();
@@ -65,6 +65,10 @@ public class UserStoreServerEndpoint {
     public static final String STATUS_EP_NAME = "status";
     public static final String BROKER_PORT = "8080";
     public static final String BROKER_PROTOCOL = "http";
+    public static final String CHUNK_SEQUENCE = "chunkSequence";
+    public static final String CHUNK_FINAL = "chunkFinal";
+    private static final String JMS_GROUP_ID = "JMSXGroupID";
+    private static final String JMS_GROUP_SEQUENCE = "JMSXGroupSeq";
     private SessionHandler serverHandler;
     private String serverNode;
     private Map<String, Boolean> isOnCloseNeededMap = new HashMap<>();
@@ -85,6 +89,8 @@ public class UserStoreServerEndpoint {
 
     /**
      * Process response message and send to response queue.
+     * A chunk of a streamed listing is sent as its own message, in the message group of its correlation id, with
+     * its sequence number and whether it is the terminal chunk as message properties.
      * @param message Message
      */
     private void processResponse(String message) {
@@ -118,6 +124,15 @@ public class UserStoreServerEndpoint {
             ObjectMessage responseMessage = session.createObjectMessage();
             responseMessage.setObject(responseOperation);
             responseMessage.setJMSCorrelationID(correlationId);
+            if (resultObj.has(CHUNK_SEQUENCE)) {
+                int sequence = resultObj.getInt(CHUNK_SEQUENCE);
+                responseMessage.setIntProperty(CHUNK_SEQUENCE, sequence);
+                responseMessage.setBooleanProperty(CHUNK_FINAL, resultObj.optBoolean(CHUNK_FINAL));
+                // chunks are processed in separate threads, the message group keeps them on one consumer
+                // which can order them by the sequence
+                responseMessage.setStringProperty(JMS_GROUP_ID, correlationId);
+                responseMessage.setIntProperty(JMS_GROUP_SEQUENCE, sequence + 1);
+            }
             producer.send(responseMessage);
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Finished processing response message: " + message);
@@ -30,6 +30,7 @@ import org.wso2.msf4j.MicroservicesRunner;
 import java.net.InetAddress;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.util.Timer;
 import javax.net.ssl.SSLException;
 
 /**
@@ -39,6 +40,7 @@ import javax.net.ssl.SSLException;
 public class Application {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Application.class);
+    private static final long CONFIG_WATCH_INTERVAL = 10 * 1000;
     private Thread shutdownHook;
 
     public static void main(String[] args)
@@ -70,6 +72,7 @@ public class Application {
                 System.exit(0);
             }
             LOGGER.info("User store verification success.");
+            new Timer(true).schedule(new UserStoreConfigWatchTask(), CONFIG_WATCH_INTERVAL, CONFIG_WATCH_INTERVAL);
         } catch (UserStoreException e) {
             LOGGER.error("User store verification failed. Please check the user store configurations in file conf/"
                     + UserAgentConstants.USERSTORE_CONFIG_FILE, e);
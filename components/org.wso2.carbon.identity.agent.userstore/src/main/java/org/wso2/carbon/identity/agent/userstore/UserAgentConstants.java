@@ -24,14 +24,28 @@ public class UserAgentConstants {
 
     public static final String UM_OPERATION_AUTHENTICATE_RESULT_SUCCESS = "SUCCESS";
     public static final String UM_OPERATION_AUTHENTICATE_RESULT_FAIL = "FAIL";
+    public static final String UM_OPERATION_TYPE_AUTHENTICATE_AND_GET_USER = "authenticateandgetuser";
 
     public static final String UM_JSON_ELEMENT_REQUEST_DATA_MESSAGE = "message";
     public static final String UM_JSON_ELEMENT_REQUEST_DATA_GET_ROLE_LIMIT = "limit";
     public static final String UM_JSON_ELEMENT_REQUEST_DATA_CLAIMS = "claims";
     public static final String UM_JSON_ELEMENT_REQUEST_DATA_USER_NAME = "username";
     public static final String UM_JSON_ELEMENT_REQUEST_DATA_USER_PASSWORD = "password";
+    public static final String UM_JSON_ELEMENT_REQUEST_DATA_SOURCE = "source";
     public static final String UM_JSON_ELEMENT_REQUEST_DATA_GET_USER_LIMIT = "limit";
     public static final String UM_JSON_ELEMENT_REQUEST_DATA_GET_USER_FILTER = "filter";
+    public static final String UM_JSON_ELEMENT_REQUEST_DATA_PAGE_SIZE = "pageSize";
+    public static final String UM_JSON_ELEMENT_REQUEST_DATA_PAGE_TOKEN = "pageToken";
+    public static final String UM_JSON_ELEMENT_REQUEST_DATA_CHUNK_SIZE = "chunkSize";
+
+    public static final String UM_JSON_ELEMENT_RESPONSE_DATA_AUTHENTICATION_RESULT = "authenticationResult";
+    public static final String UM_JSON_ELEMENT_RESPONSE_DATA_CLAIMS = "claims";
+    public static final String UM_JSON_ELEMENT_RESPONSE_DATA_GROUPS = "groups";
+    public static final String UM_JSON_ELEMENT_RESPONSE_DATA_USERNAMES = "usernames";
+    public static final String UM_JSON_ELEMENT_RESPONSE_DATA_NEXT_PAGE_TOKEN = "nextPageToken";
+    public static final String UM_JSON_ELEMENT_RESPONSE_DATA_ERROR = "error";
+    public static final String UM_JSON_ELEMENT_RESPONSE_CHUNK_SEQUENCE = "chunkSequence";
+    public static final String UM_JSON_ELEMENT_RESPONSE_CHUNK_FINAL = "chunkFinal";
 
     public static final String USERSTORE_CONFIG_FILE = "userstore-config.xml";
 }
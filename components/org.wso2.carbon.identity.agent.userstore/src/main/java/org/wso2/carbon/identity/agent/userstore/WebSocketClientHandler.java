@@ -33,17 +33,22 @@ import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wso2.carbon.identity.agent.userstore.constant.CommonConstants;
+import org.wso2.carbon.identity.agent.userstore.exception.OperationRejectedException;
 import org.wso2.carbon.identity.agent.userstore.exception.UserStoreException;
-import org.wso2.carbon.identity.agent.userstore.manager.common.UserStoreManager;
+import org.wso2.carbon.identity.agent.userstore.manager.common.AsyncUserStoreManager;
+import org.wso2.carbon.identity.agent.userstore.manager.common.AuthenticationThrottle;
+import org.wso2.carbon.identity.agent.userstore.manager.common.ChunkHandler;
 import org.wso2.carbon.identity.agent.userstore.manager.common.UserStoreManagerBuilder;
+import org.wso2.carbon.identity.agent.userstore.model.AuthenticationResult;
 import org.wso2.carbon.identity.user.store.common.MessageRequestUtil;
 import org.wso2.carbon.identity.user.store.common.UserStoreConstants;
 
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Map;
 import java.util.Timer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import javax.net.ssl.SSLException;
 
 /**
@@ -147,6 +152,50 @@ public class WebSocketClientHandler extends SimpleChannelInboundHandler<Object>
                 new TextWebSocketFrame(MessageRequestUtil.getUserResponseJSONMessage(correlationId, result)));
     }
 
+    /**
+     * Reports the failure of an asynchronous user operation to the pipeline, as if it was thrown while
+     * reading the request.
+     * @param channel netty channel
+     * @param error failure of the user operation
+     */
+    private void fireFailure(Channel channel, Throwable error) {
+        channel.pipeline().fireExceptionCaught(getCause(error));
+    }
+
+    /**
+     * Reports the failure of an asynchronous user operation. A request rejected to shed load is answered with an
+     * error response, so that the connection stays open for the other requests.
+     * @param channel netty channel
+     * @param correlationId id to correlationId request response
+     * @param error failure of the user operation
+     */
+    private void failRequest(Channel channel, String correlationId, Throwable error) {
+        if (!isRejected(error)) {
+            fireFailure(channel, error);
+            return;
+        }
+        LOGGER.warn("Request " + correlationId + " rejected. " + getCause(error).getMessage());
+        JSONObject returnObject = new JSONObject();
+        returnObject.put(UserAgentConstants.UM_JSON_ELEMENT_RESPONSE_DATA_ERROR, getCause(error).getMessage());
+        writeResponse(channel, correlationId, returnObject.toString());
+    }
+
+    /**
+     * @param error failure of a future
+     * @return true if the user operation was rejected without being run
+     */
+    private static boolean isRejected(Throwable error) {
+        return getCause(error) instanceof OperationRejectedException;
+    }
+
+    /**
+     * @param error failure of a future
+     * @return the failure of the user operation, without the wrapping of the future
+     */
+    private static Throwable getCause(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
     /**
      * Process authentication request
      * @param channel netty channel
@@ -156,27 +205,153 @@ public class WebSocketClientHandler extends SimpleChannelInboundHandler<Object>
     private void processAuthenticationRequest(Channel channel, JSONObject requestObj) throws UserStoreException {
 
         JSONObject requestData = requestObj.getJSONObject(UserStoreConstants.UM_JSON_ELEMENT_REQUEST_DATA);
-        UserStoreManager userStoreManager = UserStoreManagerBuilder.getUserStoreManager();
+        AsyncUserStoreManager userStoreManager = UserStoreManagerBuilder.getAsyncUserStoreManager();
+        AuthenticationThrottle throttle = UserStoreManagerBuilder.getAuthenticationThrottle();
+        String username = requestData.getString(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_USER_NAME);
+        String password = requestData.getString(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_USER_PASSWORD);
+        String source = getSource(requestData);
 
         if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug("Starting to authenticate user " + requestData.get(
-                    UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_USER_NAME));
+            LOGGER.debug("Starting to authenticate user " + username);
         }
 
-        boolean isAuthenticated = userStoreManager.doAuthenticate(
-                requestData.getString(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_USER_NAME),
-                requestData.getString(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_USER_PASSWORD));
-        String authenticationResult = UserAgentConstants.UM_OPERATION_AUTHENTICATE_RESULT_FAIL;
+        if (throttle != null && throttle.isRejected(username, source, password)) {
+            writeResponse(channel, (String) requestObj.get(
+                    UserStoreConstants.UM_JSON_ELEMENT_REQUEST_DATA_CORRELATION_ID),
+                    UserAgentConstants.UM_OPERATION_AUTHENTICATE_RESULT_FAIL);
+            return;
+        }
+
+        userStoreManager.doAuthenticate(username, password)
+                .whenComplete((isAuthenticated, error) -> {
+                    if (error != null) {
+                        failRequest(channel, (String) requestObj.get(
+                                UserStoreConstants.UM_JSON_ELEMENT_REQUEST_DATA_CORRELATION_ID), error);
+                        return;
+                    }
+                    recordAuthentication(throttle, username, source, password, isAuthenticated);
+                    String authenticationResult = UserAgentConstants.UM_OPERATION_AUTHENTICATE_RESULT_FAIL;
+
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Authentication completed. User: " + requestData.get(
+                                UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_USER_NAME) + " result: "
+                                + isAuthenticated);
+                    }
+                    if (isAuthenticated) {
+                        authenticationResult = UserAgentConstants.UM_OPERATION_AUTHENTICATE_RESULT_SUCCESS;
+                    }
+                    writeResponse(channel, (String) requestObj.get(
+                            UserStoreConstants.UM_JSON_ELEMENT_REQUEST_DATA_CORRELATION_ID), authenticationResult);
+                });
+    }
+
+    /**
+     * Process authentication request which also returns the claims and roles of the authenticated user
+     * @param channel netty channel
+     * @param requestObj json request data object
+     * @throws UserStoreException
+     */
+    private void processAuthenticateAndGetUserRequest(Channel channel, JSONObject requestObj)
+            throws UserStoreException {
+
+        JSONObject requestData = requestObj.getJSONObject(UserStoreConstants.UM_JSON_ELEMENT_REQUEST_DATA);
+        String username = requestData.getString(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_USER_NAME);
 
         if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug("Authentication completed. User: " + requestData.get(
-                    UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_USER_NAME) + " result: " + isAuthenticated);
+            LOGGER.debug("Starting to authenticate and get claims and roles of user " + username);
+        }
+
+        String[] claimArray = new String[0];
+        String claims = requestData.optString(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_CLAIMS);
+        if (!claims.isEmpty()) {
+            claimArray = claims.split(CommonConstants.ATTRIBUTE_LIST_SEPERATOR);
+        }
+        AsyncUserStoreManager userStoreManager = UserStoreManagerBuilder.getAsyncUserStoreManager();
+        AuthenticationThrottle throttle = UserStoreManagerBuilder.getAuthenticationThrottle();
+        String password = requestData.getString(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_USER_PASSWORD);
+        String source = getSource(requestData);
+
+        if (throttle != null && throttle.isRejected(username, source, password)) {
+            AuthenticationResult result = new AuthenticationResult();
+            result.setAuthenticated(false);
+            writeAuthenticateAndGetUserResponse(channel, requestObj, username, result);
+            return;
+        }
+
+        userStoreManager.doAuthenticateAndGetUser(username, password, claimArray)
+                .whenComplete((result, error) -> {
+                    if (error != null) {
+                        failRequest(channel, (String) requestObj.get(
+                                UserStoreConstants.UM_JSON_ELEMENT_REQUEST_DATA_CORRELATION_ID), error);
+                    } else {
+                        recordAuthentication(throttle, username, source, password, result.isAuthenticated());
+                        writeAuthenticateAndGetUserResponse(channel, requestObj, username, result);
+                    }
+                });
+    }
+
+    /**
+     * Read the source of an authentication request
+     * @param requestData json request data
+     * @return address the login originates from, null if the request does not carry it
+     */
+    private String getSource(JSONObject requestData) {
+
+        String source = requestData.optString(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_SOURCE);
+        return source.isEmpty() ? null : source;
+    }
+
+    /**
+     * Record the result of an authentication in the throttle of failed logins. Only called with an answer of the
+     * userstore, so that logins failing because the userstore cannot be reached are not counted as rejections.
+     * @param throttle throttle of failed logins, null if it is disabled
+     * @param username username of the user
+     * @param source source of the login, null if not known
+     * @param password password used in the login
+     * @param isAuthenticated authentication result
+     */
+    private void recordAuthentication(AuthenticationThrottle throttle, String username, String source,
+                                      String password, boolean isAuthenticated) {
+
+        if (throttle == null) {
+            return;
         }
         if (isAuthenticated) {
-            authenticationResult = UserAgentConstants.UM_OPERATION_AUTHENTICATE_RESULT_SUCCESS;
+            throttle.succeeded(username);
+        } else {
+            throttle.failed(username, source, password);
+        }
+    }
+
+    /**
+     * Write the result of an authentication request which also returns the claims and roles of the user
+     * @param channel netty channel
+     * @param requestObj json request data object
+     * @param username username of the user
+     * @param result authentication result
+     */
+    private void writeAuthenticateAndGetUserResponse(Channel channel, JSONObject requestObj, String username,
+                                                     AuthenticationResult result) {
+
+        JSONObject returnObject = new JSONObject();
+        if (result.isAuthenticated()) {
+            returnObject.put(UserAgentConstants.UM_JSON_ELEMENT_RESPONSE_DATA_AUTHENTICATION_RESULT,
+                    UserAgentConstants.UM_OPERATION_AUTHENTICATE_RESULT_SUCCESS);
+            returnObject.put(UserAgentConstants.UM_JSON_ELEMENT_RESPONSE_DATA_CLAIMS,
+                    new JSONObject(result.getClaims()));
+            returnObject.put(UserAgentConstants.UM_JSON_ELEMENT_RESPONSE_DATA_GROUPS,
+                    new JSONArray(result.getRoles()));
+        } else {
+            returnObject.put(UserAgentConstants.UM_JSON_ELEMENT_RESPONSE_DATA_AUTHENTICATION_RESULT,
+                    UserAgentConstants.UM_OPERATION_AUTHENTICATE_RESULT_FAIL);
+        }
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Authentication completed. User: " + username + " result: " + result.isAuthenticated()
+                    + " roles: " + Arrays.toString(result.getRoles()));
         }
         writeResponse(channel, (String) requestObj.get(UserStoreConstants.UM_JSON_ELEMENT_REQUEST_DATA_CORRELATION_ID),
-                authenticationResult);
+                returnObject.toString());
     }
 
     /**
@@ -197,18 +372,24 @@ public class WebSocketClientHandler extends SimpleChannelInboundHandler<Object>
         String username = (String) requestData.get(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_USER_NAME);
         String claims = (String) requestData.get(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_CLAIMS);
         String[] claimArray = claims.split(CommonConstants.ATTRIBUTE_LIST_SEPERATOR);
-        UserStoreManager userStoreManager = UserStoreManagerBuilder.getUserStoreManager();
+        AsyncUserStoreManager userStoreManager = UserStoreManagerBuilder.getAsyncUserStoreManager();
 
-        Map<String, String> propertyMap = userStoreManager.getUserClaimValues(username, claimArray);
-        JSONObject returnObject = new JSONObject(propertyMap);
+        userStoreManager.getUserClaimValues(username, claimArray).whenComplete((propertyMap, error) -> {
+            if (error != null) {
+                failRequest(channel, (String) requestObj.get(
+                        UserStoreConstants.UM_JSON_ELEMENT_REQUEST_DATA_CORRELATION_ID), error);
+                return;
+            }
+            JSONObject returnObject = new JSONObject(propertyMap);
 
-        if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug("Claims retrieval completed. User: " + requestData
-                    .get(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_USER_NAME) + " claims: " + propertyMap
-                    .toString());
-        }
-        writeResponse(channel, (String) requestObj.get(UserStoreConstants.UM_JSON_ELEMENT_REQUEST_DATA_CORRELATION_ID),
-                returnObject.toString());
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Claims retrieval completed. User: " + requestData
+                        .get(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_USER_NAME) + " claims: " + propertyMap
+                        .toString());
+            }
+            writeResponse(channel, (String) requestObj.get(
+                    UserStoreConstants.UM_JSON_ELEMENT_REQUEST_DATA_CORRELATION_ID), returnObject.toString());
+        });
     }
 
     /**
@@ -225,19 +406,61 @@ public class WebSocketClientHandler extends SimpleChannelInboundHandler<Object>
         }
         String username = (String) requestData.get(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_USER_NAME);
 
-        UserStoreManager userStoreManager = UserStoreManagerBuilder.getUserStoreManager();
-        String[] roles = userStoreManager.doGetExternalRoleListOfUser(username);
-        JSONObject jsonObject = new JSONObject();
-        JSONArray usernameArray = new JSONArray(roles);
-        jsonObject.put("groups", usernameArray);
+        AsyncUserStoreManager userStoreManager = UserStoreManagerBuilder.getAsyncUserStoreManager();
+        userStoreManager.doGetExternalRoleListOfUser(username).whenComplete((roles, error) -> {
+            if (error != null) {
+                failRequest(channel, (String) requestObj.get(
+                        UserStoreConstants.UM_JSON_ELEMENT_REQUEST_DATA_CORRELATION_ID), error);
+                return;
+            }
+            JSONObject jsonObject = new JSONObject();
+            JSONArray usernameArray = new JSONArray(roles);
+            jsonObject.put("groups", usernameArray);
+
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("User roles retrieval completed. User: " + requestData
+                        .get(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_USER_NAME) + " roles: "
+                        + Arrays.toString(roles));
+            }
+            writeResponse(channel, (String) requestObj.get(
+                    UserStoreConstants.UM_JSON_ELEMENT_REQUEST_DATA_CORRELATION_ID), jsonObject.toString());
+        });
+    }
 
-        if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug("User roles retrieval completed. User: " + requestData
-                    .get(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_USER_NAME) + " roles: " + Arrays.toString(
-                    roles));
-        }
-        writeResponse(channel, (String) requestObj.get(UserStoreConstants.UM_JSON_ELEMENT_REQUEST_DATA_CORRELATION_ID),
-                jsonObject.toString());
+    /**
+     * @param requestData json request data object
+     * @return true if the request asks for a page of a listing, false if it asks for the whole listing.
+     */
+    private boolean isPagedRequest(JSONObject requestData) {
+        return requestData.has(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_PAGE_SIZE)
+                || requestData.has(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_PAGE_TOKEN);
+    }
+
+    /**
+     * @param requestData json request data object
+     * @return true if the listing should be sent as a sequence of chunks, false otherwise.
+     */
+    private boolean isChunkedRequest(JSONObject requestData) {
+        return requestData.optInt(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_CHUNK_SIZE) > 0;
+    }
+
+    /**
+     * @param requestData json request data object
+     * @param limitElement Name of the limit element of the request.
+     * @return Maximum size of the list, the default maximum if the request does not limit it.
+     */
+    private int getListLimit(JSONObject requestData, String limitElement) {
+        int limit = requestData.optInt(limitElement);
+        return limit == 0 ? CommonConstants.MAX_USER_LIST : limit;
+    }
+
+    /**
+     * @param requestData json request data object
+     * @return Page token of the request, null if the first page is requested.
+     */
+    private String getPageToken(JSONObject requestData) {
+        String pageToken = requestData.optString(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_PAGE_TOKEN);
+        return pageToken.isEmpty() ? null : pageToken;
     }
 
     /**
@@ -251,21 +474,54 @@ public class WebSocketClientHandler extends SimpleChannelInboundHandler<Object>
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("Starting to get roles.");
         }
-        int limit = requestData.getInt(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_GET_ROLE_LIMIT);
-
-        if (limit == 0) {
-            limit = CommonConstants.MAX_USER_LIST;
+        String correlationId = (String) requestObj.get(UserStoreConstants.UM_JSON_ELEMENT_REQUEST_DATA_CORRELATION_ID);
+        AsyncUserStoreManager userStoreManager = UserStoreManagerBuilder.getAsyncUserStoreManager();
+        if (isChunkedRequest(requestData)) {
+            ChunkedResponseWriter writer = new ChunkedResponseWriter(channel, correlationId,
+                    UserAgentConstants.UM_JSON_ELEMENT_RESPONSE_DATA_GROUPS);
+            userStoreManager.doGetRoleNames("*", getListLimit(requestData,
+                    UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_GET_ROLE_LIMIT),
+                    requestData.getInt(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_CHUNK_SIZE), writer)
+                    .whenComplete((result, error) -> completeChunkedResponse(channel, writer, error, "Roles"));
+            return;
         }
-        UserStoreManager userStoreManager = UserStoreManagerBuilder.getUserStoreManager();
-        String[] roleNames = userStoreManager.doGetRoleNames("*", limit);
-        JSONObject returnObject = new JSONObject();
-        JSONArray usernameArray = new JSONArray(roleNames);
-        returnObject.put("groups", usernameArray);
-        if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug("Roles retrieval completed.");
+        CompletableFuture<JSONObject> response;
+        if (isPagedRequest(requestData)) {
+            // a listing started before a configuration reload is continued where its search is held
+            String pageToken = getPageToken(requestData);
+            response = UserStoreManagerBuilder.getAsyncUserStoreManager(pageToken).doGetRoleNames("*",
+                    requestData.optInt(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_PAGE_SIZE),
+                    pageToken).thenApply(page -> {
+                        JSONObject returnObject = new JSONObject();
+                        returnObject.put(UserAgentConstants.UM_JSON_ELEMENT_RESPONSE_DATA_GROUPS,
+                                new JSONArray(page.getItems()));
+                        returnObject.putOpt(UserAgentConstants.UM_JSON_ELEMENT_RESPONSE_DATA_NEXT_PAGE_TOKEN,
+                                page.getNextPageToken());
+                        return returnObject;
+                    });
+        } else {
+            int limit = requestData.getInt(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_GET_ROLE_LIMIT);
+
+            if (limit == 0) {
+                limit = CommonConstants.MAX_USER_LIST;
+            }
+            response = userStoreManager.doGetRoleNames("*", limit).thenApply(roleNames -> {
+                JSONObject returnObject = new JSONObject();
+                JSONArray usernameArray = new JSONArray(roleNames);
+                returnObject.put(UserAgentConstants.UM_JSON_ELEMENT_RESPONSE_DATA_GROUPS, usernameArray);
+                return returnObject;
+            });
         }
-        writeResponse(channel, (String) requestObj.get(UserStoreConstants.UM_JSON_ELEMENT_REQUEST_DATA_CORRELATION_ID),
-                returnObject.toString());
+        response.whenComplete((returnObject, error) -> {
+            if (error != null) {
+                failRequest(channel, correlationId, error);
+                return;
+            }
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Roles retrieval completed.");
+            }
+            writeResponse(channel, correlationId, returnObject.toString());
+        });
     }
 
     /**
@@ -281,23 +537,78 @@ public class WebSocketClientHandler extends SimpleChannelInboundHandler<Object>
             LOGGER.debug("Starting to get users");
         }
 
-        int limit = requestData.getInt(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_GET_USER_LIMIT);
         String filter = (String) requestData.get(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_GET_USER_FILTER);
-
-        if (limit == 0) {
-            limit = CommonConstants.MAX_USER_LIST;
+        String correlationId = (String) requestObj.get(UserStoreConstants.UM_JSON_ELEMENT_REQUEST_DATA_CORRELATION_ID);
+        AsyncUserStoreManager userStoreManager = UserStoreManagerBuilder.getAsyncUserStoreManager();
+        if (isChunkedRequest(requestData)) {
+            ChunkedResponseWriter writer = new ChunkedResponseWriter(channel, correlationId,
+                    UserAgentConstants.UM_JSON_ELEMENT_RESPONSE_DATA_USERNAMES);
+            userStoreManager.doListUsers(filter, getListLimit(requestData,
+                    UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_GET_USER_LIMIT),
+                    requestData.getInt(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_CHUNK_SIZE), writer)
+                    .whenComplete((result, error) -> completeChunkedResponse(channel, writer, error, "Users list"));
+            return;
         }
-        UserStoreManager userStoreManager = UserStoreManagerBuilder.getUserStoreManager();
-        String[] roleNames = userStoreManager.doListUsers(filter, limit);
-        JSONObject returnObject = new JSONObject();
-        JSONArray usernameArray = new JSONArray(roleNames);
-        returnObject.put("usernames", usernameArray);
+        CompletableFuture<JSONObject> response;
+        if (isPagedRequest(requestData)) {
+            // a listing started before a configuration reload is continued where its search is held
+            String pageToken = getPageToken(requestData);
+            response = UserStoreManagerBuilder.getAsyncUserStoreManager(pageToken).doListUsers(filter,
+                    requestData.optInt(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_PAGE_SIZE),
+                    pageToken).thenApply(page -> {
+                        JSONObject returnObject = new JSONObject();
+                        returnObject.put(UserAgentConstants.UM_JSON_ELEMENT_RESPONSE_DATA_USERNAMES,
+                                new JSONArray(page.getItems()));
+                        returnObject.putOpt(UserAgentConstants.UM_JSON_ELEMENT_RESPONSE_DATA_NEXT_PAGE_TOKEN,
+                                page.getNextPageToken());
+                        return returnObject;
+                    });
+        } else {
+            int limit = requestData.getInt(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_GET_USER_LIMIT);
+
+            if (limit == 0) {
+                limit = CommonConstants.MAX_USER_LIST;
+            }
+            response = userStoreManager.doListUsers(filter, limit).thenApply(userNames -> {
+                JSONObject returnObject = new JSONObject();
+                JSONArray usernameArray = new JSONArray(userNames);
+                returnObject.put(UserAgentConstants.UM_JSON_ELEMENT_RESPONSE_DATA_USERNAMES, usernameArray);
+                return returnObject;
+            });
+        }
+        response.whenComplete((returnObject, error) -> {
+            if (error != null) {
+                failRequest(channel, correlationId, error);
+                return;
+            }
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Users list retrieval completed.");
+            }
+            writeResponse(channel, correlationId, returnObject.toString());
+        });
+    }
 
+    /**
+     * Writes the terminal frame of a chunked listing once the listing is completed
+     * @param channel netty channel
+     * @param writer writer of the chunks of the listing
+     * @param error failure of the listing, null if the listing succeeded
+     * @param listing name of the listing used in the logs
+     */
+    private void completeChunkedResponse(Channel channel, ChunkedResponseWriter writer, Throwable error,
+                                         String listing) {
+        if (error != null) {
+            writer.fail(getCause(error).getMessage());
+            // the terminal frame already answers a rejected listing
+            if (!isRejected(error)) {
+                fireFailure(channel, error);
+            }
+            return;
+        }
+        writer.complete();
         if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug("Users list retrieval completed.");
+            LOGGER.debug(listing + " retrieval completed in " + writer.getSequence() + " chunks.");
         }
-        writeResponse(channel, (String) requestObj.get(UserStoreConstants.UM_JSON_ELEMENT_REQUEST_DATA_CORRELATION_ID),
-                returnObject.toString());
     }
 
     /**
@@ -316,6 +627,9 @@ public class WebSocketClientHandler extends SimpleChannelInboundHandler<Object>
         case UserStoreConstants.UM_OPERATION_TYPE_AUTHENTICATE:
             processAuthenticationRequest(channel, requestObj);
             break;
+        case UserAgentConstants.UM_OPERATION_TYPE_AUTHENTICATE_AND_GET_USER:
+            processAuthenticateAndGetUserRequest(channel, requestObj);
+            break;
         case UserStoreConstants.UM_OPERATION_TYPE_GET_CLAIMS:
             processGetClaimsRequest(channel, requestObj);
             break;
@@ -341,6 +655,97 @@ public class WebSocketClientHandler extends SimpleChannelInboundHandler<Object>
         }
     }
 
+    /**
+     *  Writes the chunks of a listing as correlated partial frames while the listing is in progress,
+     *  followed by a terminal frame which marks the completion.
+     */
+    private static class ChunkedResponseWriter implements ChunkHandler {
+
+        // time to wait for the server to read the previous chunks before the listing is stopped
+        private static final long WRITE_TIMEOUT = 60000;
+
+        private final Channel channel;
+        private final String correlationId;
+        private final String elementName;
+        private int sequence = 0;
+        private ChannelFuture lastWrite;
+
+        private ChunkedResponseWriter(Channel channel, String correlationId, String elementName) {
+            this.channel = channel;
+            this.correlationId = correlationId;
+            this.elementName = elementName;
+        }
+
+        @Override
+        public void handle(String[] chunk) throws UserStoreException {
+            awaitWritable();
+            JSONObject chunkData = new JSONObject();
+            chunkData.put(elementName, new JSONArray(chunk));
+            write(chunkData, false);
+        }
+
+        @Override
+        public boolean isDone() {
+            return !channel.isActive();
+        }
+
+        /**
+         * Waits until the server has read the chunks already written when the outbound buffer of the channel is
+         * full, so that the listing is read from the LDAP userstore no faster than the server reads it.
+         * @throws UserStoreException If the channel is closed or the server does not read the chunks in time.
+         */
+        private void awaitWritable() throws UserStoreException {
+            ChannelFuture previous = lastWrite;
+            // the event loop cannot wait for its own writes
+            if (previous != null && !channel.isWritable() && !channel.eventLoop().inEventLoop()) {
+                try {
+                    if (!previous.await(WRITE_TIMEOUT)) {
+                        throw new UserStoreException("Listing " + correlationId + " stopped as the server did not "
+                                + "read the chunks within " + WRITE_TIMEOUT + "ms.");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new UserStoreException("Interrupted while writing the listing " + correlationId, e);
+                }
+            }
+            if (!channel.isActive()) {
+                throw new UserStoreException("Listing " + correlationId + " stopped as the connection is closed.");
+            }
+        }
+
+        /**
+         * Writes the terminal frame.
+         */
+        private void complete() {
+            JSONObject chunkData = new JSONObject();
+            chunkData.put(elementName, new JSONArray());
+            write(chunkData, true);
+        }
+
+        /**
+         * Writes the terminal frame with the error which stopped the listing.
+         * @param message Error message.
+         */
+        private void fail(String message) {
+            JSONObject chunkData = new JSONObject();
+            chunkData.put(elementName, new JSONArray());
+            chunkData.put(UserAgentConstants.UM_JSON_ELEMENT_RESPONSE_DATA_ERROR, message);
+            write(chunkData, true);
+        }
+
+        private int getSequence() {
+            return sequence;
+        }
+
+        private void write(JSONObject chunkData, boolean isFinal) {
+            JSONObject frame = new JSONObject(
+                    MessageRequestUtil.getUserResponseJSONMessage(correlationId, chunkData.toString()));
+            frame.put(UserAgentConstants.UM_JSON_ELEMENT_RESPONSE_CHUNK_SEQUENCE, sequence++);
+            frame.put(UserAgentConstants.UM_JSON_ELEMENT_RESPONSE_CHUNK_FINAL, isFinal);
+            lastWrite = channel.writeAndFlush(new TextWebSocketFrame(frame.toString()));
+        }
+    }
+
     private void logError(JSONObject requestObj) {
         JSONObject requestData = (JSONObject) requestObj.get(UserStoreConstants.UM_JSON_ELEMENT_REQUEST_DATA);
         String message = (String) requestData.get(UserAgentConstants.UM_JSON_ELEMENT_REQUEST_DATA_MESSAGE);
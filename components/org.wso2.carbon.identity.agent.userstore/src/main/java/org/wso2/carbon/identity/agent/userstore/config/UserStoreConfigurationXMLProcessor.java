@@ -50,6 +50,14 @@ class UserStoreConfigurationXMLProcessor {
     private InputStream inStream = null;
     private SecretResolver secretResolver;
 
+    /**
+     * @return The userstore-config.xml file in the conf directory.
+     */
+    static File getConfigurationFile() {
+        return new File(System.getProperty(CommonConstants.CARBON_HOME),
+                CONF_DIR + File.separator + UserAgentConstants.USERSTORE_CONFIG_FILE);
+    }
+
     /**
      * @return The Map of user store properties
      */
@@ -129,8 +137,7 @@ class UserStoreConfigurationXMLProcessor {
     private OMElement getRootElement() throws XMLStreamException, IOException, UserStoreException {
         OMXMLParserWrapper builder;
 
-        File profileConfigXml = new File(System.getProperty(CommonConstants.CARBON_HOME),
-                CONF_DIR + File.separator + UserAgentConstants.USERSTORE_CONFIG_FILE);
+        File profileConfigXml = getConfigurationFile();
         if (profileConfigXml.exists()) {
 
             inStream = new FileInputStream(profileConfigXml);
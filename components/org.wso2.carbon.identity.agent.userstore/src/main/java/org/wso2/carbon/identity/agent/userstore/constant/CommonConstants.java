@@ -25,6 +25,29 @@ public class CommonConstants {
     public static final String PROPERTY_MAX_USER_LIST = "MaxUserNameListLength";
     public static final String PROPERTY_MAX_SEARCH_TIME = "MaxSearchQueryTime";
     public static final String PROPERTY_MAX_ROLE_LIST = "MaxRoleNameListLength";
+    //suffixes of the bulkhead properties of each operation class, e.g. ListingOperationThreads
+    public static final String PROPERTY_OPERATION_THREADS = "OperationThreads";
+    public static final String PROPERTY_OPERATION_QUEUE_SIZE = "OperationQueueSize";
+    public static final String PROPERTY_SLOW_CALL_THRESHOLD = "SlowCallThreshold";
+    public static final String PROPERTY_OPERATION_PRIORITY = "OperationPriority";
+    public static final String PROPERTY_OPERATION_DISPATCH_THREADS = "OperationDispatchThreads";
+    public static final String PROPERTY_OPERATION_AGING_INTERVAL = "OperationAgingInterval";
+    public static final String PROPERTY_CIRCUIT_BREAKER_ENABLED = "CircuitBreakerEnabled";
+    public static final String PROPERTY_CIRCUIT_BREAKER_WINDOW = "CircuitBreakerWindow";
+    public static final String PROPERTY_CIRCUIT_BREAKER_MINIMUM_CALLS = "CircuitBreakerMinimumCalls";
+    public static final String PROPERTY_CIRCUIT_BREAKER_FAILURE_RATE = "CircuitBreakerFailureRate";
+    public static final String PROPERTY_CIRCUIT_BREAKER_SLOW_CALL_RATE = "CircuitBreakerSlowCallRate";
+    public static final String PROPERTY_CIRCUIT_BREAKER_OPEN_DURATION = "CircuitBreakerOpenDuration";
+    public static final String PROPERTY_CIRCUIT_BREAKER_HALF_OPEN_CALLS = "CircuitBreakerHalfOpenCalls";
+    public static final String PROPERTY_AUTHENTICATION_THROTTLE_ENABLED = "AuthenticationThrottleEnabled";
+    public static final String PROPERTY_AUTHENTICATION_THROTTLE_WINDOW = "AuthenticationThrottleWindow";
+    public static final String PROPERTY_AUTHENTICATION_THROTTLE_MAX_USER_FAILURES =
+            "AuthenticationThrottleMaxUserFailures";
+    public static final String PROPERTY_AUTHENTICATION_THROTTLE_MAX_SOURCE_FAILURES =
+            "AuthenticationThrottleMaxSourceFailures";
+    public static final String PROPERTY_AUTHENTICATION_THROTTLE_COOL_DOWN = "AuthenticationThrottleCoolDown";
+    public static final String PROPERTY_AUTHENTICATION_THROTTLE_SIZE = "AuthenticationThrottleSize";
+    public static final String PROPERTY_FAILED_CREDENTIAL_CACHE_TTL = "FailedCredentialCacheTTL";
     public static final String XML_PATTERN_SEPERATOR = "#";
     public static final String ATTRIBUTE_LIST_SEPERATOR = ",";
     public static final String WILD_CARD_FILTER = "*";
@@ -32,5 +55,19 @@ public class CommonConstants {
     public static final int MAX_USER_LIST = 100;
     public static final int MAX_SEARCH_TIME = 10000;   // ms
     public static final int MAX_USER_ROLE_LIST = 100;
+    public static final int DEFAULT_OPERATION_DISPATCH_THREADS = 16;
+    public static final int DEFAULT_OPERATION_AGING_INTERVAL = 100;   // ms
+    public static final int DEFAULT_CIRCUIT_BREAKER_WINDOW = 10000;   // ms
+    public static final int DEFAULT_CIRCUIT_BREAKER_MINIMUM_CALLS = 20;
+    public static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE = 50;   // %
+    public static final int DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_RATE = 80;   // %
+    public static final int DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION = 10000;   // ms
+    public static final int DEFAULT_CIRCUIT_BREAKER_HALF_OPEN_CALLS = 3;
+    public static final long DEFAULT_AUTHENTICATION_THROTTLE_WINDOW = 60000;   // ms
+    public static final int DEFAULT_AUTHENTICATION_THROTTLE_MAX_USER_FAILURES = 5;
+    public static final int DEFAULT_AUTHENTICATION_THROTTLE_MAX_SOURCE_FAILURES = 50;
+    public static final long DEFAULT_AUTHENTICATION_THROTTLE_COOL_DOWN = 60000;   // ms
+    public static final int DEFAULT_AUTHENTICATION_THROTTLE_SIZE = 10000;
+    public static final long DEFAULT_FAILED_CREDENTIAL_CACHE_TTL = 30000;   // ms
     public static final String NAME_COMBINER = "|";
 }
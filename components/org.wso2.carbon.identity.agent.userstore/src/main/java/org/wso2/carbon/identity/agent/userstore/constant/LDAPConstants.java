@@ -41,4 +41,129 @@ public class LDAPConstants {
     public static final String GROUP_NAME_ATTRIBUTE = "GroupNameAttribute";
     public static final String MEMBERSHIP_ATTRIBUTE = "MembershipAttribute";
     public static final String EMPTY_ROLES_ALLOWED = "EmptyRolesAllowed";
+    //connection pool of the agent, enabled with ConnectionPoolingEnabled
+    public static final String CONNECTION_POOL_MIN_SIZE = "ConnectionPoolMinSize";
+    public static final String CONNECTION_POOL_MAX_SIZE = "ConnectionPoolMaxSize";
+    public static final String CONNECTION_POOL_MAX_WAIT = "ConnectionPoolMaxWait";
+    public static final String CONNECTION_POOL_MAX_IDLE_TIME = "ConnectionPoolMaxIdleTime";
+    public static final String CONNECTION_POOL_MAX_LIFETIME = "ConnectionPoolMaxLifetime";
+    public static final String CONNECTION_POOL_EVICTION_INTERVAL = "ConnectionPoolEvictionInterval";
+    public static final String CONNECTION_POOL_VALIDATE_ON_BORROW = "ConnectionPoolValidateOnBorrow";
+    public static final String AUTHENTICATION_POOL_MIN_SIZE = "AuthenticationPoolMinSize";
+    public static final String AUTHENTICATION_POOL_MAX_SIZE = "AuthenticationPoolMaxSize";
+    public static final String AUTHENTICATION_POOL_MAX_WAIT = "AuthenticationPoolMaxWait";
+    public static final String AUTHENTICATION_FAST_BIND_ENABLED = "AuthenticationFastBindEnabled";
+    public static final String USER_DN_CACHE_ENABLED = "UserDNCacheEnabled";
+    public static final String USER_DN_CACHE_SIZE = "UserDNCacheSize";
+    public static final String USER_DN_CACHE_TTL = "UserDNCacheTTL";
+    public static final String USER_DN_CACHE_NEGATIVE_TTL = "UserDNCacheNegativeTTL";
+    public static final String CLAIM_CACHE_ENABLED = "ClaimCacheEnabled";
+    public static final String CLAIM_CACHE_MAX_MEMORY = "ClaimCacheMaxMemory";
+    public static final String CLAIM_CACHE_TTL = "ClaimCacheTTL";
+    public static final String CLAIM_CACHE_REFRESH_AFTER = "ClaimCacheRefreshAfter";
+    //whether the cached claim values are held outside the Java heap, in ClaimCacheMaxMemory bytes of direct memory
+    public static final String CLAIM_CACHE_OFF_HEAP = "ClaimCacheOffHeap";
+    public static final String CREDENTIAL_CACHE_ENABLED = "CredentialCacheEnabled";
+    public static final String CREDENTIAL_CACHE_SIZE = "CredentialCacheSize";
+    public static final String CREDENTIAL_CACHE_TTL = "CredentialCacheTTL";
+    public static final String CREDENTIAL_CACHE_OUTAGE_TTL = "CredentialCacheOutageTTL";
+    //scrypt cost of the hashes in the credential cache, a power of two
+    public static final String CREDENTIAL_CACHE_HASH_COST = "CredentialCacheHashCost";
+    public static final String PAGED_SEARCH_PAGE_SIZE = "PagedSearchPageSize";
+    public static final String MAX_OPEN_PAGED_SEARCHES = "MaxOpenPagedSearches";
+    public static final String PAGED_SEARCH_TIMEOUT = "PagedSearchTimeout";
+    public static final String MEMBER_RESOLUTION_BATCH_SIZE = "MemberResolutionBatchSize";
+    public static final String MEMBER_RESOLUTION_THREADS = "MemberResolutionThreads";
+    public static final String SEARCH_BASE_THREADS = "SearchBaseThreads";
+    //choice among the servers of a ConnectionURL holding several URLs, one of the ENDPOINT_SELECTION_* values
+    public static final String ENDPOINT_SELECTION = "EndpointSelection";
+    public static final String ENDPOINT_SELECTION_ORDERED = "ordered";
+    public static final String ENDPOINT_SELECTION_LEAST_LOADED = "leastLoaded";
+    public static final String ENDPOINT_PROBE_INTERVAL = "EndpointProbeInterval";
+    public static final String ENDPOINT_PROBE_TIMEOUT = "EndpointProbeTimeout";
+    public static final String ENDPOINT_EJECT_AFTER_FAILURES = "EndpointEjectAfterFailures";
+    public static final String ENDPOINT_REINSTATE_AFTER_PROBES = "EndpointReinstateAfterProbes";
+    //shared connections of AsyncLDAPUserStoreManager, each carrying many outstanding operations
+    public static final String ASYNC_CONNECTION_COUNT = "AsyncConnectionCount";
+    //resolution of nested group memberships, one of the NESTED_GROUP_RESOLUTION_* values
+    public static final String NESTED_GROUP_RESOLUTION = "NestedGroupResolution";
+    public static final String NESTED_GROUP_RESOLUTION_NONE = "none";
+    public static final String NESTED_GROUP_RESOLUTION_IN_CHAIN = "matchingRuleInChain";
+    public static final String NESTED_GROUP_RESOLUTION_TOKEN_GROUPS = "tokenGroups";
+    public static final String NESTED_GROUP_RESOLUTION_GROUP_GRAPH = "groupGraph";
+    public static final String NESTED_GROUP_GRAPH_REFRESH_INTERVAL = "NestedGroupGraphRefreshInterval";
+    public static final String NESTED_GROUP_GRAPH_FULL_REFRESH_INTERVAL = "NestedGroupGraphFullRefreshInterval";
+    //in memory replica of the users and groups, answering the read operations
+    public static final String REPLICA_ENABLED = "ReplicaEnabled";
+    public static final String REPLICA_SYNC_INTERVAL = "ReplicaSyncInterval";
+    public static final String REPLICA_FULL_SYNC_INTERVAL = "ReplicaFullSyncInterval";
+    public static final String REPLICA_MAX_STALENESS = "ReplicaMaxStaleness";
+    //attribute polled for changed entries, modifyTimestamp or uSNChanged, which is local to each Active Directory
+    //domain controller. Syncs therefore always read the first server in the ConnectionURL
+    public static final String REPLICA_CHANGE_ATTRIBUTE = "ReplicaChangeAttribute";
+    //bloom filters of the usernames and role names, answering existence checks of missing names
+    public static final String EXISTENCE_FILTER_ENABLED = "ExistenceFilterEnabled";
+    public static final String EXISTENCE_FILTER_FALSE_POSITIVE_RATE = "ExistenceFilterFalsePositiveRate";
+    public static final String EXISTENCE_FILTER_MAX_MEMORY = "ExistenceFilterMaxMemory";
+    public static final String EXISTENCE_FILTER_REFRESH_INTERVAL = "ExistenceFilterRefreshInterval";
+    public static final String EXISTENCE_FILTER_REBUILD_INTERVAL = "ExistenceFilterRebuildInterval";
+    //sorted index of the usernames and display names, answering user listings
+    public static final String USER_NAME_INDEX_ENABLED = "UserNameIndexEnabled";
+    public static final String USER_NAME_INDEX_REFRESH_INTERVAL = "UserNameIndexRefreshInterval";
+    public static final String USER_NAME_INDEX_REBUILD_INTERVAL = "UserNameIndexRebuildInterval";
+    public static final String USER_NAME_INDEX_MAX_STALENESS = "UserNameIndexMaxStaleness";
+    //compact index of the group memberships, answering membership checks and role and member lists
+    public static final String MEMBERSHIP_INDEX_ENABLED = "MembershipIndexEnabled";
+    public static final String MEMBERSHIP_INDEX_REFRESH_INTERVAL = "MembershipIndexRefreshInterval";
+    public static final String MEMBERSHIP_INDEX_REBUILD_INTERVAL = "MembershipIndexRebuildInterval";
+    public static final String MEMBERSHIP_INDEX_MAX_STALENESS = "MembershipIndexMaxStaleness";
+    //Active Directory LDAP_MATCHING_RULE_IN_CHAIN, matching the members of the nested groups as well
+    public static final String MATCHING_RULE_IN_CHAIN = "1.2.840.113556.1.4.1941";
+    public static final String TOKEN_GROUPS_ATTRIBUTE = "tokenGroups";
+    public static final String OBJECT_SID_ATTRIBUTE = "objectSid";
+    public static final String MODIFY_TIMESTAMP_ATTRIBUTE = "modifyTimestamp";
+    public static final int DEFAULT_CONNECTION_POOL_MIN_SIZE = 2;
+    public static final int DEFAULT_CONNECTION_POOL_MAX_SIZE = 20;
+    public static final int DEFAULT_AUTHENTICATION_POOL_MIN_SIZE = 2;
+    public static final int DEFAULT_AUTHENTICATION_POOL_MAX_SIZE = 10;
+    public static final int DEFAULT_CONNECTION_POOL_MAX_WAIT = 5000;   // ms
+    public static final int DEFAULT_CONNECTION_POOL_MAX_IDLE_TIME = 300000;   // ms
+    public static final int DEFAULT_CONNECTION_POOL_MAX_LIFETIME = 1800000;   // ms
+    public static final int DEFAULT_CONNECTION_POOL_EVICTION_INTERVAL = 30000;   // ms
+    public static final int DEFAULT_USER_DN_CACHE_SIZE = 10000;
+    public static final int DEFAULT_USER_DN_CACHE_TTL = 900000;   // ms
+    public static final int DEFAULT_USER_DN_CACHE_NEGATIVE_TTL = 30000;   // ms
+    public static final int DEFAULT_CLAIM_CACHE_MAX_MEMORY = 16777216;   // bytes
+    public static final int DEFAULT_CLAIM_CACHE_TTL = 300000;   // ms
+    public static final int DEFAULT_CLAIM_CACHE_REFRESH_AFTER = 240000;   // ms
+    public static final int DEFAULT_CREDENTIAL_CACHE_SIZE = 10000;
+    public static final int DEFAULT_CREDENTIAL_CACHE_TTL = 300000;   // ms
+    public static final int DEFAULT_CREDENTIAL_CACHE_OUTAGE_TTL = 300000;   // ms
+    public static final int DEFAULT_CREDENTIAL_CACHE_HASH_COST = 1024;
+    public static final int DEFAULT_PAGED_SEARCH_PAGE_SIZE = 500;
+    public static final int DEFAULT_MAX_OPEN_PAGED_SEARCHES = 5;
+    public static final int DEFAULT_PAGED_SEARCH_TIMEOUT = 60000;   // ms
+    public static final int DEFAULT_MEMBER_RESOLUTION_BATCH_SIZE = 100;
+    public static final int DEFAULT_MEMBER_RESOLUTION_THREADS = 1;
+    public static final int DEFAULT_SEARCH_BASE_THREADS = 4;
+    public static final int DEFAULT_ASYNC_CONNECTION_COUNT = 2;
+    public static final int DEFAULT_ENDPOINT_PROBE_INTERVAL = 10000;   // ms
+    public static final int DEFAULT_ENDPOINT_PROBE_TIMEOUT = 5000;   // ms
+    public static final int DEFAULT_ENDPOINT_EJECT_AFTER_FAILURES = 2;
+    public static final int DEFAULT_ENDPOINT_REINSTATE_AFTER_PROBES = 2;
+    public static final int DEFAULT_NESTED_GROUP_GRAPH_REFRESH_INTERVAL = 300000;   // ms
+    public static final int DEFAULT_NESTED_GROUP_GRAPH_FULL_REFRESH_INTERVAL = 3600000;   // ms
+    public static final int DEFAULT_REPLICA_SYNC_INTERVAL = 60000;   // ms
+    public static final int DEFAULT_REPLICA_FULL_SYNC_INTERVAL = 3600000;   // ms
+    public static final int DEFAULT_REPLICA_MAX_STALENESS = 300000;   // ms
+    public static final double DEFAULT_EXISTENCE_FILTER_FALSE_POSITIVE_RATE = 0.01;
+    public static final int DEFAULT_EXISTENCE_FILTER_MAX_MEMORY = 16777216;   // bytes
+    public static final int DEFAULT_EXISTENCE_FILTER_REFRESH_INTERVAL = 60000;   // ms
+    public static final int DEFAULT_EXISTENCE_FILTER_REBUILD_INTERVAL = 3600000;   // ms
+    public static final int DEFAULT_USER_NAME_INDEX_REFRESH_INTERVAL = 60000;   // ms
+    public static final int DEFAULT_USER_NAME_INDEX_REBUILD_INTERVAL = 3600000;   // ms
+    public static final int DEFAULT_USER_NAME_INDEX_MAX_STALENESS = 300000;   // ms
+    public static final int DEFAULT_MEMBERSHIP_INDEX_REFRESH_INTERVAL = 60000;   // ms
+    public static final int DEFAULT_MEMBERSHIP_INDEX_REBUILD_INTERVAL = 3600000;   // ms
+    public static final int DEFAULT_MEMBERSHIP_INDEX_MAX_STALENESS = 300000;   // ms
 }
@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.exception;
+
+/**
+ * The exception to throw when no pooled LDAP connection becomes available within the max wait time.
+ */
+public class ConnectionPoolTimeoutException extends UserStoreException {
+
+    /*
+     * Default serial
+     */
+    private static final long serialVersionUID = 5273940681349207214L;
+
+    public ConnectionPoolTimeoutException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.common;
+
+import org.wso2.carbon.identity.agent.userstore.model.AuthenticationResult;
+import org.wso2.carbon.identity.agent.userstore.model.PagedResult;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ *  Asynchronous counterpart of {@link UserStoreManager}. Each operation returns immediately with a future which
+ *  is completed with the result of the operation, or completed exceptionally with a
+ *  {@link org.wso2.carbon.identity.agent.userstore.exception.UserStoreException} if the operation fails or
+ *  cannot be accepted.
+ */
+public interface AsyncUserStoreManager {
+
+    /**
+     * @param userName Username of the user
+     * @param claimUris Array of required attributes' names
+     * @return Future of the map containing the name value pairs of required attributes
+     */
+    CompletableFuture<Map<String, String>> getUserClaimValues(String userName, String[] claimUris);
+
+    /**
+     * @param userName Username of the user
+     * @param credential Password of the user
+     * @return Future completed with true if the users credentials are valid. false otherwise.
+     */
+    CompletableFuture<Boolean> doAuthenticate(String userName, Object credential);
+
+    /**
+     * @param userName Username of the user
+     * @param credential Password of the user
+     * @param claimUris Array of required attributes' names, empty if no claims are required.
+     * @return Future of the authentication result with the claim values and role list of the user if the
+     * credentials are valid.
+     */
+    CompletableFuture<AuthenticationResult> doAuthenticateAndGetUser(String userName, Object credential,
+                                                                     String[] claimUris);
+
+    /**
+     * @param filter Username filter String.
+     * @param maxItemLimit Maximum size of the username list.
+     * @return Future of the list of usernames.
+     */
+    CompletableFuture<String[]> doListUsers(String filter, int maxItemLimit);
+
+    /**
+     * @param filter Username filter String.
+     * @param pageSize Maximum number of usernames in the page.
+     * @param pageToken Token returned with the previous page, null to read the first page.
+     * @return Future of the usernames in the page and the token of the next page.
+     */
+    CompletableFuture<PagedResult> doListUsers(String filter, int pageSize, String pageToken);
+
+    /**
+     * @param filter Username filter String.
+     * @param maxItemLimit Maximum size of the username list.
+     * @param chunkSize Maximum number of usernames in a chunk.
+     * @param handler Handler of the chunks of usernames, called while the listing is in progress.
+     * @return Future completed after the last chunk is handled.
+     */
+    CompletableFuture<Void> doListUsers(String filter, int maxItemLimit, int chunkSize, ChunkHandler handler);
+
+    /**
+     * @param filter Group filter string
+     * @param maxItemLimit Maximum size of the return group list
+     * @return Future of the array of all the group names
+     */
+    CompletableFuture<String[]> doGetRoleNames(String filter, int maxItemLimit);
+
+    /**
+     * @param filter Group filter string
+     * @param pageSize Maximum number of group names in the page.
+     * @param pageToken Token returned with the previous page, null to read the first page.
+     * @return Future of the group names in the page and the token of the next page.
+     */
+    CompletableFuture<PagedResult> doGetRoleNames(String filter, int pageSize, String pageToken);
+
+    /**
+     * @param filter Group filter string
+     * @param maxItemLimit Maximum size of the group list
+     * @param chunkSize Maximum number of group names in a chunk.
+     * @param handler Handler of the chunks of group names, called while the listing is in progress.
+     * @return Future completed after the last chunk is handled.
+     */
+    CompletableFuture<Void> doGetRoleNames(String filter, int maxItemLimit, int chunkSize, ChunkHandler handler);
+
+    /**
+     * @param userName Username of the user whose role list is required.
+     * @return Future of the array of roles of the given user.
+     */
+    CompletableFuture<String[]> doGetExternalRoleListOfUser(String userName);
+
+    /**
+     * @return Future completed with true if the connection to the userstore is healthy. false otherwise.
+     */
+    CompletableFuture<Boolean> getConnectionStatus();
+
+    /**
+     * @param userName Username of the user whose existence is to be checked.
+     * @return Future completed with true if the user exists in userstore. false otherwise.
+     */
+    CompletableFuture<Boolean> doCheckExistingUser(String userName);
+
+    /**
+     * @param userName Username of the user whose existence in role to be checked.
+     * @param roleName Name of the Role which the user is checked to be in.
+     * @return Future completed with true if the user is in the role. false otherwise.
+     */
+    CompletableFuture<Boolean> doCheckIsUserInRole(String userName, String roleName);
+
+    /**
+     * @param roleName Name of the Role which users in the list should belong.
+     * @param maxItemLimit Maximum size of the username list.
+     * @return Future of the array of usernames of the Users in given role.
+     */
+    CompletableFuture<String[]> doGetUserListOfRole(String roleName, int maxItemLimit);
+
+    /**
+     * @param roleName Name of the Role which the existance is checked.
+     * @return Future completed with true if a role exists in given name. false otherwise.
+     */
+    CompletableFuture<Boolean> doCheckExistingRole(String roleName);
+
+    /**
+     * @param userName Username of the user whose role list is updated.
+     * @param deletedRoles List of names of roles that the user is removed from.
+     * @param newRoles List of names of new roles that the user is added to.
+     * @return Future completed after the role list is updated.
+     */
+    CompletableFuture<Void> doUpdateRoleListOfUser(String userName, String[] deletedRoles, String[] newRoles);
+
+    /**
+     * Releases the threads and other resources held by this AsyncUserStoreManager. Operations which are already
+     * accepted are completed before the resources are released.
+     */
+    void close();
+}
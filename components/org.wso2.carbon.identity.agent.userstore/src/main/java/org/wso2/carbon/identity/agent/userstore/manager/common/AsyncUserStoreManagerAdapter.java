@@ -0,0 +1,525 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.common;
+
+import com.unboundid.ldap.sdk.LDAPException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wso2.carbon.identity.agent.userstore.constant.CommonConstants;
+import org.wso2.carbon.identity.agent.userstore.exception.ConnectionPoolTimeoutException;
+import org.wso2.carbon.identity.agent.userstore.exception.OperationRejectedException;
+import org.wso2.carbon.identity.agent.userstore.exception.UserStoreException;
+import org.wso2.carbon.identity.agent.userstore.model.AuthenticationResult;
+import org.wso2.carbon.identity.agent.userstore.model.PagedResult;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+
+/**
+ *  Runs the operations of a synchronous {@link UserStoreManager} on a bounded {@link OperationDispatcher}.
+ *  Operations which do not fit in the queue of their class are rejected with a failed future instead of blocking
+ *  the caller.
+ *
+ *  Each {@link OperationClass} has its own queue and limit of running operations, so heavy listings cannot take
+ *  the threads, and with them the LDAP connections, that logins need. When threads are scarce, logins and
+ *  attribute reads are dispatched ahead of listings and role updates. Each class also has a
+ *  {@link CircuitBreaker}, which rejects the operations of the class straight away while they keep failing or
+ *  are too slow. Only connection failures and timeouts count as failures, so that wrong passwords or invalid
+ *  requests do not open the breaker. Logins whose credential is in the credential cache of the UserStoreManager
+ *  are still run while the breaker is open, as they do not need the userstore.
+ *
+ *  The connection status is checked outside the queues, so that it is reported while they are full.
+ *
+ *  Page tokens carry a prefix of the adapter which issued them, so that a page request reaches the adapter
+ *  holding its search after the UserStoreManager is replaced.
+ */
+public class AsyncUserStoreManagerAdapter implements AsyncUserStoreManager {
+
+    private static Logger log = LoggerFactory.getLogger(AsyncUserStoreManagerAdapter.class);
+    // Time given to accepted operations to finish when the adapter is closed.
+    private static final long CLOSE_TIMEOUT = 30 * 1000;
+    // Message of the NamingException thrown when the LDAP server does not answer within the read timeout.
+    private static final String READ_TIMEOUT_MESSAGE = "LDAP response read timed out";
+    private static final AtomicInteger adapterCount = new AtomicInteger();
+    private final UserStoreManager userStoreManager;
+    private final Map<OperationClass, Bulkhead> bulkheads = new EnumMap<>(OperationClass.class);
+    private final OperationDispatcher dispatcher;
+    private final ExecutorService statusExecutor;
+    private CompletableFuture<Boolean> statusCheck;
+    private final String pageTokenPrefix = adapterCount.incrementAndGet() + ":";
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+    private volatile long lastPageTokenIssued;
+
+    /**
+     *  Circuit breaker and counters of an operation class.
+     */
+    private static final class Bulkhead {
+
+        private final CircuitBreaker circuitBreaker;
+        private final LongAdder completedCount = new LongAdder();
+        private final LongAdder rejectedCount = new LongAdder();
+
+        private Bulkhead(CircuitBreaker circuitBreaker) {
+            this.circuitBreaker = circuitBreaker;
+        }
+    }
+
+    /**
+     *  A synchronous operation of the UserStoreManager.
+     */
+    private interface Operation<T> {
+
+        /**
+         * @return Result of the operation.
+         * @throws UserStoreException If the operation fails.
+         */
+        T call() throws UserStoreException;
+    }
+
+    /**
+     * @param userStoreManager UserStoreManager which runs the operations.
+     * @param userStoreProperties Properties read from the userstore-mgt.xml file.
+     */
+    public AsyncUserStoreManagerAdapter(UserStoreManager userStoreManager, Map<String, String> userStoreProperties) {
+        this.userStoreManager = userStoreManager;
+        String circuitBreakerEnabled = userStoreProperties.get(CommonConstants.PROPERTY_CIRCUIT_BREAKER_ENABLED);
+        Map<OperationClass, Integer> threads = new EnumMap<>(OperationClass.class);
+        Map<OperationClass, Integer> queueSizes = new EnumMap<>(OperationClass.class);
+        Map<OperationClass, Integer> priorities = new EnumMap<>(OperationClass.class);
+        for (OperationClass operationClass : OperationClass.values()) {
+            String prefix = operationClass.getPropertyPrefix();
+            threads.put(operationClass, getIntProperty(userStoreProperties,
+                    prefix + CommonConstants.PROPERTY_OPERATION_THREADS, operationClass.getDefaultThreads()));
+            queueSizes.put(operationClass, getIntProperty(userStoreProperties,
+                    prefix + CommonConstants.PROPERTY_OPERATION_QUEUE_SIZE, operationClass.getDefaultQueueSize()));
+            priorities.put(operationClass, getIntProperty(userStoreProperties,
+                    prefix + CommonConstants.PROPERTY_OPERATION_PRIORITY, operationClass.getDefaultPriority()));
+
+            CircuitBreaker circuitBreaker = null;
+            if (circuitBreakerEnabled == null || Boolean.parseBoolean(circuitBreakerEnabled.trim())) {
+                circuitBreaker = new CircuitBreaker(prefix,
+                        getIntProperty(userStoreProperties, CommonConstants.PROPERTY_CIRCUIT_BREAKER_WINDOW,
+                                CommonConstants.DEFAULT_CIRCUIT_BREAKER_WINDOW),
+                        getIntProperty(userStoreProperties, CommonConstants.PROPERTY_CIRCUIT_BREAKER_MINIMUM_CALLS,
+                                CommonConstants.DEFAULT_CIRCUIT_BREAKER_MINIMUM_CALLS),
+                        getIntProperty(userStoreProperties, CommonConstants.PROPERTY_CIRCUIT_BREAKER_FAILURE_RATE,
+                                CommonConstants.DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE),
+                        getIntProperty(userStoreProperties, CommonConstants.PROPERTY_CIRCUIT_BREAKER_SLOW_CALL_RATE,
+                                CommonConstants.DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_RATE),
+                        getIntProperty(userStoreProperties, prefix + CommonConstants.PROPERTY_SLOW_CALL_THRESHOLD,
+                                operationClass.getDefaultSlowCallThreshold()),
+                        getIntProperty(userStoreProperties, CommonConstants.PROPERTY_CIRCUIT_BREAKER_OPEN_DURATION,
+                                CommonConstants.DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION),
+                        getIntProperty(userStoreProperties, CommonConstants.PROPERTY_CIRCUIT_BREAKER_HALF_OPEN_CALLS,
+                                CommonConstants.DEFAULT_CIRCUIT_BREAKER_HALF_OPEN_CALLS));
+            }
+            bulkheads.put(operationClass, new Bulkhead(circuitBreaker));
+        }
+        dispatcher = new OperationDispatcher(
+                getIntProperty(userStoreProperties, CommonConstants.PROPERTY_OPERATION_DISPATCH_THREADS,
+                        CommonConstants.DEFAULT_OPERATION_DISPATCH_THREADS), threads, queueSizes, priorities,
+                getIntProperty(userStoreProperties, CommonConstants.PROPERTY_OPERATION_AGING_INTERVAL,
+                        CommonConstants.DEFAULT_OPERATION_AGING_INTERVAL));
+        statusExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "UserStoreStatusCheck");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return The UserStoreManager which runs the operations.
+     */
+    public UserStoreManager getUserStoreManager() {
+        return userStoreManager;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Map<String, String>> getUserClaimValues(String userName, String[] claimUris) {
+        return submit(OperationClass.ATTRIBUTE_READ, () -> userStoreManager.getUserClaimValues(userName, claimUris));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Boolean> doAuthenticate(String userName, Object credential) {
+        return submit(OperationClass.AUTHENTICATION, () -> userStoreManager.doAuthenticate(userName, credential),
+                () -> userStoreManager.isCredentialCached(userName, credential));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<AuthenticationResult> doAuthenticateAndGetUser(String userName, Object credential,
+                                                                            String[] claimUris) {
+        return submit(OperationClass.AUTHENTICATION,
+                () -> userStoreManager.doAuthenticateAndGetUser(userName, credential, claimUris),
+                () -> userStoreManager.isCredentialCached(userName, credential));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<String[]> doListUsers(String filter, int maxItemLimit) {
+        return submit(OperationClass.LISTING, () -> userStoreManager.doListUsers(filter, maxItemLimit));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<PagedResult> doListUsers(String filter, int pageSize, String pageToken) {
+        return submit(OperationClass.LISTING, () -> toIssuedPage(
+                userStoreManager.doListUsers(filter, pageSize, toSearchPageToken(pageToken))));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Void> doListUsers(String filter, int maxItemLimit, int chunkSize,
+                                               ChunkHandler handler) {
+        return submit(OperationClass.LISTING, () -> {
+            userStoreManager.doListUsers(filter, maxItemLimit, chunkSize, handler);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<String[]> doGetRoleNames(String filter, int maxItemLimit) {
+        return submit(OperationClass.LISTING, () -> userStoreManager.doGetRoleNames(filter, maxItemLimit));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<PagedResult> doGetRoleNames(String filter, int pageSize, String pageToken) {
+        return submit(OperationClass.LISTING, () -> toIssuedPage(
+                userStoreManager.doGetRoleNames(filter, pageSize, toSearchPageToken(pageToken))));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Void> doGetRoleNames(String filter, int maxItemLimit, int chunkSize,
+                                                  ChunkHandler handler) {
+        return submit(OperationClass.LISTING, () -> {
+            userStoreManager.doGetRoleNames(filter, maxItemLimit, chunkSize, handler);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<String[]> doGetExternalRoleListOfUser(String userName) {
+        return submit(OperationClass.MEMBERSHIP, () -> userStoreManager.doGetExternalRoleListOfUser(userName));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Boolean> getConnectionStatus() {
+        // concurrent callers share the check in progress, so that a hung userstore holds a single thread
+        synchronized (statusExecutor) {
+            if (statusCheck == null || statusCheck.isDone()) {
+                statusCheck = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return userStoreManager.getConnectionStatus();
+                    } catch (UserStoreException e) {
+                        throw new CompletionException(e);
+                    }
+                }, statusExecutor);
+            }
+            return statusCheck;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Boolean> doCheckExistingUser(String userName) {
+        return submit(OperationClass.ATTRIBUTE_READ, () -> userStoreManager.doCheckExistingUser(userName));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Boolean> doCheckIsUserInRole(String userName, String roleName) {
+        return submit(OperationClass.MEMBERSHIP, () -> userStoreManager.doCheckIsUserInRole(userName, roleName));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<String[]> doGetUserListOfRole(String roleName, int maxItemLimit) {
+        return submit(OperationClass.LISTING, () -> userStoreManager.doGetUserListOfRole(roleName, maxItemLimit));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Boolean> doCheckExistingRole(String roleName) {
+        return submit(OperationClass.ATTRIBUTE_READ, () -> userStoreManager.doCheckExistingRole(roleName));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Void> doUpdateRoleListOfUser(String userName, String[] deletedRoles,
+                                                          String[] newRoles) {
+        return submit(OperationClass.WRITE, () -> {
+            userStoreManager.doUpdateRoleListOfUser(userName, deletedRoles, newRoles);
+            return null;
+        });
+    }
+
+    /**
+     * @return Threads, queue time and circuit breaker statistics of each operation class.
+     */
+    public Map<String, Object> getStatistics() {
+
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        for (Map.Entry<OperationClass, Bulkhead> entry : bulkheads.entrySet()) {
+            Bulkhead bulkhead = entry.getValue();
+            Map<String, Object> classStatistics = dispatcher.getStatistics(entry.getKey());
+            classStatistics.put("completed", bulkhead.completedCount.sum());
+            classStatistics.put("rejected", bulkhead.rejectedCount.sum());
+            if (bulkhead.circuitBreaker != null) {
+                classStatistics.put("circuitBreaker", bulkhead.circuitBreaker.getStatistics());
+            }
+            statistics.put(entry.getKey().getPropertyPrefix(), classStatistics);
+        }
+        return statistics;
+    }
+
+    /**
+     * @param pageToken Page token returned with a page.
+     * @return true if the page was read by this adapter, which then holds the search of the next page.
+     */
+    public boolean isPageTokenOf(String pageToken) {
+        return pageToken.startsWith(pageTokenPrefix);
+    }
+
+    /**
+     * @param pageTokenTimeout Time in milliseconds after which an unused page token expires.
+     * @return true if no operation is in progress and the page tokens issued by this adapter have expired.
+     */
+    public boolean isIdle(long pageTokenTimeout) {
+        return inFlightCount.get() == 0 && System.currentTimeMillis() - lastPageTokenIssued > pageTokenTimeout;
+    }
+
+    /**
+     * Stops accepting operations, waits for the accepted operations and closes the UserStoreManager.
+     */
+    @Override
+    public void close() {
+        statusExecutor.shutdownNow();
+        dispatcher.shutdown();
+        try {
+            if (!dispatcher.awaitTermination(CLOSE_TIMEOUT)) {
+                log.warn("Userstore operations did not finish in " + CLOSE_TIMEOUT + "ms. Closing the userstore.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        userStoreManager.close();
+    }
+
+    /**
+     * @param operationClass Class of the operation, which selects its queue and circuit breaker.
+     * @param operation Operation to be run by the dispatcher.
+     * @param <T> Type of the result.
+     * @return Future of the result, completed exceptionally if the operation fails, the queue is full or the
+     * circuit breaker is open.
+     */
+    private <T> CompletableFuture<T> submit(OperationClass operationClass, Operation<T> operation) {
+        return submit(operationClass, operation, null);
+    }
+
+    /**
+     * @param operationClass Class of the operation, which selects its queue and circuit breaker.
+     * @param operation Operation to be run by the dispatcher.
+     * @param servedFromCache Checks whether the operation can be answered without the userstore, in which case it
+     *                        is run even if the circuit breaker is open. null if it always needs the userstore.
+     * @param <T> Type of the result.
+     * @return Future of the result, completed exceptionally if the operation fails or is rejected.
+     */
+    private <T> CompletableFuture<T> submit(OperationClass operationClass, Operation<T> operation,
+                                            BooleanSupplier servedFromCache) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        // every path below completes the future, which ends the operation for isIdle
+        inFlightCount.incrementAndGet();
+        future.whenComplete((result, error) -> inFlightCount.decrementAndGet());
+        Bulkhead bulkhead = bulkheads.get(operationClass);
+        CircuitBreaker circuitBreaker = bulkhead.circuitBreaker;
+        if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+            if (servedFromCache == null) {
+                bulkhead.rejectedCount.increment();
+                future.completeExceptionally(getCircuitOpenException(operationClass));
+                return future;
+            }
+            // checked on the dispatcher, as the check hashes the credential. Not recorded in the breaker.
+            circuitBreaker = null;
+        } else {
+            servedFromCache = null;
+        }
+        CircuitBreaker acquiredBreaker = circuitBreaker;
+        BooleanSupplier cacheCheck = servedFromCache;
+        boolean accepted = dispatcher.offer(operationClass, () -> {
+            // the caller may have given up on the result while the operation was queued
+            if (future.isDone()) {
+                if (acquiredBreaker != null) {
+                    acquiredBreaker.release();
+                }
+                return;
+            }
+            if (cacheCheck != null && !cacheCheck.getAsBoolean()) {
+                bulkhead.rejectedCount.increment();
+                future.completeExceptionally(getCircuitOpenException(operationClass));
+                return;
+            }
+            long start = System.currentTimeMillis();
+            T result = null;
+            Throwable error = null;
+            try {
+                result = operation.call();
+            } catch (Throwable e) {
+                error = e;
+            }
+            // recorded before completing, so that the caller's next operation sees the updated breaker
+            if (acquiredBreaker != null) {
+                acquiredBreaker.record(System.currentTimeMillis() - start,
+                        error != null && isConnectionFailure(error));
+            }
+            bulkhead.completedCount.increment();
+            if (error != null) {
+                future.completeExceptionally(error);
+            } else {
+                future.complete(result);
+            }
+        });
+        if (!accepted) {
+            if (acquiredBreaker != null) {
+                acquiredBreaker.release();
+            }
+            bulkhead.rejectedCount.increment();
+            String message = "Userstore operation rejected. " + dispatcher.getActiveCount(operationClass) + " "
+                    + operationClass.getPropertyPrefix() + " operations in progress and "
+                    + dispatcher.getQueuedCount(operationClass) + " waiting.";
+            if (log.isDebugEnabled()) {
+                log.debug(message);
+            }
+            future.completeExceptionally(new OperationRejectedException(message));
+        }
+        return future;
+    }
+
+    /**
+     * @param pageToken Page token issued by this adapter, null for the first page.
+     * @return Page token of the search of the UserStoreManager.
+     * @throws UserStoreException If the page token was not issued by this adapter.
+     */
+    private String toSearchPageToken(String pageToken) throws UserStoreException {
+        if (pageToken == null) {
+            return null;
+        }
+        if (!isPageTokenOf(pageToken)) {
+            throw new UserStoreException("Invalid or expired page token: " + pageToken);
+        }
+        return pageToken.substring(pageTokenPrefix.length());
+    }
+
+    /**
+     * @param page Page read by the UserStoreManager.
+     * @return The page, with the token of the next page prefixed by this adapter.
+     */
+    private PagedResult toIssuedPage(PagedResult page) {
+        if (page.getNextPageToken() == null) {
+            return page;
+        }
+        lastPageTokenIssued = System.currentTimeMillis();
+        return new PagedResult(page.getItems(), pageTokenPrefix + page.getNextPageToken());
+    }
+
+    /**
+     * @param error Error of an operation.
+     * @return true if the error, or one of its causes, shows that the userstore could not be reached or did not
+     * answer in time, including a pool with no free connection.
+     */
+    private static boolean isConnectionFailure(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CommunicationException || cause instanceof ServiceUnavailableException
+                    || cause instanceof TimeoutException || cause instanceof ConnectionPoolTimeoutException) {
+                return true;
+            }
+            // JNDI reports a read timeout as a plain NamingException
+            if (cause instanceof NamingException && cause.getMessage() != null
+                    && cause.getMessage().startsWith(READ_TIMEOUT_MESSAGE)) {
+                return true;
+            }
+            if (cause instanceof LDAPException && !((LDAPException) cause).getResultCode().isConnectionUsable()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static OperationRejectedException getCircuitOpenException(OperationClass operationClass) {
+        return new OperationRejectedException("Userstore operation rejected as "
+                + operationClass.getPropertyPrefix() + " operations are failing or slow.");
+    }
+
+    private static int getIntProperty(Map<String, String> userStoreProperties, String propertyName,
+                                      int defaultValue) {
+        try {
+            return Integer.parseInt(userStoreProperties.get(propertyName).trim());
+        } catch (Exception e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wso2.carbon.identity.agent.userstore.constant.CommonConstants;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ *  Keeps repeated failed logins from reaching the userstore.
+ *
+ *  Failed logins are counted per username and per source in a sliding window. Once a username or a source
+ *  reaches its limit, its logins are rejected without a bind until the cool down ends. Failed username and
+ *  credential pairs are also remembered for a short time, as a salted hash, so that an identical bad attempt
+ *  is rejected without a bind even before the limit is reached.
+ *
+ *  The state is split into lock stripes by key, each a small LRU map, so that concurrent logins of different
+ *  users rarely wait on each other and the memory stays bounded.
+ *
+ *  The throttle is off unless AuthenticationThrottleEnabled is set to true in the userstore properties.
+ */
+public class AuthenticationThrottle {
+
+    private static Logger log = LoggerFactory.getLogger(AuthenticationThrottle.class);
+    private static final int STRIPES = 64;
+    // Number of sub windows of the sliding window.
+    private static final int BUCKETS = 6;
+    private static final int SALT_LENGTH = 16;
+    private static final String USER_KEY_PREFIX = "u:";
+    private static final String SOURCE_KEY_PREFIX = "s:";
+
+    private final Stripe<FailureCounter>[] counters;
+    private final Stripe<Long>[] failedCredentials;
+    private final long bucketLength;
+    private final int maxUserFailures;
+    private final int maxSourceFailures;
+    private final long coolDown;
+    private final long failedCredentialTTL;
+    private final int stripeSize;
+    private final byte[] salt = new byte[SALT_LENGTH];
+
+    /**
+     *  LRU map of one stripe, guarded by its own lock.
+     */
+    private static final class Stripe<V> extends LinkedHashMap<String, V> {
+
+        private static final long serialVersionUID = 4127396153094829071L;
+        private final int maxSize;
+
+        private Stripe(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    /**
+     *  Failed logins of a key in the sliding window, and the time until which the key is blocked.
+     */
+    private static final class FailureCounter {
+
+        private final int[] counts = new int[BUCKETS];
+        private final long[] epochs = new long[BUCKETS];
+        private long blockedUntil;
+        private long lastFailure;
+
+        /**
+         * @return Number of failures in the window, including this one.
+         */
+        private int add(long now, long bucketLength) {
+            long epoch = now / bucketLength;
+            int index = (int) (epoch % BUCKETS);
+            if (epochs[index] != epoch) {
+                epochs[index] = epoch;
+                counts[index] = 0;
+            }
+            counts[index]++;
+            lastFailure = now;
+            int total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (epoch - epochs[i] < BUCKETS) {
+                    total += counts[i];
+                }
+            }
+            return total;
+        }
+    }
+
+    /**
+     * @param window Length of the sliding window in milliseconds.
+     * @param maxUserFailures Failed logins of a username in the window which block the username.
+     * @param maxSourceFailures Failed logins from a source in the window which block the source.
+     * @param coolDown Time in milliseconds a blocked username or source is rejected for.
+     * @param failedCredentialTTL Time in milliseconds a failed username and credential pair is remembered.
+     * @param maxSize Maximum number of usernames, sources and failed credentials tracked.
+     */
+    AuthenticationThrottle(long window, int maxUserFailures, int maxSourceFailures, long coolDown,
+                           long failedCredentialTTL, int maxSize) {
+
+        this.bucketLength = Math.max(window / BUCKETS, 1);
+        this.maxUserFailures = maxUserFailures;
+        this.maxSourceFailures = maxSourceFailures;
+        this.coolDown = coolDown;
+        this.failedCredentialTTL = failedCredentialTTL;
+        this.stripeSize = Math.max(maxSize / STRIPES, 1);
+        this.counters = newStripes(stripeSize);
+        this.failedCredentials = newStripes(stripeSize);
+        new SecureRandom().nextBytes(salt);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Stripe<V>[] newStripes(int stripeSize) {
+
+        Stripe<V>[] stripes = (Stripe<V>[]) new Stripe<?>[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe<>(stripeSize);
+        }
+        return stripes;
+    }
+
+    /**
+     * @param userStoreProperties Properties read from the userstore-mgt.xml file.
+     * @param previous Throttle built from the previous configuration, null if there is none.
+     * @return The previous throttle, with its blocks and failure counts, if the properties configure it the same
+     * way, otherwise the throttle configured in the properties. null if it is not enabled.
+     */
+    public static AuthenticationThrottle create(Map<String, String> userStoreProperties,
+                                                AuthenticationThrottle previous) {
+        String enabled = userStoreProperties.get(CommonConstants.PROPERTY_AUTHENTICATION_THROTTLE_ENABLED);
+        if (enabled == null || !Boolean.parseBoolean(enabled.trim())) {
+            return null;
+        }
+        AuthenticationThrottle throttle = new AuthenticationThrottle(
+                getLongProperty(userStoreProperties, CommonConstants.PROPERTY_AUTHENTICATION_THROTTLE_WINDOW,
+                        CommonConstants.DEFAULT_AUTHENTICATION_THROTTLE_WINDOW),
+                (int) getLongProperty(userStoreProperties,
+                        CommonConstants.PROPERTY_AUTHENTICATION_THROTTLE_MAX_USER_FAILURES,
+                        CommonConstants.DEFAULT_AUTHENTICATION_THROTTLE_MAX_USER_FAILURES),
+                (int) getLongProperty(userStoreProperties,
+                        CommonConstants.PROPERTY_AUTHENTICATION_THROTTLE_MAX_SOURCE_FAILURES,
+                        CommonConstants.DEFAULT_AUTHENTICATION_THROTTLE_MAX_SOURCE_FAILURES),
+                getLongProperty(userStoreProperties, CommonConstants.PROPERTY_AUTHENTICATION_THROTTLE_COOL_DOWN,
+                        CommonConstants.DEFAULT_AUTHENTICATION_THROTTLE_COOL_DOWN),
+                getLongProperty(userStoreProperties, CommonConstants.PROPERTY_FAILED_CREDENTIAL_CACHE_TTL,
+                        CommonConstants.DEFAULT_FAILED_CREDENTIAL_CACHE_TTL),
+                (int) getLongProperty(userStoreProperties, CommonConstants.PROPERTY_AUTHENTICATION_THROTTLE_SIZE,
+                        CommonConstants.DEFAULT_AUTHENTICATION_THROTTLE_SIZE));
+        if (previous != null && previous.hasSettingsOf(throttle)) {
+            return previous;
+        }
+        return throttle;
+    }
+
+    private boolean hasSettingsOf(AuthenticationThrottle other) {
+        return bucketLength == other.bucketLength && maxUserFailures == other.maxUserFailures
+                && maxSourceFailures == other.maxSourceFailures && coolDown == other.coolDown
+                && failedCredentialTTL == other.failedCredentialTTL && stripeSize == other.stripeSize;
+    }
+
+    /**
+     * @param userName Username of the login.
+     * @param source Source of the login, null if not known.
+     * @param credential Password of the login.
+     * @return true if the login must be rejected without reaching the userstore.
+     */
+    public boolean isRejected(String userName, String source, String credential) {
+
+        long now = System.currentTimeMillis();
+        String userKey = USER_KEY_PREFIX + normalize(userName);
+        if (isBlocked(userKey, now)) {
+            if (log.isDebugEnabled()) {
+                log.debug("Login of user " + userName + " rejected until the cool down of the user ends.");
+            }
+            return true;
+        }
+        if (source != null && isBlocked(SOURCE_KEY_PREFIX + source, now)) {
+            if (log.isDebugEnabled()) {
+                log.debug("Login of user " + userName + " from " + source
+                        + " rejected until the cool down of the source ends.");
+            }
+            return true;
+        }
+        String credentialKey = hash(userName, credential);
+        Stripe<Long> stripe = failedCredentials[stripe(credentialKey)];
+        synchronized (stripe) {
+            Long expiry = stripe.get(credentialKey);
+            if (expiry == null) {
+                return false;
+            }
+            if (expiry > now) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Login of user " + userName + " rejected as the same credential failed recently.");
+                }
+                return true;
+            }
+            stripe.remove(credentialKey);
+        }
+        return false;
+    }
+
+    /**
+     * Records a failed login, blocking the username or the source if it reaches its limit.
+     * @param userName Username of the login.
+     * @param source Source of the login, null if not known.
+     * @param credential Password of the login.
+     */
+    public void failed(String userName, String source, String credential) {
+
+        long now = System.currentTimeMillis();
+        addFailure(USER_KEY_PREFIX + normalize(userName), maxUserFailures, now);
+        if (source != null) {
+            addFailure(SOURCE_KEY_PREFIX + source, maxSourceFailures, now);
+        }
+        if (failedCredentialTTL > 0) {
+            String credentialKey = hash(userName, credential);
+            Stripe<Long> stripe = failedCredentials[stripe(credentialKey)];
+            synchronized (stripe) {
+                stripe.put(credentialKey, now + failedCredentialTTL);
+            }
+        }
+    }
+
+    /**
+     * Records a successful login, clearing the failures of the username.
+     * @param userName Username of the login.
+     */
+    public void succeeded(String userName) {
+
+        String userKey = USER_KEY_PREFIX + normalize(userName);
+        Stripe<FailureCounter> stripe = counters[stripe(userKey)];
+        synchronized (stripe) {
+            stripe.remove(userKey);
+        }
+    }
+
+    private boolean isBlocked(String key, long now) {
+
+        Stripe<FailureCounter> stripe = counters[stripe(key)];
+        synchronized (stripe) {
+            FailureCounter counter = stripe.get(key);
+            return counter != null && counter.blockedUntil > now;
+        }
+    }
+
+    private void addFailure(String key, int maxFailures, long now) {
+
+        Stripe<FailureCounter> stripe = counters[stripe(key)];
+        synchronized (stripe) {
+            removeExpired(stripe, now);
+            FailureCounter counter = stripe.computeIfAbsent(key, k -> new FailureCounter());
+            if (maxFailures > 0 && counter.add(now, bucketLength) >= maxFailures && counter.blockedUntil <= now) {
+                counter.blockedUntil = now + coolDown;
+                log.warn("Too many failed logins of " + key + ". Logins are rejected for " + coolDown + "ms.");
+            }
+        }
+    }
+
+    /**
+     * Removes the counters which are neither blocked nor have failures in the window, oldest first.
+     */
+    private void removeExpired(Stripe<FailureCounter> stripe, long now) {
+
+        long windowLength = bucketLength * BUCKETS;
+        for (Iterator<FailureCounter> iterator = stripe.values().iterator(); iterator.hasNext(); ) {
+            FailureCounter counter = iterator.next();
+            if (counter.blockedUntil > now || now - counter.lastFailure < windowLength) {
+                break;
+            }
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @return Salted SHA-256 of the username and credential, so that credentials are never held in memory.
+     */
+    private String hash(String userName, String credential) {
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            digest.update(normalize(userName).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(String.valueOf(credential).getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is available on every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String normalize(String userName) {
+        return userName.trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    private static int stripe(String key) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    private static long getLongProperty(Map<String, String> userStoreProperties, String propertyName,
+                                        long defaultValue) {
+        try {
+            return Long.parseLong(userStoreProperties.get(propertyName).trim());
+        } catch (Exception e) {
+            return defaultValue;
+        }
+    }
+}
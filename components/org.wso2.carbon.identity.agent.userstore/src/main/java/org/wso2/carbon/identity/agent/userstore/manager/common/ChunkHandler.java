@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.common;
+
+import org.wso2.carbon.identity.agent.userstore.exception.UserStoreException;
+
+/**
+ *  Receives the results of a listing in chunks while the listing is still in progress.
+ */
+public interface ChunkHandler {
+
+    /**
+     * @param chunk Names read since the previous chunk.
+     * @throws UserStoreException If the chunk cannot be handled. The listing is stopped.
+     */
+    void handle(String[] chunk) throws UserStoreException;
+
+    /**
+     * @return true if no more chunks are needed. The listing is stopped before reading the next chunk.
+     */
+    default boolean isDone() {
+        return false;
+    }
+}
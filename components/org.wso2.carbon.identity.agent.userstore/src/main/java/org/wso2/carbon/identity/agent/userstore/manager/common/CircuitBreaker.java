@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *  Fails userstore operations fast while too many of them fail or are slow.
+ *
+ *  Outcomes are counted in a sliding window. The breaker opens when enough operations were seen in the window
+ *  and the failure rate or the slow operation rate reaches its threshold. While open, operations are rejected
+ *  without reaching the userstore. After the open duration a few trial operations are let through, and the
+ *  breaker closes if all of them succeed in time, or opens again otherwise.
+ */
+class CircuitBreaker {
+
+    private static Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+    // Number of sub windows of the sliding window.
+    private static final int BUCKETS = 10;
+
+    static final String STATE_CLOSED = "closed";
+    static final String STATE_OPEN = "open";
+    static final String STATE_HALF_OPEN = "halfOpen";
+
+    private final String name;
+    private final long bucketLength;
+    private final int minimumCalls;
+    private final int failureRateThreshold;
+    private final int slowCallRateThreshold;
+    private final long slowCallThreshold;
+    private final long openDuration;
+    private final int halfOpenCalls;
+
+    private final int[] calls = new int[BUCKETS];
+    private final int[] failures = new int[BUCKETS];
+    private final int[] slowCalls = new int[BUCKETS];
+    private final long[] epochs = new long[BUCKETS];
+    private volatile String state = STATE_CLOSED;
+    private long openedAt;
+    private int halfOpenPermits;
+    private int halfOpenSuccesses;
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder openCount = new LongAdder();
+
+    /**
+     * @param name Name of the breaker, used in logs.
+     * @param window Length of the sliding window in milliseconds.
+     * @param minimumCalls Operations needed in the window before the breaker may open.
+     * @param failureRateThreshold Percentage of failed operations which opens the breaker.
+     * @param slowCallRateThreshold Percentage of slow operations which opens the breaker.
+     * @param slowCallThreshold Time in milliseconds after which an operation counts as slow.
+     * @param openDuration Time in milliseconds the breaker stays open before letting trial operations through.
+     * @param halfOpenCalls Number of trial operations.
+     */
+    CircuitBreaker(String name, long window, int minimumCalls, int failureRateThreshold, int slowCallRateThreshold,
+                   long slowCallThreshold, long openDuration, int halfOpenCalls) {
+
+        this.name = name;
+        this.bucketLength = Math.max(window / BUCKETS, 1);
+        this.minimumCalls = Math.max(minimumCalls, 1);
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallThreshold = slowCallThreshold;
+        this.openDuration = openDuration;
+        this.halfOpenCalls = Math.max(halfOpenCalls, 1);
+    }
+
+    /**
+     * @return true if the operation may run, in which case its outcome must be given to {@link #record} or
+     * {@link #release}. false if the breaker is open.
+     */
+    boolean tryAcquire() {
+
+        if (STATE_CLOSED.equals(state)) {
+            return true;
+        }
+        synchronized (this) {
+            if (STATE_OPEN.equals(state)) {
+                if (System.currentTimeMillis() - openedAt < openDuration) {
+                    rejectedCount.increment();
+                    return false;
+                }
+                state = STATE_HALF_OPEN;
+                halfOpenPermits = halfOpenCalls;
+                halfOpenSuccesses = 0;
+            }
+            if (STATE_HALF_OPEN.equals(state)) {
+                if (halfOpenPermits == 0) {
+                    rejectedCount.increment();
+                    return false;
+                }
+                halfOpenPermits--;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Gives back a permit of an operation that did not run.
+     */
+    synchronized void release() {
+        if (STATE_HALF_OPEN.equals(state)) {
+            halfOpenPermits++;
+        }
+    }
+
+    /**
+     * @param duration Time in milliseconds the operation took.
+     * @param failed Whether the operation failed.
+     */
+    synchronized void record(long duration, boolean failed) {
+
+        long now = System.currentTimeMillis();
+        boolean slow = duration >= slowCallThreshold;
+        if (STATE_HALF_OPEN.equals(state)) {
+            if (failed || slow) {
+                open(now, "a trial operation " + (failed ? "failed" : "took " + duration + "ms"));
+            } else if (++halfOpenSuccesses >= halfOpenCalls) {
+                close();
+            }
+            return;
+        }
+        if (STATE_OPEN.equals(state)) {
+            // an operation which started before the breaker opened
+            return;
+        }
+        long epoch = now / bucketLength;
+        int index = (int) (epoch % BUCKETS);
+        if (epochs[index] != epoch) {
+            epochs[index] = epoch;
+            calls[index] = 0;
+            failures[index] = 0;
+            slowCalls[index] = 0;
+        }
+        calls[index]++;
+        if (failed) {
+            failures[index]++;
+        }
+        if (slow) {
+            slowCalls[index]++;
+        }
+        int totalCalls = 0;
+        int totalFailures = 0;
+        int totalSlowCalls = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (epoch - epochs[i] < BUCKETS) {
+                totalCalls += calls[i];
+                totalFailures += failures[i];
+                totalSlowCalls += slowCalls[i];
+            }
+        }
+        if (totalCalls < minimumCalls) {
+            return;
+        }
+        if (totalFailures * 100 >= failureRateThreshold * totalCalls) {
+            open(now, totalFailures + " of " + totalCalls + " operations failed");
+        } else if (totalSlowCalls * 100 >= slowCallRateThreshold * totalCalls) {
+            open(now, totalSlowCalls + " of " + totalCalls + " operations took over " + slowCallThreshold + "ms");
+        }
+    }
+
+    /**
+     * @return State of the breaker and its counters.
+     */
+    synchronized Map<String, Object> getStatistics() {
+
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("state", state);
+        statistics.put("opened", openCount.sum());
+        statistics.put("rejected", rejectedCount.sum());
+        return statistics;
+    }
+
+    private void open(long now, String reason) {
+
+        state = STATE_OPEN;
+        openedAt = now;
+        openCount.increment();
+        for (int i = 0; i < BUCKETS; i++) {
+            calls[i] = 0;
+            failures[i] = 0;
+            slowCalls[i] = 0;
+        }
+        log.warn("Circuit breaker of " + name + " operations opened for " + openDuration + "ms, as " + reason
+                + ".");
+    }
+
+    private void close() {
+
+        state = STATE_CLOSED;
+        log.info("Circuit breaker of " + name + " operations closed.");
+    }
+}
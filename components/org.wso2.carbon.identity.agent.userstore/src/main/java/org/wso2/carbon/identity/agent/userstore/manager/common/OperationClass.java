@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.common;
+
+/**
+ *  Classes of userstore operations, each run in its own bulkhead so that slow operations of one class cannot
+ *  hold the threads needed by another, and dispatched by priority when threads are scarce.
+ */
+public enum OperationClass {
+
+    AUTHENTICATION("Authentication", 8, 512, 2000, 100),
+    ATTRIBUTE_READ("AttributeRead", 4, 256, 3000, 90),
+    MEMBERSHIP("Membership", 4, 256, 5000, 70),
+    LISTING("Listing", 2, 64, 30000, 30),
+    WRITE("Write", 2, 64, 10000, 40);
+
+    private final String propertyPrefix;
+    private final int defaultThreads;
+    private final int defaultQueueSize;
+    private final int defaultSlowCallThreshold;
+    private final int defaultPriority;
+
+    OperationClass(String propertyPrefix, int defaultThreads, int defaultQueueSize, int defaultSlowCallThreshold,
+                   int defaultPriority) {
+        this.propertyPrefix = propertyPrefix;
+        this.defaultThreads = defaultThreads;
+        this.defaultQueueSize = defaultQueueSize;
+        this.defaultSlowCallThreshold = defaultSlowCallThreshold;
+        this.defaultPriority = defaultPriority;
+    }
+
+    /**
+     * @return Prefix of the userstore properties of this class, e.g. ListingOperationThreads.
+     */
+    public String getPropertyPrefix() {
+        return propertyPrefix;
+    }
+
+    /**
+     * @return Number of operations of this class run at the same time, unless configured.
+     */
+    public int getDefaultThreads() {
+        return defaultThreads;
+    }
+
+    /**
+     * @return Number of operations of this class waiting for a thread, unless configured.
+     */
+    public int getDefaultQueueSize() {
+        return defaultQueueSize;
+    }
+
+    /**
+     * @return Time in milliseconds after which an operation of this class counts as slow, unless configured.
+     */
+    public int getDefaultSlowCallThreshold() {
+        return defaultSlowCallThreshold;
+    }
+
+    /**
+     * @return Priority of the operations of this class when threads are scarce, higher first, unless configured.
+     */
+    public int getDefaultPriority() {
+        return defaultPriority;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Runs userstore operations on a shared set of threads, in priority order.
+ *
+ *  Each {@link OperationClass} has a bounded FIFO queue and a limit of operations running at the same time.
+ *  When a thread is free it takes the oldest operation of the class with the highest effective priority among
+ *  the classes below their limit. The effective priority is the priority of the class plus one for every aging
+ *  interval the operation has waited, so operations of low priority classes are not starved.
+ */
+class OperationDispatcher {
+
+    private static Logger log = LoggerFactory.getLogger(OperationDispatcher.class);
+    // Weight of the latest operation in the recent queue time average.
+    private static final double QUEUE_TIME_WEIGHT = 0.1;
+
+    private final Map<OperationClass, ClassQueue> queues = new EnumMap<>(OperationClass.class);
+    private final long agingInterval;
+    private final Thread[] workers;
+    private boolean shutdown;
+
+    /**
+     *  Queue, limit and queue time statistics of an operation class.
+     */
+    private static final class ClassQueue {
+
+        private final ArrayDeque<Task> tasks = new ArrayDeque<>();
+        private final int maxActive;
+        private final int maxQueued;
+        private final int priority;
+        private int active;
+        private long dispatched;
+        private long totalQueueTime;
+        private long maxQueueTime;
+        private double recentQueueTime;
+
+        private ClassQueue(int maxActive, int maxQueued, int priority) {
+            this.maxActive = maxActive;
+            this.maxQueued = maxQueued;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     *  An operation waiting in a queue.
+     */
+    private static final class Task {
+
+        private final OperationClass operationClass;
+        private final Runnable runnable;
+        private final long enqueued;
+
+        private Task(OperationClass operationClass, Runnable runnable, long enqueued) {
+            this.operationClass = operationClass;
+            this.runnable = runnable;
+            this.enqueued = enqueued;
+        }
+    }
+
+    /**
+     * @param threads Number of threads shared by all classes.
+     * @param maxActive Maximum number of running operations of each class.
+     * @param maxQueued Maximum number of waiting operations of each class.
+     * @param priorities Priority of each class, higher first.
+     * @param agingInterval Time in milliseconds of waiting which raises the priority of an operation by one.
+     */
+    OperationDispatcher(int threads, Map<OperationClass, Integer> maxActive, Map<OperationClass, Integer> maxQueued,
+                        Map<OperationClass, Integer> priorities, long agingInterval) {
+
+        for (OperationClass operationClass : OperationClass.values()) {
+            queues.put(operationClass, new ClassQueue(Math.max(maxActive.get(operationClass), 1),
+                    Math.max(maxQueued.get(operationClass), 1), priorities.get(operationClass)));
+        }
+        this.agingInterval = Math.max(agingInterval, 1);
+        this.workers = new Thread[Math.max(threads, 1)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(this::work, "UserStoreOperation-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * @param operationClass Class of the operation.
+     * @param runnable Operation to run.
+     * @return false if the queue of the class is full or the dispatcher is shut down.
+     */
+    synchronized boolean offer(OperationClass operationClass, Runnable runnable) {
+
+        ClassQueue queue = queues.get(operationClass);
+        if (shutdown || queue.tasks.size() >= queue.maxQueued) {
+            return false;
+        }
+        queue.tasks.addLast(new Task(operationClass, runnable, System.nanoTime()));
+        notify();
+        return true;
+    }
+
+    /**
+     * @param operationClass Class of the operations.
+     * @return Number of running operations of the class.
+     */
+    synchronized int getActiveCount(OperationClass operationClass) {
+        return queues.get(operationClass).active;
+    }
+
+    /**
+     * @param operationClass Class of the operations.
+     * @return Number of waiting operations of the class.
+     */
+    synchronized int getQueuedCount(OperationClass operationClass) {
+        return queues.get(operationClass).tasks.size();
+    }
+
+    /**
+     * @param operationClass Class of the operations.
+     * @return Queue and queue time statistics of the class.
+     */
+    synchronized Map<String, Object> getStatistics(OperationClass operationClass) {
+
+        ClassQueue queue = queues.get(operationClass);
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("priority", queue.priority);
+        statistics.put("active", queue.active);
+        statistics.put("queued", queue.tasks.size());
+        statistics.put("dispatched", queue.dispatched);
+        statistics.put("averageQueueMillis", queue.dispatched == 0 ? 0 :
+                TimeUnit.NANOSECONDS.toMillis(queue.totalQueueTime / queue.dispatched));
+        statistics.put("recentQueueMillis", Math.round(queue.recentQueueTime / TimeUnit.MILLISECONDS.toNanos(1)));
+        statistics.put("maxQueueMillis", TimeUnit.NANOSECONDS.toMillis(queue.maxQueueTime));
+        return statistics;
+    }
+
+    /**
+     * Stops accepting operations. The waiting operations still run.
+     */
+    synchronized void shutdown() {
+        shutdown = true;
+        notifyAll();
+    }
+
+    /**
+     * @param timeout Time in milliseconds to wait.
+     * @return true if all operations finished within the time.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    boolean awaitTermination(long timeout) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + timeout;
+        for (Thread worker : workers) {
+            worker.join(Math.max(deadline - System.currentTimeMillis(), 1));
+            if (worker.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void work() {
+
+        Task task;
+        while ((task = take()) != null) {
+            try {
+                task.runnable.run();
+            } catch (RuntimeException e) {
+                log.error("Unexpected error in userstore operation.", e);
+            } finally {
+                synchronized (this) {
+                    queues.get(task.operationClass).active--;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The next operation to run, null once the dispatcher is shut down and no operation is waiting.
+     */
+    private synchronized Task take() {
+
+        while (true) {
+            long now = System.nanoTime();
+            ClassQueue selected = null;
+            long selectedPriority = Long.MIN_VALUE;
+            boolean waiting = false;
+            for (ClassQueue queue : queues.values()) {
+                Task head = queue.tasks.peekFirst();
+                if (head == null) {
+                    continue;
+                }
+                waiting = true;
+                if (queue.active >= queue.maxActive) {
+                    continue;
+                }
+                long priority = queue.priority + TimeUnit.NANOSECONDS.toMillis(now - head.enqueued) / agingInterval;
+                if (priority > selectedPriority) {
+                    selected = queue;
+                    selectedPriority = priority;
+                }
+            }
+            if (selected != null) {
+                Task task = selected.tasks.pollFirst();
+                long queueTime = now - task.enqueued;
+                selected.active++;
+                selected.dispatched++;
+                selected.totalQueueTime += queueTime;
+                selected.maxQueueTime = Math.max(selected.maxQueueTime, queueTime);
+                selected.recentQueueTime += QUEUE_TIME_WEIGHT * (queueTime - selected.recentQueueTime);
+                return task;
+            }
+            if (shutdown && !waiting) {
+                return null;
+            }
+            try {
+                // operations held back by their class limit are taken by the thread that ends the running one
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+}
@@ -17,6 +17,8 @@
 package org.wso2.carbon.identity.agent.userstore.manager.common;
 
 import org.wso2.carbon.identity.agent.userstore.exception.UserStoreException;
+import org.wso2.carbon.identity.agent.userstore.model.AuthenticationResult;
+import org.wso2.carbon.identity.agent.userstore.model.PagedResult;
 
 import java.util.Map;
 
@@ -41,6 +43,23 @@ public interface UserStoreManager {
      */
     boolean doAuthenticate(String userName, Object credential) throws UserStoreException;
 
+    /**
+     * @param userName Username of the user
+     * @param credential Password of the user
+     * @param claimUris Array of required attributes' names, empty if no claims are required.
+     * @return Authentication result with the claim values and role list of the user if the credentials are valid.
+     * @throws UserStoreException If an error occurs while retrieving data.
+     */
+    AuthenticationResult doAuthenticateAndGetUser(String userName, Object credential, String[] claimUris)
+            throws UserStoreException;
+
+    /**
+     * @param userName Username of the user
+     * @param credential Password of the user
+     * @return true if the credential was verified recently enough to be accepted without reaching the userstore.
+     */
+    boolean isCredentialCached(String userName, Object credential);
+
     /**
      * @param filter Username filter String.
      * @param maxItemLimit Maximum size of the username list.
@@ -49,6 +68,25 @@ public interface UserStoreManager {
      */
     String[] doListUsers(String filter, int maxItemLimit) throws UserStoreException;
 
+    /**
+     * @param filter Username filter String.
+     * @param pageSize Maximum number of usernames in the page.
+     * @param pageToken Token returned with the previous page, null to read the first page.
+     * @return The usernames in the page and the token of the next page.
+     * @throws UserStoreException If the page token is invalid or an error occurs while retrieving data.
+     */
+    PagedResult doListUsers(String filter, int pageSize, String pageToken) throws UserStoreException;
+
+    /**
+     * @param filter Username filter String.
+     * @param maxItemLimit Maximum size of the username list.
+     * @param chunkSize Maximum number of usernames in a chunk.
+     * @param handler Handler of the chunks of usernames, called while the listing is in progress.
+     * @throws UserStoreException If an error occurs while retrieving data.
+     */
+    void doListUsers(String filter, int maxItemLimit, int chunkSize, ChunkHandler handler)
+            throws UserStoreException;
+
     /**
      * @param filter Group filter string
      * @param maxItemLimit Maximum size of the return group list
@@ -57,6 +95,25 @@ public interface UserStoreManager {
      */
     String[] doGetRoleNames(String filter, int maxItemLimit) throws UserStoreException;
 
+    /**
+     * @param filter Group filter string
+     * @param pageSize Maximum number of group names in the page.
+     * @param pageToken Token returned with the previous page, null to read the first page.
+     * @return The group names in the page and the token of the next page.
+     * @throws UserStoreException If the page token is invalid or an error occurs while retrieving data.
+     */
+    PagedResult doGetRoleNames(String filter, int pageSize, String pageToken) throws UserStoreException;
+
+    /**
+     * @param filter Group filter string
+     * @param maxItemLimit Maximum size of the group list
+     * @param chunkSize Maximum number of group names in a chunk.
+     * @param handler Handler of the chunks of group names, called while the listing is in progress.
+     * @throws UserStoreException If an error occurs while retrieving data.
+     */
+    void doGetRoleNames(String filter, int maxItemLimit, int chunkSize, ChunkHandler handler)
+            throws UserStoreException;
+
     /**
      * @param userName Username of the user whose role list is required.
      * @return The array of roles of the given user.
@@ -111,4 +168,10 @@ public interface UserStoreManager {
      * @throws UserStoreException If a required attribute of the UserStoreManager is missing.
      */
     void setUserStoreProperties(Map<String, String> userStoreProperties) throws UserStoreException;
+
+    /**
+     * Releases the connections and other resources held by this UserStoreManager. Called when the
+     * instance is replaced after a configuration change.
+     */
+    void close();
 }
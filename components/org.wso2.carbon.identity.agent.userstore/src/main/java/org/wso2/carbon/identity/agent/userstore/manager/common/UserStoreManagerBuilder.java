@@ -19,28 +19,203 @@ package org.wso2.carbon.identity.agent.userstore.manager.common;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wso2.carbon.identity.agent.userstore.config.UserStoreConfiguration;
+import org.wso2.carbon.identity.agent.userstore.constant.LDAPConstants;
 import org.wso2.carbon.identity.agent.userstore.constant.XMLConfigurationConstants;
 import org.wso2.carbon.identity.agent.userstore.exception.UserStoreException;
 
+import java.util.List;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
- *  Creates an instance of the Relevant UserStoreManager.
+ *  Creates and holds the instance of the Relevant UserStoreManager. The instance is shared by all requests and
+ *  replaced when the userstore configuration changes.
  */
 public class UserStoreManagerBuilder {
     private static Logger log = LoggerFactory.getLogger(UserStoreManagerBuilder.class);
+    // Interval at which a replaced UserStoreManager is checked for operations and page tokens still using it.
+    private static final long RETIRE_CHECK_INTERVAL = 5 * 1000;
+    // Time after its page tokens expire at which a replaced UserStoreManager is closed even if it is still used.
+    private static final long MAX_RETIRE_TIME = 10 * 60 * 1000;
+    private static final Timer retireTimer = new Timer("UserStoreManagerRetireTimer", true);
+    private static final List<Instance> retiredInstances = new CopyOnWriteArrayList<>();
+    private static volatile Instance instance;
 
     /**
-     * @return An instance of the UserStoreManager mentioned in the userstore-mgt.xml file.
+     *  The UserStoreManager built from one configuration, together with its asynchronous view and the throttle of
+     *  failed logins. Replaced as a whole, so that a request never sees parts of two configurations.
+     */
+    private static final class Instance {
+
+        private final UserStoreManager userStoreManager;
+        private final AsyncUserStoreManagerAdapter asyncUserStoreManager;
+        private final AuthenticationThrottle authenticationThrottle;
+        private final long pageTokenTimeout;
+
+        private Instance(UserStoreManager userStoreManager, AsyncUserStoreManagerAdapter asyncUserStoreManager,
+                         AuthenticationThrottle authenticationThrottle, long pageTokenTimeout) {
+            this.userStoreManager = userStoreManager;
+            this.asyncUserStoreManager = asyncUserStoreManager;
+            this.authenticationThrottle = authenticationThrottle;
+            this.pageTokenTimeout = pageTokenTimeout;
+        }
+    }
+
+    /**
+     * @return The instance of the UserStoreManager mentioned in the userstore-mgt.xml file.
      * @throws UserStoreException If an error occurs while loading the class or instantiating it.
      */
     public static UserStoreManager getUserStoreManager() throws UserStoreException {
-        Map<String, String> userStoreProperties = UserStoreConfiguration.getConfiguration().getUserStoreProperties();
+        return getInstance().userStoreManager;
+    }
+
+    /**
+     * @return The asynchronous view of the UserStoreManager mentioned in the userstore-mgt.xml file.
+     * @throws UserStoreException If an error occurs while loading the class or instantiating it.
+     */
+    public static AsyncUserStoreManager getAsyncUserStoreManager() throws UserStoreException {
+        return getInstance().asyncUserStoreManager;
+    }
+
+    /**
+     * @param pageToken Page token of a paged listing, null for the first page.
+     * @return The asynchronous view of the UserStoreManager which issued the page token, so that a listing started
+     * before the configuration changed continues on the UserStoreManager holding its search. The current one if
+     * the page token is null or unknown.
+     * @throws UserStoreException If an error occurs while loading the class or instantiating it.
+     */
+    public static AsyncUserStoreManager getAsyncUserStoreManager(String pageToken) throws UserStoreException {
+        Instance current = getInstance();
+        if (pageToken != null && !current.asyncUserStoreManager.isPageTokenOf(pageToken)) {
+            for (Instance retired : retiredInstances) {
+                if (retired.asyncUserStoreManager.isPageTokenOf(pageToken)) {
+                    return retired.asyncUserStoreManager;
+                }
+            }
+        }
+        return current.asyncUserStoreManager;
+    }
+
+    /**
+     * @return The throttle of failed logins, null if it is not enabled in the userstore-mgt.xml file.
+     * @throws UserStoreException If an error occurs while loading the UserStoreManager.
+     */
+    public static AuthenticationThrottle getAuthenticationThrottle() throws UserStoreException {
+        return getInstance().authenticationThrottle;
+    }
+
+    private static Instance getInstance() throws UserStoreException {
+        Instance current = instance;
+        if (current == null) {
+            synchronized (UserStoreManagerBuilder.class) {
+                if (instance == null) {
+                    instance = createInstance(UserStoreConfiguration.getConfiguration().getUserStoreProperties(),
+                            null);
+                }
+                current = instance;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Reloads userstore-mgt.xml and replaces the UserStoreManager with one built from the new configuration.
+     * Requests that already hold the previous instance, and listings continued with its page tokens, finish on
+     * it before it is closed. The throttle of failed logins is kept, with its blocks and failure counts, unless
+     * its own properties changed. The previous instance and configuration are kept if the new configuration
+     * cannot be loaded.
+     * @throws UserStoreException If the new configuration is invalid.
+     */
+    public static synchronized void reload() throws UserStoreException {
+        Map<String, String> userStoreProperties = UserStoreConfiguration.getConfiguration().reload();
+        Instance previous = instance;
+        instance = createInstance(userStoreProperties, previous != null ? previous.authenticationThrottle : null);
+        UserStoreConfiguration.getConfiguration().apply(userStoreProperties);
+        log.info("UserStoreManager reloaded with the updated userstore configuration.");
+        if (previous != null) {
+            retire(previous);
+        }
+    }
+
+    /**
+     * Closes a replaced instance once no operation runs on it and its page tokens have expired, or at the latest
+     * {@link #MAX_RETIRE_TIME} after that.
+     * @param retired Instance replaced by a reload.
+     */
+    private static void retire(Instance retired) {
+        retiredInstances.add(retired);
+        long deadline = System.currentTimeMillis() + retired.pageTokenTimeout + MAX_RETIRE_TIME;
+        retireTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                boolean idle = retired.asyncUserStoreManager.isIdle(retired.pageTokenTimeout);
+                if (!idle && System.currentTimeMillis() < deadline) {
+                    return;
+                }
+                if (!idle) {
+                    log.warn("Closing the replaced UserStoreManager while operations are still running on it.");
+                }
+                cancel();
+                retiredInstances.remove(retired);
+                // closes the executor and then the UserStoreManager it runs on
+                retired.asyncUserStoreManager.close();
+            }
+        }, RETIRE_CHECK_INTERVAL, RETIRE_CHECK_INTERVAL);
+    }
+
+    /**
+     * Creates the UserStoreManager from the given configuration, together with its asynchronous view and the
+     * throttle of failed logins. A UserStoreManager that fails half way is closed before the error is thrown.
+     * @param userStoreProperties Properties read from the userstore-mgt.xml file.
+     * @param previousThrottle Throttle of the instance being replaced, null if there is none.
+     * @return The new instance.
+     * @throws UserStoreException If an error occurs while loading the class or instantiating it.
+     */
+    private static Instance createInstance(Map<String, String> userStoreProperties,
+                                           AuthenticationThrottle previousThrottle) throws UserStoreException {
+        UserStoreManager manager = createUserStoreManager(userStoreProperties);
+        try {
+            AuthenticationThrottle throttle = AuthenticationThrottle.create(userStoreProperties, previousThrottle);
+            return new Instance(manager, new AsyncUserStoreManagerAdapter(manager, userStoreProperties), throttle,
+                    getPageTokenTimeout(userStoreProperties));
+        } catch (RuntimeException e) {
+            manager.close();
+            throw new UserStoreException("Error while creating the UserStoreManager", e);
+        }
+    }
+
+    /**
+     * @param userStoreProperties Properties read from the userstore-mgt.xml file.
+     * @return Time in milliseconds after which an unused page token expires.
+     */
+    private static long getPageTokenTimeout(Map<String, String> userStoreProperties) {
+        try {
+            return Integer.parseInt(userStoreProperties.get(LDAPConstants.PAGED_SEARCH_TIMEOUT).trim());
+        } catch (Exception e) {
+            return LDAPConstants.DEFAULT_PAGED_SEARCH_TIMEOUT;
+        }
+    }
+
+    /**
+     * @param userStoreProperties Properties read from the userstore-mgt.xml file.
+     * @return A new instance of the UserStoreManager mentioned in the properties.
+     * @throws UserStoreException If an error occurs while loading the class or instantiating it.
+     */
+    private static UserStoreManager createUserStoreManager(Map<String, String> userStoreProperties)
+            throws UserStoreException {
         try {
             Class managerClass = UserStoreManagerBuilder.class.getClassLoader().
                     loadClass(userStoreProperties.get(XMLConfigurationConstants.LOCAL_NAME_CLASS));
             UserStoreManager userStoreManager = (UserStoreManager) managerClass.newInstance();
-            userStoreManager.setUserStoreProperties(userStoreProperties);
+            try {
+                userStoreManager.setUserStoreProperties(userStoreProperties);
+            } catch (UserStoreException | RuntimeException e) {
+                // releases the connection pool and background threads started before the failure
+                userStoreManager.close();
+                throw e;
+            }
             return userStoreManager;
         } catch (ClassNotFoundException e) {
             String message = "Error while loading the UserStoreManager";
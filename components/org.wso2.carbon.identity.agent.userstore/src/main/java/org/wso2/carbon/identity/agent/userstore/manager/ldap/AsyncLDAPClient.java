@@ -0,0 +1,426 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import com.unboundid.ldap.sdk.AsyncRequestID;
+import com.unboundid.ldap.sdk.AsyncResultListener;
+import com.unboundid.ldap.sdk.AsyncSearchResultListener;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.DereferencePolicy;
+import com.unboundid.ldap.sdk.FailoverServerSet;
+import com.unboundid.ldap.sdk.FastestConnectServerSet;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionOptions;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPResult;
+import com.unboundid.ldap.sdk.LDAPSearchException;
+import com.unboundid.ldap.sdk.LDAPURL;
+import com.unboundid.ldap.sdk.ModifyRequest;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultReference;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.ServerSet;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.agent.userstore.constant.LDAPConstants;
+import org.wso2.carbon.identity.agent.userstore.exception.UserStoreException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.naming.directory.SearchControls;
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ *  Asynchronous client of an LDAP userstore.
+ *
+ *  A few connections, bound as the connection user, are shared by all searches and modifications. Operations
+ *  are sent without waiting for the responses of earlier ones, so each connection carries many outstanding
+ *  message IDs and the results are delivered to futures by the reader thread of the connection. Binds as users
+ *  change the identity of a connection, so they run on separate authentication connections, one at a time each.
+ */
+class AsyncLDAPClient {
+
+    private static Log log = LogFactory.getLog(AsyncLDAPClient.class);
+    private static final String CONNECTION_TIME_OUT = "LDAPConnectionTimeout";
+    private static final String READ_TIME_OUT = "ReadTimeout";
+    private static final String LDAPS_SCHEME = "ldaps";
+    private static final int DEFAULT_CONNECTION_TIME_OUT = 5000;   // ms
+
+    /**
+     *  Outcome of a search.
+     */
+    static final class Result {
+
+        private final LDAPConnection connection;
+        private final List<SearchResultEntry> entries;
+        private final boolean referrals;
+        private final SearchResult searchResult;
+
+        private Result(LDAPConnection connection, List<SearchResultEntry> entries, boolean referrals,
+                       SearchResult searchResult) {
+            this.connection = connection;
+            this.entries = entries;
+            this.referrals = referrals;
+            this.searchResult = searchResult;
+        }
+
+        /**
+         * @return Connection the search was sent on.
+         */
+        LDAPConnection getConnection() {
+            return connection;
+        }
+
+        /**
+         * @return Entries returned by the search, in the order they arrived.
+         */
+        List<SearchResultEntry> getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return true if the server returned referrals instead of some of the entries.
+         */
+        boolean hasReferrals() {
+            return referrals || searchResult.getResultCode() == ResultCode.REFERRAL;
+        }
+
+        /**
+         * @return Search result done message, with the response controls.
+         */
+        SearchResult getSearchResult() {
+            return searchResult;
+        }
+    }
+
+    private final ServerSet serverSet;
+    private final String connectionName;
+    private final String connectionPassword;
+    private final LDAPConnection[] connections;
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    private final ConcurrentLinkedQueue<LDAPConnection> authenticationConnections = new ConcurrentLinkedQueue<>();
+    private final Semaphore authenticationPermits;
+    private final long authenticationMaxWait;
+    private volatile boolean closed;
+
+    /**
+     * @param userStoreProperties Properties read from the userstore-mgt.xml file.
+     * @throws UserStoreException If the connection URL is invalid.
+     */
+    AsyncLDAPClient(Map<String, String> userStoreProperties) throws UserStoreException {
+
+        String connectionURL = userStoreProperties.get(LDAPConstants.CONNECTION_URL);
+        connectionName = userStoreProperties.get(LDAPConstants.CONNECTION_NAME);
+        connectionPassword = userStoreProperties.get(LDAPConstants.CONNECTION_PASSWORD);
+        if (log.isDebugEnabled()) {
+            log.debug("Connection Name :: " + connectionName + ", Connection URL :: " + connectionURL);
+        }
+
+        // the connection URL may hold several space separated URLs, tried in order as with JNDI, or by the
+        // time taken to connect if the least loaded server is preferred
+        String[] urls = connectionURL.trim().split("\\s+");
+        String[] hosts = new String[urls.length];
+        int[] ports = new int[urls.length];
+        boolean secure = false;
+        try {
+            for (int i = 0; i < urls.length; i++) {
+                LDAPURL url = new LDAPURL(urls[i]);
+                hosts[i] = url.getHost();
+                ports[i] = url.getPort();
+                secure = LDAPS_SCHEME.equalsIgnoreCase(url.getScheme());
+            }
+        } catch (LDAPException e) {
+            throw new UserStoreException("Invalid ConnectionURL " + connectionURL, e);
+        }
+
+        LDAPConnectionOptions options = new LDAPConnectionOptions();
+        // responses are read by a reader thread per connection, so that operations do not wait for each other
+        options.setUseSynchronousMode(false);
+        options.setConnectTimeoutMillis(LDAPConnectionContext.getIntProperty(userStoreProperties,
+                CONNECTION_TIME_OUT, DEFAULT_CONNECTION_TIME_OUT));
+        String readTimeout = userStoreProperties.get(READ_TIME_OUT);
+        options.setResponseTimeoutMillis(StringUtils.isNotEmpty(readTimeout) ?
+                LDAPConnectionContext.getIntProperty(userStoreProperties, READ_TIME_OUT, 0) : 0);
+        options.setFollowReferrals(false);
+        SocketFactory socketFactory = secure ? SSLSocketFactory.getDefault() : SocketFactory.getDefault();
+        if (LDAPConstants.ENDPOINT_SELECTION_LEAST_LOADED.equalsIgnoreCase(
+                StringUtils.trim(userStoreProperties.get(LDAPConstants.ENDPOINT_SELECTION)))) {
+            serverSet = new FastestConnectServerSet(hosts, ports, socketFactory, options);
+        } else {
+            serverSet = new FailoverServerSet(hosts, ports, socketFactory, options);
+        }
+
+        connections = new LDAPConnection[Math.max(1, LDAPConnectionContext.getIntProperty(userStoreProperties,
+                LDAPConstants.ASYNC_CONNECTION_COUNT, LDAPConstants.DEFAULT_ASYNC_CONNECTION_COUNT))];
+        authenticationPermits = new Semaphore(Math.max(1, LDAPConnectionContext.getIntProperty(userStoreProperties,
+                LDAPConstants.AUTHENTICATION_POOL_MAX_SIZE, LDAPConstants.DEFAULT_AUTHENTICATION_POOL_MAX_SIZE)));
+        authenticationMaxWait = LDAPConnectionContext.getIntProperty(userStoreProperties,
+                LDAPConstants.AUTHENTICATION_POOL_MAX_WAIT, LDAPConstants.DEFAULT_CONNECTION_POOL_MAX_WAIT);
+    }
+
+    /**
+     * @return A shared connection bound as the connection user, reconnected if it was closed.
+     * @throws UserStoreException If an error occurs while connecting to the userstore.
+     */
+    LDAPConnection getConnection() throws UserStoreException {
+
+        int index = Math.floorMod(nextConnection.getAndIncrement(), connections.length);
+        LDAPConnection connection = connections[index];
+        if (connection != null && connection.isConnected()) {
+            return connection;
+        }
+        synchronized (connections) {
+            if (closed) {
+                throw new UserStoreException("Connections to the LDAP userstore are closed.");
+            }
+            connection = connections[index];
+            if (connection == null || !connection.isConnected()) {
+                if (connection != null) {
+                    connection.close();
+                }
+                connection = connect();
+                connections[index] = connection;
+            }
+            return connection;
+        }
+    }
+
+    private LDAPConnection connect() throws UserStoreException {
+
+        LDAPConnection connection = null;
+        try {
+            connection = serverSet.getConnection();
+            connection.bind(connectionName, connectionPassword);
+            return connection;
+        } catch (LDAPException e) {
+            if (connection != null) {
+                connection.close();
+            }
+            String errorMessage = "Error occurred while connecting to the LDAP userstore.";
+            if (log.isDebugEnabled()) {
+                log.debug(errorMessage, e);
+            }
+            throw new UserStoreException(errorMessage, e);
+        }
+    }
+
+    /**
+     * @param baseDN DN of the search base, not escaped for JNDI.
+     * @param filter Search filter.
+     * @param searchControls Scope, count limit, time limit and returning attributes of the search.
+     * @param controls Request controls.
+     * @return Future of the search on a shared connection.
+     */
+    CompletableFuture<Result> search(String baseDN, String filter, SearchControls searchControls,
+                                     Control... controls) {
+        try {
+            return search(getConnection(), baseDN, filter, searchControls, controls);
+        } catch (UserStoreException e) {
+            CompletableFuture<Result> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    /**
+     * @param connection Connection to send the search on, e.g. the connection of the previous page.
+     * @param baseDN DN of the search base, not escaped for JNDI.
+     * @param filter Search filter.
+     * @param searchControls Scope, count limit, time limit and returning attributes of the search.
+     * @param controls Request controls.
+     * @return Future of the search, completed with an LDAPException if the search fails. A search that
+     * exceeds the count limit completes normally with the entries read.
+     */
+    CompletableFuture<Result> search(LDAPConnection connection, String baseDN, String filter,
+                                     SearchControls searchControls, Control... controls) {
+
+        CompletableFuture<Result> future = new CompletableFuture<>();
+        List<SearchResultEntry> entries = new ArrayList<>();
+        boolean[] referrals = new boolean[1];
+        AsyncSearchResultListener listener = new AsyncSearchResultListener() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void searchEntryReturned(SearchResultEntry searchEntry) {
+                entries.add(searchEntry);
+            }
+
+            @Override
+            public void searchReferenceReturned(SearchResultReference searchReference) {
+                referrals[0] = true;
+            }
+
+            @Override
+            public void searchResultReceived(AsyncRequestID requestID, SearchResult searchResult) {
+                ResultCode resultCode = searchResult.getResultCode();
+                if (resultCode == ResultCode.SUCCESS || resultCode == ResultCode.SIZE_LIMIT_EXCEEDED
+                        || resultCode == ResultCode.REFERRAL) {
+                    future.complete(new Result(connection, entries, referrals[0], searchResult));
+                } else {
+                    future.completeExceptionally(new LDAPSearchException(searchResult));
+                }
+            }
+        };
+
+        try {
+            SearchRequest request = new SearchRequest(listener, controls, baseDN,
+                    toSearchScope(searchControls.getSearchScope()), DereferencePolicy.ALWAYS,
+                    (int) Math.min(searchControls.getCountLimit(), Integer.MAX_VALUE),
+                    (int) TimeUnit.MILLISECONDS.toSeconds(searchControls.getTimeLimit() + 999), false,
+                    Filter.create(filter), toAttributes(searchControls.getReturningAttributes()));
+            AsyncRequestID requestID = connection.asyncSearch(request);
+            // cancelling the future abandons the search on the server
+            future.whenComplete((result, throwable) -> {
+                if (future.isCancelled()) {
+                    requestID.cancel(false);
+                }
+            });
+        } catch (LDAPException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * @param request Modify request.
+     * @return Future of the modification on a shared connection, completed with an LDAPException if the
+     * modification fails.
+     */
+    CompletableFuture<LDAPResult> modify(ModifyRequest request) {
+
+        CompletableFuture<LDAPResult> future = new CompletableFuture<>();
+        AsyncResultListener listener = (requestID, ldapResult) -> {
+            if (ldapResult.getResultCode() == ResultCode.SUCCESS) {
+                future.complete(ldapResult);
+            } else {
+                future.completeExceptionally(new LDAPException(ldapResult));
+            }
+        };
+        try {
+            getConnection().asyncModify(request, listener);
+        } catch (LDAPException | UserStoreException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * @param dn DN of the user.
+     * @param credentials Password of the user.
+     * @return true if the credentials are valid, false if the server rejected them.
+     * @throws LDAPException If the bind fails for another reason.
+     * @throws UserStoreException If no authentication connection is available in time.
+     */
+    boolean bind(String dn, String credentials) throws LDAPException, UserStoreException {
+
+        try {
+            if (!authenticationPermits.tryAcquire(authenticationMaxWait, TimeUnit.MILLISECONDS)) {
+                throw new UserStoreException("Timed out after " + authenticationMaxWait
+                        + " ms waiting for an LDAP authentication connection.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UserStoreException("Interrupted while waiting for an LDAP authentication connection.", e);
+        }
+        LDAPConnection connection = null;
+        try {
+            connection = authenticationConnections.poll();
+            while (connection != null && !connection.isConnected()) {
+                connection.close();
+                connection = authenticationConnections.poll();
+            }
+            if (connection == null) {
+                connection = serverSet.getConnection();
+            }
+            try {
+                connection.bind(dn, credentials);
+                return true;
+            } catch (LDAPException e) {
+                if (e.getResultCode() == ResultCode.INVALID_CREDENTIALS) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Authentication failed " + e);
+                    }
+                    return false;
+                }
+                if (!e.getResultCode().isConnectionUsable()) {
+                    connection.close();
+                    connection = null;
+                }
+                throw e;
+            }
+        } finally {
+            if (connection != null) {
+                if (closed) {
+                    connection.close();
+                } else {
+                    authenticationConnections.offer(connection);
+                }
+            }
+            authenticationPermits.release();
+        }
+    }
+
+    /**
+     * Closes all connections. Outstanding operations complete with an error.
+     */
+    void close() {
+
+        synchronized (connections) {
+            closed = true;
+            for (int i = 0; i < connections.length; i++) {
+                if (connections[i] != null) {
+                    connections[i].close();
+                    connections[i] = null;
+                }
+            }
+        }
+        LDAPConnection connection;
+        while ((connection = authenticationConnections.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    private static SearchScope toSearchScope(int scope) {
+
+        switch (scope) {
+        case SearchControls.OBJECT_SCOPE:
+            return SearchScope.BASE;
+        case SearchControls.ONELEVEL_SCOPE:
+            return SearchScope.ONE;
+        default:
+            return SearchScope.SUB;
+        }
+    }
+
+    private static String[] toAttributes(String[] returningAttributes) {
+        // JNDI returns all user attributes when no attributes are given, as does the LDAP protocol
+        return returningAttributes != null ? returningAttributes : new String[0];
+    }
+}
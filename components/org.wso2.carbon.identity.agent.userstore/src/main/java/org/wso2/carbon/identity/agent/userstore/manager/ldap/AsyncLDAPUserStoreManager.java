@@ -0,0 +1,1751 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.ModifyRequest;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.controls.SimplePagedResultsControl;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.agent.userstore.config.ClaimConfiguration;
+import org.wso2.carbon.identity.agent.userstore.constant.CommonConstants;
+import org.wso2.carbon.identity.agent.userstore.constant.LDAPConstants;
+import org.wso2.carbon.identity.agent.userstore.exception.UserStoreException;
+import org.wso2.carbon.identity.agent.userstore.manager.common.ChunkHandler;
+import org.wso2.carbon.identity.agent.userstore.manager.common.UserStoreManager;
+import org.wso2.carbon.identity.agent.userstore.model.AuthenticationResult;
+import org.wso2.carbon.identity.agent.userstore.model.PagedResult;
+import org.wso2.carbon.identity.agent.userstore.util.UserStoreUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.naming.InvalidNameException;
+import javax.naming.directory.SearchControls;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+
+/**
+ *  User Store manager for LDAP user stores, built on the asynchronous operations of the UnboundID LDAP SDK.
+ *
+ *  Selected with the class attribute of the UserStoreManager element in userstore-config.xml. It reads the same
+ *  properties and behaves as {@link LDAPUserStoreManager}, but instead of borrowing a JNDI connection for each
+ *  search it sends the searches of all search bases, member batches and result pages at once over a few shared
+ *  connections and waits for their responses together.
+ *
+ *  Each operation still waits for its responses in the calling thread, so it holds a dispatcher thread of the
+ *  agent as long as {@link LDAPUserStoreManager} does. The gain is in the number of connections and in the
+ *  searches of one operation overlapping, not in freeing the caller.
+ */
+public class AsyncLDAPUserStoreManager implements UserStoreManager {
+
+    private static Log log = LogFactory.getLog(AsyncLDAPUserStoreManager.class);
+    // option of the attribute ids in Active Directory ranged retrieval, e.g. member;range=0-1499
+    private static final String RANGE_OPTION = ";range=";
+    private static final String SERVICE_NAME_ATTRIBUTE = "sn";
+    private static final String NO_ATTRIBUTES = "1.1";
+    private static final String ANY_OBJECT_FILTER = "(objectClass=*)";
+    private static final String BINARY_OPTION = ";binary";
+    private static final long MIN_EXPIRY_INTERVAL = 1000;   // ms
+    // attributes returned as binary values by JNDI, and hence base64 encoded as claims
+    private static final Set<String> BINARY_ATTRIBUTES = new HashSet<>(Arrays.asList("userpassword",
+            "javaserializeddata", "javaserializedobject", "jpegphoto", "audio", "thumbnailphoto", "thumbnaillogo",
+            "usercertificate", "cacertificate", "certificaterevocationlist", "authorityrevocationlist",
+            "crosscertificatepair", "photo", "personalsignature", "x500uniqueidentifier"));
+    private Map<String, String> userStoreProperties = null;
+    private LDAPOperationConfig config;
+    private AsyncLDAPClient client;
+    private String[] userSearchBases;
+    private String[] groupSearchBases;
+    private UserDNCache userDNCache;
+    private ClaimValueCache claimValueCache;
+    private CredentialCache credentialCache;
+    private final Map<String, Cursor> openSearches = new ConcurrentHashMap<>();
+    private int maxOpenSearches;
+    private long pagedSearchTimeout;
+    private ScheduledThreadPoolExecutor expiryExecutor;
+
+    /**
+     *  Maps a search result entry to the name returned to the caller.
+     */
+    private interface EntryMapper {
+
+        /**
+         * @param entry Search result entry.
+         * @return Name of the entry, null if the entry should be skipped.
+         */
+        String map(SearchResultEntry entry);
+    }
+
+    public AsyncLDAPUserStoreManager() {
+    }
+
+    public AsyncLDAPUserStoreManager(Map<String, String> userStoreProperties) throws UserStoreException {
+        setUserStoreProperties(userStoreProperties);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setUserStoreProperties(Map<String, String> userStoreProperties) throws UserStoreException {
+        this.userStoreProperties = userStoreProperties;
+        if (userStoreProperties == null) {
+            throw new UserStoreException(
+                    "User Store Properties Could not be found!");
+        }
+        // check if required configurations are in the user-mgt.xml
+        LDAPUserStoreManager.checkRequiredUserStoreConfigurations(this.userStoreProperties);
+        this.config = new LDAPOperationConfig(this.userStoreProperties);
+        this.client = new AsyncLDAPClient(this.userStoreProperties);
+        // the SDK takes DNs as they are, so the search bases are not escaped for JNDI
+        this.userSearchBases = config.getUserSearchBase().split(CommonConstants.XML_PATTERN_SEPERATOR);
+        this.groupSearchBases = config.getGroupSearchBase().split(CommonConstants.XML_PATTERN_SEPERATOR);
+        this.userDNCache = LDAPUserStoreManager.createUserDNCache(this.userStoreProperties);
+        this.claimValueCache = LDAPUserStoreManager.createClaimValueCache(this.userStoreProperties,
+                (userName, propertyNames) -> getUserPropertyValues(userName, null, propertyNames));
+        this.credentialCache = LDAPUserStoreManager.createCredentialCache(this.userStoreProperties);
+        this.maxOpenSearches = LDAPConnectionContext.getIntProperty(userStoreProperties,
+                LDAPConstants.MAX_OPEN_PAGED_SEARCHES, LDAPConstants.DEFAULT_MAX_OPEN_PAGED_SEARCHES);
+        this.pagedSearchTimeout = LDAPConnectionContext.getIntProperty(userStoreProperties,
+                LDAPConstants.PAGED_SEARCH_TIMEOUT, LDAPConstants.DEFAULT_PAGED_SEARCH_TIMEOUT);
+        // abandoned searches are expired in the background instead of waiting for the next paged request
+        this.expiryExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "AsyncLDAPPagedSearchExpiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long expiryInterval = Math.max(pagedSearchTimeout, MIN_EXPIRY_INTERVAL);
+        this.expiryExecutor.scheduleWithFixedDelay(this::expireSearches, expiryInterval, expiryInterval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean doAuthenticate(String userName, Object credential) throws UserStoreException {
+
+        boolean debug = log.isDebugEnabled();
+
+        if (userName == null || credential == null) {
+            return false;
+        }
+
+        userName = userName.trim();
+        String password = ((String) credential).trim();
+        if (userName.equals("") || password.equals("")) {
+            return false;
+        }
+
+        if (debug) {
+            log.debug("Authenticating user " + userName);
+        }
+
+        if (credentialCache != null && credentialCache.isVerified(userName, (String) credential)) {
+            if (debug) {
+                log.debug("User " + userName + " authenticated with a cached credential.");
+            }
+            return true;
+        }
+        boolean bValue;
+        try {
+            bValue = bindUser(userName, (String) credential);
+        } catch (UserStoreException e) {
+            if (isVerifiedDuringOutage(userName, (String) credential, e)) {
+                return true;
+            }
+            throw e;
+        }
+        updateCredentialCache(userName, (String) credential, bValue);
+        return bValue;
+    }
+
+    /**
+     * Binds as the user, using the DN patterns if they are configured.
+     * @param userName Username of the user.
+     * @param credential Credential of the user.
+     * @return true if the bind succeeded, false if the credential is invalid or the user does not exist.
+     * @throws UserStoreException If the LDAP userstore could not be reached.
+     */
+    private boolean bindUser(String userName, String credential) throws UserStoreException {
+
+        boolean debug = log.isDebugEnabled();
+        boolean bValue = false;
+        List<LDAPOperationConfig.Template> userDNPatterns = config.getUserDNPatterns();
+        if (!userDNPatterns.isEmpty()) {
+            String escapedUserName = config.escapeSpecialCharactersForDN(userName);
+            LDAPException bindError = null;
+            int failedBinds = 0;
+            for (LDAPOperationConfig.Template userDNPattern : userDNPatterns) {
+                String name = userDNPattern.format(escapedUserName);
+                if (debug) {
+                    log.debug("Authenticating with " + name);
+                }
+                try {
+                    bValue = client.bind(name, credential);
+                    if (bValue) {
+                        break;
+                    }
+                } catch (LDAPException e) {
+                    // do nothing if bind fails since we check for other DN patterns as well.
+                    bindError = e;
+                    failedBinds++;
+                    if (debug) {
+                        log.debug("Checking authentication with UserDN " + name + " failed " + e.getMessage(), e);
+                    }
+                }
+            }
+            if (!bValue && failedBinds == userDNPatterns.size()) {
+                // no pattern could be checked, so the credential is neither accepted nor rejected
+                throw new UserStoreException("Cannot bind user : " + userName, bindError);
+            }
+        } else {
+            String name = lookUpUserDN(userName);
+            try {
+                if (name != null) {
+                    if (debug) {
+                        log.debug("Authenticating with " + name);
+                    }
+                    bValue = client.bind(name, credential);
+                }
+                if (!bValue) {
+                    // The cached DN may be stale if the user was moved or renamed.
+                    invalidateUserDNCache(userName);
+                }
+            } catch (LDAPException e) {
+                String errorMessage = "Cannot bind user : " + userName;
+                if (debug) {
+                    log.debug(errorMessage, e);
+                }
+                throw new UserStoreException(errorMessage, e);
+            }
+        }
+        return bValue;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isCredentialCached(String userName, Object credential) {
+        return credentialCache != null && userName != null && credential instanceof String
+                && credentialCache.contains(userName.trim(), (String) credential);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public AuthenticationResult doAuthenticateAndGetUser(String userName, Object credential, String[] claimUris)
+            throws UserStoreException {
+
+        AuthenticationResult result = new AuthenticationResult();
+        if (userName == null || credential == null) {
+            return result;
+        }
+
+        userName = userName.trim();
+        String password = ((String) credential).trim();
+        if (userName.equals("") || password.equals("")) {
+            return result;
+        }
+
+        // resolve the DN once and reuse it for the bind, claims and roles
+        String userDN = null;
+        try {
+            userDN = getUserDN(userName);
+            if (userDN == null) {
+                return result;
+            }
+            if (credentialCache == null || !credentialCache.isVerified(userName, (String) credential)) {
+                boolean authenticated;
+                try {
+                    authenticated = client.bind(userDN, (String) credential);
+                } catch (LDAPException e) {
+                    String errorMessage = "Cannot bind user : " + userName;
+                    if (log.isDebugEnabled()) {
+                        log.debug(errorMessage, e);
+                    }
+                    throw new UserStoreException(errorMessage, e);
+                }
+                updateCredentialCache(userName, (String) credential, authenticated);
+                if (!authenticated) {
+                    invalidateUserDNCache(userName);
+                    return result;
+                }
+            }
+        } catch (UserStoreException e) {
+            if (!isVerifiedDuringOutage(userName, (String) credential, e)) {
+                throw e;
+            }
+        }
+        result.setAuthenticated(true);
+
+        // during an outage the claims and roles are still read, from the claim cache if it is enabled
+        if (claimUris != null && claimUris.length > 0) {
+            result.setClaims(getUserClaimValues(userName, userDN, claimUris));
+        }
+        result.setRoles(getLDAPRoleListOfUser(userDN != null ? userDN : getUserDN(userName)));
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean doCheckExistingUser(String userName) throws UserStoreException {
+
+        if (log.isDebugEnabled()) {
+            log.debug("Searching for user " + userName);
+        }
+        String userDN = getNameInSpaceForUserName(userName);
+        boolean bFound = userDN != null && userDN.length() > 0;
+        if (log.isDebugEnabled()) {
+            log.debug("User: " + userName + " exist: " + bFound);
+        }
+        return bFound;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, String> getUserClaimValues(String userName, String[] claimUris) throws UserStoreException {
+        return getUserClaimValues(userName, null, claimUris);
+    }
+
+    /**
+     * @param userName Username of the user
+     * @param userDN DN of the user if it is already resolved, null otherwise.
+     * @param claimUris Array of required attributes' names
+     * @return Map containing the name value pairs of required attributes
+     * @throws UserStoreException If an error occurs while retrieving data.
+     */
+    private Map<String, String> getUserClaimValues(String userName, String userDN, String[] claimUris)
+            throws UserStoreException {
+
+        Map<String, String> claimMap = ClaimConfiguration.getConfiguration().getClaimMap();
+        List<String> propertyNameList = new ArrayList<>();
+        if (claimUris != null) {
+            for (String claimUri : claimUris) {
+                String propertyName = claimMap.get(claimUri);
+                if (propertyName != null) {
+                    propertyNameList.add(propertyName);
+                }
+            }
+        }
+        String[] propertyNames = propertyNameList.toArray(new String[propertyNameList.size()]);
+        if (log.isDebugEnabled()) {
+            log.debug("propertyNames to retrieve for user " + userName + ": " + Arrays.toString(propertyNames));
+        }
+
+        Map<String, String> values;
+        if (claimValueCache != null && propertyNames.length > 0
+                && !propertyNames[0].equals(CommonConstants.WILD_CARD_FILTER)) {
+            List<String> missing = new ArrayList<>();
+            values = claimValueCache.get(userName, propertyNames, missing);
+            if (!missing.isEmpty()) {
+                String[] missingPropertyNames = missing.toArray(new String[missing.size()]);
+                Map<String, String> loadedValues = getUserPropertyValues(userName, userDN, missingPropertyNames);
+                claimValueCache.put(userName, userDN, missingPropertyNames, loadedValues);
+                values.putAll(loadedValues);
+            }
+        } else {
+            values = getUserPropertyValues(userName, userDN, propertyNames);
+        }
+
+        Map<String, String> claimValues = new HashMap<>();
+        for (String claim : claimUris) {
+            Optional.ofNullable(values.get(claimMap.get(claim))).ifPresent(value -> claimValues.put(claim, value));
+        }
+        return claimValues;
+    }
+
+    /**
+     * @param userName Username of the user.
+     * @param knownUserDN DN of the user if it is already resolved, null otherwise.
+     * @param propertyNames Names of the required LDAP attributes.
+     * @return Map of attribute names to values read from the LDAP userstore.
+     * @throws UserStoreException If an error occurs while retrieving data.
+     */
+    private Map<String, String> getUserPropertyValues(String userName, String knownUserDN, String[] propertyNames)
+            throws UserStoreException {
+
+        String userDN = knownUserDN;
+        if (userDN == null && !config.getUserDNPatterns().isEmpty()) {
+            LDAPOperationConfig.Template userDNPattern = config.getSingleUserDNPattern();
+            if (userDNPattern == null) {
+                userDN = getNameInSpaceForUserName(userName);
+            } else {
+                userDN = userDNPattern.format(config.escapeSpecialCharactersForDN(userName));
+            }
+        }
+
+        String searchFilter = config.getUserNameSearchFilter(config.escapeSpecialCharactersForFilter(userName));
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        if (propertyNames.length == 0 || !propertyNames[0].equals(CommonConstants.WILD_CARD_FILTER)) {
+            searchCtls.setReturningAttributes(propertyNames);
+        }
+
+        List<SearchResultEntry> entries;
+        try {
+            if (userDN != null) {
+                AsyncLDAPClient.Result result = await(client.search(userDN, searchFilter, searchCtls));
+                checkReferrals(result, "Error occurred while searching directory context for user : "
+                        + userDN + " searchFilter : " + searchFilter);
+                entries = result.getEntries();
+            } else {
+                // the user is read from the first search base that has the user
+                entries = Collections.emptyList();
+                for (CompletableFuture<AsyncLDAPClient.Result> search : searchInBases(userSearchBases,
+                        searchFilter, searchCtls)) {
+                    if (entries.isEmpty()) {
+                        AsyncLDAPClient.Result result = await(search);
+                        checkReferrals(result, "Error occurred while search user for filter : " + searchFilter);
+                        entries = result.getEntries();
+                    } else {
+                        search.cancel(false);
+                    }
+                }
+            }
+        } catch (LDAPException e) {
+            if (userDN != null && e.getResultCode() == ResultCode.NO_SUCH_OBJECT) {
+                invalidateUserDNCache(userName);
+            }
+            String errorMessage = "Error occurred while getting user property values for user : " + userName;
+            if (log.isDebugEnabled()) {
+                log.debug(errorMessage, e);
+            }
+            throw new UserStoreException(errorMessage, e);
+        }
+
+        String userAttributeSeparator = config.getAttributeSeparator();
+        Map<String, String> values = new HashMap<>();
+        for (SearchResultEntry entry : entries) {
+            for (Attribute attribute : entry.getAttributes()) {
+                StringBuilder attrBuffer = new StringBuilder();
+                boolean binary = isBinary(attribute.getName());
+                for (byte[] rawValue : attribute.getValueByteArrays()) {
+                    //if the attribute type is binary base64 encoded string will be returned
+                    String attr = binary ? new String(Base64.encodeBase64(rawValue), StandardCharsets.UTF_8)
+                            : new String(rawValue, StandardCharsets.UTF_8);
+                    if (attr.trim().length() > 0) {
+                        attrBuffer.append(attr).append(userAttributeSeparator);
+                    }
+                }
+                String value = attrBuffer.toString();
+                // Length needs to be more than userAttributeSeparator.length() for a valid attribute, since we
+                // attach userAttributeSeparator
+                if (value.trim().length() > userAttributeSeparator.length()) {
+                    values.put(attribute.getName(), value.substring(0,
+                            value.length() - userAttributeSeparator.length()));
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] doListUsers(String filter, int maxItemLimit) throws UserStoreException {
+
+        if (maxItemLimit == 0) {
+            return new String[0];
+        }
+        List<String> list = new ArrayList<>();
+        doListUsers(filter, maxItemLimit, getPageSize(0), chunk -> list.addAll(Arrays.asList(chunk)));
+        String[] userNames = list.toArray(new String[list.size()]);
+        Arrays.sort(userNames);
+        return userNames;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void doListUsers(String filter, int maxItemLimit, int chunkSize, ChunkHandler handler)
+            throws UserStoreException {
+
+        if (maxItemLimit == 0) {
+            return;
+        }
+        int givenMax = config.getMaxUserListLength();
+        if (maxItemLimit <= 0 || maxItemLimit > givenMax) {
+            maxItemLimit = givenMax;
+        }
+
+        String finalFilter = getUserListFilter(filter);
+        if (log.isDebugEnabled()) {
+            log.debug("Listing users. SearchBase: " + config.getUserSearchBase() + " Constructed-Filter: "
+                    + finalFilter);
+        }
+        searchAllInBases(userSearchBases, finalFilter, config.getUserListSearchControls(maxItemLimit),
+                getPageSize(chunkSize), getUserNameMapper(), handler);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PagedResult doListUsers(String filter, int pageSize, String pageToken) throws UserStoreException {
+
+        String finalFilter = getUserListFilter(filter);
+        if (log.isDebugEnabled()) {
+            log.debug("Listing users page. SearchBase: " + config.getUserSearchBase() + " Constructed-Filter: "
+                    + finalFilter + " Page size: " + pageSize);
+        }
+        return searchPage(userSearchBases, finalFilter, config.getUserListSearchControls(0), getPageSize(pageSize),
+                pageToken, getUserNameMapper());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] doGetRoleNames(String filter, int maxItemLimit) throws UserStoreException {
+
+        if (maxItemLimit == 0) {
+            return new String[0];
+        }
+        List<String> externalRoles = new ArrayList<>();
+        doGetRoleNames(filter, maxItemLimit, getPageSize(0), chunk -> externalRoles.addAll(Arrays.asList(chunk)));
+        return externalRoles.toArray(new String[externalRoles.size()]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void doGetRoleNames(String filter, int maxItemLimit, int chunkSize, ChunkHandler handler)
+            throws UserStoreException {
+
+        if (maxItemLimit == 0) {
+            return;
+        }
+        int givenMax = config.getMaxRoleNameListLength();
+        if (maxItemLimit < 0 || maxItemLimit > givenMax) {
+            maxItemLimit = givenMax;
+        }
+
+        String finalFilter = config.getRoleListFilter(config.escapeSpecialCharactersForFilterWithStarAsRegex(filter));
+        if (log.isDebugEnabled()) {
+            log.debug("Listing roles. SearchBase: " + config.getGroupSearchBase() + " ConstructedFilter: "
+                    + finalFilter);
+        }
+        searchAllInBases(groupSearchBases, finalFilter, config.getRoleListSearchControls(maxItemLimit),
+                getPageSize(chunkSize), getAttributeMapper(config.getGroupNameAttribute()), handler);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PagedResult doGetRoleNames(String filter, int pageSize, String pageToken) throws UserStoreException {
+
+        String finalFilter = config.getRoleListFilter(config.escapeSpecialCharactersForFilterWithStarAsRegex(filter));
+        if (log.isDebugEnabled()) {
+            log.debug("Listing roles page. SearchBase: " + config.getGroupSearchBase() + " ConstructedFilter: "
+                    + finalFilter + " Page size: " + pageSize);
+        }
+        return searchPage(groupSearchBases, finalFilter, config.getRoleListSearchControls(0), getPageSize(pageSize),
+                pageToken, getAttributeMapper(config.getGroupNameAttribute()));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] doGetExternalRoleListOfUser(String userName) throws UserStoreException {
+        return getLDAPRoleListOfUser(getUserDN(userName));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean doCheckIsUserInRole(String userName, String roleName) throws UserStoreException {
+
+        String membershipProperty = config.getMembershipAttribute();
+        if (membershipProperty == null || membershipProperty.length() < 1) {
+            throw new UserStoreException("Please set membership attribute");
+        }
+
+        String nameInSpace = getUserDN(userName);
+        if (nameInSpace == null) {
+            return false;
+        }
+        String membershipValue;
+        try {
+            membershipValue = config.escapeLdapNameForFilter(new LdapName(nameInSpace));
+        } catch (InvalidNameException e) {
+            log.error("Error while creating LDAP name from: " + nameInSpace);
+            throw new UserStoreException("Invalid naming exception for : " + nameInSpace, e);
+        }
+
+        String searchFilter = config.getMemberOfRoleFilter(membershipValue,
+                config.escapeSpecialCharactersForFilter(roleName));
+        if (log.isDebugEnabled()) {
+            log.debug("Do check whether the user : " + userName + " is in role: " + roleName);
+            log.debug("Search filter : " + searchFilter);
+        }
+        boolean isUserInRole = existsInSearchBases(groupSearchBases, searchFilter,
+                config.getRoleNameSearchControls());
+        if (log.isDebugEnabled()) {
+            log.debug("User: " + userName + (isUserInRole ? " in role: " : " NOT in role: ") + roleName);
+        }
+        return isUserInRole;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] doGetUserListOfRole(String roleName, int maxItemLimit) throws UserStoreException {
+
+        int givenMax = config.getMaxRoleMemberListLength();
+        if (maxItemLimit <= 0 || maxItemLimit > givenMax) {
+            maxItemLimit = givenMax;
+        }
+
+        String searchFilter = config.getRoleFilter(config.escapeSpecialCharactersForFilter(roleName));
+        SearchControls searchCtls = config.getMembershipSearchControls(maxItemLimit);
+
+        // the role is read from the first search base that has it, and must be unique in that search base
+        SearchResultEntry role = null;
+        for (CompletableFuture<AsyncLDAPClient.Result> search : searchInBases(groupSearchBases, searchFilter,
+                searchCtls)) {
+            if (role != null) {
+                search.cancel(false);
+                continue;
+            }
+            List<SearchResultEntry> entries;
+            try {
+                entries = await(search).getEntries();
+            } catch (LDAPException e) {
+                // ignore
+                if (log.isDebugEnabled()) {
+                    log.debug(e);
+                }
+                continue;
+            }
+            if (entries.size() > 1) {
+                throw new UserStoreException("More than one group exist with name");
+            }
+            if (!entries.isEmpty()) {
+                role = entries.get(0);
+            }
+        }
+        if (role == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("Role: " + roleName + " not found in SearchBase: " + config.getGroupSearchBase());
+            }
+            return new String[0];
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Found role: " + role.getDN());
+        }
+
+        try {
+            // read the member attribute and get DNs of the users
+            List<String> members = getMembershipValues(role, config.getMembershipAttribute(), maxItemLimit);
+            // when the GroupEntryObjectClass is posixGroup, membership attribute is memberUid, which holds the
+            // usernames of the members instead of their DNs.
+            List<String> userList = getMemberNames(members, config.isMembershipByUserName());
+            return userList.toArray(new String[userList.size()]);
+        } catch (LDAPException e) {
+            String errorMessage = "Error in reading user information in the user store";
+            if (log.isDebugEnabled()) {
+                log.debug(errorMessage, e);
+            }
+            throw new UserStoreException(errorMessage, e);
+        }
+    }
+
+    /**
+     * Reads the values of the membership attribute of a group, following Active Directory ranged retrieval
+     * until all of them or maxItemLimit values are read.
+     * @param group Entry of the group read with the membership attribute.
+     * @param membershipProperty Name of the membership attribute.
+     * @param maxItemLimit Maximum number of values required.
+     * @return Values of the membership attribute.
+     * @throws LDAPException If an error occurs while reading the next range of values.
+     * @throws UserStoreException If interrupted while reading the next range of values.
+     */
+    private List<String> getMembershipValues(SearchResultEntry group, String membershipProperty, int maxItemLimit)
+            throws LDAPException, UserStoreException {
+
+        List<String> values = new ArrayList<>();
+        String rangePrefix = membershipProperty + RANGE_OPTION;
+        SearchResultEntry entry = group;
+        while (entry != null && values.size() < maxItemLimit) {
+            int nextRangeStart = -1;
+            for (Attribute attribute : entry.getAttributes()) {
+                String attributeId = attribute.getName();
+                boolean ranged = attributeId.regionMatches(true, 0, rangePrefix, 0, rangePrefix.length());
+                if (!ranged && !membershipProperty.equals(attributeId)) {
+                    continue;
+                }
+                for (String value : attribute.getValues()) {
+                    if (values.size() >= maxItemLimit) {
+                        break;
+                    }
+                    values.add(value);
+                }
+                if (ranged) {
+                    // the last range ends with *
+                    String rangeEnd = attributeId.substring(attributeId.lastIndexOf('-') + 1);
+                    if (!"*".equals(rangeEnd)) {
+                        nextRangeStart = Integer.parseInt(rangeEnd) + 1;
+                    }
+                }
+            }
+            if (nextRangeStart < 0 || values.size() >= maxItemLimit) {
+                break;
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Reading " + rangePrefix + nextRangeStart + "-* of group " + group.getDN());
+            }
+            SearchControls rangeCtls = new SearchControls();
+            rangeCtls.setSearchScope(SearchControls.OBJECT_SCOPE);
+            rangeCtls.setReturningAttributes(new String[] { rangePrefix + nextRangeStart + "-*" });
+            List<SearchResultEntry> entries = await(client.search(group.getDN(), ANY_OBJECT_FILTER, rangeCtls))
+                    .getEntries();
+            entry = entries.isEmpty() ? null : entries.get(0);
+        }
+        return values;
+    }
+
+    /**
+     * Reads the usernames and display names of the members of a role in batches. The searches of all batches
+     * are sent at once and their results are collected in order.
+     * @param members DNs of the members, or usernames if byUserName is true.
+     * @param byUserName Whether the members are given by their usernames.
+     * @return Names of the members combined with their display names.
+     * @throws UserStoreException If an error occurs while reading the members.
+     */
+    private List<String> getMemberNames(List<String> members, boolean byUserName) throws UserStoreException {
+
+        String userNameProperty = config.getUserNameAttribute();
+        String displayNameAttribute = config.getDisplayNameAttribute();
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setTimeLimit(config.getSearchTime());
+        searchCtls.setReturningAttributes(StringUtils.isNotEmpty(displayNameAttribute) ?
+                new String[] { userNameProperty, displayNameAttribute } : new String[] { userNameProperty });
+
+        int batchSize = config.getMemberResolutionBatchSize();
+        List<CompletableFuture<List<String>>> searches = new ArrayList<>();
+        for (int i = 0; i < members.size(); i += batchSize) {
+            List<String> batch = members.subList(i, Math.min(i + batchSize, members.size()));
+            if (byUserName) {
+                StringBuilder filter = new StringBuilder("(&").append(config.getUserNameListFilter()).append("(|");
+                for (String member : batch) {
+                    filter.append("(").append(userNameProperty).append("=")
+                            .append(config.escapeSpecialCharactersForFilter(member)).append(")");
+                }
+                filter.append("))");
+                searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+                for (String searchBase : userSearchBases) {
+                    searches.add(searchMemberNames(searchBase, filter.toString(), copyOf(searchCtls)));
+                }
+                continue;
+            }
+
+            // members under the same parent are read with one search on the RDNs of the members
+            Map<String, StringBuilder> filters = new LinkedHashMap<>();
+            for (String member : batch) {
+                LdapName memberName;
+                try {
+                    memberName = new LdapName(member);
+                } catch (InvalidNameException e) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Invalid member DN " + member, e);
+                    }
+                    continue;
+                }
+                Rdn rdn = memberName.isEmpty() ? null : memberName.getRdn(memberName.size() - 1);
+                if (rdn == null || rdn.size() != 1) {
+                    // multi valued RDNs are read one by one
+                    searchCtls.setSearchScope(SearchControls.OBJECT_SCOPE);
+                    searches.add(readMemberName(member, copyOf(searchCtls)));
+                    continue;
+                }
+                String parentDN = memberName.getPrefix(memberName.size() - 1).toString();
+                filters.computeIfAbsent(parentDN, key -> new StringBuilder()).append("(").append(rdn.getType())
+                        .append("=").append(config.escapeSpecialCharactersForFilter(rdn.getValue().toString()))
+                        .append(")");
+            }
+            searchCtls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+            for (Map.Entry<String, StringBuilder> entry : filters.entrySet()) {
+                searches.add(searchMemberNames(entry.getKey(), "(|" + entry.getValue() + ")", copyOf(searchCtls)));
+            }
+        }
+
+        List<String> names = new ArrayList<>();
+        try {
+            for (CompletableFuture<List<String>> search : searches) {
+                names.addAll(await(search));
+            }
+        } catch (LDAPException e) {
+            throw new UserStoreException("Error in reading user information in the user store", e);
+        } finally {
+            for (CompletableFuture<List<String>> search : searches) {
+                search.cancel(false);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return Future of the names of the member entries matching the filter.
+     */
+    private CompletableFuture<List<String>> searchMemberNames(String searchBase, String filter,
+                                                              SearchControls searchCtls) {
+
+        if (log.isDebugEnabled()) {
+            log.debug("Searching members. SearchBase: " + searchBase + " SearchFilter: " + filter);
+        }
+        return client.search(searchBase, filter, searchCtls).handle((result, throwable) -> {
+            List<String> names = new ArrayList<>();
+            if (throwable != null) {
+                if (getResultCode(throwable) == ResultCode.NO_SUCH_OBJECT) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Search base " + searchBase + " of members does not exist", throwable);
+                    }
+                    return names;
+                }
+                throw new CompletionException(new UserStoreException(
+                        "Error in reading user information in the user store. SearchBase: " + searchBase,
+                        unwrap(throwable)));
+            }
+            if (result.hasReferrals() && !config.isIgnorePartialResult()) {
+                throw new CompletionException(new UserStoreException(
+                        "Error in reading user information in the user store. SearchBase: " + searchBase));
+            }
+            for (SearchResultEntry entry : result.getEntries()) {
+                addMemberName(entry, names);
+            }
+            return names;
+        });
+    }
+
+    /**
+     * @return Future of the name of the member entry, empty if the entry cannot be read.
+     */
+    private CompletableFuture<List<String>> readMemberName(String member, SearchControls searchCtls) {
+
+        return client.search(member, ANY_OBJECT_FILTER, searchCtls).handle((result, throwable) -> {
+            List<String> names = new ArrayList<>();
+            if (throwable != null) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Error in reading user information in the user store for the user " + member,
+                            throwable);
+                }
+                return names;
+            }
+            for (SearchResultEntry entry : result.getEntries()) {
+                addMemberName(entry, names);
+            }
+            return names;
+        });
+    }
+
+    /**
+     * Adds the username of the member, combined with the display name, to the given list.
+     */
+    private void addMemberName(SearchResultEntry entry, List<String> names) {
+
+        String userNameProperty = config.getUserNameAttribute();
+        String displayNameAttribute = config.getDisplayNameAttribute();
+        String userName = entry.getAttributeValue(userNameProperty);
+        String displayName = StringUtils.isNotEmpty(displayNameAttribute) ?
+                entry.getAttributeValue(displayNameAttribute) : null;
+
+        // Username will be null in the special case where the username attribute has changed to another
+        // and having different userNameProperty than the current user-mgt.xml
+        if (userName != null) {
+            names.add(UserStoreUtils.getCombinedName(userName, displayName));
+        } else if (log.isDebugEnabled()) {
+            log.debug("User " + entry.getDN() + " doesn't have the user name property : " + userNameProperty);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean doCheckExistingRole(String roleName) throws UserStoreException {
+
+        String searchFilter = config.getRoleFilter(config.escapeSpecialCharactersForFilter(roleName));
+        if (log.isDebugEnabled()) {
+            log.debug("Searching for role: " + roleName + " Using search filter: " + searchFilter);
+        }
+        boolean isExisting = existsInSearchBases(groupSearchBases, searchFilter, config.getRoleNameSearchControls());
+        if (log.isDebugEnabled()) {
+            log.debug("Is role: " + roleName + " exist: " + isExisting);
+        }
+        return isExisting;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void doUpdateRoleListOfUser(String userName, String[] deletedRoles, String[] newRoles)
+            throws UserStoreException {
+
+        String userNameDN = getNameInSpaceForUserName(userName);
+        if (userNameDN == null) {
+            throw new UserStoreException("The user: " + userName + " does not exist.");
+        }
+
+        if (deletedRoles != null && deletedRoles.length != 0) {
+            // perform validation for empty role occurrences before updating in LDAP
+            for (String deletedRole : deletedRoles) {
+                SearchResultEntry group = searchGroupForUpdate(deletedRole);
+                if (group != null && isOnlyUserInRole(userNameDN, group) && !config.isEmptyRolesAllowed()) {
+                    throw new UserStoreException(userName + " is the only user in the role: " + deletedRole
+                            + ". Hence can not delete user from role.");
+                }
+            }
+            // if empty role violation does not happen, continue updating the LDAP.
+            for (String deletedRole : deletedRoles) {
+                if (!doCheckExistingRole(deletedRole)) {
+                    throw new UserStoreException("The role: " + deletedRole + " does not exist.");
+                }
+                SearchResultEntry group = searchGroupForUpdate(deletedRole);
+                if (group != null) {
+                    modifyUserInRole(userNameDN, group.getDN(), ModificationType.DELETE);
+                }
+            }
+        }
+        if (newRoles != null && newRoles.length != 0) {
+            for (String newRole : newRoles) {
+                if (!doCheckExistingRole(newRole)) {
+                    throw new UserStoreException("The role: " + newRole + " does not exist.");
+                }
+                SearchResultEntry group = searchGroupForUpdate(newRole);
+                if (group == null || isUserInRole(userNameDN, group)) {
+                    throw new UserStoreException("User: " + userName + " already belongs to role: "
+                            + (group != null ? group.getDN() : newRole));
+                }
+                modifyUserInRole(userNameDN, group.getDN(), ModificationType.ADD);
+            }
+        }
+        if (claimValueCache != null) {
+            // claims may map to attributes the server derives from the memberships, such as memberOf
+            claimValueCache.invalidate(userName);
+        }
+    }
+
+    /**
+     * @param roleName Name of the role.
+     * @return Entry of the role in the group search base with the membership attribute, null if not found.
+     * @throws UserStoreException If an error occurs while searching.
+     */
+    private SearchResultEntry searchGroupForUpdate(String roleName) throws UserStoreException {
+
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setReturningAttributes(new String[] { config.getMembershipAttribute() });
+        String searchFilter = config.getRoleNameFilter(config.escapeSpecialCharactersForFilter(roleName));
+        try {
+            List<SearchResultEntry> entries = await(client.search(config.getGroupSearchBase(), searchFilter,
+                    searchCtls)).getEntries();
+            return entries.isEmpty() ? null : entries.get(0);
+        } catch (LDAPException e) {
+            String errorMessage = "Error occurred while searching in group base.";
+            if (log.isDebugEnabled()) {
+                log.debug(errorMessage, e);
+            }
+            throw new UserStoreException(errorMessage, e);
+        }
+    }
+
+    /**
+     * @return true if the user is the only member of the group.
+     */
+    private boolean isOnlyUserInRole(String userDN, SearchResultEntry group) {
+
+        for (Attribute attribute : group.getAttributes()) {
+            if (config.getMembershipAttribute().equals(attribute.getName()) && attribute.size() == 1
+                    && userDN.equals(attribute.getValue())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the user is a member of the group.
+     */
+    private boolean isUserInRole(String userDN, SearchResultEntry group) {
+
+        for (Attribute attribute : group.getAttributes()) {
+            if (config.getMembershipAttribute().equalsIgnoreCase(attribute.getName())) {
+                for (String value : attribute.getValues()) {
+                    if (userDN.equalsIgnoreCase(value)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Either delete or add user from/to group.
+     * @param userNameDN DN of the user entry.
+     * @param groupDN DN of the group entry.
+     * @param modificationType Either ADD or DELETE.
+     * @throws UserStoreException If an error occurs while updating.
+     */
+    private void modifyUserInRole(String userNameDN, String groupDN, ModificationType modificationType)
+            throws UserStoreException {
+
+        if (log.isDebugEnabled()) {
+            log.debug("Modifying role: " + groupDN + " with type: " + modificationType + " user: " + userNameDN);
+        }
+        try {
+            await(client.modify(new ModifyRequest(groupDN, new Modification(modificationType,
+                    config.getMembershipAttribute(), userNameDN))));
+        } catch (LDAPException e) {
+            String errorMessage = "Error occurred while modifying user entry: " + userNameDN
+                    + " in LDAP role: " + groupDN;
+            if (log.isDebugEnabled()) {
+                log.debug(errorMessage, e);
+            }
+            throw new UserStoreException(errorMessage);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean getConnectionStatus() throws UserStoreException {
+
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setSearchScope(SearchControls.OBJECT_SCOPE);
+        searchCtls.setReturningAttributes(new String[] { NO_ATTRIBUTES });
+        try {
+            // reading the root DSE checks that the shared connection still reaches the server
+            await(client.search("", ANY_OBJECT_FILTER, searchCtls));
+        } catch (LDAPException e) {
+            throw new UserStoreException("Error occurred while connecting to the LDAP userstore.", e);
+        }
+        return true;
+    }
+
+    /**
+     * @return Size, hit and invalidation statistics of the verified credential cache, empty if it is disabled.
+     */
+    public Map<String, Object> getCredentialCacheStatistics() {
+        if (credentialCache == null) {
+            return Collections.emptyMap();
+        }
+        return credentialCache.getStatistics();
+    }
+
+    /**
+     * @param userName Username of the user.
+     * @param credential Credential of the user.
+     * @param error Failure to reach the LDAP userstore.
+     * @return true if the credential was verified recently enough to be trusted while the userstore is down.
+     */
+    private boolean isVerifiedDuringOutage(String userName, String credential, UserStoreException error) {
+        if (credentialCache != null && credentialCache.isVerifiedDuringOutage(userName, credential)) {
+            log.warn("User " + userName + " authenticated with a cached credential as the LDAP userstore "
+                    + "could not be reached: " + error.getMessage());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Caches the credential of a successful bind, or removes the cached credential of the user after a failed one.
+     * @param userName Username of the user.
+     * @param credential Credential of the bind.
+     * @param authenticated Result of the bind.
+     */
+    private void updateCredentialCache(String userName, String credential, boolean authenticated) {
+        if (credentialCache == null) {
+            return;
+        }
+        if (authenticated) {
+            credentialCache.put(userName, credential);
+        } else {
+            credentialCache.invalidate(userName);
+        }
+    }
+
+    /**
+     * Removes the cached DN of a user, e.g. after the user entry is renamed or moved in the LDAP userstore.
+     * @param userName Username of the user.
+     */
+    public void invalidateUserDNCache(String userName) {
+        if (userDNCache != null) {
+            userDNCache.invalidate(userName);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        if (expiryExecutor != null) {
+            expiryExecutor.shutdownNow();
+        }
+        for (Iterator<Cursor> iterator = openSearches.values().iterator(); iterator.hasNext(); ) {
+            iterator.next().close();
+            iterator.remove();
+        }
+        if (claimValueCache != null) {
+            claimValueCache.close();
+        }
+        if (client != null) {
+            client.close();
+        }
+    }
+
+    /**
+     * @param userName Username of the user.
+     * @return DN of the user from the UserDNPattern if a single pattern is set, otherwise from a search.
+     * @throws UserStoreException If an error occurs while searching the LDAP userstore.
+     */
+    private String getUserDN(String userName) throws UserStoreException {
+        LDAPOperationConfig.Template userDNPattern = config.getSingleUserDNPattern();
+        if (userDNPattern != null) {
+            return userDNPattern.format(config.escapeSpecialCharactersForDN(userName));
+        }
+        return lookUpUserDN(userName);
+    }
+
+    /**
+     * @param userName Username of the user.
+     * @return DN of the user whose username is given, null if the user cannot be found or the search fails.
+     * @throws UserStoreException If interrupted while searching for the user.
+     */
+    private String getNameInSpaceForUserName(String userName) throws UserStoreException {
+        try {
+            return findUserDN(userName);
+        } catch (LDAPException e) {
+            log.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Used where a failed search must not be taken as a missing user, such as in authentication.
+     * @param userName Username of the user.
+     * @return DN of the user whose username is given, null if the user cannot be found.
+     * @throws UserStoreException If an error occurs while searching the LDAP userstore.
+     */
+    private String lookUpUserDN(String userName) throws UserStoreException {
+        try {
+            return findUserDN(userName);
+        } catch (LDAPException e) {
+            String errorMessage = "Error occurred while searching for the DN of user : " + userName;
+            if (log.isDebugEnabled()) {
+                log.debug(errorMessage, e);
+            }
+            throw new UserStoreException(errorMessage, e);
+        }
+    }
+
+    /**
+     * @param userName Username of the user.
+     * @return DN of the user whose username is given, from the DN cache if it is enabled.
+     * @throws LDAPException If an error occurs while searching the LDAP userstore.
+     * @throws UserStoreException If interrupted while searching for the user.
+     */
+    private String findUserDN(String userName) throws LDAPException, UserStoreException {
+        if (userDNCache != null) {
+            UserDNCache.Entry entry = userDNCache.get(userName);
+            if (entry != null) {
+                return entry.getUserDN();
+            }
+        }
+
+        // Lookup failures are not cached, so that the user is not reported missing until the entry expires.
+        String userDN = searchNameInSpaceForUserName(userName);
+        if (userDNCache != null) {
+            userDNCache.put(userName, userDN);
+        }
+        return userDN;
+    }
+
+    /**
+     * @param userName Username of the user.
+     * @return DN of the user whose username is given, null if the user cannot be found.
+     * @throws LDAPException If an error occurs while searching the LDAP userstore.
+     * @throws UserStoreException If interrupted while searching for the user.
+     */
+    private String searchNameInSpaceForUserName(String userName) throws LDAPException, UserStoreException {
+
+        String userSearchFilter = config.getUserNameSearchFilter(config.escapeSpecialCharactersForFilter(userName));
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setReturningAttributes(new String[] { NO_ATTRIBUTES });
+
+        List<CompletableFuture<AsyncLDAPClient.Result>> searches = new ArrayList<>();
+        List<LDAPOperationConfig.Template> userDNPatterns = config.getUserDNPatterns();
+        if (!userDNPatterns.isEmpty()) {
+            String escapedUserName = config.escapeSpecialCharactersForDN(userName);
+            for (LDAPOperationConfig.Template pattern : userDNPatterns) {
+                searches.add(client.search(pattern.format(escapedUserName), userSearchFilter, searchCtls)
+                        .exceptionally(throwable -> {
+                            if (getResultCode(throwable) == ResultCode.NO_SUCH_OBJECT) {
+                                // no entry at this DN pattern
+                                return null;
+                            }
+                            throw throwable instanceof CompletionException ? (CompletionException) throwable
+                                    : new CompletionException(throwable);
+                        }));
+            }
+        }
+        searches.addAll(searchInBases(userSearchBases, userSearchFilter, searchCtls));
+
+        // the DN patterns and then the search bases are checked in order
+        String userDN = null;
+        try {
+            for (CompletableFuture<AsyncLDAPClient.Result> search : searches) {
+                AsyncLDAPClient.Result result = await(search);
+                if (result != null && !result.getEntries().isEmpty()) {
+                    userDN = result.getEntries().get(0).getDN();
+                    break;
+                }
+            }
+        } finally {
+            for (CompletableFuture<AsyncLDAPClient.Result> search : searches) {
+                search.cancel(false);
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Name in space for " + userName + " is " + userDN);
+        }
+        return userDN;
+    }
+
+    /**
+     * @param nameInSpace DN of the user, null if the user does not exist.
+     * @return The list of roles of the given user.
+     * @throws UserStoreException If an error occurs while retrieving data.
+     */
+    private String[] getLDAPRoleListOfUser(String nameInSpace) throws UserStoreException {
+
+        if (nameInSpace == null) {
+            return new String[0];
+        }
+        String membershipValue;
+        try {
+            LdapName ldn = new LdapName(nameInSpace);
+            if (config.isMembershipByUserName()) {
+                // membership value of posixGroup is not DN of the user
+                membershipValue = ldn.getRdn(ldn.size() - 1).getValue().toString();
+            } else {
+                membershipValue = config.escapeLdapNameForFilter(ldn);
+            }
+        } catch (InvalidNameException e) {
+            log.error("Error while creating LDAP name from: " + nameInSpace);
+            throw new UserStoreException("Invalid naming exception for : " + nameInSpace, e);
+        }
+
+        String roleNameProperty = config.getGroupNameAttribute();
+        List<String> roles = new ArrayList<>();
+        // the roles of all search bases are read at once
+        for (CompletableFuture<AsyncLDAPClient.Result> search : searchInBases(groupSearchBases,
+                config.getRolesOfMemberFilter(membershipValue), config.getRoleNameSearchControls())) {
+            try {
+                for (SearchResultEntry entry : await(search).getEntries()) {
+                    String[] names = entry.getAttributeValues(roleNameProperty);
+                    if (names != null) {
+                        roles.addAll(Arrays.asList(names));
+                    }
+                }
+            } catch (LDAPException e) {
+                // ignore
+                if (log.isDebugEnabled()) {
+                    log.debug(e);
+                }
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Found roles: " + roles);
+        }
+        return roles.toArray(new String[roles.size()]);
+    }
+
+    /**
+     * @param searchBases DNs of the search bases.
+     * @param filter Search filter.
+     * @param searchCtls Search controls.
+     * @return Futures of the searches of the search bases, in the order of the search bases. All searches are
+     * sent before any of them is answered.
+     */
+    private List<CompletableFuture<AsyncLDAPClient.Result>> searchInBases(String[] searchBases, String filter,
+                                                                          SearchControls searchCtls) {
+
+        List<CompletableFuture<AsyncLDAPClient.Result>> searches = new ArrayList<>(searchBases.length);
+        for (String searchBase : searchBases) {
+            searches.add(client.search(searchBase, filter, searchCtls));
+        }
+        return searches;
+    }
+
+    /**
+     * @param searchBases DNs of the search bases.
+     * @param filter Search filter.
+     * @param searchCtls Search controls.
+     * @return true if an entry matching the filter exists in any of the search bases. Searches that fail are
+     * treated as not finding an entry.
+     * @throws UserStoreException If interrupted while searching.
+     */
+    private boolean existsInSearchBases(String[] searchBases, String filter, SearchControls searchCtls)
+            throws UserStoreException {
+
+        List<CompletableFuture<AsyncLDAPClient.Result>> searches = searchInBases(searchBases, filter, searchCtls);
+        CompletableFuture<Boolean> found = new CompletableFuture<>();
+        List<CompletableFuture<Void>> completions = new ArrayList<>();
+        for (CompletableFuture<AsyncLDAPClient.Result> search : searches) {
+            completions.add(search.handle((result, throwable) -> {
+                if (throwable != null) {
+                    if (log.isDebugEnabled()) {
+                        log.debug(throwable.getMessage(), throwable);
+                    }
+                } else if (!result.getEntries().isEmpty()) {
+                    // the first search base with a match answers, without waiting for the others
+                    found.complete(true);
+                }
+                return null;
+            }));
+        }
+        CompletableFuture.allOf(completions.toArray(new CompletableFuture[completions.size()]))
+                .thenRun(() -> found.complete(false));
+        try {
+            return await(found);
+        } catch (LDAPException e) {
+            throw new UserStoreException("Error occurred while searching " + Arrays.toString(searchBases), e);
+        } finally {
+            for (CompletableFuture<AsyncLDAPClient.Result> search : searches) {
+                search.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Reads all results of a search up to the count limit of the search controls. The first pages of all search
+     * bases are requested at once, and the next page of a search base is requested as soon as its previous page
+     * arrives. Pages are handed to the handler on the calling thread, in the order they arrive.
+     * @param searchBases DNs of the search bases.
+     * @param filter Search filter.
+     * @param searchCtls Search controls. The count limit is the maximum number of names across all search bases.
+     * @param pageSize Number of entries requested per page.
+     * @param mapper Maps the entries to names.
+     * @param handler Handler of the names.
+     * @throws UserStoreException If an error occurs while searching the LDAP userstore or handling the names.
+     */
+    private void searchAllInBases(String[] searchBases, String filter, SearchControls searchCtls, int pageSize,
+                                  EntryMapper mapper, ChunkHandler handler) throws UserStoreException {
+
+        long limit = searchCtls.getCountLimit() > 0 ? searchCtls.getCountLimit() : Integer.MAX_VALUE;
+        LDAPSearchFanOut.Sink<String> sink = new LDAPSearchFanOut.Sink<>(limit,
+                names -> handler.handle(names.toArray(new String[names.size()])));
+        SearchControls pageCtls = copyOf(searchCtls);
+        int requestedPageSize = (int) Math.min(pageSize, limit);
+
+        BlockingQueue<Page> pages = new LinkedBlockingQueue<>();
+        List<CompletableFuture<AsyncLDAPClient.Result>> searches = new ArrayList<>();
+        for (int i = 0; i < searchBases.length; i++) {
+            searches.add(requestPage(pages, i, null, searchBases[i], filter, pageCtls, requestedPageSize, null));
+        }
+        int pending = searchBases.length;
+        try {
+            while (pending > 0 && !sink.isDone() && !handler.isDone()) {
+                Page page = pages.take();
+                String searchBase = searchBases[page.searchBaseIndex];
+                String errorMessage = "Error occurred while reading paged results. SearchBase: " + searchBase
+                        + " Filter: " + filter;
+                if (page.error != null) {
+                    if (log.isDebugEnabled()) {
+                        log.debug(errorMessage, page.error);
+                    }
+                    throw new UserStoreException(errorMessage, unwrap(page.error));
+                }
+                checkReferrals(page.result, errorMessage);
+
+                List<String> names = new ArrayList<>();
+                for (SearchResultEntry entry : page.result.getEntries()) {
+                    String name = mapper.map(entry);
+                    if (name != null) {
+                        names.add(name);
+                    }
+                }
+                sink.add(names);
+
+                ASN1OctetString cookie = getCookie(page.result);
+                if (cookie != null && !sink.isDone()) {
+                    // the cookie is only valid on the connection of the previous page
+                    searches.set(page.searchBaseIndex, requestPage(pages, page.searchBaseIndex,
+                            page.result.getConnection(), searchBase, filter, pageCtls, requestedPageSize, cookie));
+                } else {
+                    pending--;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UserStoreException("Interrupted while searching " + Arrays.toString(searchBases), e);
+        } finally {
+            sink.stop();
+            for (CompletableFuture<AsyncLDAPClient.Result> search : searches) {
+                search.cancel(false);
+            }
+        }
+    }
+
+    /**
+     *  A page of a search base, or the error of reading it.
+     */
+    private static final class Page {
+
+        private final int searchBaseIndex;
+        private final AsyncLDAPClient.Result result;
+        private final Throwable error;
+
+        private Page(int searchBaseIndex, AsyncLDAPClient.Result result, Throwable error) {
+            this.searchBaseIndex = searchBaseIndex;
+            this.result = result;
+            this.error = error;
+        }
+    }
+
+    private CompletableFuture<AsyncLDAPClient.Result> requestPage(BlockingQueue<Page> pages, int searchBaseIndex,
+            LDAPConnection connection, String searchBase, String filter, SearchControls searchCtls, int pageSize,
+            ASN1OctetString cookie) {
+
+        SimplePagedResultsControl control = new SimplePagedResultsControl(pageSize, cookie, false);
+        CompletableFuture<AsyncLDAPClient.Result> search = connection == null ?
+                client.search(searchBase, filter, searchCtls, control) :
+                client.search(connection, searchBase, filter, searchCtls, control);
+        search.whenComplete((result, throwable) -> pages.add(new Page(searchBaseIndex, result, throwable)));
+        return search;
+    }
+
+    /**
+     * @param searchBases DNs of the search bases, read one after the other.
+     * @param filter Search filter.
+     * @param searchCtls Search controls. The count limit is ignored.
+     * @param pageSize Number of entries requested for the page.
+     * @param pageToken Token returned with the previous page, null to read the first page.
+     * @param mapper Maps the entries to names.
+     * @return The names in the page and the token of the next page, if there are more results.
+     * @throws UserStoreException If the page token is invalid or an error occurs while searching.
+     */
+    private PagedResult searchPage(String[] searchBases, String filter, SearchControls searchCtls, int pageSize,
+                                   String pageToken, EntryMapper mapper) throws UserStoreException {
+
+        expireSearches();
+        Cursor cursor;
+        if (pageToken == null) {
+            if (openSearches.size() >= maxOpenSearches) {
+                throw new UserStoreException("Maximum number of open paged searches " + maxOpenSearches
+                        + " reached. Retry after reading the remaining pages of the open searches.");
+            }
+            cursor = new Cursor(client.getConnection(), searchBases, filter, copyOf(searchCtls), mapper);
+        } else {
+            // Removing the cursor while the page is read keeps it from being used concurrently.
+            cursor = openSearches.remove(pageToken);
+            if (cursor == null) {
+                throw new UserStoreException("Invalid or expired page token: " + pageToken);
+            }
+        }
+
+        List<String> names = new ArrayList<>();
+        boolean completed = false;
+        try {
+            // Entries skipped by the mapper can leave the page short, so continue into the next page
+            // or search base until the page is filled.
+            while (!cursor.isDone() && names.size() < pageSize) {
+                readPage(cursor, pageSize - names.size(), names);
+            }
+            completed = true;
+        } finally {
+            if (!completed || cursor.isDone()) {
+                cursor.close();
+            }
+        }
+
+        String nextPageToken = null;
+        if (!cursor.isDone()) {
+            nextPageToken = UUID.randomUUID().toString();
+            cursor.lastAccess = System.currentTimeMillis();
+            openSearches.put(nextPageToken, cursor);
+        }
+        return new PagedResult(names.toArray(new String[names.size()]), nextPageToken);
+    }
+
+    /**
+     * Reads one page of the current search base of the cursor, and moves to the next search base when the
+     * current one has no more results.
+     */
+    private void readPage(Cursor cursor, int pageSize, List<String> names) throws UserStoreException {
+
+        String searchBase = cursor.searchBases[cursor.searchBaseIndex];
+        String errorMessage = "Error occurred while reading paged results. SearchBase: " + searchBase
+                + " Filter: " + cursor.filter;
+        AsyncLDAPClient.Result result;
+        try {
+            result = await(client.search(cursor.connection, searchBase, cursor.filter, cursor.searchControls,
+                    new SimplePagedResultsControl(pageSize, cursor.cookie, false)));
+        } catch (LDAPException e) {
+            if (log.isDebugEnabled()) {
+                log.debug(errorMessage, e);
+            }
+            throw new UserStoreException(errorMessage, e);
+        }
+        checkReferrals(result, errorMessage);
+        for (SearchResultEntry entry : result.getEntries()) {
+            String name = cursor.mapper.map(entry);
+            if (name != null) {
+                names.add(name);
+            }
+        }
+
+        cursor.cookie = getCookie(result);
+        if (cursor.cookie == null) {
+            // no more pages in this search base, or the server does not support paging
+            cursor.searchBaseIndex++;
+        }
+    }
+
+    private void expireSearches() {
+
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<String, Cursor>> iterator = openSearches.entrySet().iterator();
+             iterator.hasNext(); ) {
+            Map.Entry<String, Cursor> entry = iterator.next();
+            if (now - entry.getValue().lastAccess > pagedSearchTimeout
+                    && openSearches.remove(entry.getKey()) != null) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Paged search " + entry.getKey() + " expired.");
+                }
+                try {
+                    entry.getValue().close();
+                } catch (RuntimeException e) {
+                    // an exception would cancel the scheduled expiry
+                    log.error("Error occurred while closing expired paged search " + entry.getKey(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     *  State of a paged search across pages.
+     */
+    private final class Cursor {
+
+        private final LDAPConnection connection;
+        private final String[] searchBases;
+        private final String filter;
+        private final SearchControls searchControls;
+        private final EntryMapper mapper;
+        private int searchBaseIndex;
+        private ASN1OctetString cookie;
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        private Cursor(LDAPConnection connection, String[] searchBases, String filter, SearchControls searchControls,
+                       EntryMapper mapper) {
+            this.connection = connection;
+            this.searchBases = searchBases;
+            this.filter = filter;
+            this.searchControls = searchControls;
+            this.mapper = mapper;
+        }
+
+        private boolean isDone() {
+            return searchBaseIndex >= searchBases.length;
+        }
+
+        private void close() {
+            if (cookie != null && !isDone() && connection.isConnected()) {
+                // a page size of zero releases the server side state of the search
+                client.search(connection, searchBases[searchBaseIndex], filter, searchControls,
+                        new SimplePagedResultsControl(0, cookie, false));
+            }
+        }
+    }
+
+    /**
+     * @param filter Username filter String.
+     * @return The search filter for listing the users matching the given filter.
+     * @throws UserStoreException If the filter has an invalid character sequence.
+     */
+    private String getUserListFilter(String filter) throws UserStoreException {
+
+        if (filter.contains("?") || filter.contains("**")) {
+            throw new UserStoreException(
+                    "Invalid character sequence entered for user search. Please enter valid sequence.");
+        }
+        return config.getUserListFilter(config.escapeSpecialCharactersForFilterWithStarAsRegex(filter));
+    }
+
+    /**
+     * @return Mapper which reads the username of a user entry, skipping service principals.
+     */
+    private EntryMapper getUserNameMapper() {
+
+        String userNameProperty = config.getUserNameAttribute();
+        return entry -> {
+            // If this is a service principle, just ignore it. The entity is a service if value of surname is Service
+            String surname = entry.getAttributeValue(SERVICE_NAME_ATTRIBUTE);
+            if (LDAPConstants.SERVER_PRINCIPAL_ATTRIBUTE_VALUE.equals(surname)) {
+                return null;
+            }
+            return entry.getAttributeValue(userNameProperty);
+        };
+    }
+
+    /**
+     * @param attributeName Name of the attribute to be read.
+     * @return Mapper which reads the value of the given attribute of an entry.
+     */
+    private EntryMapper getAttributeMapper(String attributeName) {
+        return entry -> entry.getAttributeValue(attributeName);
+    }
+
+    /**
+     * @param requestedPageSize Page size requested by the caller, 0 or less to use the configured page size.
+     * @return The page size to be used, never more than the configured maximum user list size.
+     */
+    private int getPageSize(int requestedPageSize) {
+
+        int pageSize = requestedPageSize > 0 ? requestedPageSize : config.getPagedSearchPageSize();
+        return Math.min(pageSize, config.getMaxUserListLength());
+    }
+
+    /**
+     * @throws UserStoreException If the search returned referrals and partial results are not ignored.
+     */
+    private void checkReferrals(AsyncLDAPClient.Result result, String errorMessage) throws UserStoreException {
+
+        if (result.hasReferrals()) {
+            // can be due to referrals in AD.
+            if (!config.isIgnorePartialResult()) {
+                throw new UserStoreException(errorMessage + ". Referrals are not followed.");
+            }
+            if (log.isDebugEnabled()) {
+                log.debug(errorMessage + ". Ignoring referrals.");
+            }
+        }
+    }
+
+    /**
+     * @return Cookie of the next page, null if this is the last page or the server does not support paging.
+     */
+    private static ASN1OctetString getCookie(AsyncLDAPClient.Result result) throws UserStoreException {
+
+        try {
+            SimplePagedResultsControl control = SimplePagedResultsControl.get(result.getSearchResult());
+            if (control == null || control.getCookie().getValueLength() == 0) {
+                return null;
+            }
+            return control.getCookie();
+        } catch (LDAPException e) {
+            throw new UserStoreException("Error occurred while reading paged results response control.", e);
+        }
+    }
+
+    private static boolean isBinary(String attributeName) {
+        String name = attributeName.toLowerCase(Locale.ENGLISH);
+        return name.endsWith(BINARY_OPTION) || BINARY_ATTRIBUTES.contains(name);
+    }
+
+    private static SearchControls copyOf(SearchControls searchCtls) {
+        // the number of entries of a page is limited by the page size instead of the count limit
+        return new SearchControls(searchCtls.getSearchScope(), 0, searchCtls.getTimeLimit(),
+                searchCtls.getReturningAttributes(), false, true);
+    }
+
+    private static ResultCode getResultCode(Throwable throwable) {
+        Throwable cause = unwrap(throwable);
+        return cause instanceof LDAPException ? ((LDAPException) cause).getResultCode() : null;
+    }
+
+    private static Throwable unwrap(Throwable throwable) {
+        return throwable instanceof CompletionException && throwable.getCause() != null ?
+                throwable.getCause() : throwable;
+    }
+
+    /**
+     * @param future Future of an asynchronous operation.
+     * @param <T> Type of the result.
+     * @return Result of the operation.
+     * @throws LDAPException If the operation failed on the LDAP userstore.
+     * @throws UserStoreException If the operation failed otherwise, or the wait was interrupted.
+     */
+    private static <T> T await(CompletableFuture<T> future) throws LDAPException, UserStoreException {
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new UserStoreException("Interrupted while waiting for the LDAP userstore.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof LDAPException) {
+                throw (LDAPException) cause;
+            }
+            if (cause instanceof UserStoreException) {
+                throw (UserStoreException) cause;
+            }
+            throw new UserStoreException("Error occurred while waiting for the LDAP userstore.", cause);
+        }
+    }
+}
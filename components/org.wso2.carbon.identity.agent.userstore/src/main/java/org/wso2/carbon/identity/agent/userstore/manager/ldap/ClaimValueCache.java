@@ -0,0 +1,585 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.agent.userstore.exception.UserStoreException;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *  Memory bounded cache of LDAP attribute values, keyed by user and attribute name.
+ *
+ *  New users enter a small LRU window. When the window is full its oldest user is only admitted to the
+ *  main LRU region if it has been requested more often than the user it would displace, as estimated by
+ *  a count-min sketch (TinyLFU). This keeps one-off lookups from flushing frequently used users.
+ *
+ *  Values older than the refresh time are still served, and reloaded in the background if the user is
+ *  requested frequently. Values older than the time to live are treated as missing.
+ *
+ *  Off heap, the users are held in an OffHeapEntryStore of the maximum memory instead, which evicts them by
+ *  its own second chance policy, so that the heap does not grow with the number of cached users.
+ *
+ *  The users are spread over stripes by the hash of their usernames. Each stripe has its own lock, share of the
+ *  memory, window, main region, sketch and off heap store, so that concurrent lookups of different users seldom
+ *  wait for each other.
+ */
+class ClaimValueCache {
+
+    private static Log log = LogFactory.getLog(ClaimValueCache.class);
+
+    // Share of the memory given to the admission window.
+    private static final int WINDOW_PERCENTAGE = 1;
+    // Estimated frequency at which a user is refreshed ahead of expiry.
+    private static final int HOT_FREQUENCY = 3;
+    // Estimated memory of an object header with its references.
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int ATTRIBUTE_OVERHEAD = 48;
+    private static final int REFRESH_QUEUE_SIZE = 1000;
+    private static final int MAX_STRIPES = 16;
+    // Smallest memory of a stripe, so that a small cache keeps enough users per stripe for admission to work.
+    private static final long MIN_STRIPE_MEMORY = 1024 * 1024;
+
+    /**
+     *  Loads attribute values of a user from the LDAP userstore.
+     */
+    interface Loader {
+
+        /**
+         * @param userName Username of the user.
+         * @param attributeNames Names of the attributes to load.
+         * @return Map of attribute names to values. Attributes the user does not have are left out.
+         * @throws UserStoreException If an error occurs while reading the LDAP userstore.
+         */
+        Map<String, String> load(String userName, String[] attributeNames) throws UserStoreException;
+    }
+
+    private final Loader loader;
+    private final long maxMemory;
+    private final long timeToLive;
+    private final long refreshAfter;
+    private final Stripe[] stripes;
+
+    private final ThreadPoolExecutor refreshExecutor;
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder staleHitCount = new LongAdder();
+    private final LongAdder refreshCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder rejectionCount = new LongAdder();
+
+    /**
+     * @param loader Loads attribute values when refreshing a user.
+     * @param maxMemory Estimated maximum memory of the cached values in bytes.
+     * @param timeToLive Time in milliseconds after which a cached value is no longer served.
+     * @param refreshAfter Time in milliseconds after which a value of a frequently requested user is reloaded
+     *                     in the background. Refreshing is disabled if it is not less than the time to live.
+     * @param offHeap Whether the values are held outside the Java heap.
+     */
+    ClaimValueCache(Loader loader, long maxMemory, long timeToLive, long refreshAfter, boolean offHeap) {
+
+        this.loader = loader;
+        this.maxMemory = maxMemory;
+        this.timeToLive = timeToLive;
+        this.refreshAfter = refreshAfter;
+        int stripeCount = Integer.highestOneBit(
+                (int) Math.min(MAX_STRIPES, Math.max(maxMemory / MIN_STRIPE_MEMORY, 1)));
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe(maxMemory / stripeCount, offHeap);
+        }
+        this.refreshExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(REFRESH_QUEUE_SIZE), runnable -> {
+                    Thread thread = new Thread(runnable, "ClaimValueCacheRefresh");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    /**
+     * @param userName Username of the user.
+     * @param attributeNames Names of the required attributes.
+     * @param missing List to which the attributes that are not cached or have expired are added.
+     * @return Map of cached attribute names to values. Attributes cached as absent are left out.
+     */
+    Map<String, String> get(String userName, String[] attributeNames, List<String> missing) {
+
+        Map<String, String> values = new HashMap<>();
+        long now = System.currentTimeMillis();
+        boolean refresh = false;
+        Stripe stripe = stripeOf(userName);
+        synchronized (stripe) {
+            stripe.sketch.increment(userName);
+            Map<String, CachedValue> attributes = stripe.getAttributes(userName);
+            for (String attributeName : attributeNames) {
+                CachedValue cached = attributes == null ? null : attributes.get(attributeName);
+                if (cached == null || now - cached.loadedAt >= timeToLive) {
+                    missing.add(attributeName);
+                    continue;
+                }
+                if (now - cached.loadedAt >= refreshAfter) {
+                    staleHitCount.increment();
+                    refresh = true;
+                }
+                if (cached.value != null) {
+                    values.put(attributeName, cached.value);
+                }
+            }
+            if (refresh) {
+                refresh = stripe.sketch.frequency(userName) >= HOT_FREQUENCY;
+            }
+        }
+        hitCount.add(attributeNames.length - missing.size());
+        missCount.add(missing.size());
+        if (refresh) {
+            scheduleRefresh(userName);
+        }
+        return values;
+    }
+
+    /**
+     * @param userName Username of the user.
+     * @param userDN DN of the user, null if it was not resolved. Kept off heap with the values of the user.
+     * @param attributeNames Names of the attributes that were loaded.
+     * @param values Loaded values. Requested attributes that are not in the map are cached as absent.
+     */
+    void put(String userName, String userDN, String[] attributeNames, Map<String, String> values) {
+        stripeOf(userName).put(userName, userDN, attributeNames, values, System.currentTimeMillis());
+    }
+
+    /**
+     * @param userName Username of the user whose cached values are removed.
+     */
+    void invalidate(String userName) {
+        stripeOf(userName).invalidate(userName);
+    }
+
+    /**
+     * Removes all cached values.
+     */
+    void clear() {
+        for (Stripe stripe : stripes) {
+            stripe.clear();
+        }
+    }
+
+    /**
+     * Stops the background refresh of values.
+     */
+    void close() {
+        refreshExecutor.shutdownNow();
+    }
+
+    /**
+     * @return Size, memory and hit ratio statistics of the cache.
+     */
+    Map<String, Object> getStatistics() {
+
+        Map<String, Object> statistics = new HashMap<>();
+        int users = 0;
+        long memory = 0;
+        Map<String, Object> offHeapStatistics = new LinkedHashMap<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                if (stripe.store != null) {
+                    Map<String, Object> storeStatistics = stripe.store.getStatistics();
+                    users += stripe.store.size();
+                    memory += (Long) storeStatistics.get("liveBytes");
+                    for (Map.Entry<String, Object> entry : storeStatistics.entrySet()) {
+                        offHeapStatistics.merge(entry.getKey(), ((Number) entry.getValue()).longValue(),
+                                (total, value) -> (Long) total + (Long) value);
+                    }
+                } else {
+                    users += stripe.window.size() + stripe.main.size();
+                    memory += stripe.windowMemory + stripe.mainMemory;
+                }
+            }
+        }
+        statistics.put("users", users);
+        statistics.put("memory", memory);
+        if (!offHeapStatistics.isEmpty()) {
+            statistics.put("offHeap", offHeapStatistics);
+        }
+        statistics.put("stripes", stripes.length);
+        statistics.put("maxMemory", maxMemory);
+        statistics.put("hits", hitCount.sum());
+        statistics.put("misses", missCount.sum());
+        statistics.put("staleHits", staleHitCount.sum());
+        statistics.put("refreshes", refreshCount.sum());
+        statistics.put("evictions", evictionCount.sum());
+        statistics.put("rejections", rejectionCount.sum());
+        return statistics;
+    }
+
+    private Stripe stripeOf(String userName) {
+
+        int hash = userName.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+    }
+
+    private void scheduleRefresh(String userName) {
+
+        if (!refreshing.add(userName)) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    refresh(userName);
+                } finally {
+                    refreshing.remove(userName);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshing.remove(userName);
+        }
+    }
+
+    private void refresh(String userName) {
+
+        Stripe stripe = stripeOf(userName);
+        String[] attributeNames;
+        synchronized (stripe) {
+            Map<String, CachedValue> attributes = stripe.getAttributes(userName);
+            if (attributes == null) {
+                return;
+            }
+            attributeNames = attributes.keySet().toArray(new String[attributes.size()]);
+        }
+        try {
+            put(userName, null, attributeNames, loader.load(userName, attributeNames));
+            refreshCount.increment();
+        } catch (UserStoreException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Error while refreshing cached attributes of user " + userName, e);
+            }
+        }
+    }
+
+    private static int memoryOf(String value) {
+        return value == null ? 0 : value.length() * 2;
+    }
+
+    /**
+     *  Users whose usernames hash to the stripe, with their share of the memory. Guarded by its own lock.
+     */
+    private final class Stripe {
+
+        private final long maxMemory;
+        private final long windowMaxMemory;
+        private final LinkedHashMap<String, UserEntry> window = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<String, UserEntry> main = new LinkedHashMap<>(16, 0.75f, true);
+        private final FrequencySketch sketch;
+        // null if the users are held on the heap
+        private final OffHeapEntryStore store;
+        private long windowMemory;
+        private long mainMemory;
+
+        private Stripe(long maxMemory, boolean offHeap) {
+
+            this.maxMemory = maxMemory;
+            this.windowMaxMemory = Math.max(maxMemory * WINDOW_PERCENTAGE / 100, 1);
+            this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, Math.max(maxMemory / 512, 16)));
+            this.store = offHeap ? new OffHeapEntryStore(maxMemory) : null;
+        }
+
+        private synchronized void put(String userName, String userDN, String[] attributeNames,
+                                      Map<String, String> values, long now) {
+
+            if (store != null) {
+                putOffHeap(userName, userDN, attributeNames, values, now);
+                return;
+            }
+            boolean inWindow = true;
+            UserEntry entry = window.get(userName);
+            if (entry == null) {
+                entry = main.get(userName);
+                inWindow = entry == null;
+            }
+            if (entry == null) {
+                entry = new UserEntry(userName);
+                window.put(userName, entry);
+            }
+            long before = entry.memory;
+            for (String attributeName : attributeNames) {
+                entry.put(attributeName, new CachedValue(values.get(attributeName), now));
+            }
+            if (inWindow) {
+                windowMemory += entry.memory - before;
+                evictWindow();
+            } else {
+                mainMemory += entry.memory - before;
+                evictMain(null);
+            }
+        }
+
+        private synchronized void invalidate(String userName) {
+
+            if (store != null) {
+                store.remove(userName);
+                return;
+            }
+            UserEntry entry = window.remove(userName);
+            if (entry != null) {
+                windowMemory -= entry.memory;
+            }
+            entry = main.remove(userName);
+            if (entry != null) {
+                mainMemory -= entry.memory;
+            }
+        }
+
+        private synchronized void clear() {
+
+            if (store != null) {
+                store.clear();
+            }
+            window.clear();
+            main.clear();
+            windowMemory = 0;
+            mainMemory = 0;
+        }
+
+        /**
+         * Moves the oldest users out of the window, into the main region if they are requested more often than
+         * the users they would displace.
+         */
+        private void evictWindow() {
+
+            while (windowMemory > windowMaxMemory && !window.isEmpty()) {
+                Iterator<UserEntry> iterator = window.values().iterator();
+                UserEntry candidate = iterator.next();
+                iterator.remove();
+                windowMemory -= candidate.memory;
+                if (candidate.memory > maxMemory - windowMaxMemory) {
+                    rejectionCount.increment();
+                    continue;
+                }
+                if (mainMemory + candidate.memory <= maxMemory - windowMaxMemory || evictMain(candidate)) {
+                    main.put(candidate.userName, candidate);
+                    mainMemory += candidate.memory;
+                } else {
+                    rejectionCount.increment();
+                }
+            }
+        }
+
+        /**
+         * @param candidate User waiting to be admitted to the main region, or null to only enforce its limit.
+         * @return true if enough space was freed for the candidate. Nothing is evicted for a candidate that is
+         * not requested more often than every user it would displace.
+         */
+        private boolean evictMain(UserEntry candidate) {
+
+            long limit = maxMemory - windowMaxMemory;
+            long required = candidate == null ? 0 : candidate.memory;
+            if (candidate != null) {
+                int candidateFrequency = sketch.frequency(candidate.userName);
+                long freeable = 0;
+                for (UserEntry victim : main.values()) {
+                    if (mainMemory - freeable + required <= limit) {
+                        break;
+                    }
+                    if (candidateFrequency <= sketch.frequency(victim.userName)) {
+                        return false;
+                    }
+                    freeable += victim.memory;
+                }
+                if (mainMemory - freeable + required > limit) {
+                    return false;
+                }
+            }
+            Iterator<UserEntry> iterator = main.values().iterator();
+            while (mainMemory + required > limit && iterator.hasNext()) {
+                UserEntry victim = iterator.next();
+                iterator.remove();
+                mainMemory -= victim.memory;
+                evictionCount.increment();
+            }
+            return mainMemory + required <= limit;
+        }
+
+        /**
+         * @param userName Username of the user.
+         * @return Cached attributes of the user by name, null if the user is not cached. Called holding the lock.
+         */
+        private Map<String, CachedValue> getAttributes(String userName) {
+
+            if (store == null) {
+                UserEntry entry = window.get(userName);
+                if (entry == null) {
+                    entry = main.get(userName);
+                }
+                return entry == null ? null : entry.attributes;
+            }
+            OffHeapEntryStore.Entry entry = store.get(userName);
+            if (entry == null) {
+                return null;
+            }
+            Map<String, CachedValue> attributes = new HashMap<>();
+            for (Map.Entry<String, OffHeapEntryStore.Attribute> attribute : entry.getAttributes().entrySet()) {
+                attributes.put(attribute.getKey(),
+                        new CachedValue(attribute.getValue().getValue(), attribute.getValue().getLoadedAt()));
+            }
+            return attributes;
+        }
+
+        /**
+         * Merges the loaded values into the stored entry of the user, keeping its DN if the new one is not known.
+         * Called holding the lock.
+         */
+        private void putOffHeap(String userName, String userDN, String[] attributeNames, Map<String, String> values,
+                                long now) {
+
+            OffHeapEntryStore.Entry previous = store.get(userName);
+            Map<String, OffHeapEntryStore.Attribute> attributes = previous == null ? new LinkedHashMap<>()
+                    : previous.getAttributes();
+            for (String attributeName : attributeNames) {
+                attributes.put(attributeName, new OffHeapEntryStore.Attribute(values.get(attributeName), now));
+            }
+            String dn = userDN == null && previous != null ? previous.getDN() : userDN;
+            if (!store.put(new OffHeapEntryStore.Entry(userName, dn, attributes))) {
+                rejectionCount.increment();
+            }
+        }
+    }
+
+    /**
+     *  Cached attributes of a user.
+     */
+    private static class UserEntry {
+
+        private final String userName;
+        private final Map<String, CachedValue> attributes = new HashMap<>();
+        private long memory;
+
+        private UserEntry(String userName) {
+            this.userName = userName;
+            this.memory = ENTRY_OVERHEAD + memoryOf(userName);
+        }
+
+        private void put(String attributeName, CachedValue value) {
+
+            CachedValue previous = attributes.put(attributeName, value);
+            if (previous == null) {
+                memory += ATTRIBUTE_OVERHEAD + memoryOf(attributeName);
+            } else {
+                memory -= memoryOf(previous.value);
+            }
+            memory += memoryOf(value.value);
+        }
+    }
+
+    /**
+     *  Value of an attribute, null if the user does not have the attribute.
+     */
+    private static class CachedValue {
+
+        private final String value;
+        private final long loadedAt;
+
+        private CachedValue(String value, long loadedAt) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    /**
+     *  Count-min sketch of 4-bit counters estimating how often each user is requested. All counters are
+     *  halved periodically so that the estimate follows recent requests.
+     */
+    private static class FrequencySketch {
+
+        private static final long RESET_MASK = 0x7777777777777777L;
+        private static final int[] SEEDS = { 0x97cb3127, 0x0b8a5b3f, 0x5c6f0e2d, 0x2f1d9a63 };
+
+        private final long[] table;
+        private final int sampleSize;
+        private int additions;
+
+        private FrequencySketch(int expectedEntries) {
+
+            int size = Integer.highestOneBit(Math.min(Math.max(expectedEntries, 16), 1 << 24) - 1) << 1;
+            table = new long[size];
+            sampleSize = size * 10;
+        }
+
+        private int frequency(String key) {
+
+            int hash = spread(key.hashCode());
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = indexOf(hash, i);
+                int shift = counterOf(hash, i) << 2;
+                frequency = Math.min(frequency, (int) ((table[index] >>> shift) & 0xFL));
+            }
+            return frequency;
+        }
+
+        private void increment(String key) {
+
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = indexOf(hash, i);
+                int shift = counterOf(hash, i) << 2;
+                if (((table[index] >>> shift) & 0xFL) != 0xFL) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                }
+                additions /= 2;
+            }
+        }
+
+        private int indexOf(int hash, int row) {
+
+            long h = (hash + (long) SEEDS[row]) * SEEDS[row];
+            h += h >>> 32;
+            return (int) h & (table.length - 1);
+        }
+
+        private int counterOf(int hash, int row) {
+            return (spread(hash ^ SEEDS[row]) >>> 28) & 0xF;
+        }
+
+        private static int spread(int x) {
+
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+    }
+}
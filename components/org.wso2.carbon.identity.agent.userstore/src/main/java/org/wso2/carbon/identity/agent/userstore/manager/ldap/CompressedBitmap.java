@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import java.util.Arrays;
+
+/**
+ *  Compressed set of non-negative ints, in the layout of Roaring bitmaps: the ints are grouped by their upper 16
+ *  bits, and the lower 16 bits of each group are held in a sorted char array while the group has at most 4096
+ *  ints, or in a bitmap of 65536 bits once it has more. A group thus never takes more than 8KB, and a sparse
+ *  group takes 2 bytes per int.
+ *
+ *  The bitmap is not thread safe.
+ */
+final class CompressedBitmap {
+
+    // largest group held in a sorted array, which then takes as many bytes as a bitmap
+    private static final int MAX_ARRAY_SIZE = 4096;
+    private static final int BITMAP_WORDS = 1024;
+
+    /**
+     *  Receives the ints of the bitmap in order.
+     */
+    interface IntVisitor {
+
+        /**
+         * @param value An int of the bitmap.
+         * @return false to stop visiting.
+         */
+        boolean visit(int value);
+    }
+
+    // upper 16 bits of the groups, in order
+    private char[] keys = new char[0];
+    private Container[] containers = new Container[0];
+    private int groupCount;
+    private int cardinality;
+
+    /**
+     * @param value Int to be added, not negative.
+     * @return true if the int was not in the bitmap.
+     */
+    boolean add(int value) {
+        char key = (char) (value >>> 16);
+        int index = Arrays.binarySearch(keys, 0, groupCount, key);
+        if (index < 0) {
+            index = -index - 1;
+            if (groupCount == keys.length) {
+                int capacity = Math.max(4, groupCount * 2);
+                keys = Arrays.copyOf(keys, capacity);
+                containers = Arrays.copyOf(containers, capacity);
+            }
+            System.arraycopy(keys, index, keys, index + 1, groupCount - index);
+            System.arraycopy(containers, index, containers, index + 1, groupCount - index);
+            keys[index] = key;
+            containers[index] = new ArrayContainer();
+            groupCount++;
+        }
+        Container container = containers[index];
+        if (!container.add((char) value)) {
+            return false;
+        }
+        if (container instanceof ArrayContainer && container.cardinality() > MAX_ARRAY_SIZE) {
+            containers[index] = ((ArrayContainer) container).toBitmap();
+        }
+        cardinality++;
+        return true;
+    }
+
+    /**
+     * @param value Int to be removed.
+     * @return true if the int was in the bitmap.
+     */
+    boolean remove(int value) {
+        int index = Arrays.binarySearch(keys, 0, groupCount, (char) (value >>> 16));
+        if (value < 0 || index < 0 || !containers[index].remove((char) value)) {
+            return false;
+        }
+        Container container = containers[index];
+        if (container.cardinality() == 0) {
+            System.arraycopy(keys, index + 1, keys, index, groupCount - index - 1);
+            System.arraycopy(containers, index + 1, containers, index, groupCount - index - 1);
+            containers[--groupCount] = null;
+        } else if (container instanceof BitmapContainer && container.cardinality() <= MAX_ARRAY_SIZE) {
+            containers[index] = ((BitmapContainer) container).toArray();
+        }
+        cardinality--;
+        return true;
+    }
+
+    /**
+     * @param value An int.
+     * @return true if the int is in the bitmap.
+     */
+    boolean contains(int value) {
+        if (value < 0) {
+            return false;
+        }
+        int index = Arrays.binarySearch(keys, 0, groupCount, (char) (value >>> 16));
+        return index >= 0 && containers[index].contains((char) value);
+    }
+
+    /**
+     * @return Number of ints in the bitmap.
+     */
+    int cardinality() {
+        return cardinality;
+    }
+
+    /**
+     * Visits the ints of the bitmap in order, until the visitor returns false.
+     * @param visitor Receives the ints.
+     */
+    void forEach(IntVisitor visitor) {
+        for (int i = 0; i < groupCount; i++) {
+            if (!containers[i].forEach(keys[i] << 16, visitor)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return Approximate size of the bitmap in bytes.
+     */
+    long getMemory() {
+        long memory = 32 + keys.length * 2L + containers.length * 4L;
+        for (int i = 0; i < groupCount; i++) {
+            memory += containers[i].getMemory();
+        }
+        return memory;
+    }
+
+    /**
+     *  Lower 16 bits of the ints of a group.
+     */
+    private interface Container {
+
+        boolean add(char value);
+
+        boolean remove(char value);
+
+        boolean contains(char value);
+
+        int cardinality();
+
+        boolean forEach(int high, IntVisitor visitor);
+
+        long getMemory();
+    }
+
+    /**
+     *  Sorted array of the lower 16 bits of a sparse group.
+     */
+    private static final class ArrayContainer implements Container {
+
+        private char[] values = new char[4];
+        private int size;
+
+        @Override
+        public boolean add(char value) {
+            int index = Arrays.binarySearch(values, 0, size, value);
+            if (index >= 0) {
+                return false;
+            }
+            index = -index - 1;
+            if (size == values.length) {
+                values = Arrays.copyOf(values, Math.min(size * 2, MAX_ARRAY_SIZE + 1));
+            }
+            System.arraycopy(values, index, values, index + 1, size - index);
+            values[index] = value;
+            size++;
+            return true;
+        }
+
+        @Override
+        public boolean remove(char value) {
+            int index = Arrays.binarySearch(values, 0, size, value);
+            if (index < 0) {
+                return false;
+            }
+            System.arraycopy(values, index + 1, values, index, size - index - 1);
+            size--;
+            return true;
+        }
+
+        @Override
+        public boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, size, value) >= 0;
+        }
+
+        @Override
+        public int cardinality() {
+            return size;
+        }
+
+        @Override
+        public boolean forEach(int high, IntVisitor visitor) {
+            for (int i = 0; i < size; i++) {
+                if (!visitor.visit(high | values[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public long getMemory() {
+            return 32 + values.length * 2L;
+        }
+
+        private BitmapContainer toBitmap() {
+            BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < size; i++) {
+                bitmap.add(values[i]);
+            }
+            return bitmap;
+        }
+    }
+
+    /**
+     *  Bitmap of the lower 16 bits of a dense group.
+     */
+    private static final class BitmapContainer implements Container {
+
+        private final long[] words = new long[BITMAP_WORDS];
+        private int size;
+
+        @Override
+        public boolean add(char value) {
+            long word = words[value >>> 6];
+            long mask = 1L << value;
+            if ((word & mask) != 0) {
+                return false;
+            }
+            words[value >>> 6] = word | mask;
+            size++;
+            return true;
+        }
+
+        @Override
+        public boolean remove(char value) {
+            long word = words[value >>> 6];
+            long mask = 1L << value;
+            if ((word & mask) == 0) {
+                return false;
+            }
+            words[value >>> 6] = word & ~mask;
+            size--;
+            return true;
+        }
+
+        @Override
+        public boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        public int cardinality() {
+            return size;
+        }
+
+        @Override
+        public boolean forEach(int high, IntVisitor visitor) {
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    if (!visitor.visit(high | (i << 6) | Long.numberOfTrailingZeros(word))) {
+                        return false;
+                    }
+                    word &= word - 1;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public long getMemory() {
+            return 32 + BITMAP_WORDS * 8L;
+        }
+
+        private ArrayContainer toArray() {
+            ArrayContainer array = new ArrayContainer();
+            array.values = new char[Math.max(size, 4)];
+            forEach(0, value -> {
+                array.values[array.size++] = (char) value;
+                return true;
+            });
+            return array;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import org.wso2.carbon.identity.agent.userstore.util.SCryptUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *  Bounded, least recently used cache of credentials verified by a successful bind, so that repeated logins of a
+ *  user are verified without binding to the LDAP userstore.
+ *
+ *  Credentials are never kept in plain text. Each entry holds a scrypt hash of the credential with its own random
+ *  salt. An entry is trusted only until its time to live ends, and is removed as soon as a bind of the user fails.
+ *  Expired entries are kept for a further outage time to live, during which they are used only when the LDAP
+ *  userstore cannot be reached.
+ */
+class CredentialCache {
+
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+    private static final int BLOCK_SIZE = 8;
+
+    private final int maxSize;
+    private final long timeToLive;
+    private final long outageTimeToLive;
+    private final int hashCost;
+    private final SecureRandom random = new SecureRandom();
+    private final LinkedHashMap<String, Entry> entries;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder outageHitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder invalidationCount = new LongAdder();
+
+    /**
+     * @param maxSize Maximum number of cached users.
+     * @param timeToLive Time in milliseconds a verified credential is trusted.
+     * @param outageTimeToLive Further time in milliseconds a verified credential is trusted while the LDAP
+     *                         userstore cannot be reached.
+     * @param hashCost scrypt cost of hashing a credential, a power of two.
+     */
+    CredentialCache(int maxSize, long timeToLive, long outageTimeToLive, int hashCost) {
+
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+        this.outageTimeToLive = outageTimeToLive;
+        this.hashCost = hashCost;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > CredentialCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param userName Username of the user.
+     * @param credential Credential of the login.
+     * @return true if the credential was verified for the user within the time to live.
+     */
+    boolean isVerified(String userName, String credential) {
+
+        boolean verified = matches(userName, credential, 0);
+        if (verified) {
+            hitCount.increment();
+        } else {
+            missCount.increment();
+        }
+        return verified;
+    }
+
+    /**
+     * @param userName Username of the user.
+     * @param credential Credential of the login.
+     * @return true if the credential was verified for the user within the time to live and the outage time to
+     * live. Only to be used when the credential cannot be verified by the LDAP userstore.
+     */
+    boolean isVerifiedDuringOutage(String userName, String credential) {
+
+        boolean verified = outageTimeToLive > 0 && matches(userName, credential, outageTimeToLive);
+        if (verified) {
+            outageHitCount.increment();
+        }
+        return verified;
+    }
+
+    /**
+     * @param userName Username of the user.
+     * @param credential Credential of the login.
+     * @return true if the credential was verified for the user within the time to live and the outage time to
+     * live. Does not count as a hit.
+     */
+    boolean contains(String userName, String credential) {
+        return matches(userName, credential, outageTimeToLive);
+    }
+
+    /**
+     * @param userName Username of the user.
+     * @param credential Credential verified by a successful bind.
+     */
+    void put(String userName, String credential) {
+
+        if (timeToLive <= 0) {
+            return;
+        }
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        Entry entry = new Entry(salt, hash(credential, salt), System.currentTimeMillis() + timeToLive);
+        synchronized (entries) {
+            entries.put(userName, entry);
+        }
+    }
+
+    /**
+     * @param userName Username of the user whose bind failed.
+     */
+    void invalidate(String userName) {
+
+        synchronized (entries) {
+            if (entries.remove(userName) != null) {
+                invalidationCount.increment();
+            }
+        }
+    }
+
+    /**
+     * @return Size, hit and invalidation statistics of the cache.
+     */
+    Map<String, Object> getStatistics() {
+
+        Map<String, Object> statistics = new HashMap<>();
+        synchronized (entries) {
+            statistics.put("size", entries.size());
+        }
+        statistics.put("maxSize", maxSize);
+        statistics.put("hits", hitCount.sum());
+        statistics.put("outageHits", outageHitCount.sum());
+        statistics.put("misses", missCount.sum());
+        statistics.put("invalidations", invalidationCount.sum());
+        return statistics;
+    }
+
+    /**
+     * @param grace Time in milliseconds an entry is trusted after its time to live.
+     */
+    private boolean matches(String userName, String credential, long grace) {
+
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(userName);
+            if (entry != null && entry.expiry + outageTimeToLive < now) {
+                entries.remove(userName);
+                entry = null;
+            }
+        }
+        if (entry == null || entry.expiry + grace < now) {
+            return false;
+        }
+        // hashed outside the lock, as the hash is deliberately slow
+        return MessageDigest.isEqual(entry.hash, hash(credential, entry.salt));
+    }
+
+    private byte[] hash(String credential, byte[] salt) {
+
+        byte[] password = credential.getBytes(StandardCharsets.UTF_8);
+        try {
+            return SCryptUtil.scrypt(password, salt, hashCost, BLOCK_SIZE, 1, HASH_LENGTH);
+        } finally {
+            Arrays.fill(password, (byte) 0);
+        }
+    }
+
+    /**
+     *  scrypt hash of a verified credential, with its salt and expiry.
+     */
+    private static final class Entry {
+
+        private final byte[] salt;
+        private final byte[] hash;
+        private final long expiry;
+
+        private Entry(byte[] salt, byte[] hash, long expiry) {
+            this.salt = salt;
+            this.hash = hash;
+            this.expiry = expiry;
+        }
+    }
+}
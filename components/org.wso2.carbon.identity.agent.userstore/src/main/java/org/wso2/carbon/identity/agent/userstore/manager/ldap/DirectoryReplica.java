@@ -0,0 +1,733 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.agent.userstore.exception.UserStoreException;
+import org.wso2.carbon.identity.agent.userstore.util.UserStoreUtils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+
+/**
+ *  In memory replica of the users, groups and mapped user attributes of the LDAP userstore, answering the read
+ *  operations without a search.
+ *
+ *  The replica is loaded in the background when it is created. It then reads, at each sync, only the entries
+ *  whose change attribute (modifyTimestamp, or uSNChanged of Active Directory) is not older than the latest
+ *  change already read, and it is reloaded from all entries at a longer interval so that deleted entries are
+ *  dropped. While it is loading, or when the last successful sync started longer ago than the maximum
+ *  staleness, the replica is not available and the reads go to the LDAP userstore.
+ *
+ *  The change attribute is only comparable between reads of the same server, so the syncs always read the first
+ *  server of the ConnectionURL, and fail instead of failing over while that server cannot be reached.
+ *
+ *  Names are matched case insensitively and DNs by their normalized form, as the LDAP userstore does.
+ */
+class DirectoryReplica {
+
+    private static Log log = LogFactory.getLog(DirectoryReplica.class);
+
+    /**
+     *  Reads users and groups from the LDAP userstore.
+     */
+    interface Loader {
+
+        /**
+         * @param changeAttribute Attribute which changes when an entry is modified.
+         * @param changedSince Latest value of the change attribute already read. null to read all users.
+         * @param handler Receives each user read.
+         * @throws UserStoreException If an error occurs while reading the LDAP userstore.
+         */
+        void loadUsers(String changeAttribute, String changedSince, UserHandler handler) throws UserStoreException;
+
+        /**
+         * @param changeAttribute Attribute which changes when an entry is modified.
+         * @param changedSince Latest value of the change attribute already read. null to read all groups.
+         * @param handler Receives each group read.
+         * @throws UserStoreException If an error occurs while reading the LDAP userstore.
+         */
+        void loadGroups(String changeAttribute, String changedSince, NestedGroupGraph.GroupHandler handler)
+                throws UserStoreException;
+    }
+
+    /**
+     *  Receives the users read by the Loader.
+     */
+    interface UserHandler {
+
+        /**
+         * @param userDN DN of the user.
+         * @param userName Username of the user.
+         * @param displayName Display name of the user, null if not configured or not set.
+         * @param listed false if the user is a service principal, which is not listed.
+         * @param attributes Values of the mapped attributes of the user.
+         * @param changeStamp Value of the change attribute of the user, null if not known.
+         */
+        void user(String userDN, String userName, String displayName, boolean listed, Map<String, String> attributes,
+                  String changeStamp);
+    }
+
+    private final Loader loader;
+    private final String changeAttribute;
+    private final boolean membershipByUserName;
+    private final boolean nestedGroups;
+    private final long fullSyncInterval;
+    private final long maxStaleness;
+    private final ScheduledThreadPoolExecutor syncExecutor;
+    private volatile State state;
+    private volatile long lastSync;
+    private volatile long lastFullSync;
+    private volatile long lastSyncDuration;
+    private volatile int lastSyncChanges;
+    private volatile String lastSyncError;
+    private final LongAdder syncCount = new LongAdder();
+    private final LongAdder failedSyncCount = new LongAdder();
+    private final LongAdder readCount = new LongAdder();
+    private final LongAdder fallbackCount = new LongAdder();
+
+    /**
+     * @param loader Reads the users and groups at each sync.
+     * @param changeAttribute Attribute which changes when an entry is modified.
+     * @param membershipByUserName Whether the membership attribute holds usernames instead of DNs.
+     * @param nestedGroups Whether the roles of a user include the groups its groups are nested in.
+     * @param syncInterval Time in milliseconds between reading the changed entries.
+     * @param fullSyncInterval Time in milliseconds between reading all entries.
+     * @param maxStaleness Time in milliseconds since the start of the last successful sync after which the
+     *                     replica is not used.
+     */
+    DirectoryReplica(Loader loader, String changeAttribute, boolean membershipByUserName, boolean nestedGroups,
+                     long syncInterval, long fullSyncInterval, long maxStaleness) {
+
+        this.loader = loader;
+        this.changeAttribute = changeAttribute;
+        this.membershipByUserName = membershipByUserName;
+        this.nestedGroups = nestedGroups;
+        this.fullSyncInterval = fullSyncInterval;
+        this.maxStaleness = maxStaleness;
+        this.syncExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "DirectoryReplicaSync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.syncExecutor.scheduleWithFixedDelay(this::sync, 0, syncInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true if the replica is loaded and synced within the maximum staleness, false if the reads should
+     * go to the LDAP userstore.
+     */
+    boolean isAvailable() {
+        if (state != null && System.currentTimeMillis() - lastSync <= maxStaleness) {
+            readCount.increment();
+            return true;
+        }
+        fallbackCount.increment();
+        return false;
+    }
+
+    /**
+     * @param userName Username of the user.
+     * @return true if the user exists.
+     */
+    boolean isExistingUser(String userName) {
+        State current = state;
+        current.lock.readLock().lock();
+        try {
+            return current.users.containsKey(toKey(userName));
+        } finally {
+            current.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param roleName Name of the role.
+     * @return true if the role exists.
+     */
+    boolean isExistingRole(String roleName) {
+        State current = state;
+        current.lock.readLock().lock();
+        try {
+            return current.groups.containsKey(toKey(roleName));
+        } finally {
+            current.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param userName Username of the user.
+     * @param propertyNames Names of the required attributes.
+     * @return Values of the required attributes the user has, empty if the user does not exist.
+     */
+    Map<String, String> getUserAttributes(String userName, String[] propertyNames) {
+
+        Map<String, String> values = new HashMap<>();
+        State current = state;
+        current.lock.readLock().lock();
+        try {
+            User user = current.users.get(toKey(userName));
+            if (user == null) {
+                return values;
+            }
+            for (Map.Entry<String, String> attribute : user.attributes.entrySet()) {
+                for (String propertyName : propertyNames) {
+                    if (attribute.getKey().equalsIgnoreCase(propertyName)) {
+                        values.put(attribute.getKey(), attribute.getValue());
+                        break;
+                    }
+                }
+            }
+        } finally {
+            current.lock.readLock().unlock();
+        }
+        return values;
+    }
+
+    /**
+     * @param filter Filter of the listed name, with * matching any characters.
+     * @param byDisplayName Whether the filter matches the display names instead of the usernames.
+     * @param after Username after which the listing starts, null to start from the first user.
+     * @param maxItemLimit Maximum number of usernames.
+     * @return Usernames of the listed users matching the filter, in the order of their usernames.
+     */
+    List<String> listUsers(String filter, boolean byDisplayName, String after, int maxItemLimit) {
+
+        NameFilter nameFilter = new NameFilter(filter);
+        // the usernames matching the filter are in the range of its prefix, the display names in any order
+        String prefix = byDisplayName ? "" : nameFilter.getPrefix();
+        List<String> names = new ArrayList<>();
+        State current = state;
+        current.lock.readLock().lock();
+        try {
+            String[] keys = current.getSortedUserKeys();
+            int start = Math.max(lowerBound(keys, prefix), after == null ? 0 : insertionPoint(keys, toKey(after)));
+            for (int i = start; i < keys.length && keys[i].startsWith(prefix) && names.size() < maxItemLimit; i++) {
+                User user = current.users.get(keys[i]);
+                String matched = byDisplayName ? user.displayName : keys[i];
+                if (user.listed && matched != null && nameFilter.matches(toKey(matched))) {
+                    names.add(user.name);
+                }
+            }
+        } finally {
+            current.lock.readLock().unlock();
+        }
+        return names;
+    }
+
+    /**
+     * @param filter Filter of the role names, with * matching any characters.
+     * @param after Role name after which the listing starts, null to start from the first role.
+     * @param maxItemLimit Maximum number of role names.
+     * @return Names of the roles matching the filter, in order.
+     */
+    List<String> listRoles(String filter, String after, int maxItemLimit) {
+
+        NameFilter nameFilter = new NameFilter(filter);
+        String prefix = nameFilter.getPrefix();
+        List<String> names = new ArrayList<>();
+        State current = state;
+        current.lock.readLock().lock();
+        try {
+            String[] keys = current.getSortedGroupKeys();
+            int start = Math.max(lowerBound(keys, prefix), after == null ? 0 : insertionPoint(keys, toKey(after)));
+            for (int i = start; i < keys.length && keys[i].startsWith(prefix) && names.size() < maxItemLimit; i++) {
+                if (nameFilter.matches(keys[i])) {
+                    names.add(current.groups.get(keys[i]).name);
+                }
+            }
+        } finally {
+            current.lock.readLock().unlock();
+        }
+        return names;
+    }
+
+    /**
+     * @param userName Username of the user.
+     * @return Names of the roles of the user, including the roles its roles are nested in if nested groups are
+     * resolved.
+     */
+    List<String> getRolesOfUser(String userName) {
+
+        State current = state;
+        current.lock.readLock().lock();
+        try {
+            User user = current.users.get(toKey(userName));
+            if (user == null) {
+                return Collections.emptyList();
+            }
+            Set<String> groupKeys = new LinkedHashSet<>();
+            Deque<String> pending = new ArrayDeque<>();
+            pending.add(membershipByUserName ? toKey(user.name) : normalizeDN(user.dn));
+            while (!pending.isEmpty()) {
+                for (String groupKey : current.groupsByMember.getOrDefault(pending.poll(),
+                        Collections.emptySet())) {
+                    // a group already added closes a cycle, or was reached through another path
+                    if (groupKeys.add(groupKey) && nestedGroups) {
+                        pending.add(current.groups.get(groupKey).normalizedDN);
+                    }
+                }
+            }
+            List<String> names = new ArrayList<>(groupKeys.size());
+            for (String groupKey : groupKeys) {
+                names.add(current.groups.get(groupKey).name);
+            }
+            return names;
+        } finally {
+            current.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param roleName Name of the role.
+     * @param maxItemLimit Maximum number of usernames.
+     * @return Usernames of the direct members of the role which are users of the userstore, combined with their
+     * display names as the LDAP userstore returns them.
+     */
+    List<String> getUsersOfRole(String roleName, int maxItemLimit) {
+
+        List<String> names = new ArrayList<>();
+        State current = state;
+        current.lock.readLock().lock();
+        try {
+            Group group = current.groups.get(toKey(roleName));
+            if (group == null) {
+                return names;
+            }
+            for (String member : group.members) {
+                if (names.size() >= maxItemLimit) {
+                    break;
+                }
+                User user = current.users.get(membershipByUserName ? member : current.userKeysByDN.get(member));
+                if (user != null) {
+                    names.add(UserStoreUtils.getCombinedName(user.name, user.displayName));
+                }
+            }
+        } finally {
+            current.lock.readLock().unlock();
+        }
+        return names;
+    }
+
+    /**
+     * Applies a role update made by the agent, so that it is read back before the next sync.
+     * @param userName Username of the user.
+     * @param deletedRoles Roles the user was removed from.
+     * @param newRoles Roles the user was added to.
+     */
+    void updateRolesOfUser(String userName, String[] deletedRoles, String[] newRoles) {
+
+        State current = state;
+        if (current == null) {
+            return;
+        }
+        current.lock.writeLock().lock();
+        try {
+            User user = current.users.get(toKey(userName));
+            if (user == null) {
+                return;
+            }
+            String member = membershipByUserName ? toKey(user.name) : normalizeDN(user.dn);
+            for (String roleName : deletedRoles == null ? new String[0] : deletedRoles) {
+                Group group = current.groups.get(toKey(roleName));
+                if (group != null && group.members.remove(member)) {
+                    current.removeMember(member, toKey(roleName));
+                }
+            }
+            for (String roleName : newRoles == null ? new String[0] : newRoles) {
+                Group group = current.groups.get(toKey(roleName));
+                if (group != null && group.members.add(member)) {
+                    current.groupsByMember.computeIfAbsent(member, key -> new HashSet<>()).add(toKey(roleName));
+                }
+            }
+        } finally {
+            current.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return Size, staleness and sync statistics of the replica.
+     */
+    Map<String, Object> getStatistics() {
+
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        State current = state;
+        long now = System.currentTimeMillis();
+        String status = current == null ? "loading" : now - lastSync <= maxStaleness ? "current" : "stale";
+        statistics.put("status", status);
+        if (current != null) {
+            current.lock.readLock().lock();
+            try {
+                statistics.put("users", current.users.size());
+                statistics.put("groups", current.groups.size());
+            } finally {
+                current.lock.readLock().unlock();
+            }
+        }
+        // changes made in the LDAP userstore before the last successful sync started are in the replica
+        statistics.put("syncLagMillis", current == null ? -1 : now - lastSync);
+        statistics.put("maxStalenessMillis", maxStaleness);
+        statistics.put("lastSync", lastSync);
+        statistics.put("lastFullSync", lastFullSync);
+        statistics.put("lastSyncDurationMillis", lastSyncDuration);
+        statistics.put("lastSyncChanges", lastSyncChanges);
+        statistics.put("syncs", syncCount.sum());
+        statistics.put("failedSyncs", failedSyncCount.sum());
+        if (lastSyncError != null) {
+            statistics.put("lastSyncError", lastSyncError);
+        }
+        statistics.put("reads", readCount.sum());
+        statistics.put("fallbacks", fallbackCount.sum());
+        return statistics;
+    }
+
+    void close() {
+        syncExecutor.shutdownNow();
+    }
+
+    private void sync() {
+
+        long start = System.currentTimeMillis();
+        boolean full = state == null || start - lastFullSync >= fullSyncInterval;
+        try {
+            int changes = full ? fullSync() : incrementalSync();
+            lastSync = start;
+            if (full) {
+                lastFullSync = start;
+            }
+            lastSyncDuration = System.currentTimeMillis() - start;
+            lastSyncChanges = changes;
+            lastSyncError = null;
+            syncCount.increment();
+            if (log.isDebugEnabled()) {
+                log.debug((full ? "Loaded " : "Synced ") + changes + " entries of the directory replica in "
+                        + lastSyncDuration + "ms.");
+            }
+        } catch (UserStoreException | RuntimeException e) {
+            failedSyncCount.increment();
+            lastSyncError = e.getMessage();
+            log.error("Error while syncing the directory replica. The replica is used until it is older than "
+                    + maxStaleness + "ms.", e);
+        }
+    }
+
+    /**
+     * Reads all entries into a new state, which replaces the current one once complete.
+     * @return Number of entries read.
+     * @throws UserStoreException If an error occurs while reading the entries.
+     */
+    private int fullSync() throws UserStoreException {
+
+        State loaded = new State();
+        int[] count = { 0 };
+        loader.loadUsers(changeAttribute, null, (userDN, userName, displayName, listed, attributes, changeStamp) -> {
+            loaded.putUser(new User(userDN, userName, displayName, listed, attributes));
+            loaded.userChangeStamp = latest(loaded.userChangeStamp, changeStamp);
+            count[0]++;
+        });
+        loader.loadGroups(changeAttribute, null, (groupDN, groupName, memberDNs, changeStamp) -> {
+            loaded.putGroup(groupDN, groupName, toMembers(memberDNs));
+            loaded.groupChangeStamp = latest(loaded.groupChangeStamp, changeStamp);
+            count[0]++;
+        });
+        state = loaded;
+        return count[0];
+    }
+
+    /**
+     * Reads the entries changed since the previous sync and applies them to the current state.
+     * @return Number of entries read.
+     * @throws UserStoreException If an error occurs while reading the entries.
+     */
+    private int incrementalSync() throws UserStoreException {
+
+        State current = state;
+        List<User> users = new ArrayList<>();
+        String[] userChangeStamp = { current.userChangeStamp };
+        loader.loadUsers(changeAttribute, current.userChangeStamp,
+                (userDN, userName, displayName, listed, attributes, changeStamp) -> {
+                    users.add(new User(userDN, userName, displayName, listed, attributes));
+                    userChangeStamp[0] = latest(userChangeStamp[0], changeStamp);
+                });
+        List<Object[]> groups = new ArrayList<>();
+        String[] groupChangeStamp = { current.groupChangeStamp };
+        loader.loadGroups(changeAttribute, current.groupChangeStamp, (groupDN, groupName, memberDNs, changeStamp) -> {
+            groups.add(new Object[] { groupDN, groupName, toMembers(memberDNs) });
+            groupChangeStamp[0] = latest(groupChangeStamp[0], changeStamp);
+        });
+
+        // the changes are read before locking, so that the reads wait only while they are applied
+        current.lock.writeLock().lock();
+        try {
+            for (User user : users) {
+                current.putUser(user);
+            }
+            for (Object[] group : groups) {
+                @SuppressWarnings("unchecked")
+                Set<String> members = (Set<String>) group[2];
+                current.putGroup((String) group[0], (String) group[1], members);
+            }
+            current.userChangeStamp = userChangeStamp[0];
+            current.groupChangeStamp = groupChangeStamp[0];
+        } finally {
+            current.lock.writeLock().unlock();
+        }
+        return users.size() + groups.size();
+    }
+
+    /**
+     * @param memberValues Values of the membership attribute of a group.
+     * @return Normalized usernames or DNs of the members.
+     */
+    private Set<String> toMembers(List<String> memberValues) {
+        Set<String> members = new LinkedHashSet<>(memberValues.size() * 4 / 3 + 1);
+        for (String memberValue : memberValues) {
+            members.add(membershipByUserName ? toKey(memberValue) : normalizeDN(memberValue));
+        }
+        return members;
+    }
+
+    /**
+     * @param current Latest change stamp read so far, null if none.
+     * @param changeStamp Change stamp of an entry, null if not known.
+     * @return The later of the two.
+     */
+    private static String latest(String current, String changeStamp) {
+        if (changeStamp == null) {
+            return current;
+        }
+        if (current == null) {
+            return changeStamp;
+        }
+        int comparison;
+        if (isNumber(current) && isNumber(changeStamp)) {
+            // update sequence numbers compare as numbers
+            comparison = Long.compare(Long.parseLong(current), Long.parseLong(changeStamp));
+        } else {
+            // generalized times of the same server compare as strings
+            comparison = current.compareTo(changeStamp);
+        }
+        return comparison >= 0 ? current : changeStamp;
+    }
+
+    private static boolean isNumber(String value) {
+        if (value.isEmpty() || value.length() > 18) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param name Username or role name.
+     * @return Key of the name, matching names which differ only in case.
+     */
+    private static String toKey(String name) {
+        return name.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * @param dn DN of an entry.
+     * @return The DN with the same form for all spellings of the DN, the DN in lower case if it is not valid.
+     */
+    static String normalizeDN(String dn) {
+        try {
+            List<Rdn> rdns = new LdapName(dn).getRdns();
+            StringBuilder normalized = new StringBuilder(dn.length());
+            for (int i = rdns.size() - 1; i >= 0; i--) {
+                if (normalized.length() > 0) {
+                    normalized.append(',');
+                }
+                normalized.append(rdns.get(i).toString());
+            }
+            return toKey(normalized.toString());
+        } catch (InvalidNameException e) {
+            return toKey(dn);
+        }
+    }
+
+    /**
+     * @param keys Sorted keys.
+     * @param key Key after which the listing starts.
+     * @return Index of the first key greater than the given key.
+     */
+    private static int insertionPoint(String[] keys, String key) {
+        int index = Arrays.binarySearch(keys, key);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    /**
+     * @param keys Sorted keys, which are unique.
+     * @param prefix Prefix of the listed keys.
+     * @return Index of the first key not less than the prefix.
+     */
+    private static int lowerBound(String[] keys, String prefix) {
+        int index = Arrays.binarySearch(keys, prefix);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     *  A user of the replica.
+     */
+    private static final class User {
+
+        private final String dn;
+        private final String name;
+        private final String displayName;
+        private final boolean listed;
+        private final Map<String, String> attributes;
+
+        private User(String dn, String name, String displayName, boolean listed, Map<String, String> attributes) {
+            this.dn = dn;
+            this.name = name;
+            this.displayName = displayName;
+            this.listed = listed;
+            this.attributes = attributes;
+        }
+    }
+
+    /**
+     *  A group of the replica with the normalized usernames or DNs of its members.
+     */
+    private static final class Group {
+
+        private final String name;
+        private final String normalizedDN;
+        private final Set<String> members;
+
+        private Group(String name, String normalizedDN, Set<String> members) {
+            this.name = name;
+            this.normalizedDN = normalizedDN;
+            this.members = members;
+        }
+    }
+
+    /**
+     *  Users and groups with their indexes, modified under the write lock once published.
+     */
+    private static final class State {
+
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private final Map<String, User> users = new HashMap<>();
+        private final Map<String, String> userKeysByDN = new HashMap<>();
+        private final Map<String, Group> groups = new HashMap<>();
+        private final Map<String, String> groupKeysByDN = new HashMap<>();
+        // normalized username or DN of each member, user or group, to the keys of its groups
+        private final Map<String, Set<String>> groupsByMember = new HashMap<>();
+        private String userChangeStamp;
+        private String groupChangeStamp;
+        // sorted keys for listing, rebuilt after a change
+        private volatile String[] sortedUserKeys;
+        private volatile String[] sortedGroupKeys;
+
+        private void putUser(User user) {
+
+            String key = toKey(user.name);
+            String normalizedDN = normalizeDN(user.dn);
+            User previous = users.put(key, user);
+            if (previous != null) {
+                userKeysByDN.remove(normalizeDN(previous.dn));
+            }
+            // a user renamed in the LDAP userstore keeps its DN or is read with its new DN
+            String previousKey = userKeysByDN.put(normalizedDN, key);
+            if (previousKey != null && !previousKey.equals(key)) {
+                users.remove(previousKey);
+            }
+            sortedUserKeys = null;
+        }
+
+        private void putGroup(String groupDN, String groupName, Set<String> members) {
+
+            String key = toKey(groupName);
+            String normalizedDN = normalizeDN(groupDN);
+            Group previous = groups.put(key, new Group(groupName, normalizedDN, members));
+            if (previous != null) {
+                groupKeysByDN.remove(previous.normalizedDN);
+                for (String member : previous.members) {
+                    removeMember(member, key);
+                }
+            }
+            String previousKey = groupKeysByDN.put(normalizedDN, key);
+            if (previousKey != null && !previousKey.equals(key)) {
+                Group renamed = groups.remove(previousKey);
+                for (String member : renamed.members) {
+                    removeMember(member, previousKey);
+                }
+            }
+            for (String member : members) {
+                groupsByMember.computeIfAbsent(member, memberKey -> new HashSet<>()).add(key);
+            }
+            sortedGroupKeys = null;
+        }
+
+        private void removeMember(String member, String groupKey) {
+            Set<String> groupKeys = groupsByMember.get(member);
+            if (groupKeys != null && groupKeys.remove(groupKey) && groupKeys.isEmpty()) {
+                groupsByMember.remove(member);
+            }
+        }
+
+        /**
+         * @return Keys of the users in order, called under the read lock.
+         */
+        private String[] getSortedUserKeys() {
+            String[] keys = sortedUserKeys;
+            if (keys == null) {
+                keys = users.keySet().toArray(new String[0]);
+                Arrays.sort(keys);
+                sortedUserKeys = keys;
+            }
+            return keys;
+        }
+
+        /**
+         * @return Keys of the groups in order, called under the read lock.
+         */
+        private String[] getSortedGroupKeys() {
+            String[] keys = sortedGroupKeys;
+            if (keys == null) {
+                keys = groups.keySet().toArray(new String[0]);
+                Arrays.sort(keys);
+                sortedGroupKeys = keys;
+            }
+            return keys;
+        }
+    }
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.agent.userstore.exception.UserStoreException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *  Bloom filters of the usernames and role names of the LDAP userstore, which answer that a name does not exist
+ *  without a search. A name the filter may contain is still searched.
+ *
+ *  The filters are built in the background when they are created. Names of the entries modified since the
+ *  previous refresh are then added at each refresh, and the filters are rebuilt from all names at a longer
+ *  interval so that deleted names are dropped and the filters are sized for the current number of names. A user
+ *  created in the LDAP userstore is reported as missing until the next refresh. Usernames added while the filters
+ *  are rebuilt are added again to the rebuilt filters.
+ *
+ *  Users are not filtered if some of them are found outside the searches the names are read with, e.g. through a
+ *  user DN pattern outside the user search bases.
+ */
+class ExistenceFilter {
+
+    private static Log log = LogFactory.getLog(ExistenceFilter.class);
+    // share of names the filters are sized for on top of the names read when they are built
+    private static final double GROWTH_ALLOWANCE = 0.5;
+
+    /**
+     *  Reads names from the LDAP userstore.
+     */
+    interface Loader {
+
+        /**
+         * @param modifiedSince Modification time, in generalized time, of the latest entry already read. null to
+         *                      read all entries.
+         * @param handler Receives each name read.
+         * @throws UserStoreException If an error occurs while reading the LDAP userstore.
+         */
+        void load(String modifiedSince, NameHandler handler) throws UserStoreException;
+    }
+
+    /**
+     *  Receives the names read by a Loader.
+     */
+    interface NameHandler {
+
+        /**
+         * @param name Username or role name.
+         * @param modifyTimestamp Modification time of the entry in generalized time, null if not known.
+         */
+        void name(String name, String modifyTimestamp);
+    }
+
+    private final Loader userLoader;
+    private final Loader roleLoader;
+    private final double falsePositiveRate;
+    private final long maxMemory;
+    private final long rebuildInterval;
+    private final ScheduledThreadPoolExecutor refreshExecutor;
+    private volatile Filters filters;
+    // usernames added since the running rebuild started reading the names, null if none is running
+    private volatile Set<String> addedDuringRebuild;
+    private volatile long lastRefresh;
+    private volatile long lastRebuild;
+    private final LongAdder definiteCount = new LongAdder();
+    private final LongAdder possibleCount = new LongAdder();
+    private final LongAdder falsePositiveCount = new LongAdder();
+
+    /**
+     * @param userLoader Reads the usernames, null if users are not to be filtered.
+     * @param roleLoader Reads the role names.
+     * @param falsePositiveRate Share of missing names the filters should report as possibly existing.
+     * @param maxMemory Maximum size in bytes of the two filters together.
+     * @param refreshInterval Time in milliseconds between adding the names of the modified entries.
+     * @param rebuildInterval Time in milliseconds between rebuilding the filters from all names.
+     */
+    ExistenceFilter(Loader userLoader, Loader roleLoader, double falsePositiveRate, long maxMemory,
+                    long refreshInterval, long rebuildInterval) {
+
+        this.userLoader = userLoader;
+        this.roleLoader = roleLoader;
+        this.falsePositiveRate = Math.min(Math.max(falsePositiveRate, 1e-9), 0.5);
+        this.maxMemory = maxMemory;
+        this.rebuildInterval = rebuildInterval;
+        this.refreshExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "ExistenceFilterRefresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.refreshExecutor.scheduleWithFixedDelay(this::refresh, 0, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param userName Username of the user.
+     * @return false if the user does not exist, true if it may exist or the filters are not built yet.
+     */
+    boolean mayContainUser(String userName) {
+        if (userLoader == null) {
+            return true;
+        }
+        Filters current = filters;
+        return count(current == null || current.users.mayContain(toKey(userName)));
+    }
+
+    /**
+     * @param roleName Name of the role.
+     * @return false if the role does not exist, true if it may exist or the filters are not built yet.
+     */
+    boolean mayContainRole(String roleName) {
+        Filters current = filters;
+        return count(current == null || current.roles.mayContain(toKey(roleName)));
+    }
+
+    /**
+     * Adds a username found in the LDAP userstore, e.g. of a user who has just authenticated.
+     * @param userName Username of the user.
+     */
+    void addUser(String userName) {
+        if (userLoader == null) {
+            return;
+        }
+        String key = toKey(userName);
+        Set<String> added = addedDuringRebuild;
+        if (added != null) {
+            added.add(key);
+        }
+        // read after recording the name, so that the name reaches the rebuilt filters one way or the other
+        Filters current = filters;
+        if (current != null) {
+            current.users.add(key);
+        }
+    }
+
+    /**
+     * Counts a name which the filters reported as possibly existing but was not found in the LDAP userstore.
+     */
+    void falsePositive() {
+        falsePositiveCount.increment();
+    }
+
+    /**
+     * @return Size, false positive rate and refresh statistics of the filters.
+     */
+    Map<String, Object> getStatistics() {
+
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        Filters current = filters;
+        statistics.put("status", current == null ? "loading" : "ready");
+        if (current != null) {
+            if (current.users != null) {
+                statistics.put("users", current.users.getStatistics());
+            }
+            statistics.put("roles", current.roles.getStatistics());
+            statistics.put("memoryBytes", (current.users == null ? 0 : current.users.getMemory())
+                    + current.roles.getMemory());
+        }
+        statistics.put("maxMemoryBytes", maxMemory);
+        statistics.put("targetFalsePositiveRate", falsePositiveRate);
+        long possible = possibleCount.sum();
+        long falsePositives = falsePositiveCount.sum();
+        statistics.put("definitelyMissing", definiteCount.sum());
+        statistics.put("possiblyExisting", possible);
+        statistics.put("falsePositives", falsePositives);
+        // share of missing names let through, among the missing names checked
+        long missing = definiteCount.sum() + falsePositives;
+        statistics.put("observedFalsePositiveRate", missing == 0 ? 0.0 : (double) falsePositives / missing);
+        statistics.put("lastRefresh", lastRefresh);
+        statistics.put("lastRebuild", lastRebuild);
+        return statistics;
+    }
+
+    void close() {
+        refreshExecutor.shutdownNow();
+    }
+
+    private boolean count(boolean mayContain) {
+        if (mayContain) {
+            possibleCount.increment();
+        } else {
+            definiteCount.increment();
+        }
+        return mayContain;
+    }
+
+    private void refresh() {
+
+        long start = System.currentTimeMillis();
+        Filters current = filters;
+        try {
+            if (current == null || start - lastRebuild >= rebuildInterval) {
+                rebuild();
+                lastRebuild = start;
+            } else {
+                if (userLoader != null) {
+                    current.userModifiedSince = addModified(userLoader, current.users, current.userModifiedSince);
+                }
+                current.roleModifiedSince = addModified(roleLoader, current.roles, current.roleModifiedSince);
+            }
+            lastRefresh = start;
+        } catch (UserStoreException | RuntimeException e) {
+            log.error("Error while refreshing the existence filters. The previous filters are used until the next "
+                    + "refresh.", e);
+        }
+    }
+
+    /**
+     * Reads all names and replaces the filters with filters sized for them.
+     * @throws UserStoreException If an error occurs while reading the names.
+     */
+    private void rebuild() throws UserStoreException {
+
+        long start = System.currentTimeMillis();
+        Set<String> added = ConcurrentHashMap.newKeySet();
+        addedDuringRebuild = added;
+        Filters rebuilt;
+        List<String> userNames = new ArrayList<>();
+        List<String> roleNames = new ArrayList<>();
+        try {
+            String[] userModifiedSince = { null };
+            if (userLoader != null) {
+                userLoader.load(null, (name, modifyTimestamp) -> {
+                    userNames.add(toKey(name));
+                    userModifiedSince[0] = latest(userModifiedSince[0], modifyTimestamp);
+                });
+            }
+            String[] roleModifiedSince = { null };
+            roleLoader.load(null, (name, modifyTimestamp) -> {
+                roleNames.add(toKey(name));
+                roleModifiedSince[0] = latest(roleModifiedSince[0], modifyTimestamp);
+            });
+
+            // the memory is shared in proportion to the number of names
+            long userMemory = userLoader == null ? 0 :
+                    maxMemory * (userNames.size() + 1) / (userNames.size() + roleNames.size() + 2);
+            rebuilt = new Filters(
+                    userLoader == null ? null : BloomFilter.create(userNames.size(), falsePositiveRate, userMemory),
+                    BloomFilter.create(roleNames.size(), falsePositiveRate, maxMemory - userMemory));
+            for (String userName : userNames) {
+                rebuilt.users.add(userName);
+            }
+            for (String roleName : roleNames) {
+                rebuilt.roles.add(roleName);
+            }
+            rebuilt.userModifiedSince = userModifiedSince[0];
+            rebuilt.roleModifiedSince = roleModifiedSince[0];
+            filters = rebuilt;
+        } finally {
+            addedDuringRebuild = null;
+        }
+        // users added while the names were read went to the previous filters only
+        for (String userName : added) {
+            rebuilt.users.add(userName);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Built the existence filters of " + userNames.size() + " users and " + roleNames.size()
+                    + " roles in " + (System.currentTimeMillis() - start) + "ms.");
+        }
+    }
+
+    /**
+     * @param loader Reads the names.
+     * @param filter Filter receiving the names.
+     * @param modifiedSince Modification time of the latest entry already read.
+     * @return Modification time of the latest entry read.
+     * @throws UserStoreException If an error occurs while reading the names.
+     */
+    private String addModified(Loader loader, BloomFilter filter, String modifiedSince) throws UserStoreException {
+        String[] latest = { modifiedSince };
+        loader.load(modifiedSince, (name, modifyTimestamp) -> {
+            filter.add(toKey(name));
+            latest[0] = latest(latest[0], modifyTimestamp);
+        });
+        return latest[0];
+    }
+
+    private static String latest(String current, String modifyTimestamp) {
+        // generalized times of the same server compare as strings
+        return modifyTimestamp != null && (current == null || modifyTimestamp.compareTo(current) > 0) ?
+                modifyTimestamp : current;
+    }
+
+    private static String toKey(String name) {
+        return name.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     *  Filters of the usernames and role names.
+     */
+    private static final class Filters {
+
+        private final BloomFilter users;
+        private final BloomFilter roles;
+        private volatile String userModifiedSince;
+        private volatile String roleModifiedSince;
+
+        private Filters(BloomFilter users, BloomFilter roles) {
+            this.users = users;
+            this.roles = roles;
+        }
+    }
+
+    /**
+     *  Bloom filter over a bit array which names are added to concurrently, with the bits of a name chosen by
+     *  double hashing of a 64 bit hash.
+     */
+    private static final class BloomFilter {
+
+        private final AtomicLongArray bits;
+        private final long bitCount;
+        private final int hashCount;
+        private final int expectedNames;
+        private final LongAdder nameCount = new LongAdder();
+
+        private BloomFilter(long bitCount, int hashCount, int expectedNames) {
+            this.bits = new AtomicLongArray((int) ((bitCount + 63) / 64));
+            this.bitCount = bits.length() * 64L;
+            this.hashCount = hashCount;
+            this.expectedNames = expectedNames;
+        }
+
+        /**
+         * @param names Number of names to be added.
+         * @param falsePositiveRate Target false positive rate.
+         * @param maxMemory Maximum size of the filter in bytes.
+         * @return A filter with the bits and hash functions for the target false positive rate, or with as many
+         * bits as fit in the memory.
+         */
+        private static BloomFilter create(int names, double falsePositiveRate, long maxMemory) {
+            int expectedNames = Math.max((int) (names * (1 + GROWTH_ALLOWANCE)), 64);
+            long bitCount = (long) Math.ceil(-expectedNames * Math.log(falsePositiveRate)
+                    / (Math.log(2) * Math.log(2)));
+            bitCount = Math.max(Math.min(bitCount, Math.min(maxMemory * 8, Integer.MAX_VALUE * 64L)), 64);
+            int hashCount = (int) Math.max(1, Math.min(16,
+                    Math.round((double) bitCount / expectedNames * Math.log(2))));
+            return new BloomFilter(bitCount, hashCount, expectedNames);
+        }
+
+        private void add(String key) {
+            long hash = hash(key);
+            long hash2 = mix(hash ^ 0x9e3779b97f4a7c15L) | 1;
+            for (int i = 0; i < hashCount; i++) {
+                long bit = Long.remainderUnsigned(hash + i * hash2, bitCount);
+                int index = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long word = bits.get(index);
+                while ((word & mask) == 0 && !bits.compareAndSet(index, word, word | mask)) {
+                    word = bits.get(index);
+                }
+            }
+            nameCount.increment();
+        }
+
+        private boolean mayContain(String key) {
+            long hash = hash(key);
+            long hash2 = mix(hash ^ 0x9e3779b97f4a7c15L) | 1;
+            for (int i = 0; i < hashCount; i++) {
+                long bit = Long.remainderUnsigned(hash + i * hash2, bitCount);
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private long getMemory() {
+            return bitCount / 8;
+        }
+
+        private Map<String, Object> getStatistics() {
+            Map<String, Object> statistics = new LinkedHashMap<>();
+            // names added again, e.g. at each refresh or bind, are counted each time
+            long names = nameCount.sum();
+            statistics.put("addedNames", names);
+            statistics.put("expectedNames", expectedNames);
+            statistics.put("bits", bitCount);
+            statistics.put("hashFunctions", hashCount);
+            // false positive rate expected for the names added so far, an upper bound given the repeated names
+            statistics.put("expectedFalsePositiveRate",
+                    Math.pow(1 - Math.exp(-(double) hashCount * names / bitCount), hashCount));
+            return statistics;
+        }
+
+        private static long hash(String key) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < key.length(); i++) {
+                hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+            }
+            return mix(hash);
+        }
+
+        /**
+         * Finalizer of MurmurHash3, spreading the bits of the FNV-1a hash.
+         */
+        private static long mix(long hash) {
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+    }
+}
@@ -21,18 +21,34 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.wso2.carbon.identity.agent.userstore.constant.LDAPConstants;
 import org.wso2.carbon.identity.agent.userstore.exception.UserStoreException;
+import org.wso2.carbon.identity.agent.userstore.util.JNDIUtil;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import javax.naming.AuthenticationException;
+import javax.naming.CommunicationException;
 import javax.naming.Context;
 import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.InitialDirContext;
+import javax.naming.ldap.ExtendedRequest;
+import javax.naming.ldap.ExtendedResponse;
 import javax.naming.ldap.InitialLdapContext;
 import javax.naming.ldap.LdapContext;
 
 /**
  *  Connection for LDAP user stores.
+ *
+ *  The connection URL may hold several space separated URLs of replicated servers. Each server has its own
+ *  connection pools, and connections are taken from the first healthy server in the configured order, or from
+ *  the least loaded one, falling back to the next server if a server cannot be reached.
  */
 class LDAPConnectionContext {
 
@@ -41,6 +57,15 @@ class LDAPConnectionContext {
     private Hashtable<String, String> environment;
     private static final String CONNECTION_TIME_OUT = "LDAPConnectionTimeout";
     private static final String READ_TIME_OUT = "ReadTimeout";
+    private static final String SEARCH_POOL = "search";
+    private static final String AUTHENTICATION_POOL = "authentication";
+    // JNDI connects to localhost when no URL is given
+    private static final String DEFAULT_CONNECTION_URL = "ldap://localhost:389";
+    private final List<LDAPEndpoint> endpoints = new ArrayList<>();
+    private final boolean leastLoaded;
+    private final int ejectAfter;
+    private boolean pooled = false;
+    private LDAPEndpointProber prober;
 
     @SuppressWarnings({ "rawtypes", "unchecked" }) LDAPConnectionContext(Map<String, String> userStoreProperties)
             throws UserStoreException {
@@ -77,13 +102,20 @@ class LDAPConnectionContext {
             isLDAPConnectionPoolingEnabled = Boolean.parseBoolean(value);
         }
 
-        environment.put("com.sun.jndi.ldap.connect.pool", isLDAPConnectionPoolingEnabled ? "true" : "false");
+        // The agent pools connections itself, so the opaque JNDI pool is never used.
+        environment.put("com.sun.jndi.ldap.connect.pool", "false");
 
         // set referral status if provided in configuration.
         if (userStoreProperties.get(LDAPConstants.PROPERTY_REFERRAL) != null) {
             environment.put("java.naming.referral",
                     userStoreProperties.get(LDAPConstants.PROPERTY_REFERRAL));
         }
+        // SIDs read for nested groups are binary, so they are returned as byte arrays instead of strings
+        if (LDAPConstants.NESTED_GROUP_RESOLUTION_TOKEN_GROUPS.equalsIgnoreCase(
+                StringUtils.trim(userStoreProperties.get(LDAPConstants.NESTED_GROUP_RESOLUTION)))) {
+            environment.put("java.naming.ldap.attributes.binary",
+                    LDAPConstants.TOKEN_GROUPS_ATTRIBUTE + " " + LDAPConstants.OBJECT_SID_ATTRIBUTE);
+        }
         //Set connect timeout if provided in configuration. Otherwise set default value
         String connectTimeout = userStoreProperties.get(CONNECTION_TIME_OUT);
         String readTimeout = userStoreProperties.get(READ_TIME_OUT);
@@ -96,6 +128,124 @@ class LDAPConnectionContext {
         if (StringUtils.isNotEmpty(readTimeout)) {
             environment.put("com.sun.jndi.ldap.read.timeout", readTimeout);
         }
+
+        String urls = StringUtils.isNotBlank(connectionURL) ? connectionURL.trim() : DEFAULT_CONNECTION_URL;
+        for (String url : urls.split("\\s+")) {
+            endpoints.add(new LDAPEndpoint(url, environment));
+        }
+        if (isLDAPConnectionPoolingEnabled) {
+            // the pool sizes apply to each server
+            pooled = true;
+            for (LDAPEndpoint endpoint : endpoints) {
+                endpoint.setConnectionPools(createConnectionPool(SEARCH_POOL, endpoint.getEnvironment(),
+                        userStoreProperties,
+                        getIntProperty(userStoreProperties, LDAPConstants.CONNECTION_POOL_MIN_SIZE,
+                                LDAPConstants.DEFAULT_CONNECTION_POOL_MIN_SIZE),
+                        getIntProperty(userStoreProperties, LDAPConstants.CONNECTION_POOL_MAX_SIZE,
+                                LDAPConstants.DEFAULT_CONNECTION_POOL_MAX_SIZE),
+                        getIntProperty(userStoreProperties, LDAPConstants.CONNECTION_POOL_MAX_WAIT,
+                                LDAPConstants.DEFAULT_CONNECTION_POOL_MAX_WAIT), false),
+                        createAuthenticationPool(endpoint, userStoreProperties));
+            }
+        }
+
+        leastLoaded = LDAPConstants.ENDPOINT_SELECTION_LEAST_LOADED.equalsIgnoreCase(
+                StringUtils.trim(userStoreProperties.get(LDAPConstants.ENDPOINT_SELECTION)));
+        ejectAfter = getIntProperty(userStoreProperties, LDAPConstants.ENDPOINT_EJECT_AFTER_FAILURES,
+                LDAPConstants.DEFAULT_ENDPOINT_EJECT_AFTER_FAILURES);
+        int probeInterval = getIntProperty(userStoreProperties, LDAPConstants.ENDPOINT_PROBE_INTERVAL,
+                LDAPConstants.DEFAULT_ENDPOINT_PROBE_INTERVAL);
+        if (probeInterval > 0) {
+            prober = new LDAPEndpointProber(endpoints, probeInterval,
+                    getIntProperty(userStoreProperties, LDAPConstants.ENDPOINT_PROBE_TIMEOUT,
+                            LDAPConstants.DEFAULT_ENDPOINT_PROBE_TIMEOUT),
+                    ejectAfter,
+                    getIntProperty(userStoreProperties, LDAPConstants.ENDPOINT_REINSTATE_AFTER_PROBES,
+                            LDAPConstants.DEFAULT_ENDPOINT_REINSTATE_AFTER_PROBES));
+        }
+    }
+
+    /**
+     * @param endpoint Server of the pool.
+     * @param userStoreProperties Properties read from the userstore-mgt.xml file.
+     * @return A new pool of authentication connections to the server.
+     */
+    private LDAPConnectionPool createAuthenticationPool(LDAPEndpoint endpoint,
+                                                       Map<String, String> userStoreProperties) {
+
+        // Authentication connections start unbound and are re-bound as each user. They never share
+        // the search pool so that heavy search traffic cannot starve logins.
+        Hashtable<String, String> authenticationEnvironment = new Hashtable<>(endpoint.getEnvironment());
+        authenticationEnvironment.put(Context.SECURITY_AUTHENTICATION, "none");
+        authenticationEnvironment.remove(Context.SECURITY_PRINCIPAL);
+        authenticationEnvironment.remove(Context.SECURITY_CREDENTIALS);
+        return createConnectionPool(AUTHENTICATION_POOL, authenticationEnvironment,
+                userStoreProperties,
+                getIntProperty(userStoreProperties, LDAPConstants.AUTHENTICATION_POOL_MIN_SIZE,
+                        LDAPConstants.DEFAULT_AUTHENTICATION_POOL_MIN_SIZE),
+                getIntProperty(userStoreProperties, LDAPConstants.AUTHENTICATION_POOL_MAX_SIZE,
+                        LDAPConstants.DEFAULT_AUTHENTICATION_POOL_MAX_SIZE),
+                getIntProperty(userStoreProperties, LDAPConstants.AUTHENTICATION_POOL_MAX_WAIT,
+                        LDAPConstants.DEFAULT_CONNECTION_POOL_MAX_WAIT),
+                Boolean.parseBoolean(userStoreProperties.get(LDAPConstants.AUTHENTICATION_FAST_BIND_ENABLED)));
+    }
+
+    /**
+     * @param poolType Type of the pool, either search or authentication.
+     * @param poolEnvironment Environment of the pooled connections.
+     * @param userStoreProperties Properties read from the userstore-mgt.xml file.
+     * @param minSize Minimum number of connections kept open.
+     * @param maxSize Maximum number of connections.
+     * @param maxWait Maximum time in milliseconds to wait for a connection.
+     * @param fastBind Whether to enable the Active Directory fast bind mode on new connections.
+     * @return A new connection pool for this configuration.
+     */
+    private LDAPConnectionPool createConnectionPool(String poolType, Hashtable<String, String> poolEnvironment,
+                                                 Map<String, String> userStoreProperties, int minSize,
+                                                 int maxSize, int maxWait, boolean fastBind) {
+
+        int maxIdleTime = getIntProperty(userStoreProperties, LDAPConstants.CONNECTION_POOL_MAX_IDLE_TIME,
+                LDAPConstants.DEFAULT_CONNECTION_POOL_MAX_IDLE_TIME);
+        int maxLifetime = getIntProperty(userStoreProperties, LDAPConstants.CONNECTION_POOL_MAX_LIFETIME,
+                LDAPConstants.DEFAULT_CONNECTION_POOL_MAX_LIFETIME);
+        int evictionInterval = getIntProperty(userStoreProperties, LDAPConstants.CONNECTION_POOL_EVICTION_INTERVAL,
+                LDAPConstants.DEFAULT_CONNECTION_POOL_EVICTION_INTERVAL);
+        String validateOnBorrow = userStoreProperties.get(LDAPConstants.CONNECTION_POOL_VALIDATE_ON_BORROW);
+
+        String poolName = poolType + "-" + poolEnvironment.get(Context.PROVIDER_URL);
+        boolean validate = validateOnBorrow == null || Boolean.parseBoolean(validateOnBorrow);
+        if (!fastBind) {
+            return new LDAPConnectionPool(poolName, poolEnvironment, minSize, maxSize, maxWait, maxIdleTime,
+                    maxLifetime, evictionInterval, validate);
+        }
+        return new LDAPConnectionPool(poolName, poolEnvironment, minSize, maxSize, maxWait, maxIdleTime,
+                maxLifetime, evictionInterval, validate) {
+
+            @Override
+            LdapContext createContext(Hashtable<String, String> environment) throws NamingException {
+                LdapContext context = super.createContext(environment);
+                try {
+                    context.extendedOperation(new FastBindRequest());
+                } catch (NamingException e) {
+                    log.warn("LDAP server does not support fast bind, using regular binds. " + e.getMessage());
+                }
+                return context;
+            }
+        };
+    }
+
+    /**
+     * @param userStoreProperties Properties read from the userstore-mgt.xml file.
+     * @param propertyName Name of the property.
+     * @param defaultValue Value to use if the property is not set or is not a number.
+     * @return The integer value of the property.
+     */
+    static int getIntProperty(Map<String, String> userStoreProperties, String propertyName, int defaultValue) {
+        try {
+            return Integer.parseInt(userStoreProperties.get(propertyName).trim());
+        } catch (Exception e) {
+            return defaultValue;
+        }
     }
 
     /**
@@ -103,23 +253,72 @@ class LDAPConnectionContext {
      * @throws UserStoreException If an error occurs while connecting to th userstore.
      */
     DirContext getContext() throws UserStoreException {
-        DirContext context;
+        if (pooled) {
+            return getLdapContext();
+        }
         try {
-            context = new InitialDirContext(environment);
+            return onEndpoint(endpoint -> {
+                DirContext context;
+                try {
+                    context = new InitialDirContext(endpoint.getEnvironment());
+
+                } catch (NamingException e) {
+                    log.error("Error obtaining connection. " + e.getMessage(), e);
+                    log.error("Trying again to get connection.");
 
+                    try {
+                        context = new InitialDirContext(endpoint.getEnvironment());
+                    } catch (Exception e1) {
+                        log.error("Error obtaining connection for the second time" + e.getMessage(), e);
+                        throw new UserStoreException("Error obtaining connection. " + e.getMessage(), e);
+                    }
+
+                }
+                return (context);
+            });
         } catch (NamingException e) {
-            log.error("Error obtaining connection. " + e.getMessage(), e);
-            log.error("Trying again to get connection.");
+            throw new UserStoreException("Error obtaining connection. " + e.getMessage(), e);
+        }
+    }
 
-            try {
-                context = new InitialDirContext(environment);
-            } catch (Exception e1) {
-                log.error("Error obtaining connection for the second time" + e.getMessage(), e);
-                throw new UserStoreException("Error obtaining connection. " + e.getMessage(), e);
-            }
+    /**
+     * @return Connection context of the LDAP userstore which supports request controls.
+     * @throws UserStoreException If an error occurs while connecting to th userstore.
+     */
+    LdapContext getLdapContext() throws UserStoreException {
+        try {
+            return onEndpoint(endpoint -> {
+                if (pooled) {
+                    return endpoint.getConnectionPool().borrow();
+                }
+                try {
+                    return new InitialLdapContext(endpoint.getEnvironment(), null);
+                } catch (NamingException e) {
+                    log.error("Error obtaining connection. " + e.getMessage(), e);
+                    throw new UserStoreException("Error obtaining connection. " + e.getMessage(), e);
+                }
+            });
+        } catch (NamingException e) {
+            throw new UserStoreException("Error obtaining connection. " + e.getMessage(), e);
+        }
+    }
 
+    /**
+     * @return Connection context of the first server of the ConnectionURL which supports request controls. Unlike
+     * {@link #getLdapContext()} it does not fail over to the other servers.
+     * @throws UserStoreException If the server cannot be reached, or no pooled connection is available.
+     */
+    LdapContext getPrimaryLdapContext() throws UserStoreException {
+        LDAPEndpoint endpoint = endpoints.get(0);
+        if (pooled) {
+            return endpoint.getConnectionPool().borrow();
+        }
+        try {
+            return new InitialLdapContext(endpoint.getEnvironment(), null);
+        } catch (NamingException e) {
+            throw new UserStoreException("Error obtaining connection to " + endpoint.getUrl() + ". "
+                    + e.getMessage(), e);
         }
-        return (context);
     }
 
     /**
@@ -127,23 +326,250 @@ class LDAPConnectionContext {
      * @param password Password of the user to be authenticated
      * @return The LDAP connection context with logged in as the given user.
      * @throws javax.naming.NamingException If the user cannot be authenticated or connection issue occurs.
+     * @throws UserStoreException If no pooled authentication connection is available.
      */
     LdapContext getContextWithCredentials(String userDN, String password)
-            throws NamingException {
-        LdapContext context;
+            throws NamingException, UserStoreException {
+
+        return onEndpoint(endpoint -> {
+            if (pooled) {
+                return bindPooledContext(endpoint.getAuthenticationPool(), userDN, password, true);
+            }
+
+            //create a temp env for this particular authentication session by copying the original env
+            Hashtable<String, String> tempEnv = new Hashtable<>();
+            for (Map.Entry<String, String> entry : endpoint.getEnvironment().entrySet()) {
+                tempEnv.put(entry.getKey(), entry.getValue());
+            }
+            //replace connection name and password with the passed credentials to this method
+            tempEnv.put(Context.SECURITY_PRINCIPAL, userDN);
+            tempEnv.put(Context.SECURITY_CREDENTIALS, password);
+
+            //replace environment properties with these credentials
+            return new InitialLdapContext(tempEnv, null);
+        });
+    }
+
+    /**
+     * Runs the operation on the preferred server, and on the next servers in turn while the servers cannot
+     * be reached.
+     * @param operation Operation on a server.
+     * @return Result of the operation.
+     * @throws NamingException If the operation fails for a reason other than an unreachable server.
+     * @throws UserStoreException If no server can be reached, or no pooled connection is available.
+     */
+    private <T> T onEndpoint(EndpointOperation<T> operation) throws NamingException, UserStoreException {
+
+        List<LDAPEndpoint> candidates = selectEndpoints();
+        // when every server is ejected they are all tried, and the first that answers is reinstated
+        boolean reinstate = !candidates.get(0).isHealthy();
+        Exception lastError = null;
+        for (LDAPEndpoint endpoint : candidates) {
+            try {
+                T result = operation.apply(endpoint);
+                endpoint.recordSuccess(reinstate);
+                return result;
+            } catch (NamingException e) {
+                if (!isConnectionFailure(e)) {
+                    throw e;
+                }
+                endpoint.recordFailure(e.toString(), ejectAfter, false);
+                lastError = e;
+            } catch (UserStoreException e) {
+                // a timed out pool is busy rather than unreachable, but another server may still serve the request
+                if (e.getCause() instanceof NamingException && isConnectionFailure((NamingException) e.getCause())) {
+                    endpoint.recordFailure(e.getCause().toString(), ejectAfter, false);
+                }
+                lastError = e;
+            }
+            if (log.isDebugEnabled() && candidates.size() > 1) {
+                log.debug("LDAP server " + endpoint.getUrl() + " failed, trying the next server. "
+                        + lastError.getMessage());
+            }
+        }
+        if (lastError instanceof NamingException) {
+            throw (NamingException) lastError;
+        }
+        throw (UserStoreException) lastError;
+    }
 
-        //create a temp env for this particular authentication session by copying the original env
-        Hashtable<String, String> tempEnv = new Hashtable<>();
-        for (Map.Entry<String, String> entry : environment.entrySet()) {
-            tempEnv.put(entry.getKey(), entry.getValue());
+    /**
+     * @return The servers in the order to try them: the healthy ones, in the configured order or by load,
+     * followed by the ejected ones.
+     */
+    private List<LDAPEndpoint> selectEndpoints() {
+
+        if (endpoints.size() == 1) {
+            return endpoints;
+        }
+        List<LDAPEndpoint> healthy = new ArrayList<>(endpoints.size());
+        List<LDAPEndpoint> ejected = new ArrayList<>();
+        for (LDAPEndpoint endpoint : endpoints) {
+            if (endpoint.isHealthy()) {
+                healthy.add(endpoint);
+            } else {
+                ejected.add(endpoint);
+            }
+        }
+        if (leastLoaded && healthy.size() > 1) {
+            // the load changes while sorting, so it is read once per server
+            Map<LDAPEndpoint, Double> loads = new HashMap<>();
+            for (LDAPEndpoint endpoint : healthy) {
+                loads.put(endpoint, endpoint.getLoad());
+            }
+            healthy.sort(Comparator.comparing(loads::get));
+        }
+        healthy.addAll(ejected);
+        return healthy;
+    }
+
+    /**
+     * @param e Exception thrown while connecting.
+     * @return true if the server cannot be reached, rather than rejecting the request.
+     */
+    private static boolean isConnectionFailure(NamingException e) {
+        return e instanceof CommunicationException || e instanceof ServiceUnavailableException;
+    }
+
+    /**
+     * Re-binds a pooled authentication connection as the given user instead of opening a new connection.
+     * @param authenticationPool Authentication connection pool of the server.
+     * @param userDN Distinguished name of the user to be authenticated
+     * @param password Password of the user to be authenticated
+     * @param retry Whether to retry once on a new connection if the pooled connection is stale.
+     * @return The pooled connection bound as the given user. Closing it returns it to the pool.
+     * @throws NamingException If the user cannot be authenticated or connection issue occurs.
+     * @throws UserStoreException If no pooled authentication connection is available.
+     */
+    private LdapContext bindPooledContext(LDAPConnectionPool authenticationPool, String userDN, String password,
+                                          boolean retry) throws NamingException, UserStoreException {
+
+        LdapContext context = authenticationPool.borrow();
+        try {
+            context.addToEnvironment(Context.SECURITY_AUTHENTICATION, "simple");
+            context.addToEnvironment(Context.SECURITY_PRINCIPAL, userDN);
+            context.addToEnvironment(Context.SECURITY_CREDENTIALS, password);
+            // reconnect re-binds on the existing connection with the new credentials.
+            context.reconnect(null);
+            context.removeFromEnvironment(Context.SECURITY_CREDENTIALS);
+            return context;
+        } catch (CommunicationException e) {
+            authenticationPool.invalidate(context);
+            JNDIUtil.closeContext(context);
+            if (retry) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Pooled authentication connection is stale, retrying with a new connection.");
+                }
+                return bindPooledContext(authenticationPool, userDN, password, false);
+            }
+            throw e;
+        } catch (AuthenticationException e) {
+            // A rejected bind leaves the connection open, so it goes back to the pool for the next login.
+            context.removeFromEnvironment(Context.SECURITY_CREDENTIALS);
+            JNDIUtil.closeContext(context);
+            throw e;
+        } catch (NamingException | RuntimeException e) {
+            authenticationPool.invalidate(context);
+            JNDIUtil.closeContext(context);
+            throw e;
+        }
+    }
+
+    /**
+     * @return Occupancy and wait time statistics of the search and authentication connection pools, by server
+     * URL if there are several servers, empty if pooling is disabled.
+     */
+    Map<String, Object> getConnectionPoolStatistics() {
+        if (!pooled) {
+            return Collections.emptyMap();
+        }
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        for (LDAPEndpoint endpoint : endpoints) {
+            Map<String, Object> endpointStatistics = new HashMap<>();
+            endpointStatistics.put(SEARCH_POOL, endpoint.getConnectionPool().getStatistics());
+            endpointStatistics.put(AUTHENTICATION_POOL, endpoint.getAuthenticationPool().getStatistics());
+            if (endpoints.size() == 1) {
+                return endpointStatistics;
+            }
+            statistics.put(endpoint.getUrl(), endpointStatistics);
         }
-        //replace connection name and password with the passed credentials to this method
-        tempEnv.put(Context.SECURITY_PRINCIPAL, userDN);
-        tempEnv.put(Context.SECURITY_CREDENTIALS, password);
+        return statistics;
+    }
 
-        //replace environment properties with these credentials
-        context = new InitialLdapContext(tempEnv, null);
-        return (context);
+    /**
+     * @return true if the servers are probed in the background, so that their health is known without
+     * connecting.
+     */
+    boolean isProbed() {
+        return prober != null;
     }
 
+    /**
+     * @return true if at least one server is healthy, as last seen by the probes and requests.
+     */
+    boolean isAvailable() {
+        for (LDAPEndpoint endpoint : endpoints) {
+            if (endpoint.isHealthy()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Health and latency of each server, in the configured order.
+     */
+    List<Map<String, Object>> getEndpointStatus() {
+        List<Map<String, Object>> status = new ArrayList<>(endpoints.size());
+        for (LDAPEndpoint endpoint : endpoints) {
+            status.add(endpoint.getStatus());
+        }
+        return status;
+    }
+
+    /**
+     * Stops the health probes and closes the connection pools of this context. Connections in use are closed
+     * when they are returned.
+     */
+    void close() {
+        if (prober != null) {
+            prober.close();
+        }
+        for (LDAPEndpoint endpoint : endpoints) {
+            endpoint.close();
+        }
+    }
+
+    /**
+     *  Operation on one of the servers.
+     */
+    private interface EndpointOperation<T> {
+
+        T apply(LDAPEndpoint endpoint) throws NamingException, UserStoreException;
+    }
+
+    /**
+     *  The Active Directory LDAP_SERVER_FAST_BIND_OID extended operation. Once enabled on a connection, binds
+     *  on it only verify the credentials and skip building the security token of the user.
+     */
+    private static class FastBindRequest implements ExtendedRequest {
+
+        private static final long serialVersionUID = 4217342935617468271L;
+        private static final String FAST_BIND_OID = "1.2.840.113556.1.4.1781";
+
+        @Override
+        public String getID() {
+            return FAST_BIND_OID;
+        }
+
+        @Override
+        public byte[] getEncodedValue() {
+            return null;
+        }
+
+        @Override
+        public ExtendedResponse createExtendedResponse(String id, byte[] berValue, int offset, int length) {
+            return null;
+        }
+    }
 }
@@ -0,0 +1,594 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.agent.userstore.exception.ConnectionPoolTimeoutException;
+import org.wso2.carbon.identity.agent.userstore.exception.UserStoreException;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.naming.CommunicationException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+
+/**
+ *  Pool of bound LDAP connections owned by the agent, growing and shrinking between a minimum and a maximum size.
+ *
+ *  The pool is filled up to the minimum size when it is created. Further connections are opened on demand up to
+ *  the maximum size, after which borrowers wait up to the max wait time for a connection to be returned. A
+ *  background task closes connections idle longer than the max idle time while the pool is above its minimum
+ *  size, closes connections older than the max lifetime, and opens new ones to keep the minimum size.
+ *
+ *  Borrowed connections are handed out as {@link LdapContext} proxies. Closing the proxy returns the
+ *  underlying connection to the pool, so callers keep using {@code JNDIUtil.closeContext} as before.
+ */
+class LDAPConnectionPool {
+
+    private static Log log = LogFactory.getLog(LDAPConnectionPool.class);
+
+    // A connection used within this window is not validated again when it is borrowed.
+    private static final long VALIDATION_SKIP_WINDOW = 500;
+    private static final String[] NO_ATTRIBUTES = { "1.1" };
+
+    private final String name;
+    private final Hashtable<String, String> environment;
+    private final int minSize;
+    private final int maxSize;
+    private final long maxWait;
+    private final long maxIdleTime;
+    private final long maxLifetime;
+    private final boolean validateOnBorrow;
+
+    private final LinkedBlockingDeque<PooledConnection> idleConnections = new LinkedBlockingDeque<>();
+    private final Semaphore permits;
+    private final AtomicInteger totalConnections = new AtomicInteger();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final LongAdder borrowCount = new LongAdder();
+    private final LongAdder createdCount = new LongAdder();
+    private final LongAdder destroyedCount = new LongAdder();
+    private final LongAdder timeoutCount = new LongAdder();
+    private final LongAdder staleCount = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final ScheduledExecutorService maintenanceExecutor;
+    private volatile boolean closed = false;
+
+    LDAPConnectionPool(String name, Hashtable<String, String> environment, int minSize, int maxSize, long maxWait,
+                       long maxIdleTime, long maxLifetime, long evictionInterval, boolean validateOnBorrow) {
+
+        this.name = name;
+        this.environment = new Hashtable<>(environment);
+        this.maxSize = Math.max(1, maxSize);
+        this.minSize = Math.max(0, Math.min(minSize, this.maxSize));
+        this.maxWait = maxWait;
+        this.maxIdleTime = maxIdleTime;
+        this.maxLifetime = maxLifetime;
+        this.validateOnBorrow = validateOnBorrow;
+        this.permits = new Semaphore(this.maxSize, true);
+
+        maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ldap-pool-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        // The first run pre-warms the pool up to the minimum size.
+        maintenanceExecutor.scheduleWithFixedDelay(this::maintain, 0, evictionInterval, TimeUnit.MILLISECONDS);
+
+        if (log.isDebugEnabled()) {
+            log.debug("Created LDAP connection pool " + name + " min: " + this.minSize + " max: " + this.maxSize
+                    + " maxWait: " + maxWait + " maxIdleTime: " + maxIdleTime + " maxLifetime: " + maxLifetime);
+        }
+    }
+
+    /**
+     * @return A pooled connection. Closing it returns the connection to the pool.
+     * @throws ConnectionPoolTimeoutException If no connection becomes available within the max wait time.
+     * @throws UserStoreException If a new connection cannot be opened.
+     */
+    LdapContext borrow() throws UserStoreException {
+
+        if (closed) {
+            throw new UserStoreException("LDAP connection pool " + name + " is closed.");
+        }
+        long start = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UserStoreException("Interrupted while waiting for an LDAP connection.", e);
+        }
+        recordWait(System.nanoTime() - start);
+        if (!acquired) {
+            timeoutCount.increment();
+            throw new ConnectionPoolTimeoutException("Timed out after " + maxWait
+                    + "ms waiting for an LDAP connection from pool " + name + ". Active connections: "
+                    + activeConnections.get());
+        }
+
+        try {
+            PooledConnection connection = takeIdleConnection();
+            if (connection == null) {
+                connection = openConnection();
+            }
+            activeConnections.incrementAndGet();
+            borrowCount.increment();
+            return (LdapContext) Proxy.newProxyInstance(LDAPConnectionPool.class.getClassLoader(),
+                    new Class<?>[] { LdapContext.class }, new PooledContextHandler(connection));
+        } catch (NamingException e) {
+            permits.release();
+            throw new UserStoreException("Error obtaining connection. " + e.getMessage(), e);
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Marks a borrowed connection as unusable, so that it is closed instead of being returned to the pool.
+     * @param context Connection borrowed from this pool.
+     */
+    void invalidate(LdapContext context) {
+        if (Proxy.isProxyClass(context.getClass())
+                && Proxy.getInvocationHandler(context) instanceof PooledContextHandler) {
+            ((PooledContextHandler) Proxy.getInvocationHandler(context)).connection.broken = true;
+        }
+    }
+
+    /**
+     * @return Number of connections currently borrowed from the pool.
+     */
+    int getActiveCount() {
+        return activeConnections.get();
+    }
+
+    /**
+     * @return Point in time view of the pool occupancy and wait times.
+     */
+    Map<String, Object> getStatistics() {
+
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        long borrowed = borrowCount.sum();
+        statistics.put("name", name);
+        statistics.put("minSize", minSize);
+        statistics.put("maxSize", maxSize);
+        statistics.put("active", activeConnections.get());
+        statistics.put("idle", idleConnections.size());
+        statistics.put("total", totalConnections.get());
+        statistics.put("waiting", permits.getQueueLength());
+        statistics.put("borrowed", borrowed);
+        statistics.put("created", createdCount.sum());
+        statistics.put("destroyed", destroyedCount.sum());
+        statistics.put("stale", staleCount.sum());
+        statistics.put("timeouts", timeoutCount.sum());
+        statistics.put("averageWaitMillis", borrowed == 0 ? 0 :
+                TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.sum() / borrowed));
+        statistics.put("maxWaitMillis", TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()));
+        return statistics;
+    }
+
+    /**
+     * Closes all idle connections. Connections that are in use are closed when they are returned.
+     */
+    void close() {
+
+        closed = true;
+        maintenanceExecutor.shutdownNow();
+        PooledConnection connection;
+        while ((connection = idleConnections.pollFirst()) != null) {
+            destroy(connection);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Closed LDAP connection pool " + name);
+        }
+    }
+
+    /**
+     * @return The most recently used idle connection which is still usable, null if there is none.
+     */
+    private PooledConnection takeIdleConnection() {
+
+        PooledConnection connection;
+        while ((connection = idleConnections.pollFirst()) != null) {
+            long now = System.currentTimeMillis();
+            if (isExpired(connection, now)) {
+                destroy(connection);
+                continue;
+            }
+            if (validateOnBorrow && now - connection.lastUsed > VALIDATION_SKIP_WINDOW && !validate(connection)) {
+                // Stale connection, try the next one straight away instead of failing the request.
+                staleCount.increment();
+                destroy(connection);
+                continue;
+            }
+            connection.reused = true;
+            return connection;
+        }
+        return null;
+    }
+
+    private void release(PooledConnection connection) {
+
+        activeConnections.decrementAndGet();
+        try {
+            long now = System.currentTimeMillis();
+            if (closed || connection.broken || isExpired(connection, now)) {
+                destroy(connection);
+            } else {
+                connection.lastUsed = now;
+                idleConnections.offerFirst(connection);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private PooledConnection openConnection() throws NamingException {
+
+        PooledConnection connection = new PooledConnection(createContext(environment));
+        totalConnections.incrementAndGet();
+        createdCount.increment();
+        return connection;
+    }
+
+    /**
+     * @param environment Environment of the connection.
+     * @return A new LDAP connection.
+     * @throws NamingException If the connection cannot be opened or the bind fails.
+     */
+    LdapContext createContext(Hashtable<String, String> environment) throws NamingException {
+        return new InitialLdapContext(environment, null);
+    }
+
+    private void destroy(PooledConnection connection) {
+
+        totalConnections.decrementAndGet();
+        destroyedCount.increment();
+        try {
+            connection.context.close();
+        } catch (NamingException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Error while closing pooled LDAP connection. " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private boolean validate(PooledConnection connection) {
+
+        try {
+            connection.context.getAttributes("", NO_ATTRIBUTES);
+            return true;
+        } catch (NamingException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Pooled LDAP connection failed validation. " + e.getMessage());
+            }
+            return false;
+        }
+    }
+
+    private boolean isExpired(PooledConnection connection, long now) {
+        return maxLifetime > 0 && now - connection.created > maxLifetime;
+    }
+
+    private void recordWait(long waitNanos) {
+
+        totalWaitNanos.add(waitNanos);
+        long currentMax;
+        while (waitNanos > (currentMax = maxWaitNanos.get())) {
+            if (maxWaitNanos.compareAndSet(currentMax, waitNanos)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Evicts idle and expired connections and tops the pool up to its minimum size.
+     */
+    private void maintain() {
+
+        try {
+            long now = System.currentTimeMillis();
+            List<PooledConnection> candidates = new ArrayList<>(idleConnections);
+            for (PooledConnection connection : candidates) {
+                boolean idleTooLong = maxIdleTime > 0 && now - connection.lastUsed > maxIdleTime
+                        && totalConnections.get() > minSize;
+                if ((idleTooLong || isExpired(connection, now)) && idleConnections.remove(connection)) {
+                    destroy(connection);
+                }
+            }
+            while (!closed && totalConnections.get() < minSize) {
+                idleConnections.offerLast(openConnection());
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("LDAP connection pool statistics: " + getStatistics());
+            }
+        } catch (NamingException e) {
+            log.warn("Error while filling LDAP connection pool " + name + " up to its minimum size. "
+                    + e.getMessage());
+        } catch (RuntimeException e) {
+            log.error("Error while maintaining LDAP connection pool " + name, e);
+        }
+    }
+
+    /**
+     * @param throwable Exception thrown by the connection.
+     * @return true if the exception means that the connection cannot be used anymore.
+     */
+    private static boolean isConnectionFailure(Throwable throwable) {
+        return throwable instanceof CommunicationException || throwable instanceof ServiceUnavailableException;
+    }
+
+    /**
+     * @param methodName Name of the DirContext method.
+     * @return true if the operation does not change the directory and can be repeated on a new connection.
+     */
+    private static boolean isRetryable(String methodName) {
+        return methodName.startsWith("search") || methodName.startsWith("getAttributes")
+                || methodName.startsWith("lookup") || "getNameInNamespace".equals(methodName);
+    }
+
+    /**
+     *  A physical connection held by the pool.
+     */
+    private static class PooledConnection {
+
+        private final LdapContext context;
+        private final long created;
+        private volatile long lastUsed;
+        private boolean reused = false;
+        private boolean broken = false;
+
+        PooledConnection(LdapContext context) {
+            this.context = context;
+            this.created = System.currentTimeMillis();
+            this.lastUsed = created;
+        }
+    }
+
+    /**
+     *  Delegates calls to the pooled connection and returns it to the pool on close.
+     */
+    private class PooledContextHandler implements InvocationHandler {
+
+        private PooledConnection connection;
+        private boolean released = false;
+        private boolean retried = false;
+
+        PooledContextHandler(PooledConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+            String methodName = method.getName();
+            if ("close".equals(methodName) && method.getParameterCount() == 0) {
+                if (!released) {
+                    released = true;
+                    release(connection);
+                }
+                return null;
+            } else if ("equals".equals(methodName) && method.getParameterCount() == 1) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(methodName) && method.getParameterCount() == 0) {
+                return System.identityHashCode(proxy);
+            } else if ("toString".equals(methodName) && method.getParameterCount() == 0) {
+                return "PooledLdapContext[" + name + "]";
+            }
+            if (released) {
+                throw new NamingException("Connection has already been returned to the pool " + name);
+            }
+
+            Object result;
+            try {
+                result = method.invoke(connection.context, args);
+            } catch (InvocationTargetException e) {
+                result = retry(method, args, e.getCause());
+            }
+            if (result instanceof NamingEnumeration) {
+                return new PooledEnumeration(method, args, (NamingEnumeration<?>) result);
+            }
+            return result;
+        }
+
+        /**
+         * Repeats a call that failed on a connection which went stale while idle in the pool, once, on a new
+         * connection with the same request controls. Calls with a paged results control are not repeated, as
+         * their cookie is only valid on the connection that issued it.
+         * @param method Method that failed.
+         * @param args Arguments of the call.
+         * @param cause Exception thrown by the call.
+         * @return Result of the repeated call.
+         * @throws Throwable The exception of the call if it is not repeated, or of the repeated call.
+         */
+        private Object retry(Method method, Object[] args, Throwable cause) throws Throwable {
+
+            if (!isConnectionFailure(cause)) {
+                throw cause;
+            }
+            connection.broken = true;
+            String methodName = method.getName();
+            if (!connection.reused || retried || !isRetryable(methodName)) {
+                throw cause;
+            }
+            Control[] requestControls;
+            try {
+                requestControls = connection.context.getRequestControls();
+            } catch (NamingException e) {
+                throw cause;
+            }
+            if (requestControls != null) {
+                for (Control control : requestControls) {
+                    if (control instanceof PagedResultsControl) {
+                        throw cause;
+                    }
+                }
+            }
+            retried = true;
+            staleCount.increment();
+            if (log.isDebugEnabled()) {
+                log.debug("Pooled LDAP connection is stale, retrying " + methodName + " on a new connection.");
+            }
+            PooledConnection staleConnection = connection;
+            connection = openConnection();
+            destroy(staleConnection);
+            try {
+                connection.context.setRequestControls(requestControls);
+                return method.invoke(connection.context, args);
+            } catch (InvocationTargetException retryException) {
+                if (isConnectionFailure(retryException.getCause())) {
+                    connection.broken = true;
+                }
+                throw retryException.getCause();
+            }
+        }
+
+        /**
+         *  Results of a search on the pooled connection. A stale connection can fail only once the results are
+         *  read, in which case the search is repeated as long as none of its results was returned.
+         */
+        private final class PooledEnumeration implements NamingEnumeration<Object> {
+
+            private final Method method;
+            private final Object[] args;
+            private NamingEnumeration<?> results;
+            private boolean started = false;
+
+            private PooledEnumeration(Method method, Object[] args, NamingEnumeration<?> results) {
+                this.method = method;
+                this.args = args;
+                this.results = results;
+            }
+
+            @Override
+            public boolean hasMore() throws NamingException {
+                try {
+                    return results.hasMore();
+                } catch (NamingException e) {
+                    retry(e);
+                }
+                try {
+                    return results.hasMore();
+                } catch (NamingException e) {
+                    throw markBroken(e);
+                }
+            }
+
+            @Override
+            public Object next() throws NamingException {
+                Object result = null;
+                try {
+                    result = results.next();
+                } catch (NamingException e) {
+                    retry(e);
+                }
+                try {
+                    if (result == null) {
+                        result = results.next();
+                    }
+                } catch (NamingException e) {
+                    throw markBroken(e);
+                }
+                started = true;
+                return result;
+            }
+
+            @Override
+            public boolean hasMoreElements() {
+                try {
+                    return hasMore();
+                } catch (NamingException e) {
+                    return false;
+                }
+            }
+
+            @Override
+            public Object nextElement() {
+                try {
+                    return next();
+                } catch (NamingException e) {
+                    NoSuchElementException exception = new NoSuchElementException(e.getMessage());
+                    exception.initCause(e);
+                    throw exception;
+                }
+            }
+
+            @Override
+            public void close() throws NamingException {
+                results.close();
+            }
+
+            /**
+             * Replaces the results with those of the repeated search, if the search can be repeated.
+             * @throws NamingException The exception of the results if the search is not repeated, or of the
+             * repeated search.
+             */
+            private void retry(NamingException e) throws NamingException {
+
+                if (started || released) {
+                    throw markBroken(e);
+                }
+                try {
+                    results.close();
+                } catch (NamingException closeException) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Error while closing the results of a stale connection. "
+                                + closeException.getMessage());
+                    }
+                }
+                try {
+                    results = (NamingEnumeration<?>) PooledContextHandler.this.retry(method, args, e);
+                } catch (NamingException | RuntimeException | Error retryException) {
+                    throw retryException;
+                } catch (Throwable retryException) {
+                    // a search throws nothing else
+                    throw new IllegalStateException(retryException);
+                }
+            }
+
+            private NamingException markBroken(NamingException e) {
+                if (isConnectionFailure(e)) {
+                    connection.broken = true;
+                }
+                return e;
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.naming.Context;
+
+/**
+ *  One LDAP server of the userstore, with its own connection pools and health state.
+ *
+ *  An endpoint is ejected after a number of consecutive failures, seen either by the health prober or by
+ *  requests, and is reinstated after a number of consecutive successful probes. The probed bind and search
+ *  latencies are kept as moving averages and, together with the connections in use, rank the endpoints.
+ */
+class LDAPEndpoint {
+
+    private static Log log = LogFactory.getLog(LDAPEndpoint.class);
+    // Weight of the latest probe in the latency averages.
+    private static final double LATENCY_WEIGHT = 0.3;
+
+    private final String url;
+    private final Hashtable<String, String> environment;
+    private LDAPConnectionPool connectionPool;
+    private LDAPConnectionPool authenticationPool;
+
+    private volatile boolean healthy = true;
+    private volatile int consecutiveFailures;
+    private int consecutiveSuccesses;
+    private volatile double bindLatency;
+    private volatile double searchLatency;
+    private volatile long lastProbe;
+    private volatile String lastError;
+    private final LongAdder ejectionCount = new LongAdder();
+    private final LongAdder failureCount = new LongAdder();
+
+    /**
+     * @param url LDAP URL of the server.
+     * @param environment Environment of the userstore, used with the URL of this server.
+     */
+    LDAPEndpoint(String url, Hashtable<String, String> environment) {
+        this.url = url;
+        this.environment = new Hashtable<>(environment);
+        this.environment.put(Context.PROVIDER_URL, url);
+    }
+
+    String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return Environment of connections to this server, bound as the connection user.
+     */
+    Hashtable<String, String> getEnvironment() {
+        return environment;
+    }
+
+    LDAPConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    LDAPConnectionPool getAuthenticationPool() {
+        return authenticationPool;
+    }
+
+    void setConnectionPools(LDAPConnectionPool connectionPool, LDAPConnectionPool authenticationPool) {
+        this.connectionPool = connectionPool;
+        this.authenticationPool = authenticationPool;
+    }
+
+    /**
+     * @return false if the endpoint has been ejected and is not reinstated yet.
+     */
+    boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * @return Rank of the endpoint, lower is better: the probed latency weighted by the connections in use.
+     */
+    double getLoad() {
+        int active = 0;
+        if (connectionPool != null) {
+            active = connectionPool.getActiveCount() + authenticationPool.getActiveCount();
+        }
+        return (bindLatency + searchLatency + 1) * (active + 1);
+    }
+
+    /**
+     * @return Probed bind and search latency in milliseconds.
+     */
+    double getLatency() {
+        return bindLatency + searchLatency;
+    }
+
+    /**
+     * Records a successful probe, reinstating the endpoint after enough consecutive successes.
+     * @param bindNanos Time taken to connect and bind.
+     * @param searchNanos Time taken by the probe search.
+     * @param reinstateAfter Consecutive successful probes needed to reinstate an ejected endpoint.
+     */
+    synchronized void recordProbe(long bindNanos, long searchNanos, int reinstateAfter) {
+
+        double bindMillis = bindNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        double searchMillis = searchNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        if (lastProbe == 0) {
+            bindLatency = bindMillis;
+            searchLatency = searchMillis;
+        } else {
+            bindLatency += LATENCY_WEIGHT * (bindMillis - bindLatency);
+            searchLatency += LATENCY_WEIGHT * (searchMillis - searchLatency);
+        }
+        lastProbe = System.currentTimeMillis();
+        consecutiveFailures = 0;
+        consecutiveSuccesses++;
+        if (!healthy && consecutiveSuccesses >= reinstateAfter) {
+            reinstate();
+        }
+    }
+
+    /**
+     * Records that a connection to the endpoint could be used, which resets its consecutive failures.
+     * An ejected endpoint is reinstated only when no endpoint is healthy.
+     * @param reinstate Whether to reinstate the endpoint if it is ejected.
+     */
+    void recordSuccess(boolean reinstate) {
+
+        if (consecutiveFailures == 0 && (healthy || !reinstate)) {
+            // nothing to change, which is the case for almost every request
+            return;
+        }
+        synchronized (this) {
+            consecutiveFailures = 0;
+            if (!healthy && reinstate) {
+                reinstate();
+            }
+        }
+    }
+
+    /**
+     * Records a failed probe or connection, ejecting the endpoint after enough consecutive failures.
+     * @param error Description of the failure.
+     * @param ejectAfter Consecutive failures that eject the endpoint.
+     * @param probe Whether the failure was seen by the health prober.
+     */
+    synchronized void recordFailure(String error, int ejectAfter, boolean probe) {
+
+        failureCount.increment();
+        lastError = error;
+        if (probe) {
+            lastProbe = System.currentTimeMillis();
+        }
+        consecutiveSuccesses = 0;
+        consecutiveFailures++;
+        if (healthy && consecutiveFailures >= ejectAfter) {
+            healthy = false;
+            ejectionCount.increment();
+            log.warn("LDAP server " + url + " ejected after " + consecutiveFailures + " consecutive failures. "
+                    + error);
+        }
+    }
+
+    /**
+     * @return Health, latency and connection pool state of the endpoint.
+     */
+    Map<String, Object> getStatus() {
+
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("url", url);
+        status.put("healthy", healthy);
+        status.put("bindLatencyMillis", Math.round(bindLatency * 100) / 100.0);
+        status.put("searchLatencyMillis", Math.round(searchLatency * 100) / 100.0);
+        status.put("lastProbe", lastProbe);
+        status.put("failures", failureCount.sum());
+        status.put("ejections", ejectionCount.sum());
+        if (lastError != null) {
+            status.put("lastError", lastError);
+        }
+        return status;
+    }
+
+    /**
+     * Closes the connection pools of the endpoint.
+     */
+    void close() {
+        if (connectionPool != null) {
+            connectionPool.close();
+        }
+        if (authenticationPool != null) {
+            authenticationPool.close();
+        }
+    }
+
+    private void reinstate() {
+        healthy = true;
+        consecutiveSuccesses = 0;
+        log.info("LDAP server " + url + " reinstated.");
+    }
+}
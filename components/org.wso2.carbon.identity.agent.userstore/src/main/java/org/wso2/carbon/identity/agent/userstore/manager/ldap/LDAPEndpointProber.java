@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+
+/**
+ *  Probes the LDAP servers of the userstore in the background.
+ *
+ *  Each probe opens a new connection bound as the connection user and reads the root DSE, measuring the bind
+ *  and the search latency separately. The endpoints are probed independently, so a server that hangs does not
+ *  delay the probes of the others.
+ */
+class LDAPEndpointProber {
+
+    private static Log log = LogFactory.getLog(LDAPEndpointProber.class);
+    private static final String READ_TIME_OUT_ENVIRONMENT = "com.sun.jndi.ldap.read.timeout";
+    private static final String CONNECT_TIME_OUT_ENVIRONMENT = "com.sun.jndi.ldap.connect.timeout";
+    private static final String[] NO_ATTRIBUTES = { "1.1" };
+
+    private final int ejectAfter;
+    private final int reinstateAfter;
+    private final int timeout;
+    private final ScheduledThreadPoolExecutor probeExecutor;
+
+    /**
+     * @param endpoints Endpoints to probe.
+     * @param interval Time in milliseconds between the probes of an endpoint.
+     * @param timeout Time in milliseconds a probe may take before it fails.
+     * @param ejectAfter Consecutive failures that eject an endpoint.
+     * @param reinstateAfter Consecutive successful probes that reinstate an ejected endpoint.
+     */
+    LDAPEndpointProber(List<LDAPEndpoint> endpoints, int interval, int timeout, int ejectAfter, int reinstateAfter) {
+
+        this.ejectAfter = ejectAfter;
+        this.reinstateAfter = reinstateAfter;
+        this.timeout = timeout;
+        this.probeExecutor = new ScheduledThreadPoolExecutor(endpoints.size(), runnable -> {
+            Thread thread = new Thread(runnable, "LDAPEndpointProbe");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (LDAPEndpoint endpoint : endpoints) {
+            // the first probe runs straight away, so that the status is known before the first request
+            probeExecutor.scheduleWithFixedDelay(() -> probe(endpoint), 0, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Probes the endpoint once and records the outcome.
+     * @param endpoint Endpoint to probe.
+     */
+    void probe(LDAPEndpoint endpoint) {
+
+        Hashtable<String, String> environment = new Hashtable<>(endpoint.getEnvironment());
+        environment.put(CONNECT_TIME_OUT_ENVIRONMENT, String.valueOf(timeout));
+        environment.put(READ_TIME_OUT_ENVIRONMENT, String.valueOf(timeout));
+        LdapContext context = null;
+        NamingEnumeration<SearchResult> results = null;
+        try {
+            long start = System.nanoTime();
+            context = new InitialLdapContext(environment, null);
+            long bound = System.nanoTime();
+            SearchControls searchControls = new SearchControls();
+            searchControls.setSearchScope(SearchControls.OBJECT_SCOPE);
+            searchControls.setReturningAttributes(NO_ATTRIBUTES);
+            results = context.search("", "(objectClass=*)", searchControls);
+            while (results.hasMore()) {
+                results.next();
+            }
+            endpoint.recordProbe(bound - start, System.nanoTime() - bound, reinstateAfter);
+        } catch (NamingException | RuntimeException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Health probe of LDAP server " + endpoint.getUrl() + " failed.", e);
+            }
+            endpoint.recordFailure(e.toString(), ejectAfter, true);
+        } finally {
+            closeQuietly(results, context);
+        }
+    }
+
+    /**
+     * Stops probing.
+     */
+    void close() {
+        probeExecutor.shutdownNow();
+    }
+
+    private static void closeQuietly(NamingEnumeration<SearchResult> results, LdapContext context) {
+        try {
+            if (results != null) {
+                results.close();
+            }
+            if (context != null) {
+                context.close();
+            }
+        } catch (NamingException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Error while closing the health probe connection. " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,755 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.agent.userstore.constant.CommonConstants;
+import org.wso2.carbon.identity.agent.userstore.constant.LDAPConstants;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import javax.naming.InvalidNameException;
+import javax.naming.directory.SearchControls;
+import javax.naming.ldap.LdapName;
+
+/**
+ *  Immutable snapshot of the userstore properties used by the LDAP operations, parsed once when the
+ *  properties are set instead of on every operation.
+ */
+final class LDAPOperationConfig {
+
+    private static Log log = LogFactory.getLog(LDAPOperationConfig.class);
+    private static final String MULTI_ATTRIBUTE_SEPARATOR = "MultiAttributeSeparator";
+    private static final String PROPERTY_REFERRAL_IGNORE = "ignore";
+    private static final String MEMBER_UID = "memberUid";
+    private static final String SERVICE_NAME_ATTRIBUTE = "sn";
+    private static final String DEFAULT_ATTRIBUTE_SEPARATOR = ",";
+    // marks the position of the argument while splitting a DN pattern into a template
+    private static final String ARGUMENT_MARKER = "\u0000";
+    // characters escaped in filter values and in DN attribute values
+    private static final String FILTER_SPECIAL_CHARACTERS = "\\*()\u0000";
+    private static final String DN_SPECIAL_CHARACTERS = "\\,+\"<>;*";
+
+    private final String userSearchBase;
+    private final String[] userSearchBases;
+    private final String groupSearchBase;
+    private final String[] groupSearchBases;
+    private final String userNameAttribute;
+    private final String displayNameAttribute;
+    private final String groupNameAttribute;
+    private final String membershipAttribute;
+    private final String userNameListFilter;
+    private final String groupNameListFilter;
+    private final Template roleNameFilterTemplate;
+    private final String userNameSearchFilter;
+    private final Template userNameSearchFilterTemplate;
+    private final String userDNPattern;
+    private final List<Template> userDNPatternTemplates;
+    private final boolean userDNPatternsInUserSearchBases;
+    private final Template roleFilterTemplate;
+    private final Template rolesOfMemberFilterTemplate;
+    private final Template memberOfRoleFilterTemplate;
+    private final Template userListFilterTemplate;
+    private final Template roleListFilterTemplate;
+    private final SearchControls userListSearchControls;
+    private final SearchControls roleListSearchControls;
+    private final SearchControls roleNameSearchControls;
+    private final SearchControls membershipSearchControls;
+    private final String attributeSeparator;
+    private final int maxUserListLength;
+    private final int maxRoleNameListLength;
+    private final int maxRoleMemberListLength;
+    private final int searchTime;
+    private final int pagedSearchPageSize;
+    private final int memberResolutionBatchSize;
+    private final boolean replaceEscapeCharacters;
+    private final boolean ignorePartialResult;
+    private final boolean membershipByUserName;
+    private final boolean emptyRolesAllowed;
+    private final String nestedGroupResolution;
+
+    /**
+     * @param userStoreProperties Userstore properties, already checked for the required properties.
+     */
+    LDAPOperationConfig(Map<String, String> userStoreProperties) {
+
+        String replaceEscapeCharactersProperty =
+                userStoreProperties.get(CommonConstants.PROPERTY_REPLACE_ESCAPE_CHARACTERS_AT_USER_LOGIN);
+        replaceEscapeCharacters = replaceEscapeCharactersProperty == null
+                || Boolean.parseBoolean(replaceEscapeCharactersProperty);
+        if (log.isDebugEnabled()) {
+            log.debug("Replace escape characters configured to: " + replaceEscapeCharacters);
+        }
+
+        userSearchBase = userStoreProperties.get(LDAPConstants.USER_SEARCH_BASE);
+        userSearchBases = splitSearchBases(userSearchBase);
+        groupSearchBase = userStoreProperties.get(LDAPConstants.GROUP_SEARCH_BASE);
+        groupSearchBases = splitSearchBases(groupSearchBase);
+        userNameAttribute = userStoreProperties.get(LDAPConstants.USER_NAME_ATTRIBUTE);
+        displayNameAttribute = userStoreProperties.get(LDAPConstants.DISPLAY_NAME_ATTRIBUTE);
+        groupNameAttribute = userStoreProperties.get(LDAPConstants.GROUP_NAME_ATTRIBUTE);
+        membershipAttribute = userStoreProperties.get(LDAPConstants.MEMBERSHIP_ATTRIBUTE);
+        userNameListFilter = userStoreProperties.get(LDAPConstants.USER_NAME_LIST_FILTER);
+        groupNameListFilter = userStoreProperties.get(LDAPConstants.GROUP_NAME_LIST_FILTER);
+        roleNameFilterTemplate = new Template(
+                userStoreProperties.get(LDAPConstants.ROLE_NAME_FILTER).split(Pattern.quote("?"), -1));
+
+        userNameSearchFilter = userStoreProperties.get(LDAPConstants.USER_NAME_SEARCH_FILTER);
+        userNameSearchFilterTemplate = new Template(userNameSearchFilter.split(Pattern.quote("?"), -1));
+
+        userDNPattern = userStoreProperties.get(LDAPConstants.USER_DN_PATTERN);
+        List<Template> templates = new ArrayList<>();
+        if (userDNPattern != null && !userDNPattern.isEmpty()) {
+            for (String pattern : userDNPattern.split(CommonConstants.XML_PATTERN_SEPERATOR)) {
+                // format once with a marker so that the quoting rules of MessageFormat still apply
+                templates.add(new Template(
+                        MessageFormat.format(pattern, ARGUMENT_MARKER).split(ARGUMENT_MARKER, -1)));
+            }
+        }
+        userDNPatternTemplates = Collections.unmodifiableList(templates);
+        userDNPatternsInUserSearchBases = isInSearchBases(templates, userSearchBases);
+
+        membershipByUserName = MEMBER_UID.equals(membershipAttribute);
+        nestedGroupResolution = parseNestedGroupResolution(
+                userStoreProperties.get(LDAPConstants.NESTED_GROUP_RESOLUTION));
+        // with the in chain matching rule, the server matches the members of the nested groups as well
+        String membershipMatch = LDAPConstants.NESTED_GROUP_RESOLUTION_IN_CHAIN.equals(nestedGroupResolution) ?
+                membershipAttribute + ":" + LDAPConstants.MATCHING_RULE_IN_CHAIN + ":=" : membershipAttribute + "=";
+        roleFilterTemplate = new Template("(&" + groupNameListFilter + "(" + groupNameAttribute + "=", "))");
+        rolesOfMemberFilterTemplate = new Template("(&" + groupNameListFilter + "(" + membershipMatch, "))");
+        memberOfRoleFilterTemplate = new Template("(&" + groupNameListFilter + "(" + membershipMatch,
+                ")(" + groupNameAttribute + "=", "))");
+        // users are listed by their display names, if provided
+        String userListAttribute = StringUtils.isNotEmpty(displayNameAttribute) ? displayNameAttribute
+                : userNameAttribute;
+        userListFilterTemplate = new Template("(&" + userNameListFilter + "(" + userListAttribute + "=", "))");
+        roleListFilterTemplate = new Template("(&" + groupNameListFilter + "(" + groupNameAttribute + "=", "))");
+
+        searchTime = parseInt(userStoreProperties.get(CommonConstants.PROPERTY_MAX_SEARCH_TIME),
+                CommonConstants.MAX_SEARCH_TIME);
+        maxUserListLength = parseInt(userStoreProperties.get(CommonConstants.PROPERTY_MAX_USER_LIST),
+                CommonConstants.MAX_USER_LIST);
+        maxRoleNameListLength = parseInt(userStoreProperties.get(CommonConstants.PROPERTY_MAX_ROLE_LIST),
+                CommonConstants.MAX_USER_LIST);
+        maxRoleMemberListLength = parseInt(userStoreProperties.get(CommonConstants.PROPERTY_MAX_USER_LIST),
+                CommonConstants.MAX_USER_ROLE_LIST);
+        pagedSearchPageSize = LDAPConnectionContext.getIntProperty(userStoreProperties,
+                LDAPConstants.PAGED_SEARCH_PAGE_SIZE, LDAPConstants.DEFAULT_PAGED_SEARCH_PAGE_SIZE);
+        memberResolutionBatchSize = Math.max(1, LDAPConnectionContext.getIntProperty(userStoreProperties,
+                LDAPConstants.MEMBER_RESOLUTION_BATCH_SIZE, LDAPConstants.DEFAULT_MEMBER_RESOLUTION_BATCH_SIZE));
+
+        userListSearchControls = new SearchControls();
+        userListSearchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        userListSearchControls.setTimeLimit(searchTime);
+        if (StringUtils.isNotEmpty(displayNameAttribute)) {
+            userListSearchControls.setReturningAttributes(new String[] { userNameAttribute, SERVICE_NAME_ATTRIBUTE,
+                    displayNameAttribute });
+        } else {
+            userListSearchControls.setReturningAttributes(new String[] { userNameAttribute,
+                    SERVICE_NAME_ATTRIBUTE });
+        }
+        roleListSearchControls = new SearchControls();
+        roleListSearchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        roleListSearchControls.setTimeLimit(searchTime);
+        roleListSearchControls.setReturningAttributes(new String[] { groupNameAttribute });
+        roleNameSearchControls = new SearchControls();
+        roleNameSearchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        roleNameSearchControls.setReturningAttributes(new String[] { groupNameAttribute });
+        membershipSearchControls = new SearchControls();
+        membershipSearchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        membershipSearchControls.setTimeLimit(searchTime);
+        membershipSearchControls.setReturningAttributes(new String[] { membershipAttribute });
+
+        String separator = userStoreProperties.get(MULTI_ATTRIBUTE_SEPARATOR);
+        attributeSeparator = separator != null && !separator.trim().isEmpty() ? separator
+                : DEFAULT_ATTRIBUTE_SEPARATOR;
+        ignorePartialResult = PROPERTY_REFERRAL_IGNORE.equals(userStoreProperties.get(LDAPConstants.PROPERTY_REFERRAL));
+        emptyRolesAllowed = Boolean.parseBoolean(userStoreProperties.get(LDAPConstants.EMPTY_ROLES_ALLOWED));
+    }
+
+    /**
+     *  A string with placeholders, split into its constant parts once so that it is filled with a single
+     *  string builder.
+     */
+    static final class Template {
+
+        private final String[] parts;
+        private final int length;
+
+        /**
+         * @param parts Constant parts of the template, with a placeholder between each of them.
+         */
+        Template(String... parts) {
+            this.parts = parts;
+            int partsLength = 0;
+            for (String part : parts) {
+                partsLength += part.length();
+            }
+            this.length = partsLength;
+        }
+
+        /**
+         * @param values Escaped values of the placeholders in order. A single value fills every placeholder.
+         * @return The template with the placeholders replaced by the values.
+         */
+        String format(String... values) {
+
+            int valuesLength = 0;
+            for (String value : values) {
+                valuesLength += value.length();
+            }
+            StringBuilder builder = new StringBuilder(length + valuesLength * (parts.length - 1));
+            builder.append(parts[0]);
+            for (int i = 1; i < parts.length; i++) {
+                builder.append(values[(i - 1) % values.length]).append(parts[i]);
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * @param templates Templates of the user DN patterns.
+     * @param searchBases Escaped search bases.
+     * @return true if the DN of each template, filled with any username, is a search base or under one.
+     */
+    private static boolean isInSearchBases(List<Template> templates, String[] searchBases) {
+
+        for (Template template : templates) {
+            boolean found = false;
+            try {
+                LdapName entry = new LdapName(template.format("x"));
+                for (int i = 0; i < searchBases.length && !found; i++) {
+                    found = entry.startsWith(new LdapName(searchBases[i]));
+                }
+            } catch (InvalidNameException e) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Cannot compare the user DN pattern with the user search bases.", e);
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param searchBases Search bases separated with the XML pattern separator.
+     * @return The search bases, escaped for searching.
+     */
+    private String[] splitSearchBases(String searchBases) {
+
+        String[] searchBaseArray = searchBases.split(CommonConstants.XML_PATTERN_SEPERATOR);
+        for (int i = 0; i < searchBaseArray.length; i++) {
+            searchBaseArray[i] = escapeDNForSearch(searchBaseArray[i]);
+        }
+        return searchBaseArray;
+    }
+
+    /**
+     * @param dn UserDn or Search base.
+     * @return String with escape charaters removed.
+     */
+    String escapeDNForSearch(String dn) {
+        if (replaceEscapeCharacters) {
+            return dn.replace("\\\\", "\\\\\\").replace("\\\"", "\\\\\"");
+        } else {
+            return dn;
+        }
+    }
+
+    /**
+     * @param dnPartial  Partial DN of the user
+     * @return String with escape characters removed.
+     */
+    String escapeSpecialCharactersForFilter(String dnPartial) {
+        if (dnPartial.contains("\\*")) {
+            dnPartial = dnPartial.replace("\\*", "*");
+        }
+
+        if (replaceEscapeCharacters && indexOfAny(dnPartial, FILTER_SPECIAL_CHARACTERS) >= 0) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < dnPartial.length(); i++) {
+                char currentChar = dnPartial.charAt(i);
+                switch (currentChar) {
+                case '\\':
+                    sb.append("\\5c");
+                    break;
+                case '*':
+                    sb.append("\\2a");
+                    break;
+                case '(':
+                    sb.append("\\28");
+                    break;
+                case ')':
+                    sb.append("\\29");
+                    break;
+                case '\u0000':
+                    sb.append("\\00");
+                    break;
+                default:
+                    sb.append(currentChar);
+                }
+            }
+            return sb.toString();
+        } else {
+            return dnPartial;
+        }
+    }
+
+    /**
+     * @param text DN which the escape characters to be removed.
+     * @return String with escape characters removed.
+     */
+    String escapeSpecialCharactersForDN(String text) {
+        if (text.contains("\\*")) {
+            text = text.replace("\\*", "*");
+        }
+
+        if (replaceEscapeCharacters && (indexOfAny(text, DN_SPECIAL_CHARACTERS) >= 0
+                || text.startsWith(" ") || text.startsWith("#") || (text.length() > 1 && text.endsWith(" ")))) {
+            StringBuilder sb = new StringBuilder();
+            if ((text.length() > 0) && ((text.charAt(0) == ' ') || (text.charAt(0) == '#'))) {
+                sb.append('\\'); // add the leading backslash if needed
+            }
+            for (int i = 0; i < text.length(); i++) {
+                char currentChar = text.charAt(i);
+                switch (currentChar) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case ',':
+                    sb.append("\\,");
+                    break;
+                case '+':
+                    sb.append("\\+");
+                    break;
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '<':
+                    sb.append("\\<");
+                    break;
+                case '>':
+                    sb.append("\\>");
+                    break;
+                case ';':
+                    sb.append("\\;");
+                    break;
+                case '*':
+                    sb.append("\\2a");
+                    break;
+                default:
+                    sb.append(currentChar);
+                }
+            }
+            if ((text.length() > 1) && (text.charAt(text.length() - 1) == ' ')) {
+                sb.insert(sb.length() - 1, '\\'); // add the trailing backslash if needed
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("value after escaping special characters in " + text + " : " + sb.toString());
+            }
+            return sb.toString();
+        } else {
+            return text;
+        }
+
+    }
+
+    /**
+     * @param dnPartial String with * as regex whoes escape characters should be removed.
+     * @return String with escape characters removed.
+     */
+    String escapeSpecialCharactersForFilterWithStarAsRegex(String dnPartial) {
+
+        if (replaceEscapeCharacters && indexOfAny(dnPartial, FILTER_SPECIAL_CHARACTERS) >= 0) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < dnPartial.length(); i++) {
+                char currentChar = dnPartial.charAt(i);
+                switch (currentChar) {
+                case '\\':
+                    if (dnPartial.charAt(i + 1) == '*') {
+                        sb.append("\\2a");
+                        i++;
+                        break;
+                    }
+                    sb.append("\\5c");
+                    break;
+                case '(':
+                    sb.append("\\28");
+                    break;
+                case ')':
+                    sb.append("\\29");
+                    break;
+                case '\u0000':
+                    sb.append("\\00");
+                    break;
+                default:
+                    sb.append(currentChar);
+                }
+            }
+            return sb.toString();
+        } else {
+            return dnPartial;
+        }
+    }
+
+    /**
+     * This method escapes the special characters in a LdapName
+     * according to the ldap filter escaping standards.
+     * @param ldn LDAP name which the special characters should be escaped.
+     * @return - LDAP name with special characters removed.
+     */
+    String escapeLdapNameForFilter(LdapName ldn) {
+
+        if (ldn == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("Received null value to escape special characters. Returning null");
+            }
+            return null;
+        }
+
+        if (replaceEscapeCharacters) {
+            StringBuilder escapedDN = new StringBuilder();
+            for (int i = ldn.size() - 1; i > -1; i--) { //escaping the rdns separately and re-constructing the DN
+                escapedDN = escapedDN.append(escapeSpecialCharactersForFilterWithStarAsRegex(ldn.get(i)));
+                if (i != 0) {
+                    escapedDN.append(",");
+                }
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Escaped DN value for filter : " + escapedDN);
+            }
+            return escapedDN.toString();
+        } else {
+            return ldn.toString();
+        }
+    }
+
+    /**
+     * @param text Text to be checked.
+     * @param characters Characters to be found.
+     * @return Index of the first of the given characters in the text, -1 if none of them is found.
+     */
+    private static int indexOfAny(String text, String characters) {
+        for (int i = 0; i < text.length(); i++) {
+            if (characters.indexOf(text.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param prototype Search controls to be copied.
+     * @param countLimit Maximum number of entries returned.
+     * @return New search controls with the settings of the prototype and the given count limit.
+     */
+    private static SearchControls copyOf(SearchControls prototype, long countLimit) {
+        return new SearchControls(prototype.getSearchScope(), countLimit, prototype.getTimeLimit(),
+                prototype.getReturningAttributes(), prototype.getReturningObjFlag(), prototype.getDerefLinkFlag());
+    }
+
+    /**
+     * @param value NestedGroupResolution property.
+     * @return One of the NESTED_GROUP_RESOLUTION_* values of LDAPConstants, none if not set or not known.
+     */
+    private String parseNestedGroupResolution(String value) {
+        if (StringUtils.isBlank(value)) {
+            return LDAPConstants.NESTED_GROUP_RESOLUTION_NONE;
+        }
+        for (String resolution : new String[] { LDAPConstants.NESTED_GROUP_RESOLUTION_NONE,
+                LDAPConstants.NESTED_GROUP_RESOLUTION_IN_CHAIN, LDAPConstants.NESTED_GROUP_RESOLUTION_TOKEN_GROUPS,
+                LDAPConstants.NESTED_GROUP_RESOLUTION_GROUP_GRAPH }) {
+            if (resolution.equalsIgnoreCase(value.trim())) {
+                if (membershipByUserName && !LDAPConstants.NESTED_GROUP_RESOLUTION_NONE.equals(resolution)) {
+                    // members of posixGroup are usernames, so a group cannot be a member of another group
+                    log.warn("Nested groups are not supported with the membership attribute " + membershipAttribute
+                            + ". Only direct memberships are read.");
+                    return LDAPConstants.NESTED_GROUP_RESOLUTION_NONE;
+                }
+                return resolution;
+            }
+        }
+        log.warn("Unknown " + LDAPConstants.NESTED_GROUP_RESOLUTION + " " + value
+                + ". Only direct memberships are read.");
+        return LDAPConstants.NESTED_GROUP_RESOLUTION_NONE;
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return User search bases separated with the XML pattern separator, as configured.
+     */
+    String getUserSearchBase() {
+        return userSearchBase;
+    }
+
+    /**
+     * @return Escaped user search bases. Must not be modified.
+     */
+    String[] getUserSearchBases() {
+        return userSearchBases;
+    }
+
+    /**
+     * @return Group search bases separated with the XML pattern separator, as configured.
+     */
+    String getGroupSearchBase() {
+        return groupSearchBase;
+    }
+
+    /**
+     * @return Escaped group search bases. Must not be modified.
+     */
+    String[] getGroupSearchBases() {
+        return groupSearchBases;
+    }
+
+    String getUserNameAttribute() {
+        return userNameAttribute;
+    }
+
+    String getDisplayNameAttribute() {
+        return displayNameAttribute;
+    }
+
+    String getGroupNameAttribute() {
+        return groupNameAttribute;
+    }
+
+    String getMembershipAttribute() {
+        return membershipAttribute;
+    }
+
+    String getUserNameListFilter() {
+        return userNameListFilter;
+    }
+
+    String getGroupNameListFilter() {
+        return groupNameListFilter;
+    }
+
+    /**
+     * @param escapedRoleName Role name escaped for filters.
+     * @return The role name filter with '?' replaced by the given role name.
+     */
+    String getRoleNameFilter(String escapedRoleName) {
+        return roleNameFilterTemplate.format(escapedRoleName);
+    }
+
+    /**
+     * @return Filter searching a user, with '?' in place of the username.
+     */
+    String getUserNameSearchFilter() {
+        return userNameSearchFilter;
+    }
+
+    /**
+     * @param escapedUserName Username escaped for filters.
+     * @return Filter searching the given user.
+     */
+    String getUserNameSearchFilter(String escapedUserName) {
+        return userNameSearchFilterTemplate.format(escapedUserName);
+    }
+
+    /**
+     * @return User DN patterns separated with the XML pattern separator, null if not configured.
+     */
+    String getUserDNPattern() {
+        return userDNPattern;
+    }
+
+    /**
+     * @return Templates of the configured user DN patterns, filled with the username escaped for DNs.
+     */
+    List<Template> getUserDNPatterns() {
+        return userDNPatternTemplates;
+    }
+
+    /**
+     * @return true if every user DN pattern names an entry under a user search base, so that the users found
+     * through the patterns are also found by searching the user search bases.
+     */
+    boolean isUserDNPatternsInUserSearchBases() {
+        return userDNPatternsInUserSearchBases;
+    }
+
+    /**
+     * @return Template of the only user DN pattern, null if none or more than one pattern is configured.
+     */
+    Template getSingleUserDNPattern() {
+        return userDNPatternTemplates.size() == 1 ? userDNPatternTemplates.get(0) : null;
+    }
+
+    /**
+     * @param escapedRoleName Role name escaped for filters.
+     * @return Filter searching the given role.
+     */
+    String getRoleFilter(String escapedRoleName) {
+        return roleFilterTemplate.format(escapedRoleName);
+    }
+
+    /**
+     * @param escapedMembershipValue Membership value escaped for filters.
+     * @return Filter searching the roles with the given member.
+     */
+    String getRolesOfMemberFilter(String escapedMembershipValue) {
+        return rolesOfMemberFilterTemplate.format(escapedMembershipValue);
+    }
+
+    /**
+     * @param escapedMembershipValue Membership value escaped for filters.
+     * @param escapedRoleName Role name escaped for filters.
+     * @return Filter searching the given role if it has the given member.
+     */
+    String getMemberOfRoleFilter(String escapedMembershipValue, String escapedRoleName) {
+        return memberOfRoleFilterTemplate.format(escapedMembershipValue, escapedRoleName);
+    }
+
+    /**
+     * @return Shared search controls returning the group name attribute. Must not be modified.
+     */
+    SearchControls getRoleNameSearchControls() {
+        return roleNameSearchControls;
+    }
+
+    /**
+     * @param countLimit Maximum number of entries returned.
+     * @return New search controls returning the membership attribute.
+     */
+    SearchControls getMembershipSearchControls(long countLimit) {
+        return copyOf(membershipSearchControls, countLimit);
+    }
+
+    /**
+     * @param escapedFilter Username filter escaped for filters, with * as wildcard.
+     * @return Filter listing the users matching the given filter.
+     */
+    String getUserListFilter(String escapedFilter) {
+        return userListFilterTemplate.format(escapedFilter);
+    }
+
+    /**
+     * @param countLimit Maximum number of entries returned, 0 for no limit.
+     * @return New search controls for listing users.
+     */
+    SearchControls getUserListSearchControls(long countLimit) {
+        return copyOf(userListSearchControls, countLimit);
+    }
+
+    /**
+     * @param escapedFilter Role name filter escaped for filters, with * as wildcard.
+     * @return Filter listing the roles matching the given filter.
+     */
+    String getRoleListFilter(String escapedFilter) {
+        return roleListFilterTemplate.format(escapedFilter);
+    }
+
+    /**
+     * @param countLimit Maximum number of entries returned, 0 for no limit.
+     * @return New search controls for listing roles.
+     */
+    SearchControls getRoleListSearchControls(long countLimit) {
+        return copyOf(roleListSearchControls, countLimit);
+    }
+
+    /**
+     * @return Separator of the values of multi valued attributes.
+     */
+    String getAttributeSeparator() {
+        return attributeSeparator;
+    }
+
+    /**
+     * @return Maximum number of users listed.
+     */
+    int getMaxUserListLength() {
+        return maxUserListLength;
+    }
+
+    /**
+     * @return Maximum number of roles listed.
+     */
+    int getMaxRoleNameListLength() {
+        return maxRoleNameListLength;
+    }
+
+    /**
+     * @return Maximum number of members of a role listed.
+     */
+    int getMaxRoleMemberListLength() {
+        return maxRoleMemberListLength;
+    }
+
+    /**
+     * @return Maximum time in milliseconds for a search.
+     */
+    int getSearchTime() {
+        return searchTime;
+    }
+
+    int getPagedSearchPageSize() {
+        return pagedSearchPageSize;
+    }
+
+    int getMemberResolutionBatchSize() {
+        return memberResolutionBatchSize;
+    }
+
+    boolean isReplaceEscapeCharacters() {
+        return replaceEscapeCharacters;
+    }
+
+    /**
+     * @return true if the Referral in the userstore-mgt.xml is "ignore". false otherwise.
+     */
+    boolean isIgnorePartialResult() {
+        return ignorePartialResult;
+    }
+
+    /**
+     * @return true if the membership attribute holds usernames instead of DNs, as memberUid of posixGroup.
+     */
+    boolean isMembershipByUserName() {
+        return membershipByUserName;
+    }
+
+    boolean isEmptyRolesAllowed() {
+        return emptyRolesAllowed;
+    }
+
+    /**
+     * @return How nested group memberships are resolved, one of the NESTED_GROUP_RESOLUTION_* values of
+     * LDAPConstants.
+     */
+    String getNestedGroupResolution() {
+        return nestedGroupResolution;
+    }
+}
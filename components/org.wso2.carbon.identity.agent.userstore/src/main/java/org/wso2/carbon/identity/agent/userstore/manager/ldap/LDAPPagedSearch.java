@@ -0,0 +1,423 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.agent.userstore.exception.UserStoreException;
+import org.wso2.carbon.identity.agent.userstore.manager.common.ChunkHandler;
+import org.wso2.carbon.identity.agent.userstore.model.PagedResult;
+import org.wso2.carbon.identity.agent.userstore.util.JNDIUtil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.PartialResultException;
+import javax.naming.SizeLimitExceededException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+/**
+ *  Reads LDAP search results page by page with the RFC 2696 Simple Paged Results control.
+ *
+ *  The paged results cookie is only valid on the connection that started the search, so a search that is
+ *  continued with a page token keeps its connection until the last page is read or the search expires.
+ *  Expired searches are closed in the background, so an abandoned search holds its connection for at most
+ *  about twice the timeout.
+ */
+class LDAPPagedSearch {
+
+    private static Log log = LogFactory.getLog(LDAPPagedSearch.class);
+    private static final long MIN_EXPIRY_INTERVAL = 1000;   // ms
+
+    /**
+     *  Maps a search result to the name returned to the caller.
+     */
+    interface ResultMapper {
+
+        /**
+         * @param result Search result.
+         * @return Name of the entry, null if the entry should be skipped.
+         * @throws NamingException If the attributes of the entry cannot be read.
+         */
+        String map(SearchResult result) throws NamingException;
+    }
+
+    private final LDAPConnectionContext connectionSource;
+    private final int maxOpenSearches;
+    private final long timeout;
+    private final boolean ignorePartialResult;
+    private final Map<String, Cursor> openSearches = new ConcurrentHashMap<>();
+    // searches holding a connection, counted from the first page until they are closed
+    private final AtomicInteger reservedSearches = new AtomicInteger();
+    private final ScheduledThreadPoolExecutor expiryExecutor;
+
+    /**
+     * @param connectionSource Source of LDAP connections.
+     * @param maxOpenSearches Maximum number of searches that can be continued with a page token at a time. Each
+     *                        of them holds a connection, so this should stay well below the connection pool size.
+     * @param timeout Time in milliseconds after which an unused page token expires.
+     * @param ignorePartialResult Whether to ignore partial results caused by referrals.
+     */
+    LDAPPagedSearch(LDAPConnectionContext connectionSource, int maxOpenSearches, long timeout,
+                    boolean ignorePartialResult) {
+
+        this.connectionSource = connectionSource;
+        this.maxOpenSearches = maxOpenSearches;
+        this.timeout = timeout;
+        this.ignorePartialResult = ignorePartialResult;
+        this.expiryExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "LDAPPagedSearchExpiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long expiryInterval = Math.max(timeout, MIN_EXPIRY_INTERVAL);
+        this.expiryExecutor.scheduleWithFixedDelay(this::expireSearches, expiryInterval, expiryInterval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads all results of a search up to the count limit of the search controls, one page at a time so that
+     * server side size limits do not truncate the result.
+     * @param searchBases Escaped search bases, searched one after the other.
+     * @param filter Search filter.
+     * @param searchControls Search controls. The count limit is the maximum number of names returned.
+     * @param pageSize Number of entries requested per page.
+     * @param mapper Maps the search results to names.
+     * @return List of names of the matching entries.
+     * @throws UserStoreException If an error occurs while searching the LDAP userstore.
+     */
+    List<String> searchAll(String[] searchBases, String filter, SearchControls searchControls, int pageSize,
+                           ResultMapper mapper) throws UserStoreException {
+
+        List<String> names = new ArrayList<>();
+        searchAll(searchBases, filter, searchControls, pageSize, mapper,
+                chunk -> names.addAll(Arrays.asList(chunk)));
+        return names;
+    }
+
+    /**
+     * Reads all results of a search up to the count limit of the search controls, handing each page to the
+     * given handler as soon as it is read.
+     * @param searchBases Escaped search bases, searched one after the other.
+     * @param filter Search filter.
+     * @param searchControls Search controls. The count limit is the maximum number of names handled.
+     * @param pageSize Number of entries requested per page.
+     * @param mapper Maps the search results to names.
+     * @param handler Handler of the names of each page.
+     * @throws UserStoreException If an error occurs while searching the LDAP userstore or handling a page.
+     */
+    void searchAll(String[] searchBases, String filter, SearchControls searchControls, int pageSize,
+                   ResultMapper mapper, ChunkHandler handler) throws UserStoreException {
+        searchAll(connectionSource.getLdapContext(), searchBases, filter, searchControls, pageSize, mapper, handler);
+    }
+
+    /**
+     * Same as {@link #searchAll(String[], String, SearchControls, int, ResultMapper, ChunkHandler)}, but always
+     * searches the first server of the ConnectionURL. The incremental syncs read through this, as their change
+     * watermarks, such as uSNChanged, can only be compared between searches of the same server.
+     * @throws UserStoreException If the first server cannot be reached, or an error occurs while searching it
+     * or handling a page.
+     */
+    void searchAllOnPrimary(String[] searchBases, String filter, SearchControls searchControls, int pageSize,
+                            ResultMapper mapper, ChunkHandler handler) throws UserStoreException {
+        searchAll(connectionSource.getPrimaryLdapContext(), searchBases, filter, searchControls, pageSize, mapper,
+                handler);
+    }
+
+    private void searchAll(LdapContext context, String[] searchBases, String filter, SearchControls searchControls,
+                           int pageSize, ResultMapper mapper, ChunkHandler handler) throws UserStoreException {
+
+        Cursor cursor = new Cursor(context, searchBases, filter, searchControls, mapper);
+        long limit = searchControls.getCountLimit() > 0 ? searchControls.getCountLimit() : Integer.MAX_VALUE;
+        long count = 0;
+        try {
+            while (!cursor.isDone() && count < limit && !handler.isDone()) {
+                List<String> names = new ArrayList<>();
+                readPage(cursor, (int) Math.min(pageSize, limit - count), names);
+                if (names.size() > limit - count) {
+                    // the server ignored the page size
+                    names = names.subList(0, (int) (limit - count));
+                }
+                if (!names.isEmpty()) {
+                    count += names.size();
+                    handler.handle(names.toArray(new String[names.size()]));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @param searchBases Escaped search bases, searched one after the other.
+     * @param filter Search filter.
+     * @param searchControls Search controls. The count limit is ignored.
+     * @param pageSize Number of entries requested for the page.
+     * @param pageToken Token returned with the previous page, null to read the first page.
+     * @param mapper Maps the search results to names.
+     * @return At most pageSize names and the token of the next page, if there are more results.
+     * @throws UserStoreException If the page token is invalid or an error occurs while searching.
+     */
+    PagedResult search(String[] searchBases, String filter, SearchControls searchControls, int pageSize,
+                       String pageToken, ResultMapper mapper) throws UserStoreException {
+
+        expireSearches();
+        Cursor cursor;
+        if (pageToken == null) {
+            // the slot is reserved before the connection is borrowed, so that concurrent searches cannot pass it
+            if (reservedSearches.incrementAndGet() > maxOpenSearches) {
+                reservedSearches.decrementAndGet();
+                throw new UserStoreException("Maximum number of open paged searches " + maxOpenSearches
+                        + " reached. Retry after reading the remaining pages of the open searches.");
+            }
+            try {
+                cursor = new Cursor(connectionSource.getLdapContext(), searchBases, filter, searchControls, mapper);
+            } catch (UserStoreException | RuntimeException e) {
+                reservedSearches.decrementAndGet();
+                throw e;
+            }
+            cursor.reserved = true;
+        } else {
+            // Removing the cursor while the page is read keeps it from being used concurrently.
+            cursor = openSearches.remove(pageToken);
+            if (cursor == null) {
+                throw new UserStoreException("Invalid or expired page token: " + pageToken);
+            }
+        }
+
+        List<String> names = new ArrayList<>(cursor.overflow);
+        cursor.overflow.clear();
+        boolean completed = false;
+        try {
+            // Entries skipped by the mapper can leave the page short, so continue into the next page
+            // or search base until the page is filled.
+            while (!cursor.isDone() && names.size() < pageSize) {
+                readPage(cursor, pageSize - names.size(), names);
+            }
+            completed = true;
+        } finally {
+            if (!completed || cursor.isDone()) {
+                close(cursor);
+            }
+        }
+        if (names.size() > pageSize) {
+            // the server ignored the page size, so the rest is returned with the next page
+            cursor.overflow.addAll(names.subList(pageSize, names.size()));
+            names = names.subList(0, pageSize);
+        }
+
+        String nextPageToken = null;
+        if (!cursor.isDone() || !cursor.overflow.isEmpty()) {
+            nextPageToken = UUID.randomUUID().toString();
+            cursor.lastAccess = System.currentTimeMillis();
+            openSearches.put(nextPageToken, cursor);
+        }
+        return new PagedResult(names.toArray(new String[names.size()]), nextPageToken);
+    }
+
+    /**
+     * Stops expiring searches and closes the connections of all open searches.
+     */
+    void close() {
+
+        expiryExecutor.shutdownNow();
+        for (Iterator<Cursor> iterator = openSearches.values().iterator(); iterator.hasNext(); ) {
+            close(iterator.next());
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @return Number of searches holding a connection, both those waiting for their next page and those
+     * reading a page.
+     */
+    int getOpenSearchCount() {
+        return reservedSearches.get();
+    }
+
+    /**
+     * Closes the connection of a search and frees its slot. Closing a search again has no effect.
+     */
+    private void close(Cursor cursor) {
+        if (cursor.close() && cursor.reserved) {
+            reservedSearches.decrementAndGet();
+        }
+    }
+
+    private void expireSearches() {
+
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<String, Cursor>> iterator = openSearches.entrySet().iterator();
+             iterator.hasNext(); ) {
+            Map.Entry<String, Cursor> entry = iterator.next();
+            if (now - entry.getValue().lastAccess > timeout && openSearches.remove(entry.getKey()) != null) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Paged search " + entry.getKey() + " expired.");
+                }
+                try {
+                    close(entry.getValue());
+                } catch (RuntimeException e) {
+                    // an exception would cancel the scheduled expiry
+                    log.error("Error occurred while closing expired paged search " + entry.getKey(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads one page of the current search base of the cursor, and moves to the next search base when the
+     * current one has no more results.
+     */
+    private void readPage(Cursor cursor, int pageSize, List<String> names) throws UserStoreException {
+
+        String searchBase = cursor.searchBases[cursor.searchBaseIndex];
+        NamingEnumeration<SearchResult> answer = null;
+        byte[] cookie = null;
+        try {
+            cursor.context.setRequestControls(new Control[] {
+                    new PagedResultsControl(pageSize, cursor.cookie, Control.NONCRITICAL) });
+            answer = cursor.context.search(searchBase, cursor.filter, cursor.searchControls);
+            while (answer.hasMore()) {
+                String name = cursor.mapper.map(answer.next());
+                if (name != null) {
+                    names.add(name);
+                }
+            }
+        } catch (SizeLimitExceededException e) {
+            // the server does not support paging and its size limit was reached for this search base
+            if (log.isDebugEnabled()) {
+                log.debug("Size limit exceeded while reading results of search base " + searchBase, e);
+            }
+        } catch (PartialResultException e) {
+            // can be due to referrals in AD. so just ignore error
+            String errorMessage = "Error occurred while reading paged results. SearchBase: " + searchBase
+                    + " Filter: " + cursor.filter;
+            if (!ignorePartialResult) {
+                throw new UserStoreException(errorMessage, e);
+            }
+            if (log.isDebugEnabled()) {
+                log.debug(errorMessage, e);
+            }
+        } catch (NamingException | IOException e) {
+            String errorMessage = "Error occurred while reading paged results. SearchBase: " + searchBase
+                    + " Filter: " + cursor.filter;
+            if (log.isDebugEnabled()) {
+                log.debug(errorMessage, e);
+            }
+            throw new UserStoreException(errorMessage, e);
+        } finally {
+            JNDIUtil.closeNamingEnumeration(answer);
+        }
+
+        try {
+            Control[] responseControls = cursor.context.getResponseControls();
+            if (responseControls != null) {
+                for (Control control : responseControls) {
+                    if (control instanceof PagedResultsResponseControl) {
+                        cookie = ((PagedResultsResponseControl) control).getCookie();
+                    }
+                }
+            }
+        } catch (NamingException e) {
+            throw new UserStoreException("Error occurred while reading paged results response control.", e);
+        }
+
+        if (cookie == null || cookie.length == 0) {
+            // no more pages in this search base, or the server does not support paging
+            cursor.searchBaseIndex++;
+            cursor.cookie = null;
+        } else {
+            cursor.cookie = cookie;
+        }
+    }
+
+    /**
+     *  State of a paged search across pages.
+     */
+    private static class Cursor {
+
+        private final LdapContext context;
+        private final String[] searchBases;
+        private final String filter;
+        private final SearchControls searchControls;
+        private final ResultMapper mapper;
+        private int searchBaseIndex;
+        private byte[] cookie;
+        private volatile long lastAccess = System.currentTimeMillis();
+        // names read beyond the page size, returned first with the next page
+        private final List<String> overflow = new ArrayList<>();
+        private boolean reserved;
+        private boolean closed;
+
+        private Cursor(LdapContext context, String[] searchBases, String filter, SearchControls searchControls,
+                       ResultMapper mapper) {
+
+            this.context = context;
+            this.searchBases = searchBases;
+            this.filter = filter;
+            // the number of entries is limited by the page size instead of the count limit
+            this.searchControls = new SearchControls(searchControls.getSearchScope(), 0,
+                    searchControls.getTimeLimit(), searchControls.getReturningAttributes(),
+                    searchControls.getReturningObjFlag(), searchControls.getDerefLinkFlag());
+            this.mapper = mapper;
+        }
+
+        private boolean isDone() {
+            return searchBaseIndex >= searchBases.length;
+        }
+
+        /**
+         * @return false if the cursor was already closed.
+         */
+        private boolean close() {
+
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            try {
+                // pooled connections must not carry the paging control into other searches
+                context.setRequestControls(null);
+            } catch (NamingException e) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Error while clearing request controls of paged search connection.", e);
+                }
+            }
+            try {
+                JNDIUtil.closeContext(context);
+            } catch (UserStoreException e) {
+                log.error("Error while closing paged search connection.", e);
+            }
+            return true;
+        }
+    }
+}
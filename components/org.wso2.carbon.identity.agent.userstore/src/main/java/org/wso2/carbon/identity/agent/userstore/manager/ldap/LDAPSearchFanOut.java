@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import org.wso2.carbon.identity.agent.userstore.exception.UserStoreException;
+import org.wso2.carbon.identity.agent.userstore.manager.common.ChunkHandler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Runs a search on each of several search bases in parallel and merges the results as they arrive.
+ *
+ *  Each search base is searched on its own connection. Once the count limit of the merged results is reached,
+ *  the searches of the remaining search bases are cancelled.
+ */
+class LDAPSearchFanOut {
+
+    /**
+     *  Search of a single search base.
+     * @param <T> Type of the results.
+     */
+    interface BaseSearch<T> {
+
+        /**
+         * @param searchBase Escaped search base.
+         * @param sink Receives the results. The search should stop once the sink does not accept more results.
+         * @throws UserStoreException If an error occurs while searching. The remaining searches are cancelled.
+         */
+        void search(String searchBase, Sink<T> sink) throws UserStoreException;
+    }
+
+    /**
+     *  Receives the merged results of all search bases.
+     * @param <T> Type of the results.
+     */
+    interface ResultHandler<T> {
+
+        /**
+         * @param results Results read since the previous call.
+         * @throws UserStoreException If the results cannot be handled. The remaining searches are cancelled.
+         */
+        void handle(List<T> results) throws UserStoreException;
+    }
+
+    /**
+     *  Merges the results of the searches of all search bases up to the count limit.
+     * @param <T> Type of the results.
+     */
+    static final class Sink<T> {
+
+        private final long limit;
+        private final ResultHandler<T> handler;
+        private long count;
+        private volatile boolean done;
+
+        /**
+         * @param limit Maximum number of results, Long.MAX_VALUE for no limit.
+         * @param handler Receives the accepted results.
+         */
+        Sink(long limit, ResultHandler<T> handler) {
+            this.limit = limit;
+            this.handler = handler;
+        }
+
+        /**
+         * @param result Result of a search.
+         * @return false if no more results are accepted.
+         * @throws UserStoreException If the result cannot be handled.
+         */
+        boolean add(T result) throws UserStoreException {
+            return add(Collections.singletonList(result));
+        }
+
+        /**
+         * @param results Results of a search. The results over the count limit are dropped.
+         * @return false if no more results are accepted.
+         * @throws UserStoreException If the results cannot be handled.
+         */
+        synchronized boolean add(List<T> results) throws UserStoreException {
+
+            if (done) {
+                return false;
+            }
+            int accepted = (int) Math.min(results.size(), limit - count);
+            if (accepted > 0) {
+                count += accepted;
+                handler.handle(accepted == results.size() ? results : results.subList(0, accepted));
+            }
+            if (count >= limit) {
+                done = true;
+            }
+            return !done;
+        }
+
+        /**
+         * @return true if no more results are accepted.
+         */
+        boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Stops accepting results, e.g. once the search failed.
+         */
+        void stop() {
+            done = true;
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param threads Maximum number of search bases searched at a time. Search bases are searched one after
+     *                the other if this is one or less.
+     */
+    LDAPSearchFanOut(int threads) {
+
+        if (threads <= 1) {
+            executor = null;
+            return;
+        }
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "LDAPSearchFanOut");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param searchBases Escaped search bases.
+     * @param limit Maximum number of results, zero or less for no limit.
+     * @param search Search of a single search base.
+     * @param <T> Type of the results.
+     * @return Results of all search bases, in the order they arrived.
+     * @throws UserStoreException If an error occurs while searching.
+     */
+    <T> List<T> search(String[] searchBases, long limit, BaseSearch<T> search) throws UserStoreException {
+
+        List<T> results = new ArrayList<>();
+        search(searchBases, limit, search, results::addAll);
+        return results;
+    }
+
+    /**
+     * @param searchBases Escaped search bases.
+     * @param search Search of a single search base, adding a result if the entry exists.
+     * @param <T> Type of the results.
+     * @return true if the search of any search base found a result.
+     * @throws UserStoreException If an error occurs while searching.
+     */
+    <T> boolean exists(String[] searchBases, BaseSearch<T> search) throws UserStoreException {
+        return !search(searchBases, 1, search).isEmpty();
+    }
+
+    /**
+     * @param searchBases Escaped search bases.
+     * @param limit Maximum number of results, zero or less for no limit.
+     * @param search Search of a single search base.
+     * @param handler Receives the merged results as they arrive, from one thread at a time.
+     * @param <T> Type of the results.
+     * @throws UserStoreException If an error occurs while searching or handling the results.
+     */
+    <T> void search(String[] searchBases, long limit, BaseSearch<T> search, ResultHandler<T> handler)
+            throws UserStoreException {
+
+        Sink<T> sink = new Sink<>(limit > 0 ? limit : Long.MAX_VALUE, handler);
+        if (executor == null || searchBases.length <= 1) {
+            for (String searchBase : searchBases) {
+                if (sink.isDone()) {
+                    break;
+                }
+                search.search(searchBase, sink);
+            }
+            return;
+        }
+
+        CompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
+        List<Future<Void>> futures = new ArrayList<>();
+        try {
+            for (String searchBase : searchBases) {
+                futures.add(completionService.submit(() -> {
+                    search.search(searchBase, sink);
+                    return null;
+                }));
+            }
+            for (int i = 0; i < futures.size() && !sink.isDone(); i++) {
+                completionService.take().get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UserStoreException("Interrupted while searching " + Arrays.toString(searchBases), e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UserStoreException) {
+                throw (UserStoreException) e.getCause();
+            }
+            throw new UserStoreException("Error occurred while searching " + Arrays.toString(searchBases),
+                    e.getCause());
+        } finally {
+            // results arriving after this point are dropped
+            sink.stop();
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * @param sink Sink of a search base.
+     * @return Handler of paged search results adding them to the sink, which stops the paged search once the
+     * sink does not accept more results.
+     */
+    static ChunkHandler toChunkHandler(Sink<String> sink) {
+
+        return new ChunkHandler() {
+            @Override
+            public void handle(String[] chunk) throws UserStoreException {
+                sink.add(Arrays.asList(chunk));
+            }
+
+            @Override
+            public boolean isDone() {
+                return sink.isDone();
+            }
+        };
+    }
+
+    /**
+     * Stops the threads searching the search bases.
+     */
+    void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
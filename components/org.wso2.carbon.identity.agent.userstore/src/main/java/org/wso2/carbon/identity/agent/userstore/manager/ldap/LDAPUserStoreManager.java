@@ -24,21 +24,34 @@ import org.wso2.carbon.identity.agent.userstore.config.ClaimConfiguration;
 import org.wso2.carbon.identity.agent.userstore.constant.CommonConstants;
 import org.wso2.carbon.identity.agent.userstore.constant.LDAPConstants;
 import org.wso2.carbon.identity.agent.userstore.exception.UserStoreException;
+import org.wso2.carbon.identity.agent.userstore.manager.common.ChunkHandler;
 import org.wso2.carbon.identity.agent.userstore.manager.common.UserStoreManager;
+import org.wso2.carbon.identity.agent.userstore.model.AuthenticationResult;
+import org.wso2.carbon.identity.agent.userstore.model.PagedResult;
 import org.wso2.carbon.identity.agent.userstore.util.JNDIUtil;
 import org.wso2.carbon.identity.agent.userstore.util.UserStoreUtils;
 
 import java.io.UnsupportedEncodingException;
-import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.Optional;
 import javax.naming.AuthenticationException;
 import javax.naming.InvalidNameException;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.PartialResultException;
@@ -60,11 +73,28 @@ public class LDAPUserStoreManager implements UserStoreManager {
 
     private Map<String, String> userStoreProperties = null;
     private static Log log = LogFactory.getLog(LDAPUserStoreManager.class);
-    private static final String MULTI_ATTRIBUTE_SEPARATOR = "MultiAttributeSeparator";
-    private static final String PROPERTY_REFERRAL_IGNORE = "ignore";
-    private static final String MEMBER_UID = "memberUid";
-    private boolean emptyRolesAllowed = false;
+    // option of the attribute ids in Active Directory ranged retrieval, e.g. member;range=0-1499
+    private static final String RANGE_OPTION = ";range=";
+    private static final String SERVICE_NAME_ATTRIBUTE = "sn";
+    // prefix of the page tokens of listings answered by the directory replica
+    private static final String REPLICA_PAGE_TOKEN_PREFIX = "replica:";
+    // prefix of the page tokens of listings answered by the username index
+    private static final String INDEX_PAGE_TOKEN_PREFIX = "index:";
+    // open paged searches may hold at most a quarter of the search connection pool
+    private static final int PAGED_SEARCH_POOL_DIVISOR = 4;
+    private LDAPOperationConfig config;
     private LDAPConnectionContext connectionSource;
+    private UserDNCache userDNCache;
+    private ClaimValueCache claimValueCache;
+    private CredentialCache credentialCache;
+    private LDAPPagedSearch pagedSearch;
+    private ExecutorService memberResolutionExecutor;
+    private LDAPSearchFanOut searchFanOut;
+    private NestedGroupGraph nestedGroupGraph;
+    private DirectoryReplica directoryReplica;
+    private ExistenceFilter existenceFilter;
+    private UserNameIndex userNameIndex;
+    private MembershipIndex membershipIndex;
 
     public LDAPUserStoreManager() {
     }
@@ -77,15 +107,281 @@ public class LDAPUserStoreManager implements UserStoreManager {
                     "User Store Properties Could not be found!");
         }
         // check if required configurations are in the user-mgt.xml
-        checkRequiredUserStoreConfigurations();
+        checkRequiredUserStoreConfigurations(this.userStoreProperties);
+        this.config = new LDAPOperationConfig(this.userStoreProperties);
         this.connectionSource = new LDAPConnectionContext(this.userStoreProperties);
+        this.userDNCache = createUserDNCache(this.userStoreProperties);
+        this.claimValueCache = createClaimValueCache(this.userStoreProperties, this::getUserPropertyValues);
+        this.credentialCache = createCredentialCache(this.userStoreProperties);
+        this.pagedSearch = createPagedSearch();
+        this.memberResolutionExecutor = createMemberResolutionExecutor();
+        this.searchFanOut = new LDAPSearchFanOut(LDAPConnectionContext.getIntProperty(userStoreProperties,
+                LDAPConstants.SEARCH_BASE_THREADS, LDAPConstants.DEFAULT_SEARCH_BASE_THREADS));
+        this.nestedGroupGraph = createNestedGroupGraph();
+        this.directoryReplica = createDirectoryReplica();
+        this.existenceFilter = createExistenceFilter();
+        this.userNameIndex = createUserNameIndex();
+        this.membershipIndex = createMembershipIndex();
+    }
+
+    /**
+     * @param userStoreProperties Properties read from the userstore-mgt.xml file.
+     * @return The username to DN cache, null if it is disabled in the userstore-mgt.xml.
+     */
+    static UserDNCache createUserDNCache(Map<String, String> userStoreProperties) {
+        String enabled = userStoreProperties.get(LDAPConstants.USER_DN_CACHE_ENABLED);
+        if (enabled != null && !Boolean.parseBoolean(enabled.trim())) {
+            return null;
+        }
+        return new UserDNCache(
+                LDAPConnectionContext.getIntProperty(userStoreProperties, LDAPConstants.USER_DN_CACHE_SIZE,
+                        LDAPConstants.DEFAULT_USER_DN_CACHE_SIZE),
+                LDAPConnectionContext.getIntProperty(userStoreProperties, LDAPConstants.USER_DN_CACHE_TTL,
+                        LDAPConstants.DEFAULT_USER_DN_CACHE_TTL),
+                LDAPConnectionContext.getIntProperty(userStoreProperties, LDAPConstants.USER_DN_CACHE_NEGATIVE_TTL,
+                        LDAPConstants.DEFAULT_USER_DN_CACHE_NEGATIVE_TTL));
+    }
+
+    /**
+     * @param userStoreProperties Properties read from the userstore-mgt.xml file.
+     * @param loader Loads the attribute values of a user from the LDAP userstore.
+     * @return The attribute value cache used for claims, null unless it is enabled in the userstore-mgt.xml.
+     */
+    static ClaimValueCache createClaimValueCache(Map<String, String> userStoreProperties,
+                                                 ClaimValueCache.Loader loader) {
+        String enabled = userStoreProperties.get(LDAPConstants.CLAIM_CACHE_ENABLED);
+        if (enabled == null || !Boolean.parseBoolean(enabled.trim())) {
+            return null;
+        }
+        return new ClaimValueCache(loader,
+                LDAPConnectionContext.getIntProperty(userStoreProperties, LDAPConstants.CLAIM_CACHE_MAX_MEMORY,
+                        LDAPConstants.DEFAULT_CLAIM_CACHE_MAX_MEMORY),
+                LDAPConnectionContext.getIntProperty(userStoreProperties, LDAPConstants.CLAIM_CACHE_TTL,
+                        LDAPConstants.DEFAULT_CLAIM_CACHE_TTL),
+                LDAPConnectionContext.getIntProperty(userStoreProperties, LDAPConstants.CLAIM_CACHE_REFRESH_AFTER,
+                        LDAPConstants.DEFAULT_CLAIM_CACHE_REFRESH_AFTER),
+                Boolean.parseBoolean(StringUtils.trim(userStoreProperties.get(LDAPConstants.CLAIM_CACHE_OFF_HEAP))));
+    }
+
+    /**
+     * @param userStoreProperties Properties read from the userstore-mgt.xml file.
+     * @return The cache of verified credentials, null unless it is enabled in the userstore-mgt.xml.
+     */
+    static CredentialCache createCredentialCache(Map<String, String> userStoreProperties) {
+        String enabled = userStoreProperties.get(LDAPConstants.CREDENTIAL_CACHE_ENABLED);
+        if (enabled == null || !Boolean.parseBoolean(enabled.trim())) {
+            return null;
+        }
+        return new CredentialCache(
+                LDAPConnectionContext.getIntProperty(userStoreProperties, LDAPConstants.CREDENTIAL_CACHE_SIZE,
+                        LDAPConstants.DEFAULT_CREDENTIAL_CACHE_SIZE),
+                LDAPConnectionContext.getIntProperty(userStoreProperties, LDAPConstants.CREDENTIAL_CACHE_TTL,
+                        LDAPConstants.DEFAULT_CREDENTIAL_CACHE_TTL),
+                LDAPConnectionContext.getIntProperty(userStoreProperties, LDAPConstants.CREDENTIAL_CACHE_OUTAGE_TTL,
+                        LDAPConstants.DEFAULT_CREDENTIAL_CACHE_OUTAGE_TTL),
+                LDAPConnectionContext.getIntProperty(userStoreProperties, LDAPConstants.CREDENTIAL_CACHE_HASH_COST,
+                        LDAPConstants.DEFAULT_CREDENTIAL_CACHE_HASH_COST));
+    }
+
+    /**
+     * @return Paged search over the connections of the userstore.
+     */
+    private LDAPPagedSearch createPagedSearch() {
+
+        int maxOpenSearches = LDAPConnectionContext.getIntProperty(userStoreProperties,
+                LDAPConstants.MAX_OPEN_PAGED_SEARCHES, LDAPConstants.DEFAULT_MAX_OPEN_PAGED_SEARCHES);
+        if (Boolean.parseBoolean(StringUtils.trim(userStoreProperties.get(LDAPConstants.CONNECTION_POOLING_ENABLED)))) {
+            // each open search holds a search connection, which logins and attribute reads need as well
+            int limit = Math.max(1, LDAPConnectionContext.getIntProperty(userStoreProperties,
+                    LDAPConstants.CONNECTION_POOL_MAX_SIZE, LDAPConstants.DEFAULT_CONNECTION_POOL_MAX_SIZE)
+                    / PAGED_SEARCH_POOL_DIVISOR);
+            if (maxOpenSearches > limit) {
+                log.warn(LDAPConstants.MAX_OPEN_PAGED_SEARCHES + " " + maxOpenSearches + " is limited to " + limit
+                        + ", a quarter of " + LDAPConstants.CONNECTION_POOL_MAX_SIZE + ".");
+                maxOpenSearches = limit;
+            }
+        }
+        return new LDAPPagedSearch(connectionSource, maxOpenSearches,
+                LDAPConnectionContext.getIntProperty(userStoreProperties, LDAPConstants.PAGED_SEARCH_TIMEOUT,
+                        LDAPConstants.DEFAULT_PAGED_SEARCH_TIMEOUT),
+                config.isIgnorePartialResult());
+    }
+
+    /**
+     * @return Graph of the nested groups, null unless nested groups are resolved with the group graph.
+     */
+    private NestedGroupGraph createNestedGroupGraph() {
+        if (!LDAPConstants.NESTED_GROUP_RESOLUTION_GROUP_GRAPH.equals(config.getNestedGroupResolution())) {
+            return null;
+        }
+        return new NestedGroupGraph((modifiedSince, handler) ->
+                loadGroups(LDAPConstants.MODIFY_TIMESTAMP_ATTRIBUTE, modifiedSince, handler),
+                config.getGroupSearchBase().split(CommonConstants.XML_PATTERN_SEPERATOR),
+                LDAPConnectionContext.getIntProperty(userStoreProperties,
+                        LDAPConstants.NESTED_GROUP_GRAPH_REFRESH_INTERVAL,
+                        LDAPConstants.DEFAULT_NESTED_GROUP_GRAPH_REFRESH_INTERVAL),
+                LDAPConnectionContext.getIntProperty(userStoreProperties,
+                        LDAPConstants.NESTED_GROUP_GRAPH_FULL_REFRESH_INTERVAL,
+                        LDAPConstants.DEFAULT_NESTED_GROUP_GRAPH_FULL_REFRESH_INTERVAL));
+    }
+
+    /**
+     * @return Replica of the users and groups answering the read operations, null unless it is enabled in the
+     * userstore-mgt.xml.
+     */
+    private DirectoryReplica createDirectoryReplica() {
+        String enabled = userStoreProperties.get(LDAPConstants.REPLICA_ENABLED);
+        if (enabled == null || !Boolean.parseBoolean(enabled.trim())) {
+            return null;
+        }
+        String changeAttribute = userStoreProperties.get(LDAPConstants.REPLICA_CHANGE_ATTRIBUTE);
+        return new DirectoryReplica(new DirectoryReplica.Loader() {
+            @Override
+            public void loadUsers(String changeAttribute, String changedSince, DirectoryReplica.UserHandler handler)
+                    throws UserStoreException {
+                LDAPUserStoreManager.this.loadUsers(changeAttribute, changedSince, handler);
+            }
+
+            @Override
+            public void loadGroups(String changeAttribute, String changedSince,
+                                   NestedGroupGraph.GroupHandler handler) throws UserStoreException {
+                LDAPUserStoreManager.this.loadGroups(changeAttribute, changedSince, handler);
+            }
+        }, StringUtils.isBlank(changeAttribute) ? LDAPConstants.MODIFY_TIMESTAMP_ATTRIBUTE : changeAttribute.trim(),
+                config.isMembershipByUserName(),
+                !LDAPConstants.NESTED_GROUP_RESOLUTION_NONE.equals(config.getNestedGroupResolution()),
+                LDAPConnectionContext.getIntProperty(userStoreProperties, LDAPConstants.REPLICA_SYNC_INTERVAL,
+                        LDAPConstants.DEFAULT_REPLICA_SYNC_INTERVAL),
+                LDAPConnectionContext.getIntProperty(userStoreProperties, LDAPConstants.REPLICA_FULL_SYNC_INTERVAL,
+                        LDAPConstants.DEFAULT_REPLICA_FULL_SYNC_INTERVAL),
+                LDAPConnectionContext.getIntProperty(userStoreProperties, LDAPConstants.REPLICA_MAX_STALENESS,
+                        LDAPConstants.DEFAULT_REPLICA_MAX_STALENESS));
+    }
+
+    /**
+     * @return Bloom filters of the usernames and role names, null unless they are enabled in the
+     * userstore-mgt.xml.
+     */
+    private ExistenceFilter createExistenceFilter() {
+        String enabled = userStoreProperties.get(LDAPConstants.EXISTENCE_FILTER_ENABLED);
+        if (enabled == null || !Boolean.parseBoolean(enabled.trim())) {
+            return null;
+        }
+        double falsePositiveRate = LDAPConstants.DEFAULT_EXISTENCE_FILTER_FALSE_POSITIVE_RATE;
+        String rate = userStoreProperties.get(LDAPConstants.EXISTENCE_FILTER_FALSE_POSITIVE_RATE);
+        if (StringUtils.isNotBlank(rate)) {
+            try {
+                falsePositiveRate = Double.parseDouble(rate.trim());
+            } catch (NumberFormatException e) {
+                log.warn("Invalid value " + rate + " for " + LDAPConstants.EXISTENCE_FILTER_FALSE_POSITIVE_RATE
+                        + ". Using the default value " + falsePositiveRate);
+            }
+        }
+        // the names are read with the filters of the existence checks, so that the filters hold the same names
+        ExistenceFilter.Loader userLoader = (modifiedSince, handler) -> loadNames(config.getUserSearchBases(),
+                config.getUserNameSearchFilter(CommonConstants.WILD_CARD_FILTER), config.getUserNameAttribute(),
+                modifiedSince, handler);
+        if (!config.isUserDNPatternsInUserSearchBases()) {
+            // users found through such a pattern are not read into the filter, so users are always searched
+            log.info("Users are not checked against the existence filter since " + LDAPConstants.USER_DN_PATTERN
+                    + " names entries outside " + LDAPConstants.USER_SEARCH_BASE + ".");
+            userLoader = null;
+        }
+        return new ExistenceFilter(userLoader,
+                (modifiedSince, handler) -> loadNames(config.getGroupSearchBases(),
+                        config.getRoleFilter(CommonConstants.WILD_CARD_FILTER),
+                        config.getGroupNameAttribute(), modifiedSince, handler),
+                falsePositiveRate,
+                LDAPConnectionContext.getIntProperty(userStoreProperties, LDAPConstants.EXISTENCE_FILTER_MAX_MEMORY,
+                        LDAPConstants.DEFAULT_EXISTENCE_FILTER_MAX_MEMORY),
+                LDAPConnectionContext.getIntProperty(userStoreProperties,
+                        LDAPConstants.EXISTENCE_FILTER_REFRESH_INTERVAL,
+                        LDAPConstants.DEFAULT_EXISTENCE_FILTER_REFRESH_INTERVAL),
+                LDAPConnectionContext.getIntProperty(userStoreProperties,
+                        LDAPConstants.EXISTENCE_FILTER_REBUILD_INTERVAL,
+                        LDAPConstants.DEFAULT_EXISTENCE_FILTER_REBUILD_INTERVAL));
+    }
+
+    /**
+     * @return Sorted index of the usernames and display names answering user listings, null unless it is enabled
+     * in the userstore-mgt.xml.
+     */
+    private UserNameIndex createUserNameIndex() {
+        String enabled = userStoreProperties.get(LDAPConstants.USER_NAME_INDEX_ENABLED);
+        if (enabled == null || !Boolean.parseBoolean(enabled.trim())) {
+            return null;
+        }
+        return new UserNameIndex(this::loadUserNames,
+                LDAPConnectionContext.getIntProperty(userStoreProperties,
+                        LDAPConstants.USER_NAME_INDEX_REFRESH_INTERVAL,
+                        LDAPConstants.DEFAULT_USER_NAME_INDEX_REFRESH_INTERVAL),
+                LDAPConnectionContext.getIntProperty(userStoreProperties,
+                        LDAPConstants.USER_NAME_INDEX_REBUILD_INTERVAL,
+                        LDAPConstants.DEFAULT_USER_NAME_INDEX_REBUILD_INTERVAL),
+                LDAPConnectionContext.getIntProperty(userStoreProperties, LDAPConstants.USER_NAME_INDEX_MAX_STALENESS,
+                        LDAPConstants.DEFAULT_USER_NAME_INDEX_MAX_STALENESS));
+    }
+
+    /**
+     * @return Index of the group memberships answering the membership reads, null unless it is enabled in the
+     * userstore-mgt.xml.
+     */
+    private MembershipIndex createMembershipIndex() {
+        String enabled = userStoreProperties.get(LDAPConstants.MEMBERSHIP_INDEX_ENABLED);
+        if (enabled == null || !Boolean.parseBoolean(enabled.trim())) {
+            return null;
+        }
+        return new MembershipIndex(new MembershipIndex.Loader() {
+            @Override
+            public void loadUsers(String modifiedSince, UserNameIndex.UserHandler handler)
+                    throws UserStoreException {
+                loadUserNames(modifiedSince, handler);
+            }
+
+            @Override
+            public void loadGroups(String modifiedSince, NestedGroupGraph.GroupHandler handler)
+                    throws UserStoreException {
+                LDAPUserStoreManager.this.loadGroups(LDAPConstants.MODIFY_TIMESTAMP_ATTRIBUTE, modifiedSince,
+                        handler);
+            }
+        }, config.isMembershipByUserName(),
+                !LDAPConstants.NESTED_GROUP_RESOLUTION_NONE.equals(config.getNestedGroupResolution()),
+                LDAPConnectionContext.getIntProperty(userStoreProperties,
+                        LDAPConstants.MEMBERSHIP_INDEX_REFRESH_INTERVAL,
+                        LDAPConstants.DEFAULT_MEMBERSHIP_INDEX_REFRESH_INTERVAL),
+                LDAPConnectionContext.getIntProperty(userStoreProperties,
+                        LDAPConstants.MEMBERSHIP_INDEX_REBUILD_INTERVAL,
+                        LDAPConstants.DEFAULT_MEMBERSHIP_INDEX_REBUILD_INTERVAL),
+                LDAPConnectionContext.getIntProperty(userStoreProperties, LDAPConstants.MEMBERSHIP_INDEX_MAX_STALENESS,
+                        LDAPConstants.DEFAULT_MEMBERSHIP_INDEX_MAX_STALENESS));
+    }
+
+    /**
+     * @return Executor reading the members of a role in parallel, null if they are read sequentially.
+     */
+    private ExecutorService createMemberResolutionExecutor() {
+        int threads = LDAPConnectionContext.getIntProperty(userStoreProperties,
+                LDAPConstants.MEMBER_RESOLUTION_THREADS, LDAPConstants.DEFAULT_MEMBER_RESOLUTION_THREADS);
+        if (threads <= 1) {
+            return null;
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "LDAPMemberResolution");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     /**
      * checks whether all the mandatory properties of user store are set.
+     * @param userStoreProperties Properties read from the userstore-mgt.xml file.
      * @throws UserStoreException If any of the mandatory properties are not set in the userstore-mgt.xml.
      */
-    private void checkRequiredUserStoreConfigurations() throws UserStoreException {
+    static void checkRequiredUserStoreConfigurations(Map<String, String> userStoreProperties)
+            throws UserStoreException {
 
         log.debug("Checking LDAP configurations ");
         String connectionURL = userStoreProperties.get(LDAPConstants.CONNECTION_URL);
@@ -161,7 +457,6 @@ public class LDAPUserStoreManager implements UserStoreManager {
             throw new UserStoreException(
                     "Required MembershipAttribute property is not set at the LDAP configurations");
         }
-        emptyRolesAllowed = Boolean.parseBoolean(userStoreProperties.get(LDAPConstants.EMPTY_ROLES_ALLOWED));
     }
 
     /**
@@ -188,50 +483,90 @@ public class LDAPUserStoreManager implements UserStoreManager {
             log.debug("Authenticating user " + userName);
         }
 
+        if (credentialCache != null && credentialCache.isVerified(userName, (String) credential)) {
+            if (debug) {
+                log.debug("User " + userName + " authenticated with a cached credential.");
+            }
+            return true;
+        }
+        boolean bValue;
+        try {
+            bValue = bindUser(userName, (String) credential);
+        } catch (UserStoreException e) {
+            if (isVerifiedDuringOutage(userName, (String) credential, e)) {
+                return true;
+            }
+            throw e;
+        }
+        updateCredentialCache(userName, (String) credential, bValue);
+        if (bValue && existenceFilter != null) {
+            existenceFilter.addUser(userName);
+        }
+        return bValue;
+    }
+
+    /**
+     * Binds as the user, using the DN patterns if they are configured.
+     * @param userName Username of the user.
+     * @param credential Credential of the user.
+     * @return true if the bind succeeded, false if the credential is invalid or the user does not exist.
+     * @throws UserStoreException If the LDAP userstore could not be reached.
+     */
+    private boolean bindUser(String userName, String credential) throws UserStoreException {
+
+        boolean debug = log.isDebugEnabled();
         boolean bValue = false;
         String name;
-        // read DN patterns from user-mgt.xml
-        String patterns = userStoreProperties.get(LDAPConstants.USER_DN_PATTERN);
+        // DN patterns from user-mgt.xml, split on # when the properties were set
+        List<LDAPOperationConfig.Template> userDNPatterns = config.getUserDNPatterns();
 
-        if (patterns != null && !patterns.isEmpty()) {
+        if (!userDNPatterns.isEmpty()) {
 
             if (debug) {
-                log.debug("Using UserDNPatterns " + patterns);
+                log.debug("Using UserDNPatterns " + config.getUserDNPattern());
             }
 
-            // if the property is present, split it using # to see if there are
-            // multiple patterns specified.
-            String[] userDNPatternList = patterns.split(CommonConstants.XML_PATTERN_SEPERATOR);
-            if (userDNPatternList.length > 0) {
-                for (String userDNPattern : userDNPatternList) {
-                    name = MessageFormat.format(userDNPattern, escapeSpecialCharactersForDN(userName));
+            String escapedUserName = escapeSpecialCharactersForDN(userName);
+            NamingException bindError = null;
+            int failedBinds = 0;
+            for (LDAPOperationConfig.Template userDNPattern : userDNPatterns) {
+                name = userDNPattern.format(escapedUserName);
 
-                    if (debug) {
-                        log.debug("Authenticating with " + name);
+                if (debug) {
+                    log.debug("Authenticating with " + name);
+                }
+                try {
+                    bValue = this.bindAsUser(name, credential);
+                    if (bValue) {
+                        break;
                     }
-                    try {
-                        bValue = this.bindAsUser(name, (String) credential);
-                        if (bValue) {
-                            break;
-                        }
-                    } catch (NamingException e) {
-                        // do nothing if bind fails since we check for other DN
-                        // patterns as well.
-                        if (log.isDebugEnabled()) {
-                            log.debug("Checking authentication with UserDN " + userDNPattern +
-                                    "failed " + e.getMessage(), e);
-                        }
+                } catch (NamingException e) {
+                    // do nothing if bind fails since we check for other DN
+                    // patterns as well.
+                    bindError = e;
+                    failedBinds++;
+                    if (log.isDebugEnabled()) {
+                        log.debug("Checking authentication with UserDN " + name +
+                                "failed " + e.getMessage(), e);
                     }
                 }
             }
+            if (!bValue && failedBinds == userDNPatterns.size()) {
+                // no pattern could be checked, so the credential is neither accepted nor rejected
+                throw new UserStoreException("Cannot bind user : " + userName, bindError);
+            }
         } else {
-            name = getNameInSpaceForUserName(userName);
+            name = lookUpUserDN(userName);
             try {
                 if (name != null) {
                     if (debug) {
                         log.debug("Authenticating with " + name);
                     }
-                    bValue = this.bindAsUser(name, (String) credential);
+                    bValue = this.bindAsUser(name, credential);
+                }
+                if (!bValue) {
+                    // The cached DN may be stale if the user was moved or renamed.
+                    invalidateUserDNCache(userName);
                 }
             } catch (NamingException e) {
                 String errorMessage = "Cannot bind user : " + userName;
@@ -248,38 +583,137 @@ public class LDAPUserStoreManager implements UserStoreManager {
     /**
      * {@inheritDoc}
      */
-    public boolean doCheckExistingUser(String userName) throws UserStoreException {
+    @Override
+    public boolean isCredentialCached(String userName, Object credential) {
+        return credentialCache != null && userName != null && credential instanceof String
+                && credentialCache.contains(userName.trim(), (String) credential);
+    }
 
-        if (log.isDebugEnabled()) {
-            log.debug("Searching for user " + userName);
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public AuthenticationResult doAuthenticateAndGetUser(String userName, Object credential, String[] claimUris)
+            throws UserStoreException {
+
+        AuthenticationResult result = new AuthenticationResult();
+        if (userName == null || credential == null) {
+            return result;
+        }
+
+        userName = userName.trim();
+        String password = ((String) credential).trim();
+        if (userName.equals("") || password.equals("")) {
+            return result;
         }
-        boolean bFound = false;
-        String userSearchFilter = userStoreProperties.get(LDAPConstants.USER_NAME_SEARCH_FILTER);
-        userSearchFilter = userSearchFilter.replace("?", escapeSpecialCharactersForFilter(userName));
+
+        // resolve the DN once and reuse it for the bind, claims and roles
+        String userDN = null;
+        boolean outage = false;
         try {
-            String searchBase = null;
-            String userDN = null;
-
-            String userDNPattern = userStoreProperties.get(LDAPConstants.USER_DN_PATTERN);
-            if (userDNPattern != null && userDNPattern.trim().length() > 0) {
-                String[] patterns = userDNPattern.split(CommonConstants.XML_PATTERN_SEPERATOR);
-                for (String pattern : patterns) {
-                    searchBase = MessageFormat.format(pattern, escapeSpecialCharactersForDN(userName));
-                    userDN = getNameInSpaceForUserName(userName, searchBase, userSearchFilter);
-                    if (userDN != null && userDN.length() > 0) {
-                        bFound = true;
-                        break;
+            userDN = getUserDN(userName);
+            if (userDN == null) {
+                return result;
+            }
+            if (credentialCache == null || !credentialCache.isVerified(userName, (String) credential)) {
+                boolean authenticated;
+                try {
+                    authenticated = this.bindAsUser(userDN, (String) credential);
+                } catch (NamingException e) {
+                    String errorMessage = "Cannot bind user : " + userName;
+                    if (log.isDebugEnabled()) {
+                        log.debug(errorMessage, e);
                     }
+                    throw new UserStoreException(errorMessage, e);
+                }
+                updateCredentialCache(userName, (String) credential, authenticated);
+                if (!authenticated) {
+                    invalidateUserDNCache(userName);
+                    return result;
+                }
+                if (existenceFilter != null) {
+                    existenceFilter.addUser(userName);
                 }
             }
+        } catch (UserStoreException e) {
+            if (!isVerifiedDuringOutage(userName, (String) credential, e)) {
+                throw e;
+            }
+            outage = true;
+        }
+        result.setAuthenticated(true);
+        if (outage) {
+            return getOutageResult(result, userName, claimUris);
+        }
 
-            if (!bFound) {
-                searchBase = userStoreProperties.get(LDAPConstants.USER_SEARCH_BASE);
-                userDN = getNameInSpaceForUserName(userName, searchBase, userSearchFilter);
-                if (userDN != null && userDN.length() > 0) {
-                    bFound = true;
-                }
+        if (claimUris != null && claimUris.length > 0) {
+            result.setClaims(getUserClaimValues(userName, userDN, claimUris));
+        }
+        if (isReadFromReplica()) {
+            List<String> roles = directoryReplica.getRolesOfUser(userName);
+            result.setRoles(roles.toArray(new String[roles.size()]));
+        } else if (isReadFromMembershipIndex()) {
+            List<String> roles = membershipIndex.getRolesOfUser(userName);
+            result.setRoles(roles.toArray(new String[roles.size()]));
+        } else {
+            result.setRoles(getLDAPRoleListOfUser(userName, userDN));
+        }
+        return result;
+    }
+
+    /**
+     * Completes the result of a user authenticated with a cached credential while the LDAP userstore is down.
+     * The claims and roles are only read from the caches, the replica and the membership index, as reading them
+     * from LDAP would fail the whole authentication.
+     * @param result Result of the authentication.
+     * @param userName Username of the user.
+     * @param claimUris Array of required attributes' names.
+     * @return The result, without the claims or roles which cannot be read without the LDAP userstore.
+     */
+    private AuthenticationResult getOutageResult(AuthenticationResult result, String userName, String[] claimUris) {
+
+        if (claimUris != null && claimUris.length > 0) {
+            try {
+                result.setClaims(getUserClaimValues(userName, null, claimUris));
+            } catch (UserStoreException e) {
+                log.warn("Claims of user " + userName + " are not returned as the LDAP userstore could not be "
+                        + "reached: " + e.getMessage());
+            }
+        }
+        if (isReadFromReplica()) {
+            List<String> roles = directoryReplica.getRolesOfUser(userName);
+            result.setRoles(roles.toArray(new String[roles.size()]));
+        } else if (isReadFromMembershipIndex()) {
+            List<String> roles = membershipIndex.getRolesOfUser(userName);
+            result.setRoles(roles.toArray(new String[roles.size()]));
+        } else {
+            log.warn("Roles of user " + userName + " are not returned as the LDAP userstore could not be reached "
+                    + "and no replica or membership index is available.");
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean doCheckExistingUser(String userName) throws UserStoreException {
+
+        if (log.isDebugEnabled()) {
+            log.debug("Searching for user " + userName);
+        }
+        if (isReadFromReplica()) {
+            return directoryReplica.isExistingUser(userName);
+        }
+        if (existenceFilter != null && !existenceFilter.mayContainUser(userName)) {
+            if (log.isDebugEnabled()) {
+                log.debug("User: " + userName + " is not in the existence filter.");
             }
+            return false;
+        }
+        boolean bFound;
+        try {
+            String userDN = getNameInSpaceForUserName(userName);
+            bFound = userDN != null && userDN.length() > 0;
         } catch (Exception e) {
             String errorMessage = "Error occurred while checking existence of user : " + userName;
             if (log.isDebugEnabled()) {
@@ -290,6 +724,9 @@ public class LDAPUserStoreManager implements UserStoreManager {
         if (log.isDebugEnabled()) {
             log.debug("User: " + userName + " exist: " + bFound);
         }
+        if (!bFound && existenceFilter != null) {
+            existenceFilter.falsePositive();
+        }
         return bFound;
     }
 
@@ -298,6 +735,18 @@ public class LDAPUserStoreManager implements UserStoreManager {
      */
     public Map<String, String> getUserClaimValues(String userName, String[] claimUris)
             throws UserStoreException {
+        return getUserClaimValues(userName, null, claimUris);
+    }
+
+    /**
+     * @param userName Username of the user
+     * @param userDN DN of the user if it is already resolved, null otherwise.
+     * @param claimUris Array of required attributes' names
+     * @return Map containing the name value pairs of required attributes
+     * @throws UserStoreException If an error occurs while retrieving data.
+     */
+    private Map<String, String> getUserClaimValues(String userName, String userDN, String[] claimUris)
+            throws UserStoreException {
 
         if (log.isDebugEnabled()) {
             log.debug("Claim uris to retrieve for user " + userName + ": " + Arrays.toString(claimUris));
@@ -307,33 +756,90 @@ public class LDAPUserStoreManager implements UserStoreManager {
             log.debug("propertyNames to retrieve for user " + userName + ": " + Arrays.toString(propertyNames));
         }
 
-        String userAttributeSeparator = ",";
-        String userDN = null;
+        Map<String, String> values;
+        if ((propertyNames.length == 0 || !propertyNames[0].equals(CommonConstants.WILD_CARD_FILTER))
+                && isReadFromReplica()) {
+            values = directoryReplica.getUserAttributes(userName, propertyNames);
+        } else if (claimValueCache != null && propertyNames.length > 0
+                && !propertyNames[0].equals(CommonConstants.WILD_CARD_FILTER)) {
+            values = getCachedUserPropertyValues(userName, userDN, propertyNames);
+        } else {
+            values = getUserPropertyValues(userName, userDN, propertyNames);
+        }
+
+        Map<String, String> claimValues = new HashMap<>();
+        Map<String, String> claimMap = ClaimConfiguration.getConfiguration().getClaimMap();
+        for (String claim : claimUris) {
+            Optional<String> value = Optional.ofNullable(values.get(claimMap.get(claim)));
+            value.ifPresent(s -> claimValues.put(claim, s));
+        }
+
+        return claimValues;
+    }
+
+    /**
+     * @param userName Username of the user.
+     * @param userDN DN of the user if it is already resolved, null otherwise.
+     * @param propertyNames Names of the required LDAP attributes.
+     * @return Map of attribute names to values, served from the claim value cache where possible.
+     * @throws UserStoreException If an error occurs while retrieving the attributes that are not cached.
+     */
+    private Map<String, String> getCachedUserPropertyValues(String userName, String userDN, String[] propertyNames)
+            throws UserStoreException {
+
+        List<String> missing = new ArrayList<>();
+        Map<String, String> values = claimValueCache.get(userName, propertyNames, missing);
+        if (!missing.isEmpty()) {
+            String[] missingPropertyNames = missing.toArray(new String[missing.size()]);
+            Map<String, String> loadedValues = getUserPropertyValues(userName, userDN, missingPropertyNames);
+            claimValueCache.put(userName, userDN, missingPropertyNames, loadedValues);
+            values.putAll(loadedValues);
+        }
+        return values;
+    }
+
+    /**
+     * @param userName Username of the user.
+     * @param propertyNames Names of the required LDAP attributes.
+     * @return Map of attribute names to values read from the LDAP userstore.
+     * @throws UserStoreException If an error occurs while retrieving data.
+     */
+    private Map<String, String> getUserPropertyValues(String userName, String[] propertyNames)
+            throws UserStoreException {
+        return getUserPropertyValues(userName, null, propertyNames);
+    }
 
-        // read list of patterns from user-mgt.xml
-        String patterns = userStoreProperties.get(LDAPConstants.USER_DN_PATTERN);
+    /**
+     * @param userName Username of the user.
+     * @param knownUserDN DN of the user if it is already resolved, null otherwise.
+     * @param propertyNames Names of the required LDAP attributes.
+     * @return Map of attribute names to values read from the LDAP userstore.
+     * @throws UserStoreException If an error occurs while retrieving data.
+     */
+    private Map<String, String> getUserPropertyValues(String userName, String knownUserDN, String[] propertyNames)
+            throws UserStoreException {
+
+        String userDN = knownUserDN;
 
-        if (patterns != null && !patterns.isEmpty()) {
+        if (userDN == null && !config.getUserDNPatterns().isEmpty()) {
 
             if (log.isDebugEnabled()) {
-                log.debug("Using User DN Patterns " + patterns);
+                log.debug("Using User DN Patterns " + config.getUserDNPattern());
             }
 
-            if (patterns.contains(CommonConstants.XML_PATTERN_SEPERATOR)) {
+            LDAPOperationConfig.Template userDNPattern = config.getSingleUserDNPattern();
+            if (userDNPattern == null) {
                 userDN = getNameInSpaceForUserName(userName);
             } else {
-                userDN = MessageFormat.format(patterns, escapeSpecialCharactersForDN(userName));
+                userDN = userDNPattern.format(escapeSpecialCharactersForDN(userName));
             }
         }
 
         Map<String, String> values = new HashMap<>();
         DirContext dirContext = this.connectionSource.getContext();
-        String userSearchFilter = userStoreProperties.get(LDAPConstants.USER_NAME_SEARCH_FILTER);
-        String searchFilter = userSearchFilter.replace("?", escapeSpecialCharactersForFilter(userName));
+        String searchFilter = config.getUserNameSearchFilter(escapeSpecialCharactersForFilter(userName));
 
         NamingEnumeration<?> answer = null;
-        NamingEnumeration<?> attrs = null;
-        NamingEnumeration<?> allAttrs = null;
         try {
             if (userDN != null) {
                 SearchControls searchCtls = new SearchControls();
@@ -357,6 +863,9 @@ public class LDAPUserStoreManager implements UserStoreManager {
                         throw new UserStoreException(errorMessage, e);
                     }
                 } catch (NamingException e) {
+                    if (e instanceof NameNotFoundException) {
+                        invalidateUserDNCache(userName);
+                    }
                     String errorMessage = "Error occurred while searching directory context for user : "
                             + userDN + " searchFilter : " + searchFilter;
                     if (log.isDebugEnabled()) {
@@ -370,46 +879,7 @@ public class LDAPUserStoreManager implements UserStoreManager {
             assert answer != null;
             while (answer.hasMoreElements()) {
                 SearchResult sr = (SearchResult) answer.next();
-                Attributes attributes = sr.getAttributes();
-                if (attributes != null) {
-                    for (allAttrs = attributes.getAll(); allAttrs.hasMore(); ) {
-                        Attribute attribute = (Attribute) allAttrs.next();
-                        if (attribute != null) {
-                            StringBuilder attrBuffer = new StringBuilder();
-                            for (attrs = attribute.getAll(); attrs.hasMore(); ) {
-                                Object attObject = attrs.next();
-                                String attr = null;
-                                if (attObject instanceof String) {
-                                    attr = (String) attObject;
-                                } else if (attObject instanceof byte[]) {
-                                    //if the attribute type is binary base64 encoded string will be returned
-                                    attr = new String(Base64.encodeBase64((byte[]) attObject), "UTF-8");
-                                }
-
-                                if (attr != null && attr.trim().length() > 0) {
-                                    String attrSeparator = userStoreProperties.get(MULTI_ATTRIBUTE_SEPARATOR);
-                                    if (attrSeparator != null && !attrSeparator.trim().isEmpty()) {
-                                        userAttributeSeparator = attrSeparator;
-                                    }
-                                    attrBuffer.append(attr).append(userAttributeSeparator);
-                                }
-                                String value = attrBuffer.toString();
-
-                            /*
-                             * Length needs to be more than userAttributeSeparator.length() for a valid
-                             * attribute, since we
-                             * attach userAttributeSeparator
-                             */
-                                if (value.trim().length() > userAttributeSeparator.length()) {
-                                    value = value.substring(0, value.length() - userAttributeSeparator.length());
-                                    values.put(attribute.getID(), value);
-                                }
-
-                            }
-
-                        }
-                    }
-                }
+                addAttributeValues(sr.getAttributes(), values);
             }
 
         } catch (NamingException e) {
@@ -426,20 +896,66 @@ public class LDAPUserStoreManager implements UserStoreManager {
             throw new UserStoreException(errorMessage, e);
         } finally {
             // close the naming enumeration and free up resource
-            JNDIUtil.closeNamingEnumeration(attrs);
             JNDIUtil.closeNamingEnumeration(answer);
             // close directory context
             JNDIUtil.closeContext(dirContext);
         }
+        return values;
+    }
 
-        Map<String, String> claimValues = new HashMap<>();
-        Map<String, String> claimMap = ClaimConfiguration.getConfiguration().getClaimMap();
-        for (String claim : claimUris) {
-            Optional<String> value = Optional.ofNullable(values.get(claimMap.get(claim)));
-            value.ifPresent(s -> claimValues.put(claim, s));
+    /**
+     * Adds the values of the given attributes, with the values of a multivalued attribute joined by the attribute
+     * separator and binary values base64 encoded.
+     * @param attributes Attributes of an entry, may be null.
+     * @param values Map of attribute names to values.
+     * @throws NamingException If an error occurs while reading the attribute values.
+     * @throws UnsupportedEncodingException If a binary value cannot be encoded.
+     */
+    private void addAttributeValues(Attributes attributes, Map<String, String> values)
+            throws NamingException, UnsupportedEncodingException {
+
+        if (attributes == null) {
+            return;
         }
+        String userAttributeSeparator = config.getAttributeSeparator();
+        NamingEnumeration<?> attrs = null;
+        NamingEnumeration<?> allAttrs = null;
+        try {
+            for (allAttrs = attributes.getAll(); allAttrs.hasMore(); ) {
+                Attribute attribute = (Attribute) allAttrs.next();
+                if (attribute != null) {
+                    StringBuilder attrBuffer = new StringBuilder();
+                    for (attrs = attribute.getAll(); attrs.hasMore(); ) {
+                        Object attObject = attrs.next();
+                        String attr = null;
+                        if (attObject instanceof String) {
+                            attr = (String) attObject;
+                        } else if (attObject instanceof byte[]) {
+                            //if the attribute type is binary base64 encoded string will be returned
+                            attr = new String(Base64.encodeBase64((byte[]) attObject), "UTF-8");
+                        }
 
-        return claimValues;
+                        if (attr != null && attr.trim().length() > 0) {
+                            attrBuffer.append(attr).append(userAttributeSeparator);
+                        }
+                        String value = attrBuffer.toString();
+
+                        /*
+                         * Length needs to be more than userAttributeSeparator.length() for a valid
+                         * attribute, since we
+                         * attach userAttributeSeparator
+                         */
+                        if (value.trim().length() > userAttributeSeparator.length()) {
+                            value = value.substring(0, value.length() - userAttributeSeparator.length());
+                            values.put(attribute.getID(), value);
+                        }
+                    }
+                }
+            }
+        } finally {
+            JNDIUtil.closeNamingEnumeration(attrs);
+            JNDIUtil.closeNamingEnumeration(allAttrs);
+        }
     }
 
     private String[] convertClaimToPropertyNames(String[] claimUris) {
@@ -464,154 +980,132 @@ public class LDAPUserStoreManager implements UserStoreManager {
      * {@inheritDoc}
      */
     public String[] doListUsers(String filter, int maxItemLimit) throws UserStoreException {
-        boolean debug = log.isDebugEnabled();
         String[] userNames = new String[0];
 
         if (maxItemLimit == 0) {
             return userNames;
         }
 
-        int givenMax;
-        int searchTime;
+        List<String> list = new ArrayList<>();
+        doListUsers(filter, maxItemLimit, getPageSize(0), chunk -> list.addAll(Arrays.asList(chunk)));
+        userNames = list.toArray(new String[list.size()]);
+        Arrays.sort(userNames);
 
-        try {
-            givenMax =
-                    Integer.parseInt(userStoreProperties.get(CommonConstants.PROPERTY_MAX_USER_LIST));
-        } catch (Exception e) {
-            givenMax = CommonConstants.MAX_USER_LIST;
+        if (log.isDebugEnabled()) {
+            for (String username : userNames) {
+                log.debug("result: " + username);
+            }
         }
+        return userNames;
+    }
 
-        try {
-            searchTime =
-                    Integer.parseInt(userStoreProperties.get(CommonConstants.PROPERTY_MAX_SEARCH_TIME));
-        } catch (Exception e) {
-            searchTime = CommonConstants.MAX_SEARCH_TIME;
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void doListUsers(String filter, int maxItemLimit, int chunkSize, ChunkHandler handler)
+            throws UserStoreException {
+
+        if (maxItemLimit == 0) {
+            return;
         }
 
+        int givenMax = config.getMaxUserListLength();
+
         if (maxItemLimit <= 0 || maxItemLimit > givenMax) {
             maxItemLimit = givenMax;
         }
 
-        SearchControls searchCtls = new SearchControls();
-        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-        searchCtls.setCountLimit(maxItemLimit);
-        searchCtls.setTimeLimit(searchTime);
+        SearchControls searchCtls = config.getUserListSearchControls(maxItemLimit);
+        String finalFilter = getUserListFilter(filter);
 
-        if (filter.contains("?") || filter.contains("**")) {
-            throw new UserStoreException(
-                    "Invalid character sequence entered for user search. Please enter valid sequence.");
+        if (isReadFromReplica()) {
+            handleInChunks(directoryReplica.listUsers(filter, isListedByDisplayName(), null, maxItemLimit),
+                    getPageSize(chunkSize), handler);
+            return;
+        }
+        if (isListedFromIndex()) {
+            handleInChunks(userNameIndex.listUsers(filter, isListedByDisplayName(), null, maxItemLimit),
+                    getPageSize(chunkSize), handler);
+            return;
         }
 
-        StringBuilder searchFilter =
-                new StringBuilder(
-                        userStoreProperties.get(LDAPConstants.USER_NAME_LIST_FILTER));
-        String searchBases = userStoreProperties.get(LDAPConstants.USER_SEARCH_BASE);
-
-        String userNameProperty =
-                userStoreProperties.get(LDAPConstants.USER_NAME_ATTRIBUTE);
-
-        String serviceNameAttribute = "sn";
+        if (log.isDebugEnabled()) {
+            log.debug("Listing users. SearchBase: " + config.getUserSearchBase() + " Constructed-Filter: "
+                    + finalFilter);
+            log.debug("Search controls. Max Limit: " + maxItemLimit + " Max Time: " + searchCtls.getTimeLimit());
+        }
 
-        StringBuilder finalFilter = new StringBuilder();
+        searchAllInBases(config.getUserSearchBases(), finalFilter, searchCtls, getPageSize(chunkSize),
+                getUserNameMapper(), handler);
+    }
 
-        // read the display name attribute - if provided
-        String displayNameAttribute =
-                userStoreProperties.get(LDAPConstants.DISPLAY_NAME_ATTRIBUTE);
-
-        String[] returnedAtts;
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PagedResult doListUsers(String filter, int pageSize, String pageToken) throws UserStoreException {
 
-        if (StringUtils.isNotEmpty(displayNameAttribute)) {
-            returnedAtts =
-                    new String[] { userNameProperty, serviceNameAttribute,
-                            displayNameAttribute };
-            finalFilter.append("(&").append(searchFilter).append("(").append(displayNameAttribute)
-                    .append("=").append(escapeSpecialCharactersForFilterWithStarAsRegex(filter)).append("))");
-        } else {
-            returnedAtts = new String[] { userNameProperty, serviceNameAttribute };
-            finalFilter.append("(&").append(searchFilter).append("(").append(userNameProperty).append("=")
-                    .append(escapeSpecialCharactersForFilterWithStarAsRegex(filter)).append("))");
+        String finalFilter = getUserListFilter(filter);
+        if (isReplicaPage(pageToken)) {
+            int size = getPageSize(pageSize);
+            return toSortedPage(directoryReplica.listUsers(filter, isListedByDisplayName(),
+                    getPageStart(pageToken, REPLICA_PAGE_TOKEN_PREFIX), size + 1), size, REPLICA_PAGE_TOKEN_PREFIX);
         }
-
-        if (debug) {
-            log.debug("Listing users. SearchBase: " + searchBases + " Constructed-Filter: " + finalFilter.toString());
-            log.debug("Search controls. Max Limit: " + maxItemLimit + " Max Time: " + searchTime);
+        if (isIndexPage(pageToken)) {
+            int size = getPageSize(pageSize);
+            return toSortedPage(userNameIndex.listUsers(filter, isListedByDisplayName(),
+                    getPageStart(pageToken, INDEX_PAGE_TOKEN_PREFIX), size + 1), size, INDEX_PAGE_TOKEN_PREFIX);
         }
+        if (log.isDebugEnabled()) {
+            log.debug("Listing users page. SearchBase: " + config.getUserSearchBase() + " Constructed-Filter: "
+                    + finalFilter + " Page size: " + pageSize);
+        }
+        return pagedSearch.search(config.getUserSearchBases(), finalFilter, config.getUserListSearchControls(0),
+                getPageSize(pageSize), pageToken, getUserNameMapper());
+    }
 
-        searchCtls.setReturningAttributes(returnedAtts);
-        DirContext dirContext = null;
-        NamingEnumeration<SearchResult> answer = null;
-        List<String> list = new ArrayList<>();
-
-        try {
-            dirContext = connectionSource.getContext();
-            // handle multiple search bases
-            String[] searchBaseArray = searchBases.split(CommonConstants.XML_PATTERN_SEPERATOR);
-
-            for (String searchBase : searchBaseArray) {
-
-                answer = dirContext.search(escapeDNForSearch(searchBase), finalFilter.toString(), searchCtls);
-                while (answer.hasMoreElements()) {
-                    SearchResult sr = answer.next();
-                    if (sr.getAttributes() != null) {
-                        log.debug("Result found ..");
-                        Attribute attr = sr.getAttributes().get(userNameProperty);
-
-                        // If this is a service principle, just ignore and
-                        // iterate rest of the array. The entity is a service if
-                        // value of surname is Service
-
-                        Attribute attrSurname = sr.getAttributes().get(serviceNameAttribute);
+    /**
+     * @param filter Username filter String.
+     * @return The search filter for listing the users matching the given filter.
+     * @throws UserStoreException If the filter has an invalid character sequence.
+     */
+    private String getUserListFilter(String filter) throws UserStoreException {
 
-                        if (attrSurname != null) {
-                            if (debug) {
-                                log.debug(serviceNameAttribute + " : " + attrSurname);
-                            }
-                            String serviceName = (String) attrSurname.get();
-                            if (serviceName != null
-                                    && serviceName
-                                    .equals(LDAPConstants.SERVER_PRINCIPAL_ATTRIBUTE_VALUE)) {
-                                continue;
-                            }
-                        }
+        if (filter.contains("?") || filter.contains("**")) {
+            throw new UserStoreException(
+                    "Invalid character sequence entered for user search. Please enter valid sequence.");
+        }
 
-                        if (attr != null) {
-                            String name = (String) attr.get();
-                            list.add(name);
-                        }
-                    }
-                }
-            }
-            userNames = list.toArray(new String[list.size()]);
-            Arrays.sort(userNames);
+        return config.getUserListFilter(escapeSpecialCharactersForFilterWithStarAsRegex(filter));
+    }
 
-            if (debug) {
-                for (String username : userNames) {
-                    log.debug("result: " + username);
-                }
-            }
-        } catch (PartialResultException e) {
-            // can be due to referrals in AD. so just ignore error
-            String errorMessage =
-                    "Error occurred while getting user list for filter : " + filter + "max limit : " + maxItemLimit;
-            if (isIgnorePartialResultException()) {
+    /**
+     * @return Mapper which reads the username of a user entry, skipping service principals.
+     */
+    private LDAPPagedSearch.ResultMapper getUserNameMapper() {
+
+        String userNameProperty = config.getUserNameAttribute();
+        return searchResult -> {
+            if (searchResult.getAttributes() == null) {
+                return null;
+            }
+            log.debug("Result found ..");
+            // If this is a service principle, just ignore it. The entity is a service if
+            // value of surname is Service
+            Attribute attrSurname = searchResult.getAttributes().get(SERVICE_NAME_ATTRIBUTE);
+            if (attrSurname != null) {
                 if (log.isDebugEnabled()) {
-                    log.debug(errorMessage, e);
+                    log.debug(SERVICE_NAME_ATTRIBUTE + " : " + attrSurname);
+                }
+                String serviceName = (String) attrSurname.get();
+                if (serviceName != null && serviceName.equals(LDAPConstants.SERVER_PRINCIPAL_ATTRIBUTE_VALUE)) {
+                    return null;
                 }
-            } else {
-                throw new UserStoreException(errorMessage, e);
-            }
-        } catch (NamingException e) {
-            String errorMessage =
-                    "Error occurred while getting user list for filter : " + filter + "max limit : " + maxItemLimit;
-            if (log.isDebugEnabled()) {
-                log.debug(errorMessage, e);
             }
-            throw new UserStoreException(errorMessage, e);
-        } finally {
-            JNDIUtil.closeNamingEnumeration(answer);
-            JNDIUtil.closeContext(dirContext);
-        }
-        return userNames;
+            Attribute attr = searchResult.getAttributes().get(userNameProperty);
+            return attr != null ? (String) attr.get() : null;
+        };
     }
 
     /**
@@ -623,42 +1117,59 @@ public class LDAPUserStoreManager implements UserStoreManager {
             return new String[0];
         }
 
-        int givenMax;
-
-        int searchTime;
+        List<String> externalRoles = new ArrayList<>();
+        doGetRoleNames(filter, maxItemLimit, getPageSize(0), chunk -> externalRoles.addAll(Arrays.asList(chunk)));
 
-        try {
-            givenMax = Integer.parseInt(userStoreProperties.
-                    get(CommonConstants.PROPERTY_MAX_ROLE_LIST));
-        } catch (Exception e) {
-            givenMax = CommonConstants.MAX_USER_LIST;
+        if (log.isDebugEnabled()) {
+            for (String role : externalRoles) {
+                log.debug("result: " + role);
+            }
         }
+        return externalRoles.toArray(new String[externalRoles.size()]);
+    }
 
-        try {
-            searchTime = Integer.parseInt(userStoreProperties.
-                    get(CommonConstants.PROPERTY_MAX_SEARCH_TIME));
-        } catch (Exception e) {
-            searchTime = CommonConstants.MAX_SEARCH_TIME;
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void doGetRoleNames(String filter, int maxItemLimit, int chunkSize, ChunkHandler handler)
+            throws UserStoreException {
+
+        if (maxItemLimit == 0) {
+            return;
         }
 
+        int givenMax = config.getMaxRoleNameListLength();
+
         if (maxItemLimit < 0 || maxItemLimit > givenMax) {
             maxItemLimit = givenMax;
         }
 
-        List<String> externalRoles = new ArrayList<>();
-
-        // handling multiple search bases
-        String searchBases = userStoreProperties.get(LDAPConstants.GROUP_SEARCH_BASE);
-        String[] searchBaseArray = searchBases.split(CommonConstants.XML_PATTERN_SEPERATOR);
-        for (String searchBase : searchBaseArray) {
-            // get the role list from the group search base
-            externalRoles.addAll(getLDAPRoleNames(searchTime, filter, maxItemLimit,
-                    userStoreProperties.get(LDAPConstants.GROUP_NAME_LIST_FILTER),
-                    userStoreProperties.get(LDAPConstants.GROUP_NAME_ATTRIBUTE),
-                    searchBase));
+        if (isReadFromReplica()) {
+            handleInChunks(directoryReplica.listRoles(filter, null, maxItemLimit), getPageSize(chunkSize), handler);
+            return;
         }
+        getLDAPRoleNames(filter, maxItemLimit, getPageSize(chunkSize), handler);
+    }
 
-        return externalRoles.toArray(new String[externalRoles.size()]);
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PagedResult doGetRoleNames(String filter, int pageSize, String pageToken) throws UserStoreException {
+
+        if (isReplicaPage(pageToken)) {
+            int size = getPageSize(pageSize);
+            return toSortedPage(directoryReplica.listRoles(filter, getPageStart(pageToken, REPLICA_PAGE_TOKEN_PREFIX),
+                    size + 1), size, REPLICA_PAGE_TOKEN_PREFIX);
+        }
+        String finalFilter = config.getRoleListFilter(escapeSpecialCharactersForFilterWithStarAsRegex(filter));
+        if (log.isDebugEnabled()) {
+            log.debug("Listing roles page. SearchBase: " + config.getGroupSearchBase() + " ConstructedFilter: "
+                    + finalFilter + " Page size: " + pageSize);
+        }
+        return pagedSearch.search(config.getGroupSearchBases(), finalFilter, config.getRoleListSearchControls(0),
+                getPageSize(pageSize), pageToken, getAttributeMapper(config.getGroupNameAttribute()));
     }
 
     /**
@@ -667,9 +1178,15 @@ public class LDAPUserStoreManager implements UserStoreManager {
     @Override
     public String[] doGetExternalRoleListOfUser(String userName) throws UserStoreException {
 
-        // Get the effective search base
-        String searchBase = userStoreProperties.get(LDAPConstants.GROUP_SEARCH_BASE);
-        return getLDAPRoleListOfUser(userName, searchBase);
+        if (isReadFromReplica()) {
+            List<String> roles = directoryReplica.getRolesOfUser(userName);
+            return roles.toArray(new String[roles.size()]);
+        }
+        if (isReadFromMembershipIndex()) {
+            List<String> roles = membershipIndex.getRolesOfUser(userName);
+            return roles.toArray(new String[roles.size()]);
+        }
+        return getLDAPRoleListOfUser(userName);
     }
 
     /**
@@ -679,27 +1196,27 @@ public class LDAPUserStoreManager implements UserStoreManager {
     public boolean doCheckIsUserInRole(String userName, String roleName) throws UserStoreException {
 
         boolean debug = log.isDebugEnabled();
-        String searchBases = userStoreProperties.get(LDAPConstants.GROUP_SEARCH_BASE);
-        SearchControls searchCtls = new SearchControls();
-        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
         // read the roles with this membership property
-        String searchFilter = userStoreProperties.get(LDAPConstants.GROUP_NAME_LIST_FILTER);
-        String membershipProperty = userStoreProperties.get(LDAPConstants.MEMBERSHIP_ATTRIBUTE);
+        String membershipProperty = config.getMembershipAttribute();
 
         if (membershipProperty == null || membershipProperty.length() < 1) {
             throw new UserStoreException("Please set membership attribute");
         }
 
-        String roleNameProperty = userStoreProperties.get(LDAPConstants.GROUP_NAME_ATTRIBUTE);
-        String userDNPattern = userStoreProperties.get(LDAPConstants.USER_DN_PATTERN);
-        String nameInSpace;
-        if (org.apache.commons.lang.StringUtils.isNotEmpty(userDNPattern) &&
-                !userDNPattern.contains(CommonConstants.XML_PATTERN_SEPERATOR)) {
-            nameInSpace = MessageFormat.format(userDNPattern, escapeSpecialCharactersForDN(userName));
-        } else {
-            nameInSpace = this.getNameInSpaceForUserName(userName);
+        if (isReadFromReplica()) {
+            for (String role : directoryReplica.getRolesOfUser(userName)) {
+                if (role.equalsIgnoreCase(roleName)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (isReadFromMembershipIndex()) {
+            return membershipIndex.isUserInRole(userName, roleName);
         }
 
+        String nameInSpace = getUserDN(userName);
+
         String membershipValue;
         if (nameInSpace != null) {
             try {
@@ -714,60 +1231,32 @@ public class LDAPUserStoreManager implements UserStoreManager {
             return false;
         }
 
-        searchFilter = "(&" + searchFilter + "(" + membershipProperty + "=" + membershipValue + "))";
-        String returnedAtts[] = { roleNameProperty };
-        searchCtls.setReturningAttributes(returnedAtts);
+        if (isNestedGroupResolvedByAgent()) {
+            // the nested roles are not found by a search on the membership attribute
+            for (String role : getLDAPRoleListOfUser(userName, nameInSpace)) {
+                if (role.equalsIgnoreCase(roleName)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        String searchFilter = config.getMemberOfRoleFilter(membershipValue,
+                escapeSpecialCharactersForFilter(roleName));
 
         if (debug) {
             log.debug("Do check whether the user : " + userName + " is in role: " + roleName);
             log.debug("Search filter : " + searchFilter);
-            for (String retAttrib : returnedAtts) {
-                log.debug("Requesting attribute: " + retAttrib);
-            }
+            log.debug("Requesting attribute: " + config.getGroupNameAttribute());
         }
 
-        DirContext dirContext = null;
-        NamingEnumeration<SearchResult> answer = null;
-        try {
-            dirContext = connectionSource.getContext();
-
-            if (debug) {
-                log.debug("Do check whether the user: " + userName + " is in role: " + roleName);
-                log.debug("Search filter: " + searchFilter);
-                for (String retAttrib : returnedAtts) {
-                    log.debug("Requesting attribute: " + retAttrib);
-                }
-            }
-
-            searchFilter = "(&" + searchFilter + "(" + membershipProperty + "=" + membershipValue +
-                    ") (" + roleNameProperty + "=" + escapeSpecialCharactersForFilter(roleName) + "))";
-
-            // handle multiple search bases
-            String[] searchBaseArray = searchBases.split(CommonConstants.XML_PATTERN_SEPERATOR);
-
-            for (String searchBase : searchBaseArray) {
-                answer = dirContext.search(escapeDNForSearch(searchBase), searchFilter, searchCtls);
-
-                if (answer.hasMoreElements()) {
-                    if (debug) {
-                        log.debug("User: " + userName + " in role: " + roleName);
-                    }
-                    return true;
-                }
-
-                if (debug) {
-                    log.debug("User: " + userName + " NOT in role: " + roleName);
-                }
-            }
-        } catch (NamingException e) {
-            if (log.isDebugEnabled()) {
-                log.debug(e.getMessage(), e);
-            }
-        } finally {
-            JNDIUtil.closeNamingEnumeration(answer);
-            JNDIUtil.closeContext(dirContext);
+        // search bases are searched in parallel until one of them has the role
+        boolean isUserInRole = existsInSearchBases(config.getGroupSearchBases(), searchFilter,
+                config.getRoleNameSearchControls());
+        if (debug) {
+            log.debug("User: " + userName + (isUserInRole ? " in role: " : " NOT in role: ") + roleName);
         }
-        return false;
+        return isUserInRole;
     }
 
     /**
@@ -777,181 +1266,56 @@ public class LDAPUserStoreManager implements UserStoreManager {
     public String[] doGetUserListOfRole(String roleName, int maxItemLimit) throws UserStoreException {
 
         boolean debug = log.isDebugEnabled();
-        List<String> userList = new ArrayList<String>();
+        List<String> userList;
         String[] names = new String[0];
-        int givenMax = CommonConstants.MAX_USER_ROLE_LIST;
-        int searchTime = CommonConstants.MAX_SEARCH_TIME;
+        int givenMax = config.getMaxRoleMemberListLength();
 
-        try {
-            givenMax =
-                    Integer.parseInt(userStoreProperties.get(CommonConstants.PROPERTY_MAX_USER_LIST));
-        } catch (Exception e) {
-            givenMax = CommonConstants.MAX_USER_ROLE_LIST;
+        if (maxItemLimit <= 0 || maxItemLimit > givenMax) {
+            maxItemLimit = givenMax;
         }
 
-        try {
-            searchTime =
-                    Integer.parseInt(userStoreProperties.get(CommonConstants.PROPERTY_MAX_SEARCH_TIME));
-        } catch (Exception e) {
-            searchTime = CommonConstants.MAX_SEARCH_TIME;
+        if (isReadFromReplica()) {
+            userList = directoryReplica.getUsersOfRole(roleName, maxItemLimit);
+            return userList.toArray(new String[userList.size()]);
         }
-
-        if (maxItemLimit <= 0 || maxItemLimit > givenMax) {
-            maxItemLimit = givenMax;
+        if (isReadFromMembershipIndex()) {
+            userList = membershipIndex.getUsersOfRole(roleName, maxItemLimit);
+            return userList.toArray(new String[userList.size()]);
         }
 
         DirContext dirContext = null;
-        NamingEnumeration<SearchResult> answer = null;
         try {
-            SearchControls searchCtls = new SearchControls();
-            searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-            searchCtls.setTimeLimit(searchTime);
-            searchCtls.setCountLimit(maxItemLimit);
-
-            String searchFilter = userStoreProperties.get(LDAPConstants.GROUP_NAME_LIST_FILTER);
-            String roleNameProperty = userStoreProperties.get(LDAPConstants.GROUP_NAME_ATTRIBUTE);
-            searchFilter = "(&" + searchFilter + "(" + roleNameProperty + "=" + escapeSpecialCharactersForFilter(
-                    roleName) + "))";
-
-            String membershipProperty = userStoreProperties.get(LDAPConstants.MEMBERSHIP_ATTRIBUTE);
-            String returnedAtts[] = { membershipProperty };
-            searchCtls.setReturningAttributes(returnedAtts);
-            List<String> userDNList = new ArrayList<String>();
-
-            SearchResult sr = null;
-            dirContext = connectionSource.getContext();
-
-            // handling multiple search bases
-            String searchBases = userStoreProperties.get(LDAPConstants.GROUP_SEARCH_BASE);
-            String[] roleSearchBaseArray = searchBases.split("#");
-            for (String searchBase : roleSearchBaseArray) {
+            SearchControls searchCtls = config.getMembershipSearchControls(maxItemLimit);
+            String searchFilter = config.getRoleFilter(escapeSpecialCharactersForFilter(roleName));
+            String membershipProperty = config.getMembershipAttribute();
+            List<String> userDNList;
+
+            // handling multiple search bases, searched in parallel until one of them has the role
+            List<SearchResult> roles = searchFanOut.search(config.getGroupSearchBases(), 1,
+                    (searchBase, sink) -> searchRole(searchBase, searchFilter, searchCtls, sink));
+            if (roles.isEmpty()) {
                 if (debug) {
-                    log.debug("Searching role: " + roleName + " SearchBase: "
-                            + searchBase + " SearchFilter: " + searchFilter);
-                }
-                try {
-                    // read the DN of users who are members of the group
-                    answer = dirContext.search(escapeDNForSearch(searchBase), searchFilter, searchCtls);
-                    int count = 0;
-                    if (answer.hasMore()) { // to check if there is a result
-                        while (answer.hasMore()) { // to check if there are more than one group
-                            if (count > 0) {
-                                throw new UserStoreException("More than one group exist with name");
-                            }
-                            sr = answer.next();
-                            count++;
-                        }
-                        break;
-                    }
-                } catch (NamingException e) {
-                    // ignore
-                    if (log.isDebugEnabled()) {
-                        log.debug(e);
-                    }
+                    log.debug("Role: " + roleName + " not found in SearchBase: " + config.getGroupSearchBase());
                 }
+                return names;
             }
+            SearchResult sr = roles.get(0);
 
             if (debug) {
                 log.debug("Found role: " + sr.getNameInNamespace());
             }
+            dirContext = connectionSource.getContext();
 
             // read the member attribute and get DNs of the users
-            Attributes attributes = sr.getAttributes();
-            if (attributes != null) {
-                NamingEnumeration attributeEntry = null;
-                for (attributeEntry = attributes.getAll(); attributeEntry.hasMore(); ) {
-                    Attribute valAttribute = (Attribute) attributeEntry.next();
-                    if (membershipProperty.equals(valAttribute.getID())) {
-                        NamingEnumeration values = null;
-                        for (values = valAttribute.getAll(); values.hasMore(); ) {
-                            String value = values.next().toString();
-                            if (userDNList.size() >= maxItemLimit) {
-                                break;
-                            }
-                            userDNList.add(value);
-                            if (debug) {
-                                log.debug("Found attribute: " + membershipProperty + " value: " + value);
-                            }
-                        }
-                    }
-                }
-            }
-
-            if (MEMBER_UID.equals(userStoreProperties.get(LDAPConstants.MEMBERSHIP_ATTRIBUTE))) {
-                /* when the GroupEntryObjectClass is posixGroup, membership attribute is memberUid. We have to
-                   retrieve the DN using the memberUid.
-                   This procedure has to make an extra call to ldap. alternatively this can be done with a single ldap
-                   search using the memberUid and retrieving the display name and username. */
-                List<String> userDNListNew = new ArrayList<>();
-
-                for (String user : userDNList) {
-                    String userDN = getNameInSpaceForUserName(user);
-                    userDNListNew.add(userDN);
-                }
-                userDNList = userDNListNew;
-            }
-
-            // iterate over users' DN list and get userName and display name
-            // attribute values
-            String userNameProperty = userStoreProperties.get(LDAPConstants.USER_NAME_ATTRIBUTE);
-            String displayNameAttribute = userStoreProperties.get(LDAPConstants.DISPLAY_NAME_ATTRIBUTE);
-            String[] returnedAttributes = { userNameProperty, displayNameAttribute };
-
-            for (String user : userDNList) {
-                if (debug) {
-                    log.debug("Getting name attributes of: " + user);
-                }
-                Attributes userAttributes;
-                try {
-                    // '\' and '"' characters need another level of escaping before searching
-                    userAttributes = dirContext.getAttributes(escapeDNForSearch(user), returnedAttributes);
-
-                    String displayName = null;
-                    String userName = null;
-                    if (userAttributes != null) {
-                        Attribute userNameAttribute = userAttributes.get(userNameProperty);
-                        if (userNameAttribute != null) {
-                            userName = (String) userNameAttribute.get();
-                            if (debug) {
-                                log.debug("UserName: " + userName);
-                            }
-                        }
-                        if (org.apache.commons.lang.StringUtils.isNotEmpty(displayNameAttribute)) {
-                            Attribute displayAttribute = userAttributes.get(displayNameAttribute);
-                            if (displayAttribute != null) {
-                                displayName = (String) displayAttribute.get();
-                            }
-                            if (debug) {
-                                log.debug("DisplayName: " + displayName);
-                            }
-                        }
-                    }
-
-                    // Username will be null in the special case where the
-                    // username attribute has changed to another
-                    // and having different userNameProperty than the current
-                    // user-mgt.xml
-                    if (userName != null) {
-                        user = UserStoreUtils.getCombinedName(userName, displayName);
-                        userList.add(user);
-                        if (debug) {
-                            log.debug(user + " is added to the result list");
-                        }
-                    } else {
-                        if (log.isDebugEnabled()) {
-                            log.debug("User " + user + " doesn't have the user name property : " +
-                                    userNameProperty);
-                        }
-                    }
-
-                } catch (NamingException e) {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Error in reading user information in the user store for the user " +
-                                user + e.getMessage(), e);
-                    }
-                }
+            userDNList = getMembershipValues(dirContext, sr.getNameInNamespace(), sr.getAttributes(),
+                    membershipProperty, maxItemLimit);
+            // released before the members are read, as each batch borrows its own connection
+            JNDIUtil.closeContext(dirContext);
+            dirContext = null;
 
-            }
+            // when the GroupEntryObjectClass is posixGroup, membership attribute is memberUid, which holds the
+            // usernames of the members instead of their DNs.
+            userList = getMemberNames(userDNList, config.isMembershipByUserName());
             names = userList.toArray(new String[userList.size()]);
 
         } catch (PartialResultException e) {
@@ -971,61 +1335,354 @@ public class LDAPUserStoreManager implements UserStoreManager {
             }
             throw new UserStoreException(errorMessage, e);
         } finally {
-            JNDIUtil.closeNamingEnumeration(answer);
             JNDIUtil.closeContext(dirContext);
         }
         return names;
     }
 
     /**
-     * {@inheritDoc}
+     * Reads the entry of a role in a single search base.
+     * @param searchBase Escaped group search base.
+     * @param searchFilter Search filter matching the role.
+     * @param searchCtls Search controls with the membership attribute as the returning attribute.
+     * @param sink Receives the entry of the role, if found.
+     * @throws UserStoreException If more than one group exists with the name.
      */
-    @Override
-    public boolean doCheckExistingRole(String roleName) throws UserStoreException {
+    private void searchRole(String searchBase, String searchFilter, SearchControls searchCtls,
+                            LDAPSearchFanOut.Sink<SearchResult> sink) throws UserStoreException {
 
-        boolean debug = log.isDebugEnabled();
-        boolean isExisting = false;
+        if (log.isDebugEnabled()) {
+            log.debug("Searching role. SearchBase: " + searchBase + " SearchFilter: " + searchFilter);
+        }
+        DirContext dirContext = connectionSource.getContext();
+        NamingEnumeration<SearchResult> answer = null;
+        try {
+            // read the DN of users who are members of the group
+            answer = dirContext.search(searchBase, searchFilter, searchCtls);
+            SearchResult sr = null;
+            while (answer.hasMore()) { // to check if there are more than one group
+                if (sr != null) {
+                    throw new UserStoreException("More than one group exist with name");
+                }
+                sr = answer.next();
+            }
+            if (sr != null) {
+                sink.add(sr);
+            }
+        } catch (NamingException e) {
+            // ignore
+            if (log.isDebugEnabled()) {
+                log.debug(e);
+            }
+        } finally {
+            JNDIUtil.closeNamingEnumeration(answer);
+            JNDIUtil.closeContext(dirContext);
+        }
+    }
 
-        if (debug) {
-            log.debug("Searching for role: " + roleName);
+    /**
+     * Reads the usernames and display names of the members of a role in batches, each with a single search
+     * instead of a read per member. Batches run in parallel if MemberResolutionThreads is more than one.
+     * @param members DNs of the members, or usernames if byUserName is true.
+     * @param byUserName Whether the members are given by their usernames.
+     * @return Names of the members combined with their display names.
+     * @throws UserStoreException If an error occurs while reading the members.
+     */
+    private List<String> getMemberNames(List<String> members, boolean byUserName) throws UserStoreException {
+
+        int batchSize = config.getMemberResolutionBatchSize();
+        List<List<String>> batches = new ArrayList<>();
+        for (int i = 0; i < members.size(); i += batchSize) {
+            batches.add(members.subList(i, Math.min(i + batchSize, members.size())));
         }
-        String searchFilter = userStoreProperties.get(LDAPConstants.GROUP_NAME_LIST_FILTER);
-        String roleNameProperty = userStoreProperties.get(LDAPConstants.GROUP_NAME_ATTRIBUTE);
-        searchFilter = "(&" + searchFilter + "(" + roleNameProperty + "=" +
-                escapeSpecialCharactersForFilter(roleName) + "))";
-        String searchBases = userStoreProperties.get(LDAPConstants.GROUP_SEARCH_BASE);
 
-        if (debug) {
-            log.debug("Using search filter: " + searchFilter);
+        List<String> names = new ArrayList<>();
+        if (memberResolutionExecutor == null || batches.size() <= 1) {
+            for (List<String> batch : batches) {
+                names.addAll(getMemberNamesOfBatch(batch, byUserName));
+            }
+            return names;
+        }
+
+        List<Future<List<String>>> futures = new ArrayList<>();
+        for (List<String> batch : batches) {
+            futures.add(memberResolutionExecutor.submit(() -> getMemberNamesOfBatch(batch, byUserName)));
+        }
+        try {
+            for (Future<List<String>> future : futures) {
+                names.addAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UserStoreException("Interrupted while reading user information in the user store", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UserStoreException) {
+                throw (UserStoreException) e.getCause();
+            }
+            throw new UserStoreException("Error in reading user information in the user store", e.getCause());
+        } finally {
+            for (Future<List<String>> future : futures) {
+                future.cancel(true);
+            }
         }
+        return names;
+    }
+
+    /**
+     * @param members DNs of the members, or usernames if byUserName is true.
+     * @param byUserName Whether the members are given by their usernames.
+     * @return Names of the members combined with their display names.
+     * @throws UserStoreException If an error occurs while reading the members.
+     */
+    private List<String> getMemberNamesOfBatch(List<String> members, boolean byUserName)
+            throws UserStoreException {
+
+        String userNameProperty = config.getUserNameAttribute();
+        String displayNameAttribute = config.getDisplayNameAttribute();
+        String[] returnedAttributes = StringUtils.isNotEmpty(displayNameAttribute) ?
+                new String[] { userNameProperty, displayNameAttribute } : new String[] { userNameProperty };
+        List<String> names = new ArrayList<>();
+
+        DirContext dirContext = connectionSource.getContext();
+        try {
+            if (byUserName) {
+                StringBuilder filter = new StringBuilder("(&")
+                        .append(config.getUserNameListFilter()).append("(|");
+                for (String member : members) {
+                    filter.append("(").append(userNameProperty).append("=")
+                            .append(escapeSpecialCharactersForFilter(member)).append(")");
+                }
+                filter.append("))");
+                for (String searchBase : config.getUserSearchBases()) {
+                    searchMemberNames(dirContext, searchBase, filter.toString(), SearchControls.SUBTREE_SCOPE,
+                            returnedAttributes, names);
+                }
+                return names;
+            }
+
+            // members under the same parent are read with one search on the RDNs of the members
+            Map<String, StringBuilder> filters = new LinkedHashMap<>();
+            for (String member : members) {
+                LdapName memberName;
+                try {
+                    memberName = new LdapName(member);
+                } catch (InvalidNameException e) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Invalid member DN " + member, e);
+                    }
+                    continue;
+                }
+                Rdn rdn = memberName.isEmpty() ? null : memberName.getRdn(memberName.size() - 1);
+                if (rdn == null || rdn.size() != 1) {
+                    // multi valued RDNs are read one by one
+                    readMemberName(dirContext, member, returnedAttributes, names);
+                    continue;
+                }
+                String parentDN = memberName.getPrefix(memberName.size() - 1).toString();
+                filters.computeIfAbsent(parentDN, key -> new StringBuilder()).append("(").append(rdn.getType())
+                        .append("=").append(escapeSpecialCharactersForFilter(rdn.getValue().toString())).append(")");
+            }
+            for (Map.Entry<String, StringBuilder> entry : filters.entrySet()) {
+                searchMemberNames(dirContext, escapeDNForSearch(entry.getKey()), "(|" + entry.getValue() + ")",
+                        SearchControls.ONELEVEL_SCOPE, returnedAttributes, names);
+            }
+        } finally {
+            JNDIUtil.closeContext(dirContext);
+        }
+        return names;
+    }
+
+    /**
+     * Searches the member entries and adds their names to the given list.
+     */
+    private void searchMemberNames(DirContext dirContext, String searchBase, String filter, int searchScope,
+            String[] returnedAttributes, List<String> names) throws UserStoreException {
+
         SearchControls searchCtls = new SearchControls();
-        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-        searchCtls.setReturningAttributes(new String[] { roleNameProperty });
+        searchCtls.setSearchScope(searchScope);
+        searchCtls.setTimeLimit(config.getSearchTime());
+        searchCtls.setReturningAttributes(returnedAttributes);
+
+        if (log.isDebugEnabled()) {
+            log.debug("Searching members. SearchBase: " + searchBase + " SearchFilter: " + filter);
+        }
         NamingEnumeration<SearchResult> answer = null;
-        DirContext dirContext = null;
+        try {
+            answer = dirContext.search(searchBase, filter, searchCtls);
+            while (answer.hasMore()) {
+                SearchResult sr = answer.next();
+                addMemberName(sr.getNameInNamespace(), sr.getAttributes(), names);
+            }
+        } catch (NameNotFoundException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Search base " + searchBase + " of members does not exist", e);
+            }
+        } catch (PartialResultException e) {
+            // can be due to referrals in AD. so just ignore error
+            String errorMessage = "Error in reading user information in the user store. SearchBase: " + searchBase;
+            if (!isIgnorePartialResultException()) {
+                throw new UserStoreException(errorMessage, e);
+            }
+            if (log.isDebugEnabled()) {
+                log.debug(errorMessage, e);
+            }
+        } catch (NamingException e) {
+            throw new UserStoreException("Error in reading user information in the user store. SearchBase: "
+                    + searchBase, e);
+        } finally {
+            JNDIUtil.closeNamingEnumeration(answer);
+        }
+    }
+
+    /**
+     * Reads the member entry and adds its name to the given list.
+     */
+    private void readMemberName(DirContext dirContext, String member, String[] returnedAttributes,
+            List<String> names) {
 
         try {
-            dirContext = connectionSource.getContext();
-            String[] roleSearchBaseArray = searchBases.split(CommonConstants.XML_PATTERN_SEPERATOR);
-            for (String searchBase : roleSearchBaseArray) {
+            // '\' and '"' characters need another level of escaping before searching
+            addMemberName(member, dirContext.getAttributes(escapeDNForSearch(member), returnedAttributes), names);
+        } catch (NamingException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Error in reading user information in the user store for the user " +
+                        member + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Adds the username of the member, combined with the display name, to the given list.
+     */
+    private void addMemberName(String member, Attributes userAttributes, List<String> names)
+            throws NamingException {
+
+        boolean debug = log.isDebugEnabled();
+        String userNameProperty = config.getUserNameAttribute();
+        String displayNameAttribute = config.getDisplayNameAttribute();
+        String displayName = null;
+        String userName = null;
+        if (userAttributes != null) {
+            Attribute userNameAttribute = userAttributes.get(userNameProperty);
+            if (userNameAttribute != null) {
+                userName = (String) userNameAttribute.get();
                 if (debug) {
-                    log.debug("Searching in " + searchBase);
+                    log.debug("UserName: " + userName);
                 }
-                try {
-                    answer = dirContext.search(escapeDNForSearch(searchBase), searchFilter, searchCtls);
-                    if (answer.hasMoreElements()) {
-                        isExisting = true;
-                        break;
+            }
+            if (StringUtils.isNotEmpty(displayNameAttribute)) {
+                Attribute displayAttribute = userAttributes.get(displayNameAttribute);
+                if (displayAttribute != null) {
+                    displayName = (String) displayAttribute.get();
+                }
+                if (debug) {
+                    log.debug("DisplayName: " + displayName);
+                }
+            }
+        }
+
+        // Username will be null in the special case where the
+        // username attribute has changed to another
+        // and having different userNameProperty than the current
+        // user-mgt.xml
+        if (userName != null) {
+            String user = UserStoreUtils.getCombinedName(userName, displayName);
+            names.add(user);
+            if (debug) {
+                log.debug(user + " is added to the result list");
+            }
+        } else if (debug) {
+            log.debug("User " + member + " doesn't have the user name property : " + userNameProperty);
+        }
+    }
+
+    /**
+     * Reads the values of the membership attribute of a group. Active Directory returns a limited number of
+     * values of an attribute in one read, as member;range=0-1499, so the rest of the values are read range by
+     * range until all of them or maxItemLimit values are read.
+     * @param dirContext Connection to the LDAP userstore.
+     * @param groupDN Distinguished name of the group.
+     * @param attributes Attributes of the group read with the membership attribute.
+     * @param membershipProperty Name of the membership attribute.
+     * @param maxItemLimit Maximum number of values required.
+     * @return Values of the membership attribute.
+     * @throws NamingException If an error occurs while reading the attribute values.
+     */
+    private List<String> getMembershipValues(DirContext dirContext, String groupDN, Attributes attributes,
+            String membershipProperty, int maxItemLimit) throws NamingException {
+
+        boolean debug = log.isDebugEnabled();
+        List<String> values = new ArrayList<>();
+        String rangePrefix = membershipProperty + RANGE_OPTION;
+
+        while (attributes != null && values.size() < maxItemLimit) {
+            int nextRangeStart = -1;
+            NamingEnumeration<? extends Attribute> attributeEntry = attributes.getAll();
+            try {
+                while (attributeEntry.hasMore()) {
+                    Attribute valAttribute = attributeEntry.next();
+                    String attributeId = valAttribute.getID();
+                    boolean ranged = attributeId.regionMatches(true, 0, rangePrefix, 0, rangePrefix.length());
+                    if (!ranged && !membershipProperty.equals(attributeId)) {
+                        continue;
                     }
-                } catch (NamingException e) {
-                    if (log.isDebugEnabled()) {
-                        log.debug(e);
+                    NamingEnumeration<?> attributeValues = valAttribute.getAll();
+                    try {
+                        while (attributeValues.hasMore() && values.size() < maxItemLimit) {
+                            String value = attributeValues.next().toString();
+                            values.add(value);
+                            if (debug) {
+                                log.debug("Found attribute: " + attributeId + " value: " + value);
+                            }
+                        }
+                    } finally {
+                        JNDIUtil.closeNamingEnumeration(attributeValues);
+                    }
+                    if (ranged) {
+                        // the last range ends with *
+                        String rangeEnd = attributeId.substring(attributeId.lastIndexOf('-') + 1);
+                        if (!"*".equals(rangeEnd)) {
+                            nextRangeStart = Integer.parseInt(rangeEnd) + 1;
+                        }
                     }
                 }
+            } finally {
+                JNDIUtil.closeNamingEnumeration(attributeEntry);
+            }
+
+            if (nextRangeStart < 0 || values.size() >= maxItemLimit) {
+                break;
+            }
+            if (debug) {
+                log.debug("Reading " + rangePrefix + nextRangeStart + "-* of group " + groupDN);
+            }
+            attributes = dirContext.getAttributes(escapeDNForSearch(groupDN),
+                    new String[] { rangePrefix + nextRangeStart + "-*" });
+        }
+        return values;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean doCheckExistingRole(String roleName) throws UserStoreException {
+
+        boolean debug = log.isDebugEnabled();
+
+        if (debug) {
+            log.debug("Searching for role: " + roleName);
+        }
+        boolean isExisting;
+        if (isReadFromReplica()) {
+            isExisting = directoryReplica.isExistingRole(roleName);
+        } else if (existenceFilter != null && !existenceFilter.mayContainRole(roleName)) {
+            isExisting = false;
+        } else {
+            isExisting = isExistingLDAPRole(roleName);
+            if (!isExisting && existenceFilter != null) {
+                existenceFilter.falsePositive();
             }
-        } finally {
-            JNDIUtil.closeNamingEnumeration(answer);
-            JNDIUtil.closeContext(dirContext);
         }
         if (debug) {
             log.debug("Is role: " + roleName + " exist: " + isExisting);
@@ -1033,14 +1690,27 @@ public class LDAPUserStoreManager implements UserStoreManager {
         return isExisting;
     }
 
+    /**
+     * @param roleName Name of the role.
+     * @return true if the role exists in the LDAP userstore.
+     * @throws UserStoreException If an error occurs while searching the LDAP userstore.
+     */
+    private boolean isExistingLDAPRole(String roleName) throws UserStoreException {
+
+        String searchFilter = config.getRoleFilter(escapeSpecialCharactersForFilter(roleName));
+        if (log.isDebugEnabled()) {
+            log.debug("Using search filter: " + searchFilter);
+        }
+        return existsInSearchBases(config.getGroupSearchBases(), searchFilter, config.getRoleNameSearchControls());
+    }
+
     @Override
     public void doUpdateRoleListOfUser(String userName, String[] deletedRoles, String[] newRoles)
             throws UserStoreException {
 
         // get the DN of the user entry
         String userNameDN = this.getNameInSpaceForUserName(userName);
-        String membershipAttribute =
-                userStoreProperties.get(LDAPConstants.MEMBERSHIP_ATTRIBUTE);
+        String membershipAttribute = config.getMembershipAttribute();
     /*
      * check deleted roles and delete member entries from relevant groups.
      */
@@ -1057,10 +1727,9 @@ public class LDAPUserStoreManager implements UserStoreManager {
                 // enable
 
                 for (String deletedRole : deletedRoles) {
-                    String searchFilter = userStoreProperties.get(LDAPConstants.ROLE_NAME_FILTER);
-                    roleSearchFilter = searchFilter.replace("?", escapeSpecialCharactersForFilter(deletedRole));
+                    roleSearchFilter = config.getRoleNameFilter(escapeSpecialCharactersForFilter(deletedRole));
                     String[] returningAttributes = new String[] { membershipAttribute };
-                    String searchBase = userStoreProperties.get(LDAPConstants.GROUP_SEARCH_BASE);
+                    String searchBase = config.getGroupSearchBase();
                     NamingEnumeration<SearchResult> groupResults =
                             searchInGroupBase(roleSearchFilter,
                                     returningAttributes,
@@ -1072,7 +1741,7 @@ public class LDAPUserStoreManager implements UserStoreManager {
                         resultedGroup = groupResults.next();
                     }
                     if (resultedGroup != null && isOnlyUserInRole(userNameDN, resultedGroup) &&
-                            !emptyRolesAllowed) {
+                            !config.isEmptyRolesAllowed()) {
                         errorMessage =
                                 userName + " is the only user in the role: " + deletedRole +
                                         ". Hence can not delete user from role.";
@@ -1085,12 +1754,10 @@ public class LDAPUserStoreManager implements UserStoreManager {
                 // updating the LDAP.
                 for (String deletedRole : deletedRoles) {
 
-                    String searchFilter = userStoreProperties.get(LDAPConstants.ROLE_NAME_FILTER);
-
-                    if (doCheckExistingRole(deletedRole)) {
-                        roleSearchFilter = searchFilter.replace("?", escapeSpecialCharactersForFilter(deletedRole));
+                    if (isExistingLDAPRole(deletedRole)) {
+                        roleSearchFilter = config.getRoleNameFilter(escapeSpecialCharactersForFilter(deletedRole));
                         String[] returningAttributes = new String[] { membershipAttribute };
-                        String searchBase = userStoreProperties.get(LDAPConstants.GROUP_SEARCH_BASE);
+                        String searchBase = config.getGroupSearchBase();
                         NamingEnumeration<SearchResult> groupResults =
                                 searchInGroupBase(roleSearchFilter,
                                         returningAttributes,
@@ -1114,12 +1781,10 @@ public class LDAPUserStoreManager implements UserStoreManager {
             if (newRoles != null && newRoles.length != 0) {
 
                 for (String newRole : newRoles) {
-                    String searchFilter = userStoreProperties.get(LDAPConstants.ROLE_NAME_FILTER);
-
-                    if (doCheckExistingRole(newRole)) {
-                        roleSearchFilter = searchFilter.replace("?", escapeSpecialCharactersForFilter(newRole));
+                    if (isExistingLDAPRole(newRole)) {
+                        roleSearchFilter = config.getRoleNameFilter(escapeSpecialCharactersForFilter(newRole));
                         String[] returningAttributes = new String[] { membershipAttribute };
-                        String searchBase = userStoreProperties.get(LDAPConstants.GROUP_SEARCH_BASE);
+                        String searchBase = config.getGroupSearchBase();
 
                         NamingEnumeration<SearchResult> groupResults =
                                 searchInGroupBase(roleSearchFilter,
@@ -1162,6 +1827,16 @@ public class LDAPUserStoreManager implements UserStoreManager {
         } finally {
             JNDIUtil.closeContext(mainDirContext);
         }
+        if (directoryReplica != null) {
+            directoryReplica.updateRolesOfUser(userName, deletedRoles, newRoles);
+        }
+        if (membershipIndex != null) {
+            membershipIndex.updateRolesOfUser(userName, deletedRoles, newRoles);
+        }
+        if (claimValueCache != null) {
+            // claims may map to attributes the server derives from the memberships, such as memberOf
+            claimValueCache.invalidate(userName);
+        }
     }
 
     /**
@@ -1169,10 +1844,159 @@ public class LDAPUserStoreManager implements UserStoreManager {
      */
     @Override
     public boolean getConnectionStatus() throws UserStoreException {
-        connectionSource.getContext();
+        if (connectionSource.isProbed()) {
+            // the servers are probed in the background, so the status is known without connecting
+            return connectionSource.isAvailable();
+        }
+        JNDIUtil.closeContext(connectionSource.getContext());
         return true;
     }
 
+    /**
+     * @return Health and probed latency of each LDAP server of the userstore.
+     */
+    public List<Map<String, Object>> getEndpointStatus() {
+        return connectionSource.getEndpointStatus();
+    }
+
+    /**
+     * @return Occupancy and wait time statistics of the LDAP connection pool, empty if pooling is disabled.
+     */
+    public Map<String, Object> getConnectionPoolStatistics() {
+        return connectionSource.getConnectionPoolStatistics();
+    }
+
+    /**
+     * @return Size and hit statistics of the username to DN cache, empty if the cache is disabled.
+     */
+    public Map<String, Object> getUserDNCacheStatistics() {
+        if (userDNCache == null) {
+            return Collections.emptyMap();
+        }
+        return userDNCache.getStatistics();
+    }
+
+    /**
+     * @return Memory, hit and eviction statistics of the claim value cache, empty if the cache is disabled.
+     */
+    public Map<String, Object> getClaimValueCacheStatistics() {
+        if (claimValueCache == null) {
+            return Collections.emptyMap();
+        }
+        return claimValueCache.getStatistics();
+    }
+
+    /**
+     * @return Size and refresh statistics of the nested group graph, empty if the graph is not used.
+     */
+    public Map<String, Object> getNestedGroupGraphStatistics() {
+        if (nestedGroupGraph == null) {
+            return Collections.emptyMap();
+        }
+        return nestedGroupGraph.getStatistics();
+    }
+
+    /**
+     * @return Size, hit and invalidation statistics of the verified credential cache, empty if it is disabled.
+     */
+    public Map<String, Object> getCredentialCacheStatistics() {
+        if (credentialCache == null) {
+            return Collections.emptyMap();
+        }
+        return credentialCache.getStatistics();
+    }
+
+    /**
+     * @return Size, sync lag and sync statistics of the directory replica, empty if the replica is disabled.
+     */
+    public Map<String, Object> getDirectoryReplicaStatistics() {
+        if (directoryReplica == null) {
+            return Collections.emptyMap();
+        }
+        return directoryReplica.getStatistics();
+    }
+
+    /**
+     * @return Size and false positive statistics of the existence filters, empty if they are disabled.
+     */
+    public Map<String, Object> getExistenceFilterStatistics() {
+        if (existenceFilter == null) {
+            return Collections.emptyMap();
+        }
+        return existenceFilter.getStatistics();
+    }
+
+    /**
+     * @return Size, staleness and refresh statistics of the username index, empty if it is disabled.
+     */
+    public Map<String, Object> getUserNameIndexStatistics() {
+        if (userNameIndex == null) {
+            return Collections.emptyMap();
+        }
+        return userNameIndex.getStatistics();
+    }
+
+    /**
+     * @return Size, memory and refresh statistics of the membership index, empty if it is disabled.
+     */
+    public Map<String, Object> getMembershipIndexStatistics() {
+        if (membershipIndex == null) {
+            return Collections.emptyMap();
+        }
+        return membershipIndex.getStatistics();
+    }
+
+    /**
+     * @param userName Username of the user.
+     * @param credential Credential of the user.
+     * @param error Failure to reach the LDAP userstore.
+     * @return true if the credential was verified recently enough to be trusted while the userstore is down.
+     */
+    private boolean isVerifiedDuringOutage(String userName, String credential, UserStoreException error) {
+        if (credentialCache != null && credentialCache.isVerifiedDuringOutage(userName, credential)) {
+            log.warn("User " + userName + " authenticated with a cached credential as the LDAP userstore "
+                    + "could not be reached: " + error.getMessage());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Caches the credential of a successful bind, or removes the cached credential of the user after a failed one.
+     * @param userName Username of the user.
+     * @param credential Credential of the bind.
+     * @param authenticated Result of the bind.
+     */
+    private void updateCredentialCache(String userName, String credential, boolean authenticated) {
+        if (credentialCache == null) {
+            return;
+        }
+        if (authenticated) {
+            credentialCache.put(userName, credential);
+        } else {
+            credentialCache.invalidate(userName);
+        }
+    }
+
+    /**
+     * Removes the cached DN of a user, e.g. after the user entry is renamed or moved in the LDAP userstore.
+     * @param userName Username of the user.
+     */
+    public void invalidateUserDNCache(String userName) {
+        if (userDNCache != null) {
+            userDNCache.invalidate(userName);
+        }
+    }
+
+    /**
+     * Removes all cached user DNs.
+     */
+    public void clearUserDNCache() {
+        if (userDNCache != null) {
+            userDNCache.clear();
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -1184,93 +2008,258 @@ public class LDAPUserStoreManager implements UserStoreManager {
                     "User Store Properties Could not be found!");
         }
         // check if required configurations are in the user-mgt.xml
-        checkRequiredUserStoreConfigurations();
+        checkRequiredUserStoreConfigurations(this.userStoreProperties);
+        this.config = new LDAPOperationConfig(this.userStoreProperties);
         this.connectionSource = new LDAPConnectionContext(this.userStoreProperties);
+        this.userDNCache = createUserDNCache(this.userStoreProperties);
+        this.claimValueCache = createClaimValueCache(this.userStoreProperties, this::getUserPropertyValues);
+        this.credentialCache = createCredentialCache(this.userStoreProperties);
+        this.pagedSearch = createPagedSearch();
+        this.memberResolutionExecutor = createMemberResolutionExecutor();
+        this.searchFanOut = new LDAPSearchFanOut(LDAPConnectionContext.getIntProperty(userStoreProperties,
+                LDAPConstants.SEARCH_BASE_THREADS, LDAPConstants.DEFAULT_SEARCH_BASE_THREADS));
+        this.nestedGroupGraph = createNestedGroupGraph();
+        this.directoryReplica = createDirectoryReplica();
+        this.existenceFilter = createExistenceFilter();
+        this.userNameIndex = createUserNameIndex();
+        this.membershipIndex = createMembershipIndex();
+    }
+
+    @Override
+    public void close() {
+        if (memberResolutionExecutor != null) {
+            memberResolutionExecutor.shutdownNow();
+        }
+        if (searchFanOut != null) {
+            searchFanOut.close();
+        }
+        if (nestedGroupGraph != null) {
+            nestedGroupGraph.close();
+        }
+        if (directoryReplica != null) {
+            directoryReplica.close();
+        }
+        if (existenceFilter != null) {
+            existenceFilter.close();
+        }
+        if (userNameIndex != null) {
+            userNameIndex.close();
+        }
+        if (membershipIndex != null) {
+            membershipIndex.close();
+        }
+        if (pagedSearch != null) {
+            pagedSearch.close();
+        }
+        if (claimValueCache != null) {
+            claimValueCache.close();
+        }
+        if (connectionSource != null) {
+            connectionSource.close();
+        }
     }
 
     /**
-     * Returns the list of role names for the given search base and other
-     * parameters.
-     * @param searchTime Maximum search time
+     * Reads the role names for the given filter from the group search bases.
      * @param filter Filter for searching role names
      * @param maxItemLimit Maximum number of roles required
-     * @param searchFilter Group name search filter
-     * @param roleNameProperty Attribute name of the group in LDAP user store.
-     * @param searchBase Group search base.
-     * @return The list of roles in the given search base.
+     * @param pageSize Number of roles read per page.
+     * @param handler Handler of the role names of each page.
      * @throws UserStoreException If an error occurs while retrieving the required information.
      */
-    private List<String> getLDAPRoleNames(int searchTime, String filter, int maxItemLimit,
-            String searchFilter, String roleNameProperty,
-            String searchBase)
+    private void getLDAPRoleNames(String filter, int maxItemLimit, int pageSize, ChunkHandler handler)
             throws UserStoreException {
-        boolean debug = log.isDebugEnabled();
-        List<String> roles = new ArrayList<>();
 
-        SearchControls searchCtls = new SearchControls();
-        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-        searchCtls.setCountLimit(maxItemLimit);
-        searchCtls.setTimeLimit(searchTime);
+        SearchControls searchCtls = config.getRoleListSearchControls(maxItemLimit);
+        String finalFilter = config.getRoleListFilter(escapeSpecialCharactersForFilterWithStarAsRegex(filter));
 
-        String returnedAtts[] = { roleNameProperty };
-        searchCtls.setReturningAttributes(returnedAtts);
+        if (log.isDebugEnabled()) {
+            log.debug("Listing roles. SearchBase: " + config.getGroupSearchBase() + " ConstructedFilter: "
+                    + finalFilter);
+        }
 
-        StringBuilder finalFilter = new StringBuilder();
-        finalFilter.append("(&").append(searchFilter).append("(").append(roleNameProperty).append("=")
-                .append(escapeSpecialCharactersForFilterWithStarAsRegex(filter)).append("))");
+        searchAllInBases(config.getGroupSearchBases(), finalFilter, searchCtls, pageSize,
+                getAttributeMapper(config.getGroupNameAttribute()), handler);
+    }
 
-        if (debug) {
-            log.debug("Listing roles. SearchBase: " + searchBase + " ConstructedFilter: " +
-                    finalFilter.toString());
-        }
+    /**
+     * Reads all results of a search up to the count limit of the search controls. The search bases are
+     * searched in parallel and their results are handed to the handler as they arrive.
+     * @param searchBases Escaped search bases.
+     * @param filter Search filter.
+     * @param searchCtls Search controls. The count limit is the maximum number of names across all search bases.
+     * @param pageSize Number of entries requested per page.
+     * @param mapper Maps the search results to names.
+     * @param handler Handler of the names, called from one thread at a time.
+     * @throws UserStoreException If an error occurs while searching the LDAP userstore or handling the names.
+     */
+    private void searchAllInBases(String[] searchBases, String filter, SearchControls searchCtls, int pageSize,
+            LDAPPagedSearch.ResultMapper mapper, ChunkHandler handler) throws UserStoreException {
 
-        DirContext dirContext = null;
-        NamingEnumeration<SearchResult> answer = null;
+        searchFanOut.<String>search(searchBases, searchCtls.getCountLimit(),
+                (searchBase, sink) -> pagedSearch.searchAll(new String[] { searchBase }, filter, searchCtls,
+                        pageSize, mapper, LDAPSearchFanOut.toChunkHandler(sink)),
+                names -> handler.handle(names.toArray(new String[names.size()])));
+    }
 
-        try {
-            dirContext = connectionSource.getContext();
-            answer = dirContext.search(escapeDNForSearch(searchBase), finalFilter.toString(), searchCtls);
+    /**
+     * @param searchBases Escaped search bases.
+     * @param searchFilter Search filter.
+     * @param searchCtls Search controls.
+     * @return true if an entry matching the filter exists in any of the search bases.
+     * @throws UserStoreException If an error occurs while searching.
+     */
+    private boolean existsInSearchBases(String[] searchBases, String searchFilter, SearchControls searchCtls)
+            throws UserStoreException {
 
-            while (answer.hasMoreElements()) {
-                SearchResult sr = answer.next();
-                if (sr.getAttributes() != null) {
-                    Attribute attr = sr.getAttributes().get(roleNameProperty);
-                    if (attr != null) {
-                        String name = (String) attr.get();
-                        roles.add(name);
-                    }
-                }
+        return searchFanOut.exists(searchBases, (searchBase, sink) -> {
+            if (log.isDebugEnabled()) {
+                log.debug("Searching in " + searchBase);
             }
-        } catch (PartialResultException e) {
-            // can be due to referrals in AD. so just ignore error
-            String errorMessage = "Error occurred while getting LDAP role names. SearchBase: "
-                    + searchBase + " ConstructedFilter: " + finalFilter.toString();
-            if (isIgnorePartialResultException()) {
+            DirContext dirContext = connectionSource.getContext();
+            NamingEnumeration<SearchResult> answer = null;
+            try {
+                answer = dirContext.search(searchBase, searchFilter, searchCtls);
+                if (answer.hasMoreElements()) {
+                    sink.add(searchBase);
+                }
+            } catch (NamingException e) {
                 if (log.isDebugEnabled()) {
-                    log.debug(errorMessage, e);
+                    log.debug(e.getMessage(), e);
                 }
-            } else {
-                throw new UserStoreException(errorMessage, e);
-            }
-        } catch (NamingException e) {
-            String errorMessage = "Error occurred while getting LDAP role names. SearchBase: "
-                    + searchBase + " ConstructedFilter: " + finalFilter.toString();
-            if (log.isDebugEnabled()) {
-                log.debug(errorMessage, e);
+            } finally {
+                JNDIUtil.closeNamingEnumeration(answer);
+                JNDIUtil.closeContext(dirContext);
             }
-            throw new UserStoreException(errorMessage, e);
-        } finally {
-            JNDIUtil.closeNamingEnumeration(answer);
-            JNDIUtil.closeContext(dirContext);
+        });
+    }
+
+    /**
+     * @param attributeName Name of the attribute to be read.
+     * @return Mapper which reads the value of the given attribute of an entry.
+     */
+    private LDAPPagedSearch.ResultMapper getAttributeMapper(String attributeName) {
+        return searchResult -> {
+            if (searchResult.getAttributes() == null) {
+                return null;
+            }
+            Attribute attr = searchResult.getAttributes().get(attributeName);
+            return attr != null ? (String) attr.get() : null;
+        };
+    }
+
+    /**
+     * @return true if the read operations are answered from the directory replica.
+     */
+    private boolean isReadFromReplica() {
+        return directoryReplica != null && directoryReplica.isAvailable();
+    }
+
+    /**
+     * @return true if the membership reads are answered from the membership index.
+     */
+    private boolean isReadFromMembershipIndex() {
+        return membershipIndex != null && membershipIndex.isAvailable();
+    }
+
+    /**
+     * @return true if the user listings are answered from the username index.
+     */
+    private boolean isListedFromIndex() {
+        return userNameIndex != null && userNameIndex.isAvailable();
+    }
+
+    /**
+     * @return true if the users are listed by their display names.
+     */
+    private boolean isListedByDisplayName() {
+        return StringUtils.isNotEmpty(config.getDisplayNameAttribute());
+    }
+
+    /**
+     * @param pageToken Page token of a listing, null for the first page.
+     * @return true if the page is read from the directory replica.
+     * @throws UserStoreException If the token is of a replica listing and the replica is no longer available.
+     */
+    private boolean isReplicaPage(String pageToken) throws UserStoreException {
+        if (pageToken != null && !pageToken.startsWith(REPLICA_PAGE_TOKEN_PREFIX)) {
+            return false;
+        }
+        if (isReadFromReplica()) {
+            return true;
+        }
+        if (pageToken != null) {
+            throw new UserStoreException("Invalid or expired page token: " + pageToken);
         }
+        return false;
+    }
 
-        if (debug) {
-            for (String role : roles) {
-                log.debug("result: " + role);
-            }
+    /**
+     * @param pageToken Page token of a user listing, null for the first page.
+     * @return true if the page is read from the username index.
+     * @throws UserStoreException If the token is of an index listing and the index is no longer available.
+     */
+    private boolean isIndexPage(String pageToken) throws UserStoreException {
+        if (pageToken != null && !pageToken.startsWith(INDEX_PAGE_TOKEN_PREFIX)) {
+            return false;
         }
+        if (isListedFromIndex()) {
+            return true;
+        }
+        if (pageToken != null) {
+            throw new UserStoreException("Invalid or expired page token: " + pageToken);
+        }
+        return false;
+    }
 
-        return roles;
+    /**
+     * @param pageToken Page token of a replica or index listing, null for the first page.
+     * @param tokenPrefix Prefix of the page tokens of the listing.
+     * @return Name after which the page starts, null for the first page.
+     */
+    private String getPageStart(String pageToken, String tokenPrefix) {
+        return pageToken == null ? null : pageToken.substring(tokenPrefix.length());
+    }
+
+    /**
+     * @param names Names read in order from the replica or the index, one more than the page size if there are
+     *              more names.
+     * @param pageSize Number of names in the page.
+     * @param tokenPrefix Prefix of the page tokens of the listing.
+     * @return The page, with the token of the next page if there are more names.
+     */
+    private PagedResult toSortedPage(List<String> names, int pageSize, String tokenPrefix) {
+        if (names.size() <= pageSize) {
+            return new PagedResult(names.toArray(new String[names.size()]), null);
+        }
+        List<String> page = names.subList(0, pageSize);
+        // the next page starts after the last name, so that entries added or removed meanwhile do not shift it
+        return new PagedResult(page.toArray(new String[pageSize]),
+                tokenPrefix + page.get(pageSize - 1));
+    }
+
+    /**
+     * @param names Names to hand to the handler.
+     * @param chunkSize Maximum number of names per chunk.
+     * @param handler Handler of the chunks.
+     * @throws UserStoreException If the handler fails.
+     */
+    private void handleInChunks(List<String> names, int chunkSize, ChunkHandler handler) throws UserStoreException {
+        int size = Math.max(chunkSize, 1);
+        for (int i = 0; i < names.size(); i += size) {
+            List<String> chunk = names.subList(i, Math.min(i + size, names.size()));
+            handler.handle(chunk.toArray(new String[chunk.size()]));
+        }
+    }
+
+    /**
+     * @param requestedPageSize Page size requested by the caller, 0 or less to use the configured page size.
+     * @return The page size to be used, never more than the configured maximum user list size.
+     */
+    private int getPageSize(int requestedPageSize) {
+
+        int pageSize = requestedPageSize > 0 ? requestedPageSize : config.getPagedSearchPageSize();
+        return Math.min(pageSize, config.getMaxUserListLength());
     }
 
     /**
@@ -1320,7 +2309,6 @@ public class LDAPUserStoreManager implements UserStoreManager {
             throws UserStoreException {
         SearchControls searchCtls = new SearchControls();
         searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-        String searchBases = userStoreProperties.get(LDAPConstants.USER_SEARCH_BASE);
         if (returnedAtts[0].equals(CommonConstants.WILD_CARD_FILTER)) {
             returnedAtts = null;
         }
@@ -1342,51 +2330,127 @@ public class LDAPUserStoreManager implements UserStoreManager {
             }
         }
 
-        String[] searchBaseAraay = searchBases.split(CommonConstants.XML_PATTERN_SEPERATOR);
         NamingEnumeration<SearchResult> answer = null;
 
         try {
-            for (String searchBase : searchBaseAraay) {
-                answer = dirContext.search(escapeDNForSearch(searchBase), searchFilter, searchCtls);
-                if (answer.hasMore()) {
-                    return answer;
-                }
-            }
-        } catch (PartialResultException e) {
-            // can be due to referrals in AD. so just ignore error
-            String errorMessage = "Error occurred while search user for filter : " + searchFilter;
-            if (isIgnorePartialResultException()) {
-                if (log.isDebugEnabled()) {
-                    log.debug(errorMessage, e);
-                }
-            } else {
-                throw new UserStoreException(errorMessage, e);
-            }
+            for (String searchBase : config.getUserSearchBases()) {
+                answer = dirContext.search(searchBase, searchFilter, searchCtls);
+                if (answer.hasMore()) {
+                    return answer;
+                }
+            }
+        } catch (PartialResultException e) {
+            // can be due to referrals in AD. so just ignore error
+            String errorMessage = "Error occurred while search user for filter : " + searchFilter;
+            if (isIgnorePartialResultException()) {
+                if (log.isDebugEnabled()) {
+                    log.debug(errorMessage, e);
+                }
+            } else {
+                throw new UserStoreException(errorMessage, e);
+            }
+        } catch (NamingException e) {
+            String errorMessage = "Error occurred while search user for filter : " + searchFilter;
+            if (log.isDebugEnabled()) {
+                log.debug(errorMessage, e);
+            }
+            throw new UserStoreException(errorMessage, e);
+        }
+        return answer;
+    }
+
+    /**
+     * @param userName Username of the user.
+     * @return DN of the user from the UserDNPattern if a single pattern is set, otherwise from a search.
+     * @throws UserStoreException If an error occurs while connecting to or searching the LDAP userstore.
+     */
+    private String getUserDN(String userName) throws UserStoreException {
+        LDAPOperationConfig.Template userDNPattern = config.getSingleUserDNPattern();
+        if (userDNPattern != null) {
+            return userDNPattern.format(escapeSpecialCharactersForDN(userName));
+        }
+        return lookUpUserDN(userName);
+    }
+
+    /**
+     * @param userName Username of the user.
+     * @return DN of the user whose username is given, null if the user cannot be found or the search fails.
+     * @throws UserStoreException If an error occurs while connecting to the LDAP userstore.
+     */
+    private String getNameInSpaceForUserName(String userName) throws UserStoreException {
+        try {
+            return findUserDN(userName);
+        } catch (NamingException e) {
+            log.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Used where a failed search must not be taken as a missing user, such as in authentication.
+     * @param userName Username of the user.
+     * @return DN of the user whose username is given, null if the user cannot be found.
+     * @throws UserStoreException If an error occurs while connecting to or searching the LDAP userstore.
+     */
+    private String lookUpUserDN(String userName) throws UserStoreException {
+        try {
+            return findUserDN(userName);
         } catch (NamingException e) {
-            String errorMessage = "Error occurred while search user for filter : " + searchFilter;
+            String errorMessage = "Error occurred while searching for the DN of user : " + userName;
             if (log.isDebugEnabled()) {
                 log.debug(errorMessage, e);
             }
             throw new UserStoreException(errorMessage, e);
         }
-        return answer;
     }
 
     /**
      * @param userName Username of the user.
-     * @return DN of the user whose username is given.
-     * @throws UserStoreException If an error occurs while searching for user.
+     * @return DN of the user whose username is given, from the DN cache if it is enabled.
+     * @throws NamingException If an error occurs while searching the LDAP userstore.
+     * @throws UserStoreException If an error occurs while connecting to the LDAP userstore.
      */
-    private String getNameInSpaceForUserName(String userName) throws UserStoreException {
-        String searchBase;
-        String userSearchFilter = userStoreProperties.get(LDAPConstants.USER_NAME_SEARCH_FILTER);
-        userSearchFilter = userSearchFilter.replace("?", escapeSpecialCharactersForFilter(userName));
-        String userDNPattern = userStoreProperties.get(LDAPConstants.USER_DN_PATTERN);
-        if (userDNPattern != null && userDNPattern.trim().length() > 0) {
-            String[] patterns = userDNPattern.split(CommonConstants.XML_PATTERN_SEPERATOR);
-            for (String pattern : patterns) {
-                searchBase = MessageFormat.format(pattern, escapeSpecialCharactersForDN(userName));
-                String userDN = getNameInSpaceForUserName(userName, searchBase, userSearchFilter);
+    private String findUserDN(String userName) throws NamingException, UserStoreException {
+        if (userDNCache != null) {
+            UserDNCache.Entry entry = userDNCache.get(userName);
+            if (entry != null) {
+                return entry.getUserDN();
+            }
+        }
+
+        // Lookup failures are not cached, so that the user is not reported missing until the entry expires.
+        String userDN = searchNameInSpaceForUserName(userName);
+        if (userDNCache != null) {
+            userDNCache.put(userName, userDN);
+        }
+        return userDN;
+    }
+
+    /**
+     * @param userName Username of the user.
+     * @return DN of the user whose usename is given, null if the user cannot be found.
+     * @throws NamingException If an error occurs while searching the LDAP userstore.
+     * @throws UserStoreException If an error occurs while connecting to the LDAP userstore.
+     */
+    private String searchNameInSpaceForUserName(String userName) throws NamingException, UserStoreException {
+        String userSearchFilter = config.getUserNameSearchFilter(escapeSpecialCharactersForFilter(userName));
+        List<LDAPOperationConfig.Template> userDNPatterns = config.getUserDNPatterns();
+        if (!userDNPatterns.isEmpty()) {
+            String escapedUserName = escapeSpecialCharactersForDN(userName);
+            for (LDAPOperationConfig.Template pattern : userDNPatterns) {
+                String searchBase = escapeDNForSearch(pattern.format(escapedUserName));
+                String userDN;
+                try {
+                    userDN = searchNameInSpaceForUserName(userName, new String[] { searchBase },
+                            userSearchFilter);
+                } catch (NamingException e) {
+                    // no entry, or no access, at this DN pattern
+                    if (log.isDebugEnabled()) {
+                        log.debug("Searching for user " + userName + " at " + searchBase + " failed "
+                                + e.getMessage(), e);
+                    }
+                    userDN = null;
+                }
                 // check in another DN pattern
                 if (userDN != null) {
                     return userDN;
@@ -1394,21 +2458,20 @@ public class LDAPUserStoreManager implements UserStoreManager {
             }
         }
 
-        searchBase = userStoreProperties.get(LDAPConstants.USER_SEARCH_BASE);
-
-        return getNameInSpaceForUserName(userName, searchBase, userSearchFilter);
+        return searchNameInSpaceForUserName(userName, config.getUserSearchBases(), userSearchFilter);
 
     }
 
     /**
      * @param userName Username of the user.
-     * @param searchBase Searchbase which the user should be searched for.
+     * @param searchBases Escaped search bases which the user should be searched for.
      * @param searchFilter Search filter of the username.
-     * @return DN of the user whose usename is given.
+     * @return DN of the user whose usename is given, null if the user cannot be found.
+     * @throws NamingException If an error occurs while searching the LDAP userstore.
      * @throws UserStoreException If an error occurs while connecting to the LDAP userstore.
      */
-    private String getNameInSpaceForUserName(String userName, String searchBase, String searchFilter)
-            throws UserStoreException {
+    private String searchNameInSpaceForUserName(String userName, String[] searchBases, String searchFilter)
+            throws NamingException, UserStoreException {
         boolean debug = log.isDebugEnabled();
 
         String userDN = null;
@@ -1428,9 +2491,8 @@ public class LDAPUserStoreManager implements UserStoreManager {
                 }
             }
             SearchResult userObj;
-            String[] searchBases = searchBase.split(CommonConstants.XML_PATTERN_SEPERATOR);
             for (String base : searchBases) {
-                answer = dirContext.search(escapeDNForSearch(base), searchFilter, searchCtls);
+                answer = dirContext.search(base, searchFilter, searchCtls);
                 if (answer.hasMore()) {
                     userObj = answer.next();
                     if (userObj != null) {
@@ -1444,8 +2506,6 @@ public class LDAPUserStoreManager implements UserStoreManager {
             if (debug) {
                 log.debug("Name in space for " + userName + " is " + userDN);
             }
-        } catch (Exception e) {
-            log.debug(e.getMessage(), e);
         } finally {
             JNDIUtil.closeNamingEnumeration(answer);
             JNDIUtil.closeContext(dirContext);
@@ -1458,49 +2518,7 @@ public class LDAPUserStoreManager implements UserStoreManager {
      * @return String with escape characters removed.
      */
     private String escapeSpecialCharactersForFilter(String dnPartial) {
-        boolean replaceEscapeCharacters = true;
-        dnPartial = dnPartial.replace("\\*", "*");
-
-        String replaceEscapeCharactersAtUserLoginString = userStoreProperties
-                .get(CommonConstants.PROPERTY_REPLACE_ESCAPE_CHARACTERS_AT_USER_LOGIN);
-
-        if (replaceEscapeCharactersAtUserLoginString != null) {
-            replaceEscapeCharacters = Boolean
-                    .parseBoolean(replaceEscapeCharactersAtUserLoginString);
-            if (log.isDebugEnabled()) {
-                log.debug("Replace escape characters configured to: "
-                        + replaceEscapeCharactersAtUserLoginString);
-            }
-        }
-
-        if (replaceEscapeCharacters) {
-            StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < dnPartial.length(); i++) {
-                char currentChar = dnPartial.charAt(i);
-                switch (currentChar) {
-                case '\\':
-                    sb.append("\\5c");
-                    break;
-                case '*':
-                    sb.append("\\2a");
-                    break;
-                case '(':
-                    sb.append("\\28");
-                    break;
-                case ')':
-                    sb.append("\\29");
-                    break;
-                case '\u0000':
-                    sb.append("\\00");
-                    break;
-                default:
-                    sb.append(currentChar);
-                }
-            }
-            return sb.toString();
-        } else {
-            return dnPartial;
-        }
+        return config.escapeSpecialCharactersForFilter(dnPartial);
     }
 
     /**
@@ -1508,68 +2526,7 @@ public class LDAPUserStoreManager implements UserStoreManager {
      * @return String with escape characters removed.
      */
     private String escapeSpecialCharactersForDN(String text) {
-        boolean replaceEscapeCharacters = true;
-        text = text.replace("\\*", "*");
-
-        String replaceEscapeCharactersAtUserLoginString = userStoreProperties
-                .get(CommonConstants.PROPERTY_REPLACE_ESCAPE_CHARACTERS_AT_USER_LOGIN);
-
-        if (replaceEscapeCharactersAtUserLoginString != null) {
-            replaceEscapeCharacters = Boolean
-                    .parseBoolean(replaceEscapeCharactersAtUserLoginString);
-            if (log.isDebugEnabled()) {
-                log.debug("Replace escape characters configured to: "
-                        + replaceEscapeCharactersAtUserLoginString);
-            }
-        }
-
-        if (replaceEscapeCharacters) {
-            StringBuilder sb = new StringBuilder();
-            if ((text.length() > 0) && ((text.charAt(0) == ' ') || (text.charAt(0) == '#'))) {
-                sb.append('\\'); // add the leading backslash if needed
-            }
-            for (int i = 0; i < text.length(); i++) {
-                char currentChar = text.charAt(i);
-                switch (currentChar) {
-                case '\\':
-                    sb.append("\\\\");
-                    break;
-                case ',':
-                    sb.append("\\,");
-                    break;
-                case '+':
-                    sb.append("\\+");
-                    break;
-                case '"':
-                    sb.append("\\\"");
-                    break;
-                case '<':
-                    sb.append("\\<");
-                    break;
-                case '>':
-                    sb.append("\\>");
-                    break;
-                case ';':
-                    sb.append("\\;");
-                    break;
-                case '*':
-                    sb.append("\\2a");
-                    break;
-                default:
-                    sb.append(currentChar);
-                }
-            }
-            if ((text.length() > 1) && (text.charAt(text.length() - 1) == ' ')) {
-                sb.insert(sb.length() - 1, '\\'); // add the trailing backslash if needed
-            }
-            if (log.isDebugEnabled()) {
-                log.debug("value after escaping special characters in " + text + " : " + sb.toString());
-            }
-            return sb.toString();
-        } else {
-            return text;
-        }
-
+        return config.escapeSpecialCharactersForDN(text);
     }
 
     /**
@@ -1577,24 +2534,7 @@ public class LDAPUserStoreManager implements UserStoreManager {
      * @return String with escape charaters removed.
      */
     private String escapeDNForSearch(String dn) {
-        boolean replaceEscapeCharacters = true;
-
-        String replaceEscapeCharactersAtUserLoginString = userStoreProperties
-                .get(CommonConstants.PROPERTY_REPLACE_ESCAPE_CHARACTERS_AT_USER_LOGIN);
-
-        if (replaceEscapeCharactersAtUserLoginString != null) {
-            replaceEscapeCharacters = Boolean
-                    .parseBoolean(replaceEscapeCharactersAtUserLoginString);
-            if (log.isDebugEnabled()) {
-                log.debug("Replace escape characters configured to: "
-                        + replaceEscapeCharactersAtUserLoginString);
-            }
-        }
-        if (replaceEscapeCharacters) {
-            return dn.replace("\\\\", "\\\\\\").replace("\\\"", "\\\\\"");
-        } else {
-            return dn;
-        }
+        return config.escapeDNForSearch(dn);
     }
 
     /**
@@ -1602,97 +2542,45 @@ public class LDAPUserStoreManager implements UserStoreManager {
      * @return String with escape characters removed.
      */
     private String escapeSpecialCharactersForFilterWithStarAsRegex(String dnPartial) {
-        boolean replaceEscapeCharacters = true;
-
-        String replaceEscapeCharactersAtUserLoginString = userStoreProperties
-                .get(CommonConstants.PROPERTY_REPLACE_ESCAPE_CHARACTERS_AT_USER_LOGIN);
-
-        if (replaceEscapeCharactersAtUserLoginString != null) {
-            replaceEscapeCharacters = Boolean
-                    .parseBoolean(replaceEscapeCharactersAtUserLoginString);
-            if (log.isDebugEnabled()) {
-                log.debug("Replace escape characters configured to: "
-                        + replaceEscapeCharactersAtUserLoginString);
-            }
-        }
-
-        if (replaceEscapeCharacters) {
-            StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < dnPartial.length(); i++) {
-                char currentChar = dnPartial.charAt(i);
-                switch (currentChar) {
-                case '\\':
-                    if (dnPartial.charAt(i + 1) == '*') {
-                        sb.append("\\2a");
-                        i++;
-                        break;
-                    }
-                    sb.append("\\5c");
-                    break;
-                case '(':
-                    sb.append("\\28");
-                    break;
-                case ')':
-                    sb.append("\\29");
-                    break;
-                case '\u0000':
-                    sb.append("\\00");
-                    break;
-                default:
-                    sb.append(currentChar);
-                }
-            }
-            return sb.toString();
-        } else {
-            return dnPartial;
-        }
+        return config.escapeSpecialCharactersForFilterWithStarAsRegex(dnPartial);
     }
 
     /**
      * @return true if the Referral in the userstore-mgt.xml is "ignore". false otherwise.
      */
     private boolean isIgnorePartialResultException() {
-
-        return PROPERTY_REFERRAL_IGNORE.equals(userStoreProperties.get(LDAPConstants.PROPERTY_REFERRAL));
+        return config.isIgnorePartialResult();
     }
 
     /**
      * @param userName Username of the user.
-     * @param searchBase Search base group search base.
      * @return List of roles of the given user.
      * @throws UserStoreException If an error occurs while retrieving data from LDAP userstore.
      */
-    private String[] getLDAPRoleListOfUser(String userName, String searchBase) throws UserStoreException {
+    private String[] getLDAPRoleListOfUser(String userName) throws UserStoreException {
+        return getLDAPRoleListOfUser(userName, getUserDN(userName));
+    }
+
+    /**
+     * @param userName Username of the user.
+     * @param nameInSpace DN of the user.
+     * @return The list of roles of the given user.
+     * @throws UserStoreException If an error occurs while retrieving data.
+     */
+    private String[] getLDAPRoleListOfUser(String userName, String nameInSpace)
+            throws UserStoreException {
         boolean debug = log.isDebugEnabled();
         List<String> list;
 
-        SearchControls searchCtls = new SearchControls();
-        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-
         // Load normal roles with the user
-        String searchFilter;
-        String roleNameProperty;
-        searchFilter = userStoreProperties.get(LDAPConstants.GROUP_NAME_LIST_FILTER);
-        roleNameProperty =
-                userStoreProperties.get(LDAPConstants.GROUP_NAME_ATTRIBUTE);
-
-        String membershipProperty =
-                userStoreProperties.get(LDAPConstants.MEMBERSHIP_ATTRIBUTE);
-        String userDNPattern = userStoreProperties.get(LDAPConstants.USER_DN_PATTERN);
-        String nameInSpace;
-        if (userDNPattern != null && userDNPattern.trim().length() > 0
-                && !userDNPattern.contains(CommonConstants.XML_PATTERN_SEPERATOR)) {
-
-            nameInSpace = MessageFormat.format(userDNPattern, escapeSpecialCharactersForDN(userName));
-        } else {
-            nameInSpace = this.getNameInSpaceForUserName(userName);
-        }
+        String roleNameProperty = config.getGroupNameAttribute();
+        String membershipProperty = config.getMembershipAttribute();
 
         String membershipValue;
         if (nameInSpace != null) {
             try {
                 LdapName ldn = new LdapName(nameInSpace);
-                if (MEMBER_UID.equals(userStoreProperties.get(LDAPConstants.MEMBERSHIP_ATTRIBUTE))) {
+                if (config.isMembershipByUserName()) {
                     // membership value of posixGroup is not DN of the user
                     List rdns = ldn.getRdns();
                     membershipValue = ((Rdn) rdns.get(rdns.size() - 1)).getValue().toString();
@@ -1708,16 +2596,24 @@ public class LDAPUserStoreManager implements UserStoreManager {
             return new String[0];
         }
 
-        searchFilter =
-                "(&" + searchFilter + "(" + membershipProperty + "=" + membershipValue + "))";
-        String returnedAtts[] = { roleNameProperty };
-        searchCtls.setReturningAttributes(returnedAtts);
+        String searchFilter = config.getRolesOfMemberFilter(membershipValue);
 
         if (debug) {
             log.debug("Reading roles with the membershipProperty Property: " + membershipProperty);
         }
 
-        list = this.getListOfNames(searchBase, searchFilter, searchCtls, roleNameProperty);
+        String nestedGroupResolution = config.getNestedGroupResolution();
+        if (LDAPConstants.NESTED_GROUP_RESOLUTION_TOKEN_GROUPS.equals(nestedGroupResolution)) {
+            list = getTokenGroupRoles(nameInSpace);
+        } else if (LDAPConstants.NESTED_GROUP_RESOLUTION_GROUP_GRAPH.equals(nestedGroupResolution)) {
+            Map<String, String> directRoles = getRolesByDN(searchFilter);
+            Set<String> roles = new LinkedHashSet<>(directRoles.values());
+            roles.addAll(nestedGroupGraph.getAncestorNames(directRoles.keySet()));
+            list = new ArrayList<>(roles);
+        } else {
+            list = this.getListOfNames(config.getGroupSearchBases(), searchFilter,
+                    config.getRoleNameSearchControls(), roleNameProperty);
+        }
 
         String[] result = list.toArray(new String[list.size()]);
 
@@ -1728,71 +2624,401 @@ public class LDAPUserStoreManager implements UserStoreManager {
     }
 
     /**
-     * @param searchBases Group search bases.
+     * @return true if nested roles are resolved by the agent, as the server cannot match them in a search.
+     */
+    private boolean isNestedGroupResolvedByAgent() {
+        String nestedGroupResolution = config.getNestedGroupResolution();
+        return LDAPConstants.NESTED_GROUP_RESOLUTION_TOKEN_GROUPS.equals(nestedGroupResolution)
+                || LDAPConstants.NESTED_GROUP_RESOLUTION_GROUP_GRAPH.equals(nestedGroupResolution);
+    }
+
+    /**
+     * Reads the roles of a user from the tokenGroups attribute of Active Directory, which holds the SIDs of all
+     * groups the user is a member of, directly or through nested groups.
+     * @param nameInSpace DN of the user.
+     * @return Names of the roles of the user.
+     * @throws UserStoreException If an error occurs while reading the user or the groups.
+     */
+    private List<String> getTokenGroupRoles(String nameInSpace) throws UserStoreException {
+
+        List<byte[]> sids = new ArrayList<>();
+        DirContext dirContext = connectionSource.getContext();
+        NamingEnumeration<?> values = null;
+        try {
+            // tokenGroups is a constructed attribute, only returned when the user entry itself is read
+            Attribute tokenGroups = dirContext.getAttributes(escapeDNForSearch(nameInSpace),
+                    new String[] { LDAPConstants.TOKEN_GROUPS_ATTRIBUTE }).get(LDAPConstants.TOKEN_GROUPS_ATTRIBUTE);
+            if (tokenGroups != null) {
+                values = tokenGroups.getAll();
+                while (values.hasMore()) {
+                    Object value = values.next();
+                    if (value instanceof byte[]) {
+                        sids.add((byte[]) value);
+                    }
+                }
+            }
+        } catch (NamingException e) {
+            String errorMessage = "Error occurred while reading tokenGroups of user : " + nameInSpace;
+            if (log.isDebugEnabled()) {
+                log.debug(errorMessage, e);
+            }
+            throw new UserStoreException(errorMessage, e);
+        } finally {
+            JNDIUtil.closeNamingEnumeration(values);
+            JNDIUtil.closeContext(dirContext);
+        }
+
+        List<String> roles = new ArrayList<>();
+        int batchSize = config.getMemberResolutionBatchSize();
+        for (int i = 0; i < sids.size(); i += batchSize) {
+            StringBuilder filter = new StringBuilder("(&").append(config.getGroupNameListFilter()).append("(|");
+            for (byte[] sid : sids.subList(i, Math.min(i + batchSize, sids.size()))) {
+                filter.append("(").append(LDAPConstants.OBJECT_SID_ATTRIBUTE).append("=");
+                for (byte b : sid) {
+                    filter.append(String.format("\\%02x", b & 0xff));
+                }
+                filter.append(")");
+            }
+            filter.append("))");
+            roles.addAll(getListOfNames(config.getGroupSearchBases(), filter.toString(),
+                    config.getRoleNameSearchControls(), config.getGroupNameAttribute()));
+        }
+        return roles;
+    }
+
+    /**
+     * @param searchFilter Search filter for role search with membership value included.
+     * @return Map of the DNs of the roles matching the filter to their names.
+     * @throws UserStoreException If an error occurs while searching.
+     */
+    private Map<String, String> getRolesByDN(String searchFilter) throws UserStoreException {
+
+        String roleNameProperty = config.getGroupNameAttribute();
+        List<String[]> roles = searchFanOut.search(config.getGroupSearchBases(), 0, (searchBase, sink) -> {
+            DirContext dirContext = connectionSource.getContext();
+            NamingEnumeration<SearchResult> answer = null;
+            try {
+                answer = dirContext.search(searchBase, searchFilter, config.getRoleNameSearchControls());
+                while (answer.hasMoreElements()) {
+                    SearchResult sr = answer.next();
+                    Attribute attr = sr.getAttributes() == null ? null : sr.getAttributes().get(roleNameProperty);
+                    if (attr != null) {
+                        sink.add(new String[] { sr.getNameInNamespace(), (String) attr.get() });
+                    }
+                }
+            } catch (NamingException e) {
+                // ignore
+                if (log.isDebugEnabled()) {
+                    log.debug(e);
+                }
+            } finally {
+                JNDIUtil.closeNamingEnumeration(answer);
+                JNDIUtil.closeContext(dirContext);
+            }
+        });
+
+        Map<String, String> rolesByDN = new LinkedHashMap<>();
+        for (String[] role : roles) {
+            rolesByDN.put(role[0], role[1]);
+        }
+        return rolesByDN;
+    }
+
+    /**
+     * Reads the groups of the group search bases for the nested group graph and the directory replica.
+     * @param changeAttribute Attribute which changes when a group is modified.
+     * @param changedSince Latest value of the change attribute already read. null to read all groups.
+     * @param handler Receives each group read.
+     * @throws UserStoreException If an error occurs while reading the groups.
+     */
+    private void loadGroups(String changeAttribute, String changedSince, NestedGroupGraph.GroupHandler handler)
+            throws UserStoreException {
+
+        String groupNameProperty = config.getGroupNameAttribute();
+        String membershipProperty = config.getMembershipAttribute();
+        String filter = config.getGroupNameListFilter();
+        if (changedSince != null) {
+            filter = "(&" + filter + "(" + changeAttribute + ">=" + escapeSpecialCharactersForFilter(changedSince)
+                    + "))";
+        }
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setTimeLimit(config.getSearchTime());
+        searchCtls.setReturningAttributes(new String[] { groupNameProperty, membershipProperty, changeAttribute });
+
+        // The remaining members of large Active Directory groups are read range by range once the search is
+        // finished, so that the range reads do not hold a second connection while the search holds its own.
+        List<SearchResult> rangedGroups = new ArrayList<>();
+        pagedSearch.searchAllOnPrimary(config.getGroupSearchBases(), filter, searchCtls,
+                config.getPagedSearchPageSize(),
+                sr -> {
+                    Attributes attributes = sr.getAttributes();
+                    if (attributes != null && attributes.get(groupNameProperty) != null) {
+                        if (hasMoreRanges(attributes, membershipProperty)) {
+                            rangedGroups.add(sr);
+                        } else {
+                            handleGroup(null, sr, groupNameProperty, membershipProperty, changeAttribute,
+                                    handler);
+                        }
+                    }
+                    return null;
+                }, chunk -> { });
+        if (rangedGroups.isEmpty()) {
+            return;
+        }
+
+        DirContext dirContext = connectionSource.getPrimaryLdapContext();
+        try {
+            for (SearchResult sr : rangedGroups) {
+                handleGroup(dirContext, sr, groupNameProperty, membershipProperty, changeAttribute, handler);
+            }
+        } catch (NamingException e) {
+            String errorMessage = "Error occurred while reading the members of groups";
+            if (log.isDebugEnabled()) {
+                log.debug(errorMessage, e);
+            }
+            throw new UserStoreException(errorMessage, e);
+        } finally {
+            JNDIUtil.closeContext(dirContext);
+        }
+    }
+
+    /**
+     * Hands a group read by {@link #loadGroups} to the handler.
+     * @param dirContext Connection for reading the remaining ranges of the members, null if the search result
+     *                   holds all of them.
+     * @throws NamingException If the remaining members of the group cannot be read.
+     */
+    private void handleGroup(DirContext dirContext, SearchResult sr, String groupNameProperty,
+                             String membershipProperty, String changeAttribute,
+                             NestedGroupGraph.GroupHandler handler) throws NamingException {
+
+        Attributes attributes = sr.getAttributes();
+        Attribute changeStamp = attributes.get(changeAttribute);
+        handler.group(sr.getNameInNamespace(), (String) attributes.get(groupNameProperty).get(),
+                getMembershipValues(dirContext, sr.getNameInNamespace(), attributes, membershipProperty,
+                        Integer.MAX_VALUE),
+                changeStamp == null ? null : String.valueOf(changeStamp.get()));
+    }
+
+    /**
+     * @return true if the attributes hold a range of the membership attribute which is not the last one.
+     */
+    private static boolean hasMoreRanges(Attributes attributes, String membershipProperty) {
+
+        String rangePrefix = membershipProperty + RANGE_OPTION;
+        for (String attributeId : Collections.list(attributes.getIDs())) {
+            if (attributeId.regionMatches(true, 0, rangePrefix, 0, rangePrefix.length())
+                    && !attributeId.endsWith("-*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the users of the user search bases, with the attributes mapped to claims, for the directory replica.
+     * @param changeAttribute Attribute which changes when a user is modified.
+     * @param changedSince Latest value of the change attribute already read. null to read all users.
+     * @param handler Receives each user read.
+     * @throws UserStoreException If an error occurs while reading the users.
+     */
+    private void loadUsers(String changeAttribute, String changedSince, DirectoryReplica.UserHandler handler)
+            throws UserStoreException {
+
+        String userNameProperty = config.getUserNameAttribute();
+        String displayNameProperty = StringUtils.isNotEmpty(config.getDisplayNameAttribute()) ?
+                config.getDisplayNameAttribute() : null;
+        String filter = config.getUserNameListFilter();
+        if (changedSince != null) {
+            filter = "(&" + filter + "(" + changeAttribute + ">=" + escapeSpecialCharactersForFilter(changedSince)
+                    + "))";
+        }
+        Set<String> returningAttributes = new LinkedHashSet<>(
+                ClaimConfiguration.getConfiguration().getClaimMap().values());
+        returningAttributes.remove(CommonConstants.WILD_CARD_FILTER);
+        returningAttributes.addAll(Arrays.asList(userNameProperty, SERVICE_NAME_ATTRIBUTE, changeAttribute));
+        if (displayNameProperty != null) {
+            returningAttributes.add(displayNameProperty);
+        }
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setTimeLimit(config.getSearchTime());
+        searchCtls.setReturningAttributes(returningAttributes.toArray(new String[returningAttributes.size()]));
+
+        pagedSearch.searchAllOnPrimary(config.getUserSearchBases(), filter, searchCtls,
+                config.getPagedSearchPageSize(),
+                sr -> {
+                    Attributes attributes = sr.getAttributes();
+                    Attribute userName = attributes == null ? null : attributes.get(userNameProperty);
+                    if (userName == null) {
+                        return null;
+                    }
+                    Map<String, String> values = new HashMap<>();
+                    try {
+                        addAttributeValues(attributes, values);
+                    } catch (UnsupportedEncodingException e) {
+                        NamingException namingException = new NamingException("Error occurred while Base64 "
+                                + "encoding property values for user : " + userName.get());
+                        namingException.setRootCause(e);
+                        throw namingException;
+                    }
+                    // the service principals are found but not listed
+                    Attribute surname = attributes.get(SERVICE_NAME_ATTRIBUTE);
+                    boolean listed = surname == null
+                            || !LDAPConstants.SERVER_PRINCIPAL_ATTRIBUTE_VALUE.equals(surname.get());
+                    Attribute displayName = displayNameProperty == null ? null : attributes.get(displayNameProperty);
+                    Attribute changeStamp = attributes.get(changeAttribute);
+                    handler.user(sr.getNameInNamespace(), (String) userName.get(),
+                            displayName == null ? null : (String) displayName.get(), listed, values,
+                            changeStamp == null ? null : String.valueOf(changeStamp.get()));
+                    return null;
+                }, chunk -> { });
+    }
+
+    /**
+     * Reads the names of the entries matching a filter for the existence filters.
+     * @param searchBases Escaped search bases.
+     * @param filter Search filter matching the entries.
+     * @param nameAttribute Attribute holding the name.
+     * @param modifiedSince Latest modification time already read. null to read all entries.
+     * @param handler Receives each name read.
+     * @throws UserStoreException If an error occurs while reading the names.
+     */
+    private void loadNames(String[] searchBases, String filter, String nameAttribute, String modifiedSince,
+                           ExistenceFilter.NameHandler handler) throws UserStoreException {
+
+        if (modifiedSince != null) {
+            filter = "(&" + filter + "(" + LDAPConstants.MODIFY_TIMESTAMP_ATTRIBUTE + ">="
+                    + escapeSpecialCharactersForFilter(modifiedSince) + "))";
+        }
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setTimeLimit(config.getSearchTime());
+        searchCtls.setReturningAttributes(new String[] { nameAttribute, LDAPConstants.MODIFY_TIMESTAMP_ATTRIBUTE });
+
+        pagedSearch.searchAllOnPrimary(searchBases, filter, searchCtls, config.getPagedSearchPageSize(),
+                sr -> {
+                    Attributes attributes = sr.getAttributes();
+                    Attribute name = attributes == null ? null : attributes.get(nameAttribute);
+                    if (name != null) {
+                        Attribute modifyTimestamp = attributes.get(LDAPConstants.MODIFY_TIMESTAMP_ATTRIBUTE);
+                        // all values are names the entry is found with
+                        NamingEnumeration<?> values = name.getAll();
+                        while (values.hasMore()) {
+                            handler.name(String.valueOf(values.next()),
+                                    modifyTimestamp == null ? null : String.valueOf(modifyTimestamp.get()));
+                        }
+                    }
+                    return null;
+                }, chunk -> { });
+    }
+
+    /**
+     * Reads the usernames and display names of the users of the user search bases for the username index and the
+     * membership index.
+     * @param modifiedSince Latest modification time already read. null to read all users.
+     * @param handler Receives each user read.
+     * @throws UserStoreException If an error occurs while reading the users.
+     */
+    private void loadUserNames(String modifiedSince, UserNameIndex.UserHandler handler) throws UserStoreException {
+
+        String userNameProperty = config.getUserNameAttribute();
+        String displayNameProperty = StringUtils.isNotEmpty(config.getDisplayNameAttribute()) ?
+                config.getDisplayNameAttribute() : null;
+        // the users are read with the filter of the listings, so that the index lists the same users
+        String filter = config.getUserNameListFilter();
+        if (modifiedSince != null) {
+            filter = "(&" + filter + "(" + LDAPConstants.MODIFY_TIMESTAMP_ATTRIBUTE + ">="
+                    + escapeSpecialCharactersForFilter(modifiedSince) + "))";
+        }
+        List<String> returningAttributes = new ArrayList<>(Arrays.asList(userNameProperty, SERVICE_NAME_ATTRIBUTE,
+                LDAPConstants.MODIFY_TIMESTAMP_ATTRIBUTE));
+        if (displayNameProperty != null) {
+            returningAttributes.add(displayNameProperty);
+        }
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setTimeLimit(config.getSearchTime());
+        searchCtls.setReturningAttributes(returningAttributes.toArray(new String[returningAttributes.size()]));
+
+        pagedSearch.searchAllOnPrimary(config.getUserSearchBases(), filter, searchCtls,
+                config.getPagedSearchPageSize(),
+                sr -> {
+                    Attributes attributes = sr.getAttributes();
+                    Attribute userName = attributes == null ? null : attributes.get(userNameProperty);
+                    if (userName == null) {
+                        return null;
+                    }
+                    Attribute surname = attributes.get(SERVICE_NAME_ATTRIBUTE);
+                    boolean listed = surname == null
+                            || !LDAPConstants.SERVER_PRINCIPAL_ATTRIBUTE_VALUE.equals(surname.get());
+                    Attribute displayName = displayNameProperty == null ? null : attributes.get(displayNameProperty);
+                    Attribute modifyTimestamp = attributes.get(LDAPConstants.MODIFY_TIMESTAMP_ATTRIBUTE);
+                    handler.user(sr.getNameInNamespace(), (String) userName.get(),
+                            displayName == null ? null : (String) displayName.get(), listed,
+                            modifyTimestamp == null ? null : String.valueOf(modifyTimestamp.get()));
+                    return null;
+                }, chunk -> { });
+    }
+
+    /**
+     * @param searchBases Escaped group search bases.
      * @param searchFilter Search filter for role search with membership value included.
      * @param searchCtls Search controls with returning attributes set.
      * @param property Role name attribute name in LDAP userstore.
      * @return List of roles according to the given filter.
      * @throws UserStoreException If an error occurs while retrieving data from LDAP context.
      */
-    private List<String> getListOfNames(String searchBases, String searchFilter,
+    private List<String> getListOfNames(String[] searchBases, String searchFilter,
             SearchControls searchCtls, String property)
             throws UserStoreException {
         boolean debug = log.isDebugEnabled();
-        List<String> names = new ArrayList<>();
-        DirContext dirContext = null;
-        NamingEnumeration<SearchResult> answer = null;
 
         if (debug) {
-            log.debug("Result for searchBase: " + searchBases + " searchFilter: " + searchFilter +
+            log.debug("Result for searchBase: " + Arrays.toString(searchBases) + " searchFilter: " + searchFilter +
                     " property:" + property);
         }
 
-        try {
-            dirContext = connectionSource.getContext();
-
-            // handle multiple search bases
-            String[] searchBaseArray = searchBases.split(CommonConstants.XML_PATTERN_SEPERATOR);
-            for (String searchBase : searchBaseArray) {
+        // handle multiple search bases, searched in parallel
+        List<String> names = searchFanOut.search(searchBases, 0, (searchBase, sink) -> {
+            DirContext dirContext = connectionSource.getContext();
+            NamingEnumeration<SearchResult> answer = null;
+            try {
+                answer = dirContext.search(searchBase, searchFilter, searchCtls);
 
-                try {
-                    answer = dirContext.search(escapeDNForSearch(searchBase), searchFilter, searchCtls);
-
-                    while (answer.hasMoreElements()) {
-                        SearchResult sr = answer.next();
-                        if (sr.getAttributes() != null) {
-                            Attribute attr = sr.getAttributes().get(property);
-                            if (attr != null) {
-                                for (Enumeration vals = attr.getAll(); vals.hasMoreElements(); ) {
-                                    String name = (String) vals.nextElement();
-                                    if (debug) {
-                                        log.debug("Found user: " + name);
-                                    }
-                                    names.add(name);
+                while (answer.hasMoreElements()) {
+                    SearchResult sr = answer.next();
+                    if (sr.getAttributes() != null) {
+                        Attribute attr = sr.getAttributes().get(property);
+                        if (attr != null) {
+                            for (Enumeration vals = attr.getAll(); vals.hasMoreElements(); ) {
+                                String name = (String) vals.nextElement();
+                                if (debug) {
+                                    log.debug("Found user: " + name);
                                 }
+                                sink.add(name);
                             }
                         }
                     }
-                } catch (NamingException e) {
-                    // ignore
-                    if (log.isDebugEnabled()) {
-                        log.debug(e);
-                    }
                 }
-
-                if (debug) {
-                    for (String name : names) {
-                        log.debug("Result  :  " + name);
-                    }
+            } catch (NamingException e) {
+                // ignore
+                if (log.isDebugEnabled()) {
+                    log.debug(e);
                 }
-
+            } finally {
+                JNDIUtil.closeNamingEnumeration(answer);
+                JNDIUtil.closeContext(dirContext);
             }
+        });
 
-            return names;
-        } finally {
-            JNDIUtil.closeNamingEnumeration(answer);
-            JNDIUtil.closeContext(dirContext);
+        if (debug) {
+            for (String name : names) {
+                log.debug("Result  :  " + name);
+            }
         }
+        return names;
     }
 
     /**
@@ -1802,43 +3028,7 @@ public class LDAPUserStoreManager implements UserStoreManager {
      * @return - LDAP name with special characters removed.
      */
     private String escapeLdapNameForFilter(LdapName ldn) {
-
-        if (ldn == null) {
-            if (log.isDebugEnabled()) {
-                log.debug("Received null value to escape special characters. Returning null");
-            }
-            return null;
-        }
-
-        boolean replaceEscapeCharacters = true;
-
-        String replaceEscapeCharactersAtUserLoginString = userStoreProperties
-                .get(CommonConstants.PROPERTY_REPLACE_ESCAPE_CHARACTERS_AT_USER_LOGIN);
-
-        if (replaceEscapeCharactersAtUserLoginString != null) {
-            replaceEscapeCharacters = Boolean
-                    .parseBoolean(replaceEscapeCharactersAtUserLoginString);
-            if (log.isDebugEnabled()) {
-                log.debug("Replace escape characters configured to: "
-                        + replaceEscapeCharactersAtUserLoginString);
-            }
-        }
-
-        if (replaceEscapeCharacters) {
-            StringBuilder escapedDN = new StringBuilder();
-            for (int i = ldn.size() - 1; i > -1; i--) { //escaping the rdns separately and re-constructing the DN
-                escapedDN = escapedDN.append(escapeSpecialCharactersForFilterWithStarAsRegex(ldn.get(i)));
-                if (i != 0) {
-                    escapedDN.append(",");
-                }
-            }
-            if (log.isDebugEnabled()) {
-                log.debug("Escaped DN value for filter : " + escapedDN);
-            }
-            return escapedDN.toString();
-        } else {
-            return ldn.toString();
-        }
+        return config.escapeLdapNameForFilter(ldn);
     }
 
     /**
@@ -1887,7 +3077,7 @@ public class LDAPUserStoreManager implements UserStoreManager {
                 NamingEnumeration attributes = groupAttributes.getAll();
                 while (attributes.hasMoreElements()) {
                     Attribute memberAttribute = (Attribute) attributes.next();
-                    String memberAttributeName = userStoreProperties.get(LDAPConstants.MEMBERSHIP_ATTRIBUTE);
+                    String memberAttributeName = config.getMembershipAttribute();
                     String attributeID = memberAttribute.getID();
                     if (memberAttributeName.equals(attributeID)) {
                         if (memberAttribute.size() == 1 && userDN.equals(memberAttribute.get())) {
@@ -1932,7 +3122,7 @@ public class LDAPUserStoreManager implements UserStoreManager {
         try {
             mainDirContext = this.connectionSource.getContext();
             groupContext = (DirContext) mainDirContext.lookup(searchBase);
-            String memberAttributeName = userStoreProperties.get(LDAPConstants.MEMBERSHIP_ATTRIBUTE);
+            String memberAttributeName = config.getMembershipAttribute();
             Attributes modifyingAttributes = new BasicAttributes(true);
             Attribute memberAttribute = new BasicAttribute(memberAttributeName);
             memberAttribute.add(userNameDN);
@@ -1975,7 +3165,7 @@ public class LDAPUserStoreManager implements UserStoreManager {
                 // loop through attributes
                 while (attributes.hasMoreElements()) {
                     Attribute memberAttribute = (Attribute) attributes.next();
-                    String memberAttributeName = userStoreProperties.get(LDAPConstants.MEMBERSHIP_ATTRIBUTE);
+                    String memberAttributeName = config.getMembershipAttribute();
                     if (memberAttributeName.equalsIgnoreCase(memberAttribute.getID())) {
                         // loop through attribute values
                         for (int i = 0; i < memberAttribute.size(); i++) {
@@ -0,0 +1,554 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.agent.userstore.exception.UserStoreException;
+import org.wso2.carbon.identity.agent.userstore.util.UserStoreUtils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ *  Compact index of the group memberships of the LDAP userstore, answering user-in-role checks, role lists of
+ *  users and member lists of roles without a search.
+ *
+ *  Each member, user or group, is identified by a dense int ID assigned to its normalized DN, or to its
+ *  username when the membership attribute holds usernames, which is thus held once however many groups the
+ *  member is in. The members of a group are held in a CompressedBitmap of their IDs and the groups of a member in
+ *  a sorted int array of the group IDs.
+ *
+ *  The index is loaded in the background when it is created. Users and groups modified since the previous
+ *  refresh are then applied at each refresh, and the index is reloaded from all entries at a longer interval
+ *  so that deleted entries are dropped and their IDs reused. While it is loading, or when the last successful
+ *  refresh started longer ago than the maximum staleness, the reads go to the LDAP userstore.
+ */
+class MembershipIndex {
+
+    private static Log log = LogFactory.getLog(MembershipIndex.class);
+    private static final int[] NO_GROUPS = new int[0];
+
+    /**
+     *  Reads users and groups from the LDAP userstore.
+     */
+    interface Loader {
+
+        /**
+         * @param modifiedSince Modification time, in generalized time, of the latest user already read. null to
+         *                      read all users.
+         * @param handler Receives each user read.
+         * @throws UserStoreException If an error occurs while reading the LDAP userstore.
+         */
+        void loadUsers(String modifiedSince, UserNameIndex.UserHandler handler) throws UserStoreException;
+
+        /**
+         * @param modifiedSince Modification time, in generalized time, of the latest group already read. null to
+         *                      read all groups.
+         * @param handler Receives each group read.
+         * @throws UserStoreException If an error occurs while reading the LDAP userstore.
+         */
+        void loadGroups(String modifiedSince, NestedGroupGraph.GroupHandler handler) throws UserStoreException;
+    }
+
+    private final Loader loader;
+    private final boolean membershipByUserName;
+    private final boolean nestedGroups;
+    private final long rebuildInterval;
+    private final long maxStaleness;
+    private final ScheduledThreadPoolExecutor refreshExecutor;
+    private volatile State state;
+    private volatile long lastRefresh;
+    private volatile long lastRebuild;
+    private volatile long lastRefreshDuration;
+    private volatile int lastRefreshChanges;
+    private volatile String lastRefreshError;
+    private final LongAdder refreshCount = new LongAdder();
+    private final LongAdder failedRefreshCount = new LongAdder();
+    private final LongAdder readCount = new LongAdder();
+    private final LongAdder fallbackCount = new LongAdder();
+
+    /**
+     * @param loader Reads the users and groups at each refresh.
+     * @param membershipByUserName Whether the membership attribute holds usernames instead of DNs.
+     * @param nestedGroups Whether the roles of a user include the groups its groups are nested in.
+     * @param refreshInterval Time in milliseconds between reading the modified entries.
+     * @param rebuildInterval Time in milliseconds between reading all entries.
+     * @param maxStaleness Time in milliseconds since the start of the last successful refresh after which the
+     *                     index is not used.
+     */
+    MembershipIndex(Loader loader, boolean membershipByUserName, boolean nestedGroups, long refreshInterval,
+                    long rebuildInterval, long maxStaleness) {
+
+        this.loader = loader;
+        this.membershipByUserName = membershipByUserName;
+        this.nestedGroups = nestedGroups;
+        this.rebuildInterval = rebuildInterval;
+        this.maxStaleness = maxStaleness;
+        this.refreshExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "MembershipIndexRefresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.refreshExecutor.scheduleWithFixedDelay(this::refresh, 0, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true if the index is loaded and refreshed within the maximum staleness, false if the reads should
+     * go to the LDAP userstore.
+     */
+    boolean isAvailable() {
+        if (state != null && System.currentTimeMillis() - lastRefresh <= maxStaleness) {
+            readCount.increment();
+            return true;
+        }
+        fallbackCount.increment();
+        return false;
+    }
+
+    /**
+     * @param userName Username of the user.
+     * @param roleName Name of the role.
+     * @return true if the user is a member of the role, or of a role nested in it if nested groups are resolved.
+     */
+    boolean isUserInRole(String userName, String roleName) {
+
+        State current = state;
+        current.lock.readLock().lock();
+        try {
+            Integer userId = current.userIds.get(toKey(userName));
+            Integer groupId = current.groupIdsByName.get(toKey(roleName));
+            if (userId == null || groupId == null) {
+                return false;
+            }
+            if (current.memberBitmaps.get(groupId).contains(userId)) {
+                return true;
+            }
+            return nestedGroups && current.getGroupIds(userId, groupId).contains(groupId);
+        } finally {
+            current.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param userName Username of the user.
+     * @return Names of the roles of the user, including the roles its roles are nested in if nested groups are
+     * resolved.
+     */
+    List<String> getRolesOfUser(String userName) {
+
+        State current = state;
+        current.lock.readLock().lock();
+        try {
+            Integer userId = current.userIds.get(toKey(userName));
+            if (userId == null) {
+                return Collections.emptyList();
+            }
+            List<String> names = new ArrayList<>();
+            current.getGroupIds(userId, -1).forEach(groupId -> {
+                names.add(current.groupNames.get(groupId));
+                return true;
+            });
+            return names;
+        } finally {
+            current.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param roleName Name of the role.
+     * @param maxItemLimit Maximum number of usernames.
+     * @return Usernames of the users which are members of the role, combined with their display names as the LDAP
+     * userstore returns them.
+     */
+    List<String> getUsersOfRole(String roleName, int maxItemLimit) {
+
+        List<String> names = new ArrayList<>();
+        State current = state;
+        current.lock.readLock().lock();
+        try {
+            Integer groupId = current.groupIdsByName.get(toKey(roleName));
+            if (groupId == null) {
+                return names;
+            }
+            current.memberBitmaps.get(groupId).forEach(memberId -> {
+                String userName = current.userNames.get(memberId);
+                if (userName != null) {
+                    names.add(UserStoreUtils.getCombinedName(userName, current.displayNames.get(memberId)));
+                }
+                return names.size() < maxItemLimit;
+            });
+        } finally {
+            current.lock.readLock().unlock();
+        }
+        return names;
+    }
+
+    /**
+     * Applies a role update made by the agent, so that it is read back before the next refresh.
+     * @param userName Username of the user.
+     * @param deletedRoles Roles the user was removed from.
+     * @param newRoles Roles the user was added to.
+     */
+    void updateRolesOfUser(String userName, String[] deletedRoles, String[] newRoles) {
+
+        State current = state;
+        if (current == null) {
+            return;
+        }
+        current.lock.writeLock().lock();
+        try {
+            Integer userId = current.userIds.get(toKey(userName));
+            if (userId == null) {
+                return;
+            }
+            for (String roleName : deletedRoles == null ? new String[0] : deletedRoles) {
+                Integer groupId = current.groupIdsByName.get(toKey(roleName));
+                if (groupId != null && current.memberBitmaps.get(groupId).remove(userId)) {
+                    current.removeGroupId(userId, groupId);
+                }
+            }
+            for (String roleName : newRoles == null ? new String[0] : newRoles) {
+                Integer groupId = current.groupIdsByName.get(toKey(roleName));
+                if (groupId != null && current.memberBitmaps.get(groupId).add(userId)) {
+                    current.addGroupId(userId, groupId);
+                }
+            }
+        } finally {
+            current.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return Size, memory, staleness and refresh statistics of the index.
+     */
+    Map<String, Object> getStatistics() {
+
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        State current = state;
+        long now = System.currentTimeMillis();
+        String status = current == null ? "loading" : now - lastRefresh <= maxStaleness ? "current" : "stale";
+        statistics.put("status", status);
+        if (current != null) {
+            current.lock.readLock().lock();
+            try {
+                long memberships = 0;
+                long memory = 0;
+                for (int id = 0; id < current.members.size(); id++) {
+                    CompressedBitmap bitmap = current.memberBitmaps.get(id);
+                    if (bitmap != null) {
+                        memberships += bitmap.cardinality();
+                        memory += bitmap.getMemory();
+                    }
+                    memory += 16 + current.groupIds.get(id).length * 4L;
+                }
+                statistics.put("users", current.userIds.size());
+                statistics.put("groups", current.groupIdsByName.size());
+                statistics.put("memberIds", current.members.size());
+                statistics.put("memberships", memberships);
+                // bitmaps and group lists only, without the IDs of the names and DNs
+                statistics.put("membershipMemoryBytes", memory);
+            } finally {
+                current.lock.readLock().unlock();
+            }
+        }
+        statistics.put("refreshLagMillis", current == null ? -1 : now - lastRefresh);
+        statistics.put("maxStalenessMillis", maxStaleness);
+        statistics.put("lastRefresh", lastRefresh);
+        statistics.put("lastRebuild", lastRebuild);
+        statistics.put("lastRefreshDurationMillis", lastRefreshDuration);
+        statistics.put("lastRefreshChanges", lastRefreshChanges);
+        statistics.put("refreshes", refreshCount.sum());
+        statistics.put("failedRefreshes", failedRefreshCount.sum());
+        if (lastRefreshError != null) {
+            statistics.put("lastRefreshError", lastRefreshError);
+        }
+        statistics.put("reads", readCount.sum());
+        statistics.put("fallbacks", fallbackCount.sum());
+        return statistics;
+    }
+
+    void close() {
+        refreshExecutor.shutdownNow();
+    }
+
+    private void refresh() {
+
+        long start = System.currentTimeMillis();
+        boolean rebuild = state == null || start - lastRebuild >= rebuildInterval;
+        try {
+            int changes = rebuild ? rebuild() : applyModified();
+            lastRefresh = start;
+            if (rebuild) {
+                lastRebuild = start;
+            }
+            lastRefreshDuration = System.currentTimeMillis() - start;
+            lastRefreshChanges = changes;
+            lastRefreshError = null;
+            refreshCount.increment();
+            if (log.isDebugEnabled()) {
+                log.debug((rebuild ? "Loaded " : "Applied ") + changes + " entries of the membership index in "
+                        + lastRefreshDuration + "ms.");
+            }
+        } catch (UserStoreException | RuntimeException e) {
+            failedRefreshCount.increment();
+            lastRefreshError = e.getMessage();
+            log.error("Error while refreshing the membership index. The index is used until it is older than "
+                    + maxStaleness + "ms.", e);
+        }
+    }
+
+    /**
+     * Reads all entries into a new state, which replaces the current one once complete.
+     * @return Number of entries read.
+     * @throws UserStoreException If an error occurs while reading the entries.
+     */
+    private int rebuild() throws UserStoreException {
+
+        State loaded = new State();
+        int[] count = { 0 };
+        loader.loadUsers(null, (userDN, userName, displayName, listed, modifyTimestamp) -> {
+            loaded.putUser(toUserMember(userDN, userName), userName, displayName);
+            loaded.userModifiedSince = latest(loaded.userModifiedSince, modifyTimestamp);
+            count[0]++;
+        });
+        loader.loadGroups(null, (groupDN, groupName, memberValues, modifyTimestamp) -> {
+            loaded.putGroup(DirectoryReplica.normalizeDN(groupDN), groupName, toMembers(memberValues));
+            loaded.groupModifiedSince = latest(loaded.groupModifiedSince, modifyTimestamp);
+            count[0]++;
+        });
+        state = loaded;
+        return count[0];
+    }
+
+    /**
+     * Reads the entries modified since the previous refresh and applies them to the current state.
+     * @return Number of entries read.
+     * @throws UserStoreException If an error occurs while reading the entries.
+     */
+    private int applyModified() throws UserStoreException {
+
+        State current = state;
+        List<String[]> users = new ArrayList<>();
+        String[] userModifiedSince = { current.userModifiedSince };
+        loader.loadUsers(current.userModifiedSince, (userDN, userName, displayName, listed, modifyTimestamp) -> {
+            users.add(new String[] { toUserMember(userDN, userName), userName, displayName });
+            userModifiedSince[0] = latest(userModifiedSince[0], modifyTimestamp);
+        });
+        List<Object[]> groups = new ArrayList<>();
+        String[] groupModifiedSince = { current.groupModifiedSince };
+        loader.loadGroups(current.groupModifiedSince, (groupDN, groupName, memberValues, modifyTimestamp) -> {
+            groups.add(new Object[] { DirectoryReplica.normalizeDN(groupDN), groupName, toMembers(memberValues) });
+            groupModifiedSince[0] = latest(groupModifiedSince[0], modifyTimestamp);
+        });
+
+        // the changes are read before locking, so that the reads wait only while they are applied
+        current.lock.writeLock().lock();
+        try {
+            for (String[] user : users) {
+                current.putUser(user[0], user[1], user[2]);
+            }
+            for (Object[] group : groups) {
+                current.putGroup((String) group[0], (String) group[1], (String[]) group[2]);
+            }
+            current.userModifiedSince = userModifiedSince[0];
+            current.groupModifiedSince = groupModifiedSince[0];
+        } finally {
+            current.lock.writeLock().unlock();
+        }
+        return users.size() + groups.size();
+    }
+
+    /**
+     * @param userDN DN of the user.
+     * @param userName Username of the user.
+     * @return Member key of the user, as it appears in the membership attribute once normalized.
+     */
+    private String toUserMember(String userDN, String userName) {
+        return membershipByUserName ? toKey(userName) : DirectoryReplica.normalizeDN(userDN);
+    }
+
+    /**
+     * @param memberValues Values of the membership attribute of a group.
+     * @return Member keys of the members.
+     */
+    private String[] toMembers(List<String> memberValues) {
+        String[] members = new String[memberValues.size()];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = membershipByUserName ? toKey(memberValues.get(i))
+                    : DirectoryReplica.normalizeDN(memberValues.get(i));
+        }
+        return members;
+    }
+
+    private static String latest(String current, String modifyTimestamp) {
+        // generalized times of the same server compare as strings
+        return modifyTimestamp != null && (current == null || modifyTimestamp.compareTo(current) > 0) ?
+                modifyTimestamp : current;
+    }
+
+    private static String toKey(String name) {
+        return name.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     *  Members, groups and memberships of the index, guarded by its lock. The lists are indexed by member ID.
+     */
+    private final class State {
+
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        // member keys to their IDs, the keys being held once, by this map and by the members list
+        private final Map<String, Integer> memberIds = new HashMap<>();
+        private final List<String> members = new ArrayList<>();
+        // username of each member which is a user, null for the other members
+        private final List<String> userNames = new ArrayList<>();
+        // display name of each member which is a user, null if it has none or for the other members
+        private final List<String> displayNames = new ArrayList<>();
+        // group name of each member which is a group, null for the other members
+        private final List<String> groupNames = new ArrayList<>();
+        // members of each group, null for the other members
+        private final List<CompressedBitmap> memberBitmaps = new ArrayList<>();
+        // sorted IDs of the groups of each member
+        private final List<int[]> groupIds = new ArrayList<>();
+        private final Map<String, Integer> userIds = new HashMap<>();
+        private final Map<String, Integer> groupIdsByName = new HashMap<>();
+        private String userModifiedSince;
+        private String groupModifiedSince;
+
+        /**
+         * @param member Member key.
+         * @return ID of the member, assigned if the member is new.
+         */
+        private int toId(String member) {
+            Integer id = memberIds.get(member);
+            if (id == null) {
+                id = members.size();
+                memberIds.put(member, id);
+                members.add(member);
+                userNames.add(null);
+                displayNames.add(null);
+                groupNames.add(null);
+                memberBitmaps.add(null);
+                groupIds.add(NO_GROUPS);
+            }
+            return id;
+        }
+
+        private void putUser(String member, String userName, String displayName) {
+            int id = toId(member);
+            String previous = userNames.set(id, userName);
+            displayNames.set(id, displayName);
+            if (previous != null && !toKey(previous).equals(toKey(userName))
+                    && Integer.valueOf(id).equals(userIds.get(toKey(previous)))) {
+                userIds.remove(toKey(previous));
+            }
+            userIds.put(toKey(userName), id);
+        }
+
+        private void putGroup(String member, String groupName, String[] memberKeys) {
+
+            int groupId = toId(member);
+            String previousName = groupNames.set(groupId, groupName);
+            if (previousName != null && !toKey(previousName).equals(toKey(groupName))
+                    && Integer.valueOf(groupId).equals(groupIdsByName.get(toKey(previousName)))) {
+                groupIdsByName.remove(toKey(previousName));
+            }
+            groupIdsByName.put(toKey(groupName), groupId);
+
+            CompressedBitmap bitmap = new CompressedBitmap();
+            for (String memberKey : memberKeys) {
+                bitmap.add(toId(memberKey));
+            }
+            CompressedBitmap previous = memberBitmaps.set(groupId, bitmap);
+            if (previous != null) {
+                previous.forEach(memberId -> {
+                    if (!bitmap.contains(memberId)) {
+                        removeGroupId(memberId, groupId);
+                    }
+                    return true;
+                });
+            }
+            bitmap.forEach(memberId -> {
+                if (previous == null || !previous.contains(memberId)) {
+                    addGroupId(memberId, groupId);
+                }
+                return true;
+            });
+        }
+
+        private void addGroupId(int memberId, int groupId) {
+            int[] ids = groupIds.get(memberId);
+            int index = Arrays.binarySearch(ids, groupId);
+            if (index < 0) {
+                index = -index - 1;
+                int[] added = new int[ids.length + 1];
+                System.arraycopy(ids, 0, added, 0, index);
+                added[index] = groupId;
+                System.arraycopy(ids, index, added, index + 1, ids.length - index);
+                groupIds.set(memberId, added);
+            }
+        }
+
+        private void removeGroupId(int memberId, int groupId) {
+            int[] ids = groupIds.get(memberId);
+            int index = Arrays.binarySearch(ids, groupId);
+            if (index >= 0) {
+                int[] removed = ids.length == 1 ? NO_GROUPS : new int[ids.length - 1];
+                System.arraycopy(ids, 0, removed, 0, index);
+                System.arraycopy(ids, index + 1, removed, index, ids.length - index - 1);
+                groupIds.set(memberId, removed);
+            }
+        }
+
+        /**
+         * @param memberId ID of a member.
+         * @param targetGroupId ID of a group at which the search stops once it is found, -1 to find all groups.
+         * @return IDs of the groups of the member, including the groups they are nested in if nested groups are
+         * resolved, called under the read lock.
+         */
+        private CompressedBitmap getGroupIds(int memberId, int targetGroupId) {
+            CompressedBitmap found = new CompressedBitmap();
+            Deque<Integer> pending = new ArrayDeque<>();
+            pending.add(memberId);
+            while (!pending.isEmpty()) {
+                for (int groupId : groupIds.get(pending.poll())) {
+                    // a group already found closes a cycle, or was reached through another path
+                    if (found.add(groupId) && nestedGroups) {
+                        if (groupId == targetGroupId) {
+                            return found;
+                        }
+                        pending.add(groupId);
+                    }
+                }
+            }
+            return found;
+        }
+    }
+}
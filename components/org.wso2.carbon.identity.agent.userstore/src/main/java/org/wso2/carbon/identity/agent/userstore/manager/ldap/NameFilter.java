@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import java.util.Locale;
+
+/**
+ *  Listing filter of names, with * matching any characters, matched case insensitively against names in lower
+ *  case.
+ *
+ *  The names matching the filter all start with its prefix, the part before the first *, so that in a sorted
+ *  list of names they are found in the range of the names with that prefix.
+ */
+final class NameFilter {
+
+    private final String[] parts;
+
+    /**
+     * @param filter Filter of the names, with * matching any characters.
+     */
+    NameFilter(String filter) {
+        this.parts = filter.toLowerCase(Locale.ENGLISH).split("\\*", -1);
+    }
+
+    /**
+     * @return Part of the filter in lower case before the first *, empty if the filter starts with *.
+     */
+    String getPrefix() {
+        return parts[0];
+    }
+
+    /**
+     * @param key Name in lower case.
+     * @return true if the name matches the filter.
+     */
+    boolean matches(String key) {
+        if (parts.length == 1) {
+            return key.equals(parts[0]);
+        }
+        String last = parts[parts.length - 1];
+        if (!key.startsWith(parts[0]) || !key.endsWith(last)
+                || key.length() < parts[0].length() + last.length()) {
+            return false;
+        }
+        int position = parts[0].length();
+        int end = key.length() - last.length();
+        for (int i = 1; i < parts.length - 1; i++) {
+            int index = key.indexOf(parts[i], position);
+            if (index < 0 || index + parts[i].length() > end) {
+                return false;
+            }
+            position = index + parts[i].length();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.agent.userstore.exception.UserStoreException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+
+/**
+ *  In memory graph of the groups which are members of other groups, used to resolve nested group memberships
+ *  without a recursive search per user.
+ *
+ *  The graph is loaded on first use. It is then refreshed in the background by reading only the groups
+ *  modified since the previous refresh, and rebuilt from all groups at a longer interval so that deleted and
+ *  renamed groups are dropped. The ancestors of each group are computed once per refresh, following the
+ *  memberships breadth first so that cycles between groups end the walk instead of looping.
+ */
+class NestedGroupGraph {
+
+    private static Log log = LogFactory.getLog(NestedGroupGraph.class);
+
+    /**
+     *  Reads groups from the LDAP userstore.
+     */
+    interface Loader {
+
+        /**
+         * @param modifiedSince Modification time, in generalized time, of the latest group already read. null to
+         *                      read all groups.
+         * @param handler Receives each group read.
+         * @throws UserStoreException If an error occurs while reading the LDAP userstore.
+         */
+        void load(String modifiedSince, GroupHandler handler) throws UserStoreException;
+    }
+
+    /**
+     *  Receives the groups read by the Loader.
+     */
+    interface GroupHandler {
+
+        /**
+         * @param groupDN DN of the group.
+         * @param groupName Name of the group.
+         * @param memberDNs Values of the membership attribute of the group.
+         * @param modifyTimestamp Modification time of the group in generalized time, or the value of the change
+         *                        attribute read, null if not known.
+         */
+        void group(String groupDN, String groupName, List<String> memberDNs, String modifyTimestamp);
+    }
+
+    private final Loader loader;
+    private final List<LdapName> groupSearchBases = new ArrayList<>();
+    private final long fullRefreshInterval;
+    private final ScheduledThreadPoolExecutor refreshExecutor;
+    private volatile Graph graph;
+    private volatile long lastRefresh;
+    private volatile long lastFullRefresh;
+
+    /**
+     * @param loader Reads the groups when the graph is loaded or refreshed.
+     * @param groupSearchBases DNs of the group search bases. Only members under them are kept, as groups
+     *                         are not found elsewhere.
+     * @param refreshInterval Time in milliseconds between reading the modified groups.
+     * @param fullRefreshInterval Time in milliseconds between reading all groups.
+     */
+    NestedGroupGraph(Loader loader, String[] groupSearchBases, long refreshInterval, long fullRefreshInterval) {
+
+        this.loader = loader;
+        for (String groupSearchBase : groupSearchBases) {
+            try {
+                this.groupSearchBases.add(new LdapName(groupSearchBase));
+            } catch (InvalidNameException e) {
+                log.error("Invalid group search base " + groupSearchBase, e);
+            }
+        }
+        this.fullRefreshInterval = fullRefreshInterval;
+        this.refreshExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "NestedGroupGraphRefresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.refreshExecutor.scheduleWithFixedDelay(this::refreshInBackground, refreshInterval, refreshInterval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param groupDNs DNs of the groups a user is a direct member of.
+     * @return Names of the groups which the given groups are nested in, directly or through other groups.
+     * @throws UserStoreException If the graph is not loaded yet and cannot be loaded.
+     */
+    Set<String> getAncestorNames(Collection<String> groupDNs) throws UserStoreException {
+
+        Graph current = graph;
+        if (current == null) {
+            synchronized (this) {
+                if (graph == null) {
+                    refresh(true);
+                }
+                current = graph;
+            }
+        }
+        Set<String> names = new LinkedHashSet<>();
+        for (String groupDN : groupDNs) {
+            try {
+                names.addAll(current.getAncestorNames(new LdapName(groupDN)));
+            } catch (InvalidNameException e) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Invalid group DN " + groupDN, e);
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return Size and refresh statistics of the graph.
+     */
+    Map<String, Object> getStatistics() {
+
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        Graph current = graph;
+        statistics.put("groups", current == null ? 0 : current.groups.size());
+        statistics.put("nestedGroups", current == null ? 0 : current.parents.size());
+        statistics.put("lastRefresh", lastRefresh);
+        statistics.put("lastFullRefresh", lastFullRefresh);
+        return statistics;
+    }
+
+    void close() {
+        refreshExecutor.shutdownNow();
+    }
+
+    private void refreshInBackground() {
+
+        if (graph == null) {
+            // not used yet, loaded on first use
+            return;
+        }
+        try {
+            refresh(System.currentTimeMillis() - lastFullRefresh >= fullRefreshInterval);
+        } catch (UserStoreException | RuntimeException e) {
+            log.error("Error while refreshing the nested group graph. The previous graph is used until the next "
+                    + "refresh.", e);
+        }
+    }
+
+    /**
+     * Reads the groups and replaces the graph.
+     * @param full Whether all groups are read, instead of the groups modified since the previous refresh.
+     * @throws UserStoreException If an error occurs while reading the groups.
+     */
+    private synchronized void refresh(boolean full) throws UserStoreException {
+
+        long start = System.currentTimeMillis();
+        Graph current = graph;
+        boolean readAll = full || current == null;
+        Map<LdapName, Group> groups = readAll ? new HashMap<>() : new HashMap<>(current.groups);
+        String[] modifiedSince = { readAll ? null : current.modifiedSince };
+        int[] count = { 0 };
+
+        loader.load(modifiedSince[0], (groupDN, groupName, memberDNs, modifyTimestamp) -> {
+            LdapName dn;
+            try {
+                dn = new LdapName(groupDN);
+            } catch (InvalidNameException e) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Invalid group DN " + groupDN, e);
+                }
+                return;
+            }
+            Set<LdapName> members = new HashSet<>();
+            for (String memberDN : memberDNs) {
+                try {
+                    LdapName member = new LdapName(memberDN);
+                    if (isUnderGroupSearchBase(member)) {
+                        members.add(member);
+                    }
+                } catch (InvalidNameException e) {
+                    // not a DN, hence not a group
+                }
+            }
+            groups.put(dn, new Group(groupName, members));
+            // generalized times of the same server compare as strings
+            if (modifyTimestamp != null && (modifiedSince[0] == null
+                    || modifyTimestamp.compareTo(modifiedSince[0]) > 0)) {
+                modifiedSince[0] = modifyTimestamp;
+            }
+            count[0]++;
+        });
+
+        graph = new Graph(groups, modifiedSince[0]);
+        lastRefresh = start;
+        if (readAll) {
+            lastFullRefresh = start;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug((readAll ? "Loaded " : "Refreshed ") + count[0] + " groups of the nested group graph in "
+                    + (System.currentTimeMillis() - start) + "ms. Groups: " + groups.size());
+        }
+    }
+
+    private boolean isUnderGroupSearchBase(LdapName member) {
+        for (LdapName groupSearchBase : groupSearchBases) {
+            if (member.size() > groupSearchBase.size() && member.startsWith(groupSearchBase)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     *  A group with the members which may be groups.
+     */
+    private static final class Group {
+
+        private final String name;
+        private final Set<LdapName> members;
+
+        private Group(String name, Set<LdapName> members) {
+            this.name = name;
+            this.members = members;
+        }
+    }
+
+    /**
+     *  Immutable groups with the parents of each nested group, and the ancestors computed so far.
+     */
+    private static final class Graph {
+
+        private final Map<LdapName, Group> groups;
+        private final Map<LdapName, List<LdapName>> parents = new HashMap<>();
+        private final Map<LdapName, Set<String>> ancestorNames = new ConcurrentHashMap<>();
+        private final String modifiedSince;
+
+        private Graph(Map<LdapName, Group> groups, String modifiedSince) {
+            this.groups = groups;
+            this.modifiedSince = modifiedSince;
+            for (Map.Entry<LdapName, Group> entry : groups.entrySet()) {
+                for (LdapName member : entry.getValue().members) {
+                    if (groups.containsKey(member)) {
+                        parents.computeIfAbsent(member, key -> new ArrayList<>()).add(entry.getKey());
+                    }
+                }
+            }
+        }
+
+        private Set<String> getAncestorNames(LdapName groupDN) {
+            if (!parents.containsKey(groupDN)) {
+                return Collections.emptySet();
+            }
+            return ancestorNames.computeIfAbsent(groupDN, this::findAncestorNames);
+        }
+
+        private Set<String> findAncestorNames(LdapName groupDN) {
+            Set<LdapName> visited = new HashSet<>();
+            visited.add(groupDN);
+            Deque<LdapName> pending = new ArrayDeque<>();
+            pending.add(groupDN);
+            Set<String> names = new LinkedHashSet<>();
+            while (!pending.isEmpty()) {
+                for (LdapName parent : parents.getOrDefault(pending.poll(), Collections.emptyList())) {
+                    // a group already visited closes a cycle, or was reached through another path
+                    if (visited.add(parent)) {
+                        names.add(groups.get(parent).name);
+                        pending.add(parent);
+                    }
+                }
+            }
+            return Collections.unmodifiableSet(names);
+        }
+    }
+}
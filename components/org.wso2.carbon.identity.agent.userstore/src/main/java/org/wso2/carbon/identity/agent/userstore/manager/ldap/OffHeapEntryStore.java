@@ -0,0 +1,487 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *  Store of user entries, each with its DN and attribute values, held outside the Java heap in direct buffers, so
+ *  that the number of cached users does not add to the heap the garbage collector has to scan.
+ *
+ *  The memory is divided into segments, which are filled in turn with records appended one after another. An
+ *  updated entry is appended as a new record, leaving its previous record as garbage. When the segment to be
+ *  filled next is reached again, its records are evicted, except records read since they were written, which are
+ *  kept once more at the start of the segment as long as they fill at most half of it (second chance, as in the
+ *  CLOCK algorithm).
+ *
+ *  The records are found through an open addressing hash table, also held in a direct buffer, whose slots hold
+ *  the address of a record with some bits of the hash of its key.
+ *
+ *  Record layout: int length, byte flags, long hash, key, DN, int attribute count, then the name, value and long
+ *  load time of each attribute. Strings are an int length, -1 for null, followed by the UTF-8 bytes.
+ *
+ *  The store is not thread safe.
+ */
+final class OffHeapEntryStore {
+
+    private static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int MIN_SEGMENTS = 8;
+    // expected smallest average size of a record, sizing the hash table
+    private static final int MIN_AVERAGE_RECORD_SIZE = 128;
+    // largest hash table whose size in bytes fits in the int of ByteBuffer.allocateDirect
+    private static final int MAX_SLOTS = 1 << 27;
+    private static final byte ACCESSED = 1;
+    private static final int LENGTH_OFFSET = 0;
+    private static final int FLAGS_OFFSET = 4;
+    private static final int HASH_OFFSET = 5;
+    private static final int KEY_OFFSET = 13;
+    private static final int TAG_SHIFT = 40;
+    private static final long ADDRESS_MASK = (1L << TAG_SHIFT) - 1;
+
+    /**
+     *  An entry of the store, decoded onto the heap.
+     */
+    static final class Entry {
+
+        private final String key;
+        private final String dn;
+        private final Map<String, Attribute> attributes;
+
+        /**
+         * @param key Key of the entry, e.g. the username.
+         * @param dn DN of the user, null if not known.
+         * @param attributes Attributes by name.
+         */
+        Entry(String key, String dn, Map<String, Attribute> attributes) {
+            this.key = key;
+            this.dn = dn;
+            this.attributes = attributes;
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        String getDN() {
+            return dn;
+        }
+
+        Map<String, Attribute> getAttributes() {
+            return attributes;
+        }
+    }
+
+    /**
+     *  Value of an attribute, null if the user does not have the attribute, with the time it was loaded.
+     */
+    static final class Attribute {
+
+        private final String value;
+        private final long loadedAt;
+
+        Attribute(String value, long loadedAt) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+        }
+
+        String getValue() {
+            return value;
+        }
+
+        long getLoadedAt() {
+            return loadedAt;
+        }
+    }
+
+    private final ByteBuffer[] segments;
+    private final int segmentSize;
+    // bytes written to each segment
+    private final int[] segmentUsed;
+    private final LongBuffer slots;
+    private final int slotMask;
+    private final int maxEntries;
+    private int currentSegment;
+    private int entryCount;
+    private long garbageBytes;
+    private long evictionCount;
+    private long secondChanceCount;
+    private long rejectionCount;
+
+    /**
+     * @param capacity Size in bytes of the segments holding the records.
+     * @throws IllegalArgumentException If the capacity is not positive or too large to be addressed by the slots.
+     */
+    OffHeapEntryStore(long capacity) {
+
+        if (capacity <= 0 || capacity > ADDRESS_MASK) {
+            throw new IllegalArgumentException("Off heap store capacity must be between 1 and " + ADDRESS_MASK
+                    + " bytes: " + capacity);
+        }
+        int segmentCount = (int) Math.max(MIN_SEGMENTS, (capacity + MAX_SEGMENT_SIZE - 1) / MAX_SEGMENT_SIZE);
+        this.segmentSize = (int) Math.max(capacity / segmentCount, 1024);
+        this.segments = new ByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = ByteBuffer.allocateDirect(segmentSize);
+        }
+        this.segmentUsed = new int[segmentCount];
+        // the table is kept at most half full, so that probe sequences stay short
+        long records = (long) segmentCount * segmentSize / MIN_AVERAGE_RECORD_SIZE;
+        int slotCount = Integer.highestOneBit((int) Math.min(Math.max(records * 2, 64), MAX_SLOTS) - 1) << 1;
+        long indexBytes = (long) slotCount * Long.BYTES;
+        if (indexBytes > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Off heap store index of " + indexBytes + " bytes is too large.");
+        }
+        this.slots = ByteBuffer.allocateDirect((int) indexBytes).asLongBuffer();
+        this.slotMask = slotCount - 1;
+        this.maxEntries = slotCount / 2;
+    }
+
+    /**
+     * @param key Key of the entry.
+     * @return The entry, null if it is not stored.
+     */
+    Entry get(String key) {
+
+        long hash = hash(key);
+        int slot = findSlot(hash, key.getBytes(StandardCharsets.UTF_8));
+        if (slot < 0) {
+            return null;
+        }
+        long address = addressOf(slots.get(slot));
+        ByteBuffer segment = segments[(int) (address / segmentSize)];
+        int offset = (int) (address % segmentSize);
+        segment.put(offset + FLAGS_OFFSET, (byte) (segment.get(offset + FLAGS_OFFSET) | ACCESSED));
+        segment.position(offset + KEY_OFFSET);
+        String storedKey = readString(segment);
+        String dn = readString(segment);
+        int count = segment.getInt();
+        Map<String, Attribute> attributes = new LinkedHashMap<>(count * 4 / 3 + 1);
+        for (int i = 0; i < count; i++) {
+            String name = readString(segment);
+            String value = readString(segment);
+            attributes.put(name, new Attribute(value, segment.getLong()));
+        }
+        return new Entry(storedKey, dn, attributes);
+    }
+
+    /**
+     * Stores the entry, replacing the stored entry with the same key.
+     * @param entry Entry to be stored.
+     * @return false if the entry is larger than a segment and is not stored.
+     */
+    boolean put(Entry entry) {
+
+        long hash = hash(entry.key);
+        byte[] keyBytes = entry.key.getBytes(StandardCharsets.UTF_8);
+        byte[] record = encode(hash, keyBytes, entry);
+        if (record.length > segmentSize) {
+            remove(entry.key);
+            rejectionCount++;
+            return false;
+        }
+        // a segment keeps its records read since they were written only once, so that these end within two rounds
+        while (entryCount >= maxEntries && findSlot(hash, keyBytes) < 0) {
+            // the table is full of small records, so the next segment is evicted before it is due
+            advance();
+        }
+        while (segmentUsed[currentSegment] + record.length > segmentSize) {
+            advance();
+        }
+        int previous = findSlot(hash, keyBytes);
+        int offset = segmentUsed[currentSegment];
+        ByteBuffer segment = segments[currentSegment];
+        segment.position(offset);
+        segment.put(record);
+        segmentUsed[currentSegment] = offset + record.length;
+        long address = (long) currentSegment * segmentSize + offset;
+        if (previous >= 0) {
+            garbageBytes += recordLength(addressOf(slots.get(previous)));
+            slots.put(previous, toSlot(hash, address));
+        } else {
+            insertSlot(hash, address);
+            entryCount++;
+        }
+        return true;
+    }
+
+    /**
+     * @param key Key of the entry to be removed.
+     * @return true if the entry was stored.
+     */
+    boolean remove(String key) {
+
+        int slot = findSlot(hash(key), key.getBytes(StandardCharsets.UTF_8));
+        if (slot < 0) {
+            return false;
+        }
+        garbageBytes += recordLength(addressOf(slots.get(slot)));
+        deleteSlot(slot);
+        entryCount--;
+        return true;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    void clear() {
+
+        for (int i = 0; i <= slotMask; i++) {
+            slots.put(i, 0);
+        }
+        for (int i = 0; i < segments.length; i++) {
+            segmentUsed[i] = 0;
+        }
+        currentSegment = 0;
+        entryCount = 0;
+        garbageBytes = 0;
+    }
+
+    /**
+     * @return Number of stored entries.
+     */
+    int size() {
+        return entryCount;
+    }
+
+    /**
+     * @return Size, memory and eviction statistics of the store.
+     */
+    Map<String, Object> getStatistics() {
+
+        long used = 0;
+        for (int segmentBytes : segmentUsed) {
+            used += segmentBytes;
+        }
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("entries", entryCount);
+        statistics.put("maxEntries", maxEntries);
+        statistics.put("liveBytes", used - garbageBytes);
+        statistics.put("garbageBytes", garbageBytes);
+        statistics.put("capacityBytes", (long) segments.length * segmentSize);
+        statistics.put("indexBytes", (slotMask + 1) * (long) Long.BYTES);
+        statistics.put("segments", segments.length);
+        statistics.put("evictions", evictionCount);
+        statistics.put("secondChances", secondChanceCount);
+        statistics.put("rejections", rejectionCount);
+        return statistics;
+    }
+
+    /**
+     * Moves on to the next segment, evicting its records except those read since they were written.
+     */
+    private void advance() {
+
+        currentSegment = (currentSegment + 1) % segments.length;
+        ByteBuffer segment = segments[currentSegment];
+        long base = (long) currentSegment * segmentSize;
+        int used = segmentUsed[currentSegment];
+        // records kept are moved towards the start of the segment, never over a record not yet visited
+        int kept = 0;
+        int offset = 0;
+        while (offset < used) {
+            int length = segment.getInt(offset + LENGTH_OFFSET);
+            long hash = segment.getLong(offset + HASH_OFFSET);
+            int slot = findSlot(hash, base + offset);
+            if (slot < 0) {
+                // replaced or removed, and already counted as garbage
+                garbageBytes -= length;
+            } else if ((segment.get(offset + FLAGS_OFFSET) & ACCESSED) != 0 && kept + length <= segmentSize / 2) {
+                if (kept != offset) {
+                    byte[] record = new byte[length];
+                    segment.position(offset);
+                    segment.get(record);
+                    segment.position(kept);
+                    segment.put(record);
+                }
+                segment.put(kept + FLAGS_OFFSET, (byte) 0);
+                slots.put(slot, toSlot(hash, base + kept));
+                kept += length;
+                secondChanceCount++;
+            } else {
+                deleteSlot(slot);
+                entryCount--;
+                evictionCount++;
+            }
+            offset += length;
+        }
+        segmentUsed[currentSegment] = kept;
+    }
+
+    private int recordLength(long address) {
+        return segments[(int) (address / segmentSize)].getInt((int) (address % segmentSize) + LENGTH_OFFSET);
+    }
+
+    /**
+     * @param hash Hash of the key.
+     * @param keyBytes Key in UTF-8.
+     * @return Slot of the record with the key, -1 if the key is not stored.
+     */
+    private int findSlot(long hash, byte[] keyBytes) {
+
+        long tag = hash >>> TAG_SHIFT;
+        for (int slot = (int) hash & slotMask; ; slot = (slot + 1) & slotMask) {
+            long value = slots.get(slot);
+            if (value == 0) {
+                return -1;
+            }
+            if (value >>> TAG_SHIFT == tag && keyEquals(addressOf(value), keyBytes)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * @param hash Hash of the key of a record.
+     * @param address Address of the record.
+     * @return Slot pointing to the record, -1 if the record is not the current record of its key.
+     */
+    private int findSlot(long hash, long address) {
+
+        for (int slot = (int) hash & slotMask; ; slot = (slot + 1) & slotMask) {
+            long value = slots.get(slot);
+            if (value == 0) {
+                return -1;
+            }
+            if (addressOf(value) == address) {
+                return slot;
+            }
+        }
+    }
+
+    private void insertSlot(long hash, long address) {
+
+        int slot = (int) hash & slotMask;
+        while (slots.get(slot) != 0) {
+            slot = (slot + 1) & slotMask;
+        }
+        slots.put(slot, toSlot(hash, address));
+    }
+
+    /**
+     * Empties a slot, moving back the slots after it which would otherwise no longer be found.
+     * @param slot Slot to be emptied.
+     */
+    private void deleteSlot(int slot) {
+
+        int empty = slot;
+        for (int next = (slot + 1) & slotMask; ; next = (next + 1) & slotMask) {
+            long value = slots.get(next);
+            if (value == 0) {
+                break;
+            }
+            long address = addressOf(value);
+            int home = (int) segments[(int) (address / segmentSize)]
+                    .getLong((int) (address % segmentSize) + HASH_OFFSET) & slotMask;
+            // the slot moves back unless its home lies cyclically after the empty slot and up to it
+            boolean between = empty <= next ? empty < home && home <= next : empty < home || home <= next;
+            if (!between) {
+                slots.put(empty, value);
+                empty = next;
+            }
+        }
+        slots.put(empty, 0);
+    }
+
+    private boolean keyEquals(long address, byte[] keyBytes) {
+
+        ByteBuffer segment = segments[(int) (address / segmentSize)];
+        int offset = (int) (address % segmentSize) + KEY_OFFSET;
+        if (segment.getInt(offset) != keyBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (segment.get(offset + 4 + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] encode(long hash, byte[] keyBytes, Entry entry) {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + keyBytes.length);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0);
+            out.writeByte(0);
+            out.writeLong(hash);
+            out.writeInt(keyBytes.length);
+            out.write(keyBytes);
+            writeString(out, entry.dn);
+            out.writeInt(entry.attributes.size());
+            for (Map.Entry<String, Attribute> attribute : entry.attributes.entrySet()) {
+                writeString(out, attribute.getKey());
+                writeString(out, attribute.getValue().value);
+                out.writeLong(attribute.getValue().loadedAt);
+            }
+        } catch (IOException e) {
+            // not thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        byte[] record = bytes.toByteArray();
+        ByteBuffer.wrap(record).putInt(LENGTH_OFFSET, record.length);
+        return record;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long toSlot(long hash, long address) {
+        return (hash >>> TAG_SHIFT) << TAG_SHIFT | (address + 1);
+    }
+
+    private static long addressOf(long slot) {
+        return (slot & ADDRESS_MASK) - 1;
+    }
+
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        // finalizer of MurmurHash3, spreading the bits of the FNV-1a hash
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *  Bounded, least recently used cache of username to user DN mappings.
+ *
+ *  Users that could not be found are cached as negative entries with a shorter time to live, so repeated
+ *  lookups of unknown users do not search the directory each time.
+ */
+class UserDNCache {
+
+    private final int maxSize;
+    private final long timeToLive;
+    private final long negativeTimeToLive;
+    private final LinkedHashMap<String, Entry> entries;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder negativeHitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    /**
+     * @param maxSize Maximum number of cached usernames.
+     * @param timeToLive Time in milliseconds a resolved DN is kept.
+     * @param negativeTimeToLive Time in milliseconds a username that could not be found is kept.
+     */
+    UserDNCache(int maxSize, long timeToLive, long negativeTimeToLive) {
+
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+        this.negativeTimeToLive = negativeTimeToLive;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > UserDNCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param userName Username of the user.
+     * @return The cached lookup result, or null if the username is not cached or has expired.
+     */
+    Entry get(String userName) {
+
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(userName);
+            if (entry != null && entry.expiry < System.currentTimeMillis()) {
+                entries.remove(userName);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            missCount.increment();
+        } else if (entry.userDN == null) {
+            negativeHitCount.increment();
+        } else {
+            hitCount.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * @param userName Username of the user.
+     * @param userDN DN of the user, null if the user could not be found.
+     */
+    void put(String userName, String userDN) {
+
+        long ttl = userDN == null ? negativeTimeToLive : timeToLive;
+        if (ttl <= 0) {
+            return;
+        }
+        synchronized (entries) {
+            entries.put(userName, new Entry(userDN, System.currentTimeMillis() + ttl));
+        }
+    }
+
+    /**
+     * @param userName Username of the user whose cached DN is no longer valid.
+     */
+    void invalidate(String userName) {
+        synchronized (entries) {
+            entries.remove(userName);
+        }
+    }
+
+    /**
+     * Removes all cached DNs.
+     */
+    void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * @return Size and hit ratio statistics of the cache.
+     */
+    Map<String, Object> getStatistics() {
+
+        Map<String, Object> statistics = new HashMap<>();
+        synchronized (entries) {
+            statistics.put("size", entries.size());
+        }
+        statistics.put("maxSize", maxSize);
+        statistics.put("hits", hitCount.sum());
+        statistics.put("negativeHits", negativeHitCount.sum());
+        statistics.put("misses", missCount.sum());
+        return statistics;
+    }
+
+    /**
+     *  Result of a DN lookup. A null DN means that the user does not exist.
+     */
+    static class Entry {
+
+        private final String userDN;
+        private final long expiry;
+
+        private Entry(String userDN, long expiry) {
+            this.userDN = userDN;
+            this.expiry = expiry;
+        }
+
+        String getUserDN() {
+            return userDN;
+        }
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.agent.userstore.exception.UserStoreException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *  Sorted index of the usernames and display names of the listed users of the LDAP userstore, answering user
+ *  listings without a search.
+ *
+ *  The users matching a listing filter all have the prefix of the filter, so they are found by a binary search
+ *  for the first name with the prefix, followed by a scan of the names with the prefix only. A listing by
+ *  username takes O(log n + k) for k names with the prefix and stops at the limit, with the names already in
+ *  order. A listing by display name sorts the k matching users by username.
+ *
+ *  The index is loaded in the background when it is created. Users modified since the previous refresh are then
+ *  merged into it at each refresh, and it is reloaded from all users at a longer interval so that deleted users
+ *  are dropped. While it is loading, or when the last successful refresh started longer ago than the maximum
+ *  staleness, the listings go to the LDAP userstore.
+ */
+class UserNameIndex {
+
+    private static Log log = LogFactory.getLog(UserNameIndex.class);
+    private static final Comparator<Entry> BY_NAME = Comparator.comparing((Entry entry) -> entry.key)
+            .thenComparing(entry -> entry.dn);
+    private static final Comparator<Entry> BY_DISPLAY_NAME = Comparator
+            .comparing((Entry entry) -> entry.displayKey).thenComparing(BY_NAME);
+
+    /**
+     *  Reads users from the LDAP userstore.
+     */
+    interface Loader {
+
+        /**
+         * @param modifiedSince Modification time, in generalized time, of the latest user already read. null to
+         *                      read all users.
+         * @param handler Receives each user read.
+         * @throws UserStoreException If an error occurs while reading the LDAP userstore.
+         */
+        void load(String modifiedSince, UserHandler handler) throws UserStoreException;
+    }
+
+    /**
+     *  Receives the users read by a Loader.
+     */
+    interface UserHandler {
+
+        /**
+         * @param userDN DN of the user.
+         * @param userName Username of the user.
+         * @param displayName Display name of the user, null if not configured or not set.
+         * @param listed false if the user is a service principal, which is not listed.
+         * @param modifyTimestamp Modification time of the user in generalized time, null if not known.
+         */
+        void user(String userDN, String userName, String displayName, boolean listed, String modifyTimestamp);
+    }
+
+    private final Loader loader;
+    private final long rebuildInterval;
+    private final long maxStaleness;
+    private final ScheduledThreadPoolExecutor refreshExecutor;
+    private volatile Snapshot snapshot;
+    // read and written by the refresh thread only
+    private String modifiedSince;
+    private volatile long lastRefresh;
+    private volatile long lastRebuild;
+    private volatile long lastRefreshDuration;
+    private volatile int lastRefreshChanges;
+    private volatile String lastRefreshError;
+    private final LongAdder refreshCount = new LongAdder();
+    private final LongAdder failedRefreshCount = new LongAdder();
+    private final LongAdder listingCount = new LongAdder();
+    private final LongAdder fallbackCount = new LongAdder();
+
+    /**
+     * @param loader Reads the users at each refresh.
+     * @param refreshInterval Time in milliseconds between reading the modified users.
+     * @param rebuildInterval Time in milliseconds between reading all users.
+     * @param maxStaleness Time in milliseconds since the start of the last successful refresh after which the
+     *                     index is not used.
+     */
+    UserNameIndex(Loader loader, long refreshInterval, long rebuildInterval, long maxStaleness) {
+
+        this.loader = loader;
+        this.rebuildInterval = rebuildInterval;
+        this.maxStaleness = maxStaleness;
+        this.refreshExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "UserNameIndexRefresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.refreshExecutor.scheduleWithFixedDelay(this::refresh, 0, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true if the index is loaded and refreshed within the maximum staleness, false if the listings should
+     * go to the LDAP userstore.
+     */
+    boolean isAvailable() {
+        if (snapshot != null && System.currentTimeMillis() - lastRefresh <= maxStaleness) {
+            listingCount.increment();
+            return true;
+        }
+        fallbackCount.increment();
+        return false;
+    }
+
+    /**
+     * @param filter Filter of the listed name, with * matching any characters.
+     * @param byDisplayName Whether the filter matches the display names instead of the usernames.
+     * @param after Username after which the listing starts, null to start from the first user.
+     * @param maxItemLimit Maximum number of usernames.
+     * @return Usernames of the users matching the filter, in order.
+     */
+    List<String> listUsers(String filter, boolean byDisplayName, String after, int maxItemLimit) {
+
+        NameFilter nameFilter = new NameFilter(filter);
+        String prefix = nameFilter.getPrefix();
+        String afterKey = after == null ? null : toKey(after);
+        Snapshot current = snapshot;
+        List<String> names = new ArrayList<>();
+        if (!byDisplayName) {
+            Entry[] entries = current.byName;
+            int start = lowerBound(entries, prefix, false);
+            if (afterKey != null) {
+                start = Math.max(start, upperBound(entries, afterKey));
+            }
+            for (int i = start; i < entries.length && entries[i].key.startsWith(prefix)
+                    && names.size() < maxItemLimit; i++) {
+                if (nameFilter.matches(entries[i].key)) {
+                    names.add(entries[i].name);
+                }
+            }
+            return names;
+        }
+
+        Entry[] entries = current.byDisplayName;
+        List<Entry> matched = new ArrayList<>();
+        for (int i = lowerBound(entries, prefix, true); i < entries.length
+                && entries[i].displayKey.startsWith(prefix); i++) {
+            if (nameFilter.matches(entries[i].displayKey)
+                    && (afterKey == null || entries[i].key.compareTo(afterKey) > 0)) {
+                matched.add(entries[i]);
+            }
+        }
+        // the matching users are listed in the order of their usernames, as in the listings by username
+        matched.sort(BY_NAME);
+        for (int i = 0; i < matched.size() && names.size() < maxItemLimit; i++) {
+            names.add(matched.get(i).name);
+        }
+        return names;
+    }
+
+    /**
+     * @return Size, staleness and refresh statistics of the index.
+     */
+    Map<String, Object> getStatistics() {
+
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        Snapshot current = snapshot;
+        long now = System.currentTimeMillis();
+        String status = current == null ? "loading" : now - lastRefresh <= maxStaleness ? "current" : "stale";
+        statistics.put("status", status);
+        if (current != null) {
+            statistics.put("users", current.byName.length);
+            statistics.put("displayNames", current.byDisplayName.length);
+        }
+        statistics.put("refreshLagMillis", current == null ? -1 : now - lastRefresh);
+        statistics.put("maxStalenessMillis", maxStaleness);
+        statistics.put("lastRefresh", lastRefresh);
+        statistics.put("lastRebuild", lastRebuild);
+        statistics.put("lastRefreshDurationMillis", lastRefreshDuration);
+        statistics.put("lastRefreshChanges", lastRefreshChanges);
+        statistics.put("refreshes", refreshCount.sum());
+        statistics.put("failedRefreshes", failedRefreshCount.sum());
+        if (lastRefreshError != null) {
+            statistics.put("lastRefreshError", lastRefreshError);
+        }
+        statistics.put("listings", listingCount.sum());
+        statistics.put("fallbacks", fallbackCount.sum());
+        return statistics;
+    }
+
+    void close() {
+        refreshExecutor.shutdownNow();
+    }
+
+    private void refresh() {
+
+        long start = System.currentTimeMillis();
+        boolean rebuild = snapshot == null || start - lastRebuild >= rebuildInterval;
+        try {
+            int changes = rebuild ? rebuild() : merge();
+            lastRefresh = start;
+            if (rebuild) {
+                lastRebuild = start;
+            }
+            lastRefreshDuration = System.currentTimeMillis() - start;
+            lastRefreshChanges = changes;
+            lastRefreshError = null;
+            refreshCount.increment();
+            if (log.isDebugEnabled()) {
+                log.debug((rebuild ? "Loaded " : "Merged ") + changes + " users into the username index in "
+                        + lastRefreshDuration + "ms.");
+            }
+        } catch (UserStoreException | RuntimeException e) {
+            failedRefreshCount.increment();
+            lastRefreshError = e.getMessage();
+            log.error("Error while refreshing the username index. The index is used until it is older than "
+                    + maxStaleness + "ms.", e);
+        }
+    }
+
+    /**
+     * Reads all users into a new snapshot, which replaces the current one once complete.
+     * @return Number of users read.
+     * @throws UserStoreException If an error occurs while reading the users.
+     */
+    private int rebuild() throws UserStoreException {
+
+        Map<String, Entry> loaded = new HashMap<>();
+        String[] latest = { null };
+        loader.load(null, (userDN, userName, displayName, listed, modifyTimestamp) -> {
+            if (listed) {
+                Entry entry = new Entry(userDN, userName, displayName);
+                loaded.put(entry.dn, entry);
+            }
+            latest[0] = latest(latest[0], modifyTimestamp);
+        });
+        Entry[] byName = loaded.values().toArray(new Entry[0]);
+        Arrays.sort(byName, BY_NAME);
+        snapshot = new Snapshot(byName, sortByDisplayName(Arrays.asList(byName)));
+        modifiedSince = latest[0];
+        return loaded.size();
+    }
+
+    /**
+     * Reads the users modified since the previous refresh and merges them into a new snapshot, replacing their
+     * previous entries.
+     * @return Number of users read.
+     * @throws UserStoreException If an error occurs while reading the users.
+     */
+    private int merge() throws UserStoreException {
+
+        // modified users by DN, null for the users which are no longer listed
+        Map<String, Entry> modified = new LinkedHashMap<>();
+        String[] latest = { modifiedSince };
+        loader.load(modifiedSince, (userDN, userName, displayName, listed, modifyTimestamp) -> {
+            modified.put(toKey(userDN), listed ? new Entry(userDN, userName, displayName) : null);
+            latest[0] = latest(latest[0], modifyTimestamp);
+        });
+        modifiedSince = latest[0];
+        if (modified.isEmpty()) {
+            return 0;
+        }
+
+        List<Entry> added = new ArrayList<>();
+        for (Entry entry : modified.values()) {
+            if (entry != null) {
+                added.add(entry);
+            }
+        }
+        added.sort(BY_NAME);
+        Snapshot current = snapshot;
+        // the unmodified entries stay in order, so that merging the sorted modified entries takes linear time
+        Entry[] byName = mergeSorted(current.byName, added, modified, BY_NAME);
+        List<Entry> addedWithDisplayName = new ArrayList<>();
+        for (Entry entry : added) {
+            if (entry.displayKey != null) {
+                addedWithDisplayName.add(entry);
+            }
+        }
+        addedWithDisplayName.sort(BY_DISPLAY_NAME);
+        snapshot = new Snapshot(byName,
+                mergeSorted(current.byDisplayName, addedWithDisplayName, modified, BY_DISPLAY_NAME));
+        return modified.size();
+    }
+
+    /**
+     * @param entries Sorted entries.
+     * @param added Sorted entries to be added.
+     * @param modified Modified entries by DN, which are dropped from the given entries.
+     * @param order Order of the entries.
+     * @return The entries which are not modified and the added entries, in order.
+     */
+    private static Entry[] mergeSorted(Entry[] entries, List<Entry> added, Map<String, Entry> modified,
+                                       Comparator<Entry> order) {
+
+        List<Entry> merged = new ArrayList<>(entries.length + added.size());
+        int next = 0;
+        for (Entry entry : entries) {
+            if (modified.containsKey(entry.dn)) {
+                continue;
+            }
+            while (next < added.size() && order.compare(added.get(next), entry) < 0) {
+                merged.add(added.get(next++));
+            }
+            merged.add(entry);
+        }
+        merged.addAll(added.subList(next, added.size()));
+        return merged.toArray(new Entry[merged.size()]);
+    }
+
+    private static Entry[] sortByDisplayName(List<Entry> entries) {
+        List<Entry> withDisplayName = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            if (entry.displayKey != null) {
+                withDisplayName.add(entry);
+            }
+        }
+        Entry[] sorted = withDisplayName.toArray(new Entry[withDisplayName.size()]);
+        Arrays.sort(sorted, BY_DISPLAY_NAME);
+        return sorted;
+    }
+
+    /**
+     * @param entries Entries sorted by username, or by display name.
+     * @param prefix Prefix in lower case.
+     * @param byDisplayName Whether the entries are sorted by display name.
+     * @return Index of the first entry whose name is not less than the prefix.
+     */
+    private static int lowerBound(Entry[] entries, String prefix, boolean byDisplayName) {
+        int low = 0;
+        int high = entries.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            String key = byDisplayName ? entries[middle].displayKey : entries[middle].key;
+            if (key.compareTo(prefix) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param entries Entries sorted by username.
+     * @param key Username in lower case.
+     * @return Index of the first entry whose username is greater than the given one.
+     */
+    private static int upperBound(Entry[] entries, String key) {
+        int low = 0;
+        int high = entries.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (entries[middle].key.compareTo(key) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static String latest(String current, String modifyTimestamp) {
+        // generalized times of the same server compare as strings
+        return modifyTimestamp != null && (current == null || modifyTimestamp.compareTo(current) > 0) ?
+                modifyTimestamp : current;
+    }
+
+    private static String toKey(String name) {
+        return name.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     *  Listed users, sorted by username and by display name, which are replaced as a whole at each refresh.
+     */
+    private static final class Snapshot {
+
+        private final Entry[] byName;
+        // users with a display name only
+        private final Entry[] byDisplayName;
+
+        private Snapshot(Entry[] byName, Entry[] byDisplayName) {
+            this.byName = byName;
+            this.byDisplayName = byDisplayName;
+        }
+    }
+
+    /**
+     *  A listed user of the index.
+     */
+    private static final class Entry {
+
+        private final String dn;
+        private final String name;
+        private final String key;
+        private final String displayKey;
+
+        private Entry(String userDN, String userName, String displayName) {
+            this.dn = toKey(userDN);
+            this.name = userName;
+            this.key = toKey(userName);
+            this.displayKey = displayName == null ? null : toKey(displayName);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wso2.carbon.identity.agent.userstore.model;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Model representing the result of authenticating a user along with the user's claims and roles.
+ */
+public class AuthenticationResult {
+    private boolean authenticated;
+    private Map<String, String> claims = Collections.emptyMap();
+    private String[] roles = new String[0];
+
+    /**
+     * @return true if the credentials of the user are valid. false otherwise.
+     */
+    public boolean isAuthenticated() {
+        return authenticated;
+    }
+
+    /**
+     * @param authenticated Whether the credentials of the user are valid.
+     */
+    public void setAuthenticated(boolean authenticated) {
+        this.authenticated = authenticated;
+    }
+
+    /**
+     * @return Map of claim URIs to values of the user.
+     */
+    public Map<String, String> getClaims() {
+        return claims;
+    }
+
+    /**
+     * @param claims Map of claim URIs to values of the user.
+     */
+    public void setClaims(Map<String, String> claims) {
+        this.claims = claims;
+    }
+
+    /**
+     * @return Names of the roles of the user.
+     */
+    public String[] getRoles() {
+        return roles;
+    }
+
+    /**
+     * @param roles Names of the roles of the user.
+     */
+    public void setRoles(String[] roles) {
+        this.roles = roles;
+    }
+}
@@ -17,12 +17,20 @@
 */
 package org.wso2.carbon.identity.agent.userstore.resource;
 
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wso2.carbon.identity.agent.userstore.exception.UserStoreException;
+import org.wso2.carbon.identity.agent.userstore.manager.common.AsyncUserStoreManager;
+import org.wso2.carbon.identity.agent.userstore.manager.common.AsyncUserStoreManagerAdapter;
 import org.wso2.carbon.identity.agent.userstore.manager.common.UserStoreManager;
 import org.wso2.carbon.identity.agent.userstore.manager.common.UserStoreManagerBuilder;
+import org.wso2.carbon.identity.agent.userstore.manager.ldap.LDAPUserStoreManager;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
@@ -39,6 +47,8 @@ public class StatusResource {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(StatusResource.class);
     private static final String SUCCESS_MESSAGE = "{ \"Status\" : \"Success\" }";
+    // Time to wait for the LDAP health check before reporting it as failed.
+    private static final long STATUS_CHECK_TIMEOUT = 10 * 1000;
 
     /**
      * @return 200 OK if the connection is healthy,
@@ -65,17 +75,163 @@ public class StatusResource {
         }
 
         try {
-            UserStoreManager userStoreManager = UserStoreManagerBuilder.getUserStoreManager();
-            boolean connectionStatus = userStoreManager.getConnectionStatus();
+            // the check runs on the userstore executor, so a hung LDAP server fails the check instead of
+            // holding the request thread. LDAP servers probed in the background report their last probed state.
+            boolean connectionStatus = UserStoreManagerBuilder.getAsyncUserStoreManager().getConnectionStatus()
+                    .get(STATUS_CHECK_TIMEOUT, TimeUnit.MILLISECONDS);
             if (!connectionStatus) {
                 LOGGER.error("LDAP health check failed.");
                 return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
             }
-        } catch (UserStoreException e) {
+        } catch (UserStoreException | ExecutionException e) {
             LOGGER.error("LDAP health check failed.", e);
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+        } catch (TimeoutException e) {
+            LOGGER.error("LDAP health check did not complete in " + STATUS_CHECK_TIMEOUT + "ms.");
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.error("LDAP health check interrupted.", e);
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
         }
         return Response.ok(SUCCESS_MESSAGE, MediaType.APPLICATION_JSON).build();
     }
 
+    /**
+     * @return 200 OK with the threads, queue and circuit breaker state of each class of userstore operations,
+     * 500 INTERNAL SERVER ERROR if the userstore cannot be loaded.
+     */
+    @GET
+    @Path("operations")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getOperationStatus() {
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Reading userstore operation statistics.");
+        }
+
+        JSONObject statistics = new JSONObject();
+        try {
+            AsyncUserStoreManager asyncUserStoreManager = UserStoreManagerBuilder.getAsyncUserStoreManager();
+            if (asyncUserStoreManager instanceof AsyncUserStoreManagerAdapter) {
+                statistics = new JSONObject(((AsyncUserStoreManagerAdapter) asyncUserStoreManager).getStatistics());
+            }
+        } catch (UserStoreException e) {
+            LOGGER.error("Error while reading userstore operation statistics.", e);
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+        }
+        return Response.ok(statistics.toString(), MediaType.APPLICATION_JSON).build();
+    }
+
+    /**
+     * @return 200 OK with the health and probed latency of each LDAP server,
+     * 500 INTERNAL SERVER ERROR if the userstore cannot be loaded.
+     */
+    @GET
+    @Path("ldap/endpoints")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getLDAPEndpointStatus() {
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Reading LDAP server health.");
+        }
+
+        JSONArray status = new JSONArray();
+        try {
+            UserStoreManager userStoreManager = UserStoreManagerBuilder.getUserStoreManager();
+            if (userStoreManager instanceof LDAPUserStoreManager) {
+                status = new JSONArray(((LDAPUserStoreManager) userStoreManager).getEndpointStatus());
+            }
+        } catch (UserStoreException e) {
+            LOGGER.error("Error while reading LDAP server health.", e);
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+        }
+        return Response.ok(status.toString(), MediaType.APPLICATION_JSON).build();
+    }
+
+    /**
+     * @return 200 OK with the LDAP connection pool statistics,
+     * 500 INTERNAL SERVER ERROR if the userstore cannot be loaded.
+     */
+    @GET
+    @Path("ldap/pool")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getLDAPConnectionPoolStatus() {
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Reading LDAP connection pool statistics.");
+        }
+
+        JSONObject statistics = new JSONObject();
+        try {
+            UserStoreManager userStoreManager = UserStoreManagerBuilder.getUserStoreManager();
+            if (userStoreManager instanceof LDAPUserStoreManager) {
+                statistics = new JSONObject(((LDAPUserStoreManager) userStoreManager).getConnectionPoolStatistics());
+            }
+        } catch (UserStoreException e) {
+            LOGGER.error("Error while reading LDAP connection pool statistics.", e);
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+        }
+        return Response.ok(statistics.toString(), MediaType.APPLICATION_JSON).build();
+    }
+
+    /**
+     * @return 200 OK with the LDAP user DN, claim value cache and nested group graph statistics,
+     * 500 INTERNAL SERVER ERROR if the userstore cannot be loaded.
+     */
+    @GET
+    @Path("ldap/cache")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getLDAPCacheStatus() {
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Reading LDAP cache statistics.");
+        }
+
+        JSONObject statistics = new JSONObject();
+        try {
+            UserStoreManager userStoreManager = UserStoreManagerBuilder.getUserStoreManager();
+            if (userStoreManager instanceof LDAPUserStoreManager) {
+                LDAPUserStoreManager ldapUserStoreManager = (LDAPUserStoreManager) userStoreManager;
+                statistics.put("userDN", ldapUserStoreManager.getUserDNCacheStatistics());
+                statistics.put("claims", ldapUserStoreManager.getClaimValueCacheStatistics());
+                statistics.put("nestedGroups", ldapUserStoreManager.getNestedGroupGraphStatistics());
+                statistics.put("credentials", ldapUserStoreManager.getCredentialCacheStatistics());
+                statistics.put("existenceFilter", ldapUserStoreManager.getExistenceFilterStatistics());
+                statistics.put("userNameIndex", ldapUserStoreManager.getUserNameIndexStatistics());
+                statistics.put("membershipIndex", ldapUserStoreManager.getMembershipIndexStatistics());
+            }
+        } catch (UserStoreException e) {
+            LOGGER.error("Error while reading LDAP cache statistics.", e);
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+        }
+        return Response.ok(statistics.toString(), MediaType.APPLICATION_JSON).build();
+    }
+
+    /**
+     * @return 200 OK with the size, sync lag and sync statistics of the directory replica,
+     * 500 INTERNAL SERVER ERROR if the userstore cannot be loaded.
+     */
+    @GET
+    @Path("ldap/replica")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getLDAPReplicaStatus() {
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Reading directory replica statistics.");
+        }
+
+        JSONObject statistics = new JSONObject();
+        try {
+            UserStoreManager userStoreManager = UserStoreManagerBuilder.getUserStoreManager();
+            if (userStoreManager instanceof LDAPUserStoreManager) {
+                statistics = new JSONObject(
+                        ((LDAPUserStoreManager) userStoreManager).getDirectoryReplicaStatistics());
+            }
+        } catch (UserStoreException e) {
+            LOGGER.error("Error while reading directory replica statistics.", e);
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+        }
+        return Response.ok(statistics.toString(), MediaType.APPLICATION_JSON).build();
+    }
 }
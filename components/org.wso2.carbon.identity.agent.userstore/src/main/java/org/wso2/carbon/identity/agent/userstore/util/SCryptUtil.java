@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.util;
+
+import java.security.GeneralSecurityException;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The scrypt memory-hard key derivation function of RFC 7914, used for hashing credentials kept in memory.
+ * Each derivation needs 128 * r * cost bytes of memory, which makes guessing the credentials from a heap dump
+ * expensive.
+ */
+public class SCryptUtil {
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private SCryptUtil() {
+    }
+
+    /**
+     * @param password Password to derive the key from.
+     * @param salt Salt of the derivation.
+     * @param cost CPU and memory cost, a power of two greater than one.
+     * @param blockSize Block size parameter r.
+     * @param parallelization Parallelization parameter p.
+     * @param keyLength Length of the derived key in bytes.
+     * @return The derived key.
+     */
+    public static byte[] scrypt(byte[] password, byte[] salt, int cost, int blockSize, int parallelization,
+                                int keyLength) {
+
+        if (cost < 2 || (cost & (cost - 1)) != 0) {
+            throw new IllegalArgumentException("Cost must be a power of two greater than one: " + cost);
+        }
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            // HMAC does not accept an empty key, which is equivalent to a single zero byte
+            mac.init(new SecretKeySpec(password.length == 0 ? new byte[1] : password, HMAC_ALGORITHM));
+            int blockLength = 128 * blockSize;
+            byte[] blocks = pbkdf2(mac, salt, parallelization * blockLength);
+            int[] x = new int[32 * blockSize];
+            int[] v = new int[32 * blockSize * cost];
+            int[] y = new int[32 * blockSize];
+            for (int i = 0; i < parallelization; i++) {
+                roMix(blocks, i * blockLength, blockSize, cost, x, v, y);
+            }
+            return pbkdf2(mac, blocks, keyLength);
+        } catch (GeneralSecurityException e) {
+            // HmacSHA256 is available on every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * PBKDF2 with a single iteration, as used by scrypt.
+     */
+    private static byte[] pbkdf2(Mac mac, byte[] salt, int length) {
+
+        byte[] derived = new byte[length];
+        int hashLength = mac.getMacLength();
+        for (int block = 1, offset = 0; offset < length; block++, offset += hashLength) {
+            mac.update(salt);
+            mac.update(new byte[]{(byte) (block >>> 24), (byte) (block >>> 16), (byte) (block >>> 8), (byte) block});
+            byte[] hash = mac.doFinal();
+            System.arraycopy(hash, 0, derived, offset, Math.min(hashLength, length - offset));
+        }
+        return derived;
+    }
+
+    private static void roMix(byte[] blocks, int offset, int blockSize, int cost, int[] x, int[] v, int[] y) {
+
+        int words = 32 * blockSize;
+        for (int i = 0; i < words; i++) {
+            int index = offset + i * 4;
+            x[i] = (blocks[index] & 0xff) | (blocks[index + 1] & 0xff) << 8 | (blocks[index + 2] & 0xff) << 16
+                    | (blocks[index + 3] & 0xff) << 24;
+        }
+        for (int i = 0; i < cost; i++) {
+            System.arraycopy(x, 0, v, i * words, words);
+            blockMix(x, y, blockSize);
+        }
+        for (int i = 0; i < cost; i++) {
+            int j = x[(2 * blockSize - 1) * 16] & (cost - 1);
+            for (int k = 0; k < words; k++) {
+                x[k] ^= v[j * words + k];
+            }
+            blockMix(x, y, blockSize);
+        }
+        for (int i = 0; i < words; i++) {
+            int index = offset + i * 4;
+            blocks[index] = (byte) x[i];
+            blocks[index + 1] = (byte) (x[i] >>> 8);
+            blocks[index + 2] = (byte) (x[i] >>> 16);
+            blocks[index + 3] = (byte) (x[i] >>> 24);
+        }
+    }
+
+    /**
+     * BlockMix of the 2 * r sub blocks in b, using y as scratch space.
+     */
+    private static void blockMix(int[] b, int[] y, int blockSize) {
+
+        int[] t = new int[16];
+        System.arraycopy(b, (2 * blockSize - 1) * 16, t, 0, 16);
+        for (int i = 0; i < 2 * blockSize; i++) {
+            for (int k = 0; k < 16; k++) {
+                t[k] ^= b[i * 16 + k];
+            }
+            salsa208(t);
+            // even sub blocks go to the first half of the output, odd ones to the second half
+            int target = (i % 2 == 0 ? i / 2 : blockSize + i / 2) * 16;
+            System.arraycopy(t, 0, y, target, 16);
+        }
+        System.arraycopy(y, 0, b, 0, 32 * blockSize);
+    }
+
+    private static void salsa208(int[] b) {
+
+        int x0 = b[0], x1 = b[1], x2 = b[2], x3 = b[3], x4 = b[4], x5 = b[5], x6 = b[6], x7 = b[7];
+        int x8 = b[8], x9 = b[9], x10 = b[10], x11 = b[11], x12 = b[12], x13 = b[13], x14 = b[14], x15 = b[15];
+        for (int i = 0; i < 8; i += 2) {
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);
+            x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13);
+            x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);
+            x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13);
+            x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7);
+            x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13);
+            x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7);
+            x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13);
+            x15 ^= Integer.rotateLeft(x11 + x7, 18);
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);
+            x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);
+            x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);
+            x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);
+            x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7);
+            x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13);
+            x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7);
+            x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13);
+            x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+        b[0] += x0;
+        b[1] += x1;
+        b[2] += x2;
+        b[3] += x3;
+        b[4] += x4;
+        b[5] += x5;
+        b[6] += x6;
+        b[7] += x7;
+        b[8] += x8;
+        b[9] += x9;
+        b[10] += x10;
+        b[11] += x11;
+        b[12] += x12;
+        b[13] += x13;
+        b[14] += x14;
+        b[15] += x15;
+    }
+}
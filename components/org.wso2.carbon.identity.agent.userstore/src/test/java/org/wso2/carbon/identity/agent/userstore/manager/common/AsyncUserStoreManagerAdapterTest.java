@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.common;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.agent.userstore.constant.CommonConstants;
+import org.wso2.carbon.identity.agent.userstore.exception.ConnectionPoolTimeoutException;
+import org.wso2.carbon.identity.agent.userstore.exception.OperationRejectedException;
+import org.wso2.carbon.identity.agent.userstore.exception.UserStoreException;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import javax.naming.NamingException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ *  Checks which errors of a userstore are counted as failures by the circuit breakers of
+ *  {@link AsyncUserStoreManagerAdapter}.
+ */
+public class AsyncUserStoreManagerAdapterTest {
+
+    private volatile Exception error;
+    private AsyncUserStoreManagerAdapter adapter;
+
+    @BeforeMethod
+    public void setUp() {
+
+        Map<String, String> properties = new HashMap<>();
+        properties.put(CommonConstants.PROPERTY_CIRCUIT_BREAKER_MINIMUM_CALLS, "2");
+        properties.put(CommonConstants.PROPERTY_CIRCUIT_BREAKER_FAILURE_RATE, "50");
+        properties.put(CommonConstants.PROPERTY_CIRCUIT_BREAKER_OPEN_DURATION, "60000");
+        UserStoreManager userStoreManager = (UserStoreManager) Proxy.newProxyInstance(
+                AsyncUserStoreManagerAdapterTest.class.getClassLoader(), new Class<?>[] { UserStoreManager.class },
+                (proxy, method, args) -> {
+                    if ("doCheckExistingUser".equals(method.getName())) {
+                        if (error != null) {
+                            throw error;
+                        }
+                        return true;
+                    }
+                    return null;
+                });
+        adapter = new AsyncUserStoreManagerAdapter(userStoreManager, properties);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        adapter.close();
+        error = null;
+    }
+
+    @Test
+    public void testReadTimeoutOpensBreaker() throws Exception {
+
+        error = new UserStoreException("Error while checking the user.",
+                new NamingException("LDAP response read timed out, timeout used:3000ms."));
+        assertFailures(2);
+        assertEquals(getBreakerState(), CircuitBreaker.STATE_OPEN);
+        assertRejected();
+    }
+
+    @Test
+    public void testPoolTimeoutOpensBreaker() throws Exception {
+
+        error = new ConnectionPoolTimeoutException("Timed out after 1000ms waiting for an LDAP connection from pool"
+                + " ldap://localhost:10389. Active connections: 20");
+        assertFailures(2);
+        assertEquals(getBreakerState(), CircuitBreaker.STATE_OPEN);
+        assertRejected();
+    }
+
+    @Test
+    public void testRequestErrorsDoNotOpenBreaker() throws Exception {
+
+        error = new UserStoreException("Error while checking the user.",
+                new NamingException("[LDAP: error code 32 - No Such Object]"));
+        assertFailures(2);
+        error = new UserStoreException("Invalid filter.");
+        assertFailures(2);
+        assertEquals(getBreakerState(), CircuitBreaker.STATE_CLOSED);
+        error = null;
+        assertTrue(adapter.doCheckExistingUser("alice").get());
+    }
+
+    private void assertFailures(int count) throws InterruptedException {
+
+        for (int i = 0; i < count; i++) {
+            try {
+                adapter.doCheckExistingUser("alice").get();
+                fail("The operation did not fail.");
+            } catch (ExecutionException e) {
+                assertEquals(e.getCause(), error);
+            }
+        }
+    }
+
+    private void assertRejected() throws InterruptedException {
+
+        try {
+            adapter.doCheckExistingUser("alice").get();
+            fail("The operation was not rejected by the open breaker.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof OperationRejectedException);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private String getBreakerState() {
+
+        Map<String, Object> statistics = (Map<String, Object>) adapter.getStatistics()
+                .get(OperationClass.ATTRIBUTE_READ.getPropertyPrefix());
+        return (String) ((Map<String, Object>) statistics.get("circuitBreaker")).get("state");
+    }
+}
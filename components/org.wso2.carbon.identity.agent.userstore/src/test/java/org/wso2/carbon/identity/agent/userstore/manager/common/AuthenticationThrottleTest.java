@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.common;
+
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.agent.userstore.constant.CommonConstants;
+import org.wso2.carbon.identity.agent.userstore.constant.XMLConfigurationConstants;
+import org.wso2.carbon.identity.agent.userstore.model.AuthenticationResult;
+import org.wso2.carbon.identity.agent.userstore.model.PagedResult;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ *  Checks the sliding window, the cool down and the failed credentials of {@link AuthenticationThrottle}, and that
+ *  its state is kept when the userstore configuration is reloaded.
+ */
+public class AuthenticationThrottleTest {
+
+    private static final long WAIT_LIMIT = 5000;
+    private static final long LONG_INTERVAL = 60 * 60 * 1000;
+    private static final String SOURCE = "192.0.2.1";
+
+    @Test
+    public void testBlocksUserAtLimit() {
+
+        AuthenticationThrottle throttle = new AuthenticationThrottle(LONG_INTERVAL, 3, 0, LONG_INTERVAL, 0, 1000);
+        throttle.failed("alice", SOURCE, "wrong-1");
+        throttle.failed("alice", SOURCE, "wrong-2");
+        assertFalse(throttle.isRejected("alice", SOURCE, "alice-password"));
+        throttle.failed("alice", SOURCE, "wrong-3");
+
+        assertTrue(throttle.isRejected("alice", SOURCE, "alice-password"));
+        // usernames are compared as the userstore does
+        assertTrue(throttle.isRejected(" Alice", "192.0.2.2", "alice-password"));
+        assertFalse(throttle.isRejected("bob", SOURCE, "bob-password"));
+    }
+
+    @Test
+    public void testSlidingWindow() throws Exception {
+
+        long window = 600;
+        AuthenticationThrottle throttle = new AuthenticationThrottle(window, 3, 0, LONG_INTERVAL, 0, 1000);
+        throttle.failed("alice", null, "wrong-1");
+        throttle.failed("alice", null, "wrong-2");
+        // the failures leave the window one sub window after the window length at the latest
+        Thread.sleep(window + window / 6 + 100);
+
+        throttle.failed("alice", null, "wrong-3");
+        throttle.failed("alice", null, "wrong-4");
+        assertFalse(throttle.isRejected("alice", null, "alice-password"));
+        throttle.failed("alice", null, "wrong-5");
+        assertTrue(throttle.isRejected("alice", null, "alice-password"));
+    }
+
+    @Test
+    public void testCoolDown() {
+
+        AuthenticationThrottle throttle = new AuthenticationThrottle(LONG_INTERVAL, 2, 0, 200, 0, 1000);
+        throttle.failed("alice", null, "wrong-1");
+        long blocked = System.currentTimeMillis();
+        throttle.failed("alice", null, "wrong-2");
+        assertTrue(throttle.isRejected("alice", null, "alice-password"));
+
+        waitFor(() -> !throttle.isRejected("alice", null, "alice-password"));
+        assertTrue(System.currentTimeMillis() - blocked >= 200);
+        // the earlier failures are still in the window
+        throttle.failed("alice", null, "wrong-3");
+        assertTrue(throttle.isRejected("alice", null, "alice-password"));
+    }
+
+    @Test
+    public void testSuccessClearsFailures() {
+
+        AuthenticationThrottle throttle = new AuthenticationThrottle(LONG_INTERVAL, 2, 0, LONG_INTERVAL, 0, 1000);
+        throttle.failed("alice", null, "wrong-1");
+        throttle.succeeded("alice");
+        throttle.failed("alice", null, "wrong-2");
+        assertFalse(throttle.isRejected("alice", null, "alice-password"));
+    }
+
+    @Test
+    public void testBlocksSourceAtLimit() {
+
+        AuthenticationThrottle throttle = new AuthenticationThrottle(LONG_INTERVAL, 0, 3, LONG_INTERVAL, 0, 1000);
+        throttle.failed("alice", SOURCE, "wrong");
+        throttle.failed("bob", SOURCE, "wrong");
+        throttle.failed("carol", SOURCE, "wrong");
+
+        assertTrue(throttle.isRejected("dave", SOURCE, "dave-password"));
+        assertFalse(throttle.isRejected("dave", "192.0.2.2", "dave-password"));
+        assertFalse(throttle.isRejected("dave", null, "dave-password"));
+    }
+
+    @Test
+    public void testRejectsFailedCredential() throws Exception {
+
+        AuthenticationThrottle throttle = new AuthenticationThrottle(LONG_INTERVAL, 0, 0, LONG_INTERVAL, 200, 1000);
+        long failed = System.currentTimeMillis();
+        throttle.failed("alice", null, "wrong");
+
+        assertTrue(throttle.isRejected("alice", null, "wrong"));
+        assertTrue(throttle.isRejected("ALICE", SOURCE, "wrong"));
+        assertFalse(throttle.isRejected("alice", null, "alice-password"));
+        assertFalse(throttle.isRejected("bob", null, "wrong"));
+
+        // only a salted hash of the username and credential is held
+        List<String> keys = getFailedCredentialKeys(throttle);
+        assertEquals(keys.size(), 1);
+        assertEquals(Base64.getDecoder().decode(keys.get(0)).length, 32);
+        assertFalse(keys.get(0).contains("wrong"));
+        assertFalse(keys.get(0).contains("alice"));
+        assertFalse(new AuthenticationThrottle(LONG_INTERVAL, 0, 0, LONG_INTERVAL, 200, 1000)
+                .isRejected("alice", null, "wrong"));
+
+        waitFor(() -> !throttle.isRejected("alice", null, "wrong"));
+        assertTrue(System.currentTimeMillis() - failed >= 200);
+    }
+
+    @Test
+    public void testCreate() {
+
+        Map<String, String> properties = new HashMap<>();
+        assertNull(AuthenticationThrottle.create(properties, null));
+        properties.put(CommonConstants.PROPERTY_AUTHENTICATION_THROTTLE_ENABLED, "true");
+        properties.put(CommonConstants.PROPERTY_AUTHENTICATION_THROTTLE_MAX_USER_FAILURES, "2");
+        properties.put(CommonConstants.PROPERTY_AUTHENTICATION_THROTTLE_COOL_DOWN, "invalid");
+        AuthenticationThrottle throttle = AuthenticationThrottle.create(properties, null);
+        throttle.failed("alice", null, "wrong-1");
+        assertFalse(throttle.isRejected("alice", null, "alice-password"));
+        throttle.failed("alice", null, "wrong-2");
+        assertTrue(throttle.isRejected("alice", null, "alice-password"));
+    }
+
+    @Test
+    public void testStateKeptAcrossReload() throws Exception {
+
+        Map<String, String> properties = new HashMap<>();
+        properties.put(XMLConfigurationConstants.LOCAL_NAME_CLASS, StubUserStoreManager.class.getName());
+        properties.put(CommonConstants.PROPERTY_AUTHENTICATION_THROTTLE_ENABLED, "true");
+        properties.put(CommonConstants.PROPERTY_AUTHENTICATION_THROTTLE_MAX_USER_FAILURES, "1");
+        AuthenticationThrottle throttle = createInstanceThrottle(properties, null);
+        throttle.failed("alice", null, "wrong");
+
+        // a change of other properties keeps the blocks and failure counts
+        properties.put(CommonConstants.PROPERTY_AUTHENTICATION_THROTTLE_ENABLED, " true ");
+        properties.put("ConnectionURL", "ldap://localhost:10389");
+        AuthenticationThrottle reloaded = createInstanceThrottle(properties, throttle);
+        assertSame(reloaded, throttle);
+        assertTrue(reloaded.isRejected("alice", null, "alice-password"));
+
+        // a throttle configured differently starts empty
+        properties.put(CommonConstants.PROPERTY_AUTHENTICATION_THROTTLE_MAX_USER_FAILURES, "2");
+        reloaded = createInstanceThrottle(properties, throttle);
+        assertNotSame(reloaded, throttle);
+        assertFalse(reloaded.isRejected("alice", null, "alice-password"));
+
+        properties.put(CommonConstants.PROPERTY_AUTHENTICATION_THROTTLE_ENABLED, "false");
+        assertNull(createInstanceThrottle(properties, throttle));
+    }
+
+    /**
+     * Creates an instance of {@link UserStoreManagerBuilder} as a reload does, and closes it.
+     * @return The throttle of the instance.
+     */
+    private static AuthenticationThrottle createInstanceThrottle(Map<String, String> properties,
+                                                                 AuthenticationThrottle previous) throws Exception {
+
+        Method createInstance = UserStoreManagerBuilder.class.getDeclaredMethod("createInstance", Map.class,
+                AuthenticationThrottle.class);
+        createInstance.setAccessible(true);
+        Object instance = createInstance.invoke(null, properties, previous);
+        Field throttleField = instance.getClass().getDeclaredField("authenticationThrottle");
+        throttleField.setAccessible(true);
+        Field adapterField = instance.getClass().getDeclaredField("asyncUserStoreManager");
+        adapterField.setAccessible(true);
+        ((AsyncUserStoreManagerAdapter) adapterField.get(instance)).close();
+        return (AuthenticationThrottle) throttleField.get(instance);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> getFailedCredentialKeys(AuthenticationThrottle throttle) throws Exception {
+
+        Field stripesField = AuthenticationThrottle.class.getDeclaredField("failedCredentials");
+        stripesField.setAccessible(true);
+        List<String> keys = new ArrayList<>();
+        for (Object stripe : (Object[]) stripesField.get(throttle)) {
+            synchronized (stripe) {
+                keys.addAll(((Map<String, ?>) stripe).keySet());
+            }
+        }
+        return keys;
+    }
+
+    private static void waitFor(BooleanSupplier condition) {
+
+        long deadline = System.currentTimeMillis() + WAIT_LIMIT;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Condition not met in " + WAIT_LIMIT + "ms.");
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail("Interrupted while waiting.");
+            }
+        }
+    }
+
+    /**
+     *  UserStoreManager loaded by class name, which does not connect anywhere.
+     */
+    public static class StubUserStoreManager implements UserStoreManager {
+
+        @Override
+        public Map<String, String> getUserClaimValues(String userName, String[] claimUris) {
+            return new HashMap<>();
+        }
+
+        @Override
+        public boolean doAuthenticate(String userName, Object credential) {
+            return false;
+        }
+
+        @Override
+        public AuthenticationResult doAuthenticateAndGetUser(String userName, Object credential,
+                                                             String[] claimUris) {
+            return null;
+        }
+
+        @Override
+        public boolean isCredentialCached(String userName, Object credential) {
+            return false;
+        }
+
+        @Override
+        public String[] doListUsers(String filter, int maxItemLimit) {
+            return new String[0];
+        }
+
+        @Override
+        public PagedResult doListUsers(String filter, int pageSize, String pageToken) {
+            return null;
+        }
+
+        @Override
+        public void doListUsers(String filter, int maxItemLimit, int chunkSize, ChunkHandler handler) {
+        }
+
+        @Override
+        public String[] doGetRoleNames(String filter, int maxItemLimit) {
+            return new String[0];
+        }
+
+        @Override
+        public PagedResult doGetRoleNames(String filter, int pageSize, String pageToken) {
+            return null;
+        }
+
+        @Override
+        public void doGetRoleNames(String filter, int maxItemLimit, int chunkSize, ChunkHandler handler) {
+        }
+
+        @Override
+        public String[] doGetExternalRoleListOfUser(String userName) {
+            return new String[0];
+        }
+
+        @Override
+        public boolean getConnectionStatus() {
+            return true;
+        }
+
+        @Override
+        public boolean doCheckExistingUser(String userName) {
+            return false;
+        }
+
+        @Override
+        public boolean doCheckIsUserInRole(String userName, String roleName) {
+            return false;
+        }
+
+        @Override
+        public String[] doGetUserListOfRole(String roleName, int maxItemLimit) {
+            return new String[0];
+        }
+
+        @Override
+        public boolean doCheckExistingRole(String roleName) {
+            return false;
+        }
+
+        @Override
+        public void doUpdateRoleListOfUser(String userName, String[] deletedRoles, String[] newRoles) {
+        }
+
+        @Override
+        public void setUserStoreProperties(Map<String, String> userStoreProperties) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.agent.userstore.constant.CommonConstants;
+import org.wso2.carbon.identity.agent.userstore.exception.UserStoreException;
+import org.wso2.carbon.identity.agent.userstore.manager.common.UserStoreManager;
+import org.wso2.carbon.identity.agent.userstore.model.PagedResult;
+
+import java.io.File;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.naming.ldap.Rdn;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ *  Runs {@link LDAPUserStoreManager} and {@link AsyncLDAPUserStoreManager} against the same in-memory directory
+ *  and checks that they return the same results, also when users are found through user DN patterns.
+ */
+public class AsyncLDAPUserStoreManagerTest {
+
+    private static final String BASE_DN = "dc=example,dc=com";
+    private static final String ADMIN_DN = "cn=admin," + BASE_DN;
+    private static final String ADMIN_PASSWORD = "admin";
+    // a username with characters escaped in DNs and filters
+    private static final String ESCAPED_USER = "smith, john (jr)";
+    private static final String[] USERS = { "alice", "bob", "carol", "dave", "erin", ESCAPED_USER };
+    private static final String USER_DN_PATTERN = "uid={0},ou=Users," + BASE_DN;
+    private static final String[] CLAIMS = { "http://wso2.org/claims/givenname",
+            "http://wso2.org/claims/lastname", "http://wso2.org/claims/emailaddress" };
+
+    private InMemoryDirectoryServer directoryServer;
+    private LDAPUserStoreManager ldapUserStoreManager;
+    private AsyncLDAPUserStoreManager asyncUserStoreManager;
+    private LDAPUserStoreManager patternUserStoreManager;
+    private LDAPUserStoreManager patternsUserStoreManager;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+
+        directoryServer = startDirectoryServer();
+        Map<String, String> userStoreProperties = getUserStoreProperties(directoryServer.getListenPort());
+        ldapUserStoreManager = new LDAPUserStoreManager(userStoreProperties);
+        asyncUserStoreManager = new AsyncLDAPUserStoreManager(userStoreProperties);
+
+        // users bound with the DN built from the only pattern
+        Map<String, String> patternProperties = new HashMap<>(userStoreProperties);
+        patternProperties.put("UserDNPattern", USER_DN_PATTERN);
+        patternUserStoreManager = new LDAPUserStoreManager(patternProperties);
+        // users searched in the DNs built from each pattern, of which the first one never matches
+        Map<String, String> patternsProperties = new HashMap<>(userStoreProperties);
+        patternsProperties.put("UserDNPattern", "uid={0},ou=Groups," + BASE_DN + "#" + USER_DN_PATTERN);
+        patternsUserStoreManager = new LDAPUserStoreManager(patternsProperties);
+    }
+
+    @AfterClass
+    public void tearDown() {
+        if (ldapUserStoreManager != null) {
+            ldapUserStoreManager.close();
+        }
+        if (asyncUserStoreManager != null) {
+            asyncUserStoreManager.close();
+        }
+        if (patternUserStoreManager != null) {
+            patternUserStoreManager.close();
+        }
+        if (patternsUserStoreManager != null) {
+            patternsUserStoreManager.close();
+        }
+        if (directoryServer != null) {
+            directoryServer.shutDown(true);
+        }
+    }
+
+    @Test
+    public void testAuthenticate() throws UserStoreException {
+        for (UserStoreManager manager : getManagers()) {
+            assertTrue(manager.doAuthenticate("alice", "alice-password"));
+            assertFalse(manager.doAuthenticate("alice", "wrong-password"));
+            assertFalse(manager.doAuthenticate("nobody", "alice-password"));
+        }
+    }
+
+    @Test
+    public void testClaims() throws UserStoreException {
+        Map<String, String> expected = ldapUserStoreManager.getUserClaimValues("bob", CLAIMS);
+        assertTrue(expected.containsValue("bob@example.com"));
+        assertEquals(asyncUserStoreManager.getUserClaimValues("bob", CLAIMS), expected);
+    }
+
+    @Test
+    public void testEscapedNames() throws UserStoreException {
+        Map<String, String> expected = ldapUserStoreManager.getUserClaimValues(ESCAPED_USER, CLAIMS);
+        assertTrue(expected.containsValue(ESCAPED_USER + "@example.com"));
+        for (UserStoreManager manager : getManagers()) {
+            assertTrue(manager.doAuthenticate(ESCAPED_USER, ESCAPED_USER + "-password"));
+            assertFalse(manager.doAuthenticate(ESCAPED_USER, "alice-password"));
+            assertTrue(manager.doCheckExistingUser(ESCAPED_USER));
+            assertFalse(manager.doCheckExistingUser("smith, john"));
+            assertEquals(manager.getUserClaimValues(ESCAPED_USER, CLAIMS), expected);
+            assertEquals(manager.doGetExternalRoleListOfUser(ESCAPED_USER).length, 0);
+        }
+    }
+
+    @Test
+    public void testOperationConfig() {
+
+        Map<String, String> userStoreProperties = getUserStoreProperties(directoryServer.getListenPort());
+        // quotes follow the MessageFormat rules, as when the patterns were formatted on every call
+        String[] patterns = { USER_DN_PATTERN, "cn={0},ou=''{0}'' users,ou='{1}'," + BASE_DN };
+        userStoreProperties.put("UserDNPattern", patterns[0] + "#" + patterns[1]);
+        LDAPOperationConfig config = new LDAPOperationConfig(userStoreProperties);
+
+        String dnName = config.escapeSpecialCharactersForDN(ESCAPED_USER);
+        assertEquals(dnName, "smith\\, john (jr)");
+        assertEquals(config.escapeSpecialCharactersForDN("alice"), "alice");
+        for (int i = 0; i < patterns.length; i++) {
+            assertEquals(config.getUserDNPatterns().get(i).format(dnName), MessageFormat.format(patterns[i], dnName));
+        }
+        assertEquals(config.getSingleUserDNPattern(), null);
+
+        String filterName = config.escapeSpecialCharactersForFilter(ESCAPED_USER);
+        assertEquals(filterName, "smith, john \\28jr\\29");
+        assertEquals(config.escapeSpecialCharactersForFilter("alice"), "alice");
+        assertEquals(config.getUserNameSearchFilter(filterName),
+                userStoreProperties.get("UserNameSearchFilter").replace("?", filterName));
+        assertEquals(config.getRoleNameFilter(filterName),
+                userStoreProperties.get("GroupNameSearchFilter").replace("?", filterName));
+        assertEquals(config.getRoleFilter(filterName),
+                "(&" + userStoreProperties.get("GroupNameListFilter") + "(cn=" + filterName + "))");
+        assertEquals(config.getRolesOfMemberFilter(filterName),
+                "(&" + userStoreProperties.get("GroupNameListFilter") + "(member=" + filterName + "))");
+    }
+
+    @Test
+    public void testRoles() throws UserStoreException {
+        assertSameNames(ldapUserStoreManager.doGetExternalRoleListOfUser("alice"),
+                asyncUserStoreManager.doGetExternalRoleListOfUser("alice"), "admins", "staff");
+        assertSameNames(ldapUserStoreManager.doGetUserListOfRole("staff", 10),
+                asyncUserStoreManager.doGetUserListOfRole("staff", 10), "alice", "carol", "dave", "erin");
+        for (UserStoreManager manager : getManagers()) {
+            assertTrue(manager.doCheckIsUserInRole("bob", "admins"));
+            assertFalse(manager.doCheckIsUserInRole("bob", "staff"));
+            assertTrue(manager.doCheckExistingRole("staff"));
+            assertFalse(manager.doCheckExistingRole("nobody"));
+            assertTrue(manager.doCheckExistingUser("carol"));
+            assertFalse(manager.doCheckExistingUser("nobody"));
+        }
+    }
+
+    @Test
+    public void testListing() throws UserStoreException {
+        assertSameNames(ldapUserStoreManager.doListUsers("*", 10), asyncUserStoreManager.doListUsers("*", 10),
+                USERS);
+        assertSameNames(ldapUserStoreManager.doGetRoleNames("*", 10),
+                asyncUserStoreManager.doGetRoleNames("*", 10), "admins", "staff");
+        assertEquals(asyncUserStoreManager.doListUsers("*", 2).length,
+                ldapUserStoreManager.doListUsers("*", 2).length);
+    }
+
+    @Test
+    public void testPaging() throws UserStoreException {
+        assertSameNames(readAllPages(ldapUserStoreManager), readAllPages(asyncUserStoreManager), USERS);
+    }
+
+    private UserStoreManager[] getManagers() {
+        return new UserStoreManager[] { ldapUserStoreManager, asyncUserStoreManager, patternUserStoreManager,
+                patternsUserStoreManager };
+    }
+
+    /**
+     * Reads the user listing two names at a time until the last page.
+     */
+    private String[] readAllPages(UserStoreManager manager) throws UserStoreException {
+        List<String> names = new ArrayList<>();
+        String pageToken = null;
+        do {
+            PagedResult page = manager.doListUsers("*", 2, pageToken);
+            assertTrue(page.getItems().length <= 2);
+            names.addAll(Arrays.asList(page.getItems()));
+            pageToken = page.getNextPageToken();
+        } while (pageToken != null);
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Both managers may read several search bases or batches in parallel, so the names are sorted before they are
+     * compared.
+     */
+    private static void assertSameNames(String[] ldapNames, String[] asyncNames, String... expected) {
+        Arrays.sort(ldapNames);
+        Arrays.sort(asyncNames);
+        assertEquals(ldapNames, expected);
+        assertEquals(asyncNames, ldapNames);
+    }
+
+    /**
+     * @return A listening in-memory directory holding the users alice, bob, carol, dave, erin and
+     * "smith, john (jr)", whose passwords are their usernames followed by "-password", and the groups admins and
+     * staff.
+     */
+    static InMemoryDirectoryServer startDirectoryServer() throws Exception {
+
+        // claim-config.xml is read from the conf directory of carbon.home
+        File claimConfig = new File(AsyncLDAPUserStoreManagerTest.class.getResource("/conf/claim-config.xml")
+                .toURI());
+        System.setProperty(CommonConstants.CARBON_HOME, claimConfig.getParentFile().getParent());
+
+        InMemoryDirectoryServerConfig serverConfig = new InMemoryDirectoryServerConfig(BASE_DN);
+        serverConfig.addAdditionalBindCredentials(ADMIN_DN, ADMIN_PASSWORD);
+        serverConfig.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", 0));
+        InMemoryDirectoryServer directoryServer = new InMemoryDirectoryServer(serverConfig);
+        seed(directoryServer);
+        directoryServer.startListening();
+        return directoryServer;
+    }
+
+    private static void seed(InMemoryDirectoryServer directoryServer) throws Exception {
+        directoryServer.add("dn: " + BASE_DN, "objectClass: top", "objectClass: domain", "dc: example");
+        directoryServer.add("dn: ou=Users," + BASE_DN, "objectClass: top", "objectClass: organizationalUnit",
+                "ou: Users");
+        directoryServer.add("dn: ou=Groups," + BASE_DN, "objectClass: top", "objectClass: organizationalUnit",
+                "ou: Groups");
+        for (String user : USERS) {
+            directoryServer.add("dn: uid=" + Rdn.escapeValue(user) + ",ou=Users," + BASE_DN, "objectClass: top",
+                    "objectClass: person", "objectClass: organizationalPerson", "objectClass: inetOrgPerson",
+                    "uid: " + user, "cn: " + user, "sn: " + user + "-surname", "givenName: " + user,
+                    "mail: " + user + "@example.com", "userPassword: " + user + "-password");
+        }
+        directoryServer.add("dn: cn=admins,ou=Groups," + BASE_DN, "objectClass: top", "objectClass: groupOfNames",
+                "cn: admins", "member: uid=alice,ou=Users," + BASE_DN, "member: uid=bob,ou=Users," + BASE_DN);
+        directoryServer.add("dn: cn=staff,ou=Groups," + BASE_DN, "objectClass: top", "objectClass: groupOfNames",
+                "cn: staff", "member: uid=alice,ou=Users," + BASE_DN, "member: uid=carol,ou=Users," + BASE_DN,
+                "member: uid=dave,ou=Users," + BASE_DN, "member: uid=erin,ou=Users," + BASE_DN);
+    }
+
+    static Map<String, String> getUserStoreProperties(int port) {
+        Map<String, String> userStoreProperties = new HashMap<>();
+        userStoreProperties.put("ConnectionURL", "ldap://localhost:" + port);
+        userStoreProperties.put("ConnectionName", ADMIN_DN);
+        userStoreProperties.put("ConnectionPassword", ADMIN_PASSWORD);
+        userStoreProperties.put("UserSearchBase", "ou=Users," + BASE_DN);
+        userStoreProperties.put("UserNameAttribute", "uid");
+        userStoreProperties.put("UserNameSearchFilter", "(&(objectClass=person)(uid=?))");
+        userStoreProperties.put("UserNameListFilter", "(objectClass=person)");
+        userStoreProperties.put("GroupNameAttribute", "cn");
+        userStoreProperties.put("GroupSearchBase", "ou=Groups," + BASE_DN);
+        userStoreProperties.put("GroupNameListFilter", "(objectClass=groupOfNames)");
+        userStoreProperties.put("GroupNameSearchFilter", "(&(objectClass=groupOfNames)(cn=?))");
+        userStoreProperties.put("MembershipAttribute", "member");
+        userStoreProperties.put("PagedSearchPageSize", "2");
+        return userStoreProperties;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ *  Checks admission, expiry and refresh of {@link ClaimValueCache}. Caches below a megabyte have a single stripe,
+ *  so that every user competes with every other for admission.
+ */
+public class ClaimValueCacheTest {
+
+    private static final String[] MAIL = { "mail" };
+    private static final long WAIT_LIMIT = 5000;
+
+    private final AtomicInteger loadCount = new AtomicInteger();
+    private ClaimValueCache cache;
+
+    @AfterMethod
+    public void tearDown() {
+        if (cache != null) {
+            cache.close();
+        }
+        loadCount.set(0);
+    }
+
+    @Test
+    public void testAdmitsOnlyMoreFrequentUsersWhenFull() {
+
+        // the window holds less than one user, so every new user is checked for admission at once
+        cache = createCache(10000, 60000, 60000, false);
+        for (int i = 0; i < 100; i++) {
+            putMail("user" + i, "user" + i + "@example.com");
+        }
+        Map<String, Object> statistics = cache.getStatistics();
+        assertTrue((Long) statistics.get("rejections") > 0);
+        assertEquals(statistics.get("evictions"), 0L);
+        int admitted = (Integer) statistics.get("users");
+
+        // requested before it is loaded, as a user missing from the cache is
+        for (int i = 0; i < 5; i++) {
+            getMail("frequent");
+        }
+        putMail("frequent", "frequent@example.com");
+        assertEquals(getMail("frequent"), "frequent@example.com");
+        statistics = cache.getStatistics();
+        assertTrue((Long) statistics.get("evictions") > 0);
+        assertTrue((Integer) statistics.get("users") <= admitted);
+    }
+
+    @Test
+    public void testValuesExpireAfterTimeToLive() throws InterruptedException {
+
+        cache = createCache(10000, 100, 100, false);
+        putMail("alice", "alice@example.com");
+        List<String> missing = new ArrayList<>();
+        assertEquals(cache.get("alice", MAIL, missing).get("mail"), "alice@example.com");
+        assertTrue(missing.isEmpty());
+
+        Thread.sleep(150);
+        assertTrue(cache.get("alice", MAIL, missing).isEmpty());
+        assertEquals(missing, Collections.singletonList("mail"));
+        assertEquals(cache.getStatistics().get("misses"), 1L);
+    }
+
+    @Test
+    public void testAbsentValueIsCached() {
+
+        cache = createCache(10000, 60000, 60000, false);
+        cache.put("alice", null, MAIL, Collections.emptyMap());
+        List<String> missing = new ArrayList<>();
+        assertTrue(cache.get("alice", MAIL, missing).isEmpty());
+        assertTrue(missing.isEmpty());
+    }
+
+    @Test
+    public void testRefreshesFrequentUserInBackground() throws InterruptedException {
+
+        cache = createCache(10000, 60000, 50, false);
+        putMail("alice", "alice@example.com");
+        putMail("bob", "bob@example.com");
+        for (int i = 0; i < 3; i++) {
+            getMail("alice");
+        }
+        Thread.sleep(100);
+
+        // stale values are still served, and only the frequently requested user is reloaded
+        assertEquals(getMail("alice"), "alice@example.com");
+        assertEquals(getMail("bob"), "bob@example.com");
+        long deadline = System.currentTimeMillis() + WAIT_LIMIT;
+        while ((Long) cache.getStatistics().get("refreshes") == 0) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("The user was not refreshed in " + WAIT_LIMIT + "ms.");
+            }
+            Thread.sleep(20);
+        }
+        assertEquals(getMail("alice"), "alice-reloaded@example.com");
+        assertEquals(loadCount.get(), 1);
+        assertEquals(cache.getStatistics().get("staleHits"), 2L);
+    }
+
+    @Test
+    public void testSpreadsUsersOverStripes() {
+
+        cache = createCache(16 * 1024 * 1024, 60000, 60000, false);
+        assertEquals(cache.getStatistics().get("stripes"), 16);
+        for (int i = 0; i < 1000; i++) {
+            putMail("user" + i, "user" + i + "@example.com");
+        }
+        assertEquals(cache.getStatistics().get("users"), 1000);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(getMail("user" + i), "user" + i + "@example.com");
+        }
+        cache.invalidate("user0");
+        List<String> missing = new ArrayList<>();
+        cache.get("user0", MAIL, missing);
+        assertEquals(missing, Collections.singletonList("mail"));
+    }
+
+    @Test
+    public void testOffHeap() {
+
+        cache = createCache(64 * 1024, 60000, 60000, true);
+        cache.put("alice", "uid=alice,dc=example,dc=com", MAIL,
+                Collections.singletonMap("mail", "alice@example.com"));
+        assertEquals(getMail("alice"), "alice@example.com");
+        assertEquals(cache.getStatistics().get("users"), 1);
+        cache.clear();
+        assertEquals(cache.getStatistics().get("users"), 0);
+    }
+
+    private ClaimValueCache createCache(long maxMemory, long timeToLive, long refreshAfter, boolean offHeap) {
+
+        return new ClaimValueCache((userName, attributeNames) -> {
+            loadCount.incrementAndGet();
+            return Collections.singletonMap("mail", userName + "-reloaded@example.com");
+        }, maxMemory, timeToLive, refreshAfter, offHeap);
+    }
+
+    private void putMail(String userName, String mail) {
+        cache.put(userName, null, MAIL, Collections.singletonMap("mail", mail));
+    }
+
+    private String getMail(String userName) {
+        return cache.get(userName, MAIL, new ArrayList<>()).get("mail");
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import org.testng.annotations.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ *  Checks the set operations of {@link CompressedBitmap} and the conversion of its groups between sorted arrays
+ *  and bitmaps around 4096 ints.
+ */
+public class CompressedBitmapTest {
+
+    @Test
+    public void testAddRemoveContains() {
+
+        CompressedBitmap bitmap = new CompressedBitmap();
+        assertTrue(bitmap.add(7));
+        assertFalse(bitmap.add(7));
+        assertTrue(bitmap.add(70000));
+        assertTrue(bitmap.contains(7));
+        assertTrue(bitmap.contains(70000));
+        assertFalse(bitmap.contains(8));
+        assertFalse(bitmap.contains(-7));
+        assertEquals(bitmap.cardinality(), 2);
+
+        assertTrue(bitmap.remove(7));
+        assertFalse(bitmap.remove(7));
+        assertFalse(bitmap.remove(-1));
+        assertFalse(bitmap.contains(7));
+        assertEquals(bitmap.cardinality(), 1);
+        assertTrue(bitmap.remove(70000));
+        assertEquals(bitmap.cardinality(), 0);
+        assertEquals(toList(bitmap), new ArrayList<Integer>());
+    }
+
+    @Test
+    public void testVisitsInOrderAcrossGroups() {
+
+        CompressedBitmap bitmap = new CompressedBitmap();
+        int[] values = { 131075, 5, 65536, 65535, 70000, 0, Integer.MAX_VALUE };
+        for (int value : values) {
+            bitmap.add(value);
+        }
+        Arrays.sort(values);
+        List<Integer> expected = new ArrayList<>();
+        for (int value : values) {
+            expected.add(value);
+        }
+        assertEquals(toList(bitmap), expected);
+
+        // the visitor stops the iteration
+        List<Integer> visited = new ArrayList<>();
+        bitmap.forEach(value -> {
+            visited.add(value);
+            return visited.size() < 3;
+        });
+        assertEquals(visited, expected.subList(0, 3));
+    }
+
+    @Test
+    public void testConvertsDenseGroupToBitmapAndBack() throws Exception {
+
+        CompressedBitmap bitmap = new CompressedBitmap();
+        // every third int of the first group, so that the ints are not contiguous
+        for (int i = 0; i < 4096; i++) {
+            bitmap.add(i * 3);
+        }
+        bitmap.add(65536 + 1);
+        assertEquals(getContainerTypes(bitmap), Arrays.asList("ArrayContainer", "ArrayContainer"));
+
+        bitmap.add(4096 * 3);
+        assertEquals(getContainerTypes(bitmap), Arrays.asList("BitmapContainer", "ArrayContainer"));
+        assertEquals(bitmap.cardinality(), 4098);
+        for (int i = 0; i <= 4096; i++) {
+            assertTrue(bitmap.contains(i * 3));
+            assertFalse(bitmap.contains(i * 3 + 1));
+        }
+
+        assertTrue(bitmap.remove(0));
+        assertEquals(getContainerTypes(bitmap), Arrays.asList("ArrayContainer", "ArrayContainer"));
+        List<Integer> values = toList(bitmap);
+        assertEquals(values.size(), 4097);
+        for (int i = 0; i < 4096; i++) {
+            assertEquals((int) values.get(i), (i + 1) * 3);
+        }
+        assertEquals((int) values.get(4096), 65536 + 1);
+
+        // an emptied group is dropped
+        for (int i = 1; i <= 4096; i++) {
+            bitmap.remove(i * 3);
+        }
+        assertEquals(getContainerTypes(bitmap), Arrays.asList("ArrayContainer"));
+        assertEquals(toList(bitmap), Arrays.asList(65536 + 1));
+    }
+
+    @Test
+    public void testBitmapGroupSetOperations() {
+
+        CompressedBitmap bitmap = new CompressedBitmap();
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(bitmap.add(i));
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertFalse(bitmap.add(i));
+        }
+        for (int i = 0; i < 10000; i += 2) {
+            assertTrue(bitmap.remove(i));
+        }
+        assertEquals(bitmap.cardinality(), 5000);
+        List<Integer> values = toList(bitmap);
+        assertEquals(values.size(), 5000);
+        for (int i = 0; i < 5000; i++) {
+            assertEquals((int) values.get(i), i * 2 + 1);
+        }
+    }
+
+    private static List<Integer> toList(CompressedBitmap bitmap) {
+
+        List<Integer> values = new ArrayList<>();
+        bitmap.forEach(value -> {
+            values.add(value);
+            return true;
+        });
+        return values;
+    }
+
+    /**
+     * @return Simple class names of the containers of the groups, in order.
+     */
+    private static List<String> getContainerTypes(CompressedBitmap bitmap) throws Exception {
+
+        Field containersField = CompressedBitmap.class.getDeclaredField("containers");
+        containersField.setAccessible(true);
+        Object[] containers = (Object[]) containersField.get(bitmap);
+        List<String> types = new ArrayList<>();
+        for (Object container : containers) {
+            if (container != null) {
+                types.add(container.getClass().getSimpleName());
+            }
+        }
+        return types;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.agent.userstore.constant.LDAPConstants;
+
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ *  Checks the time to live, outage time to live and invalidation of {@link CredentialCache}, alone and behind
+ *  the binds of {@link LDAPUserStoreManager} to an in-memory directory.
+ */
+public class CredentialCacheTest {
+
+    private static final long WAIT_LIMIT = 5000;
+    private static final long LONG_INTERVAL = 60 * 60 * 1000;
+    // the lowest scrypt cost, to keep the tests fast
+    private static final int HASH_COST = 16;
+
+    private InMemoryDirectoryServer directoryServer;
+    private LDAPUserStoreManager userStoreManager;
+
+    @AfterMethod
+    public void tearDown() {
+        if (userStoreManager != null) {
+            userStoreManager.close();
+            userStoreManager = null;
+        }
+        if (directoryServer != null) {
+            directoryServer.shutDown(true);
+            directoryServer = null;
+        }
+    }
+
+    @Test
+    public void testVerifiedWithinTimeToLive() {
+
+        CredentialCache cache = new CredentialCache(10, 200, 0, HASH_COST);
+        long verified = System.currentTimeMillis();
+        cache.put("alice", "alice-password");
+        assertTrue(cache.isVerified("alice", "alice-password"));
+        assertTrue(cache.contains("alice", "alice-password"));
+
+        waitFor(() -> !cache.contains("alice", "alice-password"));
+        assertTrue(System.currentTimeMillis() - verified >= 200);
+        assertFalse(cache.isVerified("alice", "alice-password"));
+        assertFalse(cache.isVerifiedDuringOutage("alice", "alice-password"));
+        // removed once neither time to live covers it
+        assertEquals(cache.getStatistics().get("size"), 0);
+        assertEquals(cache.getStatistics().get("hits"), 1L);
+        assertEquals(cache.getStatistics().get("misses"), 1L);
+    }
+
+    @Test
+    public void testVerifiedDuringOutageOnly() {
+
+        CredentialCache cache = new CredentialCache(10, 100, LONG_INTERVAL, HASH_COST);
+        cache.put("alice", "alice-password");
+        waitFor(() -> !cache.isVerified("alice", "alice-password"));
+
+        assertTrue(cache.isVerifiedDuringOutage("alice", "alice-password"));
+        assertFalse(cache.isVerifiedDuringOutage("alice", "wrong-password"));
+        assertFalse(cache.isVerifiedDuringOutage("bob", "alice-password"));
+        assertTrue(cache.contains("alice", "alice-password"));
+        assertEquals(cache.getStatistics().get("size"), 1);
+        assertEquals(cache.getStatistics().get("outageHits"), 1L);
+    }
+
+    @Test
+    public void testOutageTimeToLiveEnds() {
+
+        CredentialCache cache = new CredentialCache(10, 100, 200, HASH_COST);
+        long verified = System.currentTimeMillis();
+        cache.put("alice", "alice-password");
+
+        waitFor(() -> !cache.isVerifiedDuringOutage("alice", "alice-password"));
+        assertTrue(System.currentTimeMillis() - verified >= 300);
+        assertEquals(cache.getStatistics().get("size"), 0);
+    }
+
+    @Test
+    public void testFailuresAreNotCached() {
+
+        CredentialCache cache = new CredentialCache(10, LONG_INTERVAL, LONG_INTERVAL, HASH_COST);
+        cache.put("alice", "alice-password");
+
+        // a credential other than the verified one is a miss, to be checked with a bind, and not a rejection
+        assertFalse(cache.isVerified("alice", "wrong-password"));
+        assertFalse(cache.isVerified("bob", "bob-password"));
+        assertTrue(cache.isVerified("alice", "alice-password"));
+        assertEquals(cache.getStatistics().get("misses"), 2L);
+        assertEquals(cache.getStatistics().get("size"), 1);
+
+        // nothing is cached without a time to live
+        CredentialCache disabled = new CredentialCache(10, 0, LONG_INTERVAL, HASH_COST);
+        disabled.put("alice", "alice-password");
+        assertFalse(disabled.isVerifiedDuringOutage("alice", "alice-password"));
+        assertEquals(disabled.getStatistics().get("size"), 0);
+    }
+
+    @Test
+    public void testInvalidate() {
+
+        CredentialCache cache = new CredentialCache(10, LONG_INTERVAL, LONG_INTERVAL, HASH_COST);
+        cache.put("alice", "alice-password");
+        cache.invalidate("alice");
+        cache.invalidate("bob");
+
+        assertFalse(cache.isVerified("alice", "alice-password"));
+        assertFalse(cache.isVerifiedDuringOutage("alice", "alice-password"));
+        assertEquals(cache.getStatistics().get("invalidations"), 1L);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+
+        CredentialCache cache = new CredentialCache(2, LONG_INTERVAL, 0, HASH_COST);
+        cache.put("alice", "alice-password");
+        cache.put("bob", "bob-password");
+        assertTrue(cache.isVerified("alice", "alice-password"));
+        cache.put("carol", "carol-password");
+
+        assertTrue(cache.contains("alice", "alice-password"));
+        assertFalse(cache.contains("bob", "bob-password"));
+        assertTrue(cache.contains("carol", "carol-password"));
+        assertEquals(cache.getStatistics().get("size"), 2);
+    }
+
+    @Test
+    public void testFailedBindInvalidates() throws Exception {
+
+        userStoreManager = createUserStoreManager();
+        assertTrue(userStoreManager.doAuthenticate("alice", "alice-password"));
+        setPassword("alice", "alice-new-password");
+        // trusted until the time to live ends, as long as no bind of the user fails
+        assertTrue(userStoreManager.doAuthenticate("alice", "alice-password"));
+        assertEquals(userStoreManager.getCredentialCacheStatistics().get("hits"), 1L);
+
+        assertFalse(userStoreManager.doAuthenticate("alice", "wrong-password"));
+        assertEquals(userStoreManager.getCredentialCacheStatistics().get("invalidations"), 1L);
+        assertFalse(userStoreManager.doAuthenticate("alice", "alice-password"));
+        assertTrue(userStoreManager.doAuthenticate("alice", "alice-new-password"));
+    }
+
+    @Test
+    public void testFailedBindIsNotCached() throws Exception {
+
+        userStoreManager = createUserStoreManager();
+        assertFalse(userStoreManager.doAuthenticate("bob", "bob-new-password"));
+        setPassword("bob", "bob-new-password");
+        assertTrue(userStoreManager.doAuthenticate("bob", "bob-new-password"));
+        assertEquals(userStoreManager.getCredentialCacheStatistics().get("hits"), 0L);
+    }
+
+    /**
+     * @return A manager of the in-memory directory, which trusts verified credentials for an hour.
+     */
+    private LDAPUserStoreManager createUserStoreManager() throws Exception {
+
+        directoryServer = AsyncLDAPUserStoreManagerTest.startDirectoryServer();
+        Map<String, String> userStoreProperties =
+                AsyncLDAPUserStoreManagerTest.getUserStoreProperties(directoryServer.getListenPort());
+        userStoreProperties.put(LDAPConstants.CREDENTIAL_CACHE_ENABLED, "true");
+        userStoreProperties.put(LDAPConstants.CREDENTIAL_CACHE_TTL, String.valueOf(LONG_INTERVAL));
+        userStoreProperties.put(LDAPConstants.CREDENTIAL_CACHE_OUTAGE_TTL, "0");
+        userStoreProperties.put(LDAPConstants.CREDENTIAL_CACHE_HASH_COST, String.valueOf(HASH_COST));
+        return new LDAPUserStoreManager(userStoreProperties);
+    }
+
+    private void setPassword(String userName, String password) throws Exception {
+        directoryServer.modify("dn: uid=" + userName + ",ou=Users,dc=example,dc=com", "changetype: modify",
+                "replace: userPassword", "userPassword: " + password);
+    }
+
+    private static void waitFor(BooleanSupplier condition) {
+
+        long deadline = System.currentTimeMillis() + WAIT_LIMIT;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Condition not met in " + WAIT_LIMIT + "ms.");
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail("Interrupted while waiting.");
+            }
+        }
+    }
+}
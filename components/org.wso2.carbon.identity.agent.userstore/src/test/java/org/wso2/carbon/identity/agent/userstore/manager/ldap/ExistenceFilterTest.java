@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.agent.userstore.exception.UserStoreException;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ *  Builds an {@link ExistenceFilter} from in-memory lists of names, and checks its answers, sizing and rebuilds.
+ */
+public class ExistenceFilterTest {
+
+    private static final long WAIT_LIMIT = 5000;
+    private static final long HOUR = 60 * 60 * 1000;
+
+    // names with their modification times
+    private final List<String[]> userNames = new CopyOnWriteArrayList<>();
+    private final List<String[]> roleNames = new CopyOnWriteArrayList<>();
+    private volatile CountDownLatch rebuildStarted;
+    private volatile CountDownLatch rebuildReleased;
+    private ExistenceFilter filter;
+
+    @AfterMethod
+    public void tearDown() {
+        if (rebuildReleased != null) {
+            rebuildReleased.countDown();
+        }
+        if (filter != null) {
+            filter.close();
+        }
+        userNames.clear();
+        roleNames.clear();
+        rebuildStarted = null;
+        rebuildReleased = null;
+    }
+
+    @Test
+    public void testMissingNamesAreDefinitelyMissing() {
+
+        addNames(userNames, "alice", "bob", "carol");
+        addNames(roleNames, "admins", "staff");
+        filter = createFilter(0.01, 1024 * 1024, HOUR, HOUR);
+
+        assertTrue(filter.mayContainUser("alice"));
+        assertTrue(filter.mayContainUser("BOB"));
+        assertTrue(filter.mayContainRole("staff"));
+        assertFalse(filter.mayContainUser("nobody"));
+        assertFalse(filter.mayContainRole("nobody"));
+        Map<String, Object> statistics = filter.getStatistics();
+        assertEquals(statistics.get("definitelyMissing"), 2L);
+        assertEquals(statistics.get("possiblyExisting"), 3L);
+    }
+
+    @Test
+    public void testEverythingMayExistUntilBuilt() throws Exception {
+
+        addNames(userNames, "alice");
+        addNames(roleNames, "admins");
+        rebuildReleased = new CountDownLatch(1);
+        rebuildStarted = new CountDownLatch(1);
+        filter = new ExistenceFilter(this::loadUsers, this::loadRoles, 0.01, 1024 * 1024, HOUR, HOUR);
+        assertTrue(rebuildStarted.await(WAIT_LIMIT, TimeUnit.MILLISECONDS));
+
+        assertEquals(filter.getStatistics().get("status"), "loading");
+        assertTrue(filter.mayContainUser("nobody"));
+        assertTrue(filter.mayContainRole("nobody"));
+        rebuildReleased.countDown();
+        waitFor(() -> "ready".equals(filter.getStatistics().get("status")));
+        assertFalse(filter.mayContainUser("nobody"));
+    }
+
+    @Test
+    public void testSizedForFalsePositiveRate() {
+
+        for (int i = 0; i < 1000; i++) {
+            addNames(userNames, "user" + i);
+        }
+        addNames(roleNames, "admins");
+        double falsePositiveRate = 0.01;
+        filter = createFilter(falsePositiveRate, 1024 * 1024, HOUR, HOUR);
+
+        Map<String, Object> users = getUserStatistics();
+        // sized for the names read and half as many more
+        assertEquals(users.get("expectedNames"), 1500);
+        long minBits = (long) Math.ceil(-1500 * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        long bits = (Long) users.get("bits");
+        assertTrue(bits >= minBits && bits < minBits + 64, "bits: " + bits);
+        assertEquals(users.get("hashFunctions"), 7);
+
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.mayContainUser("user" + i));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mayContainUser("missing" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 10000 * falsePositiveRate, "false positives: " + falsePositives);
+    }
+
+    @Test
+    public void testSizedWithinMaxMemory() {
+
+        for (int i = 0; i < 1000; i++) {
+            addNames(userNames, "user" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            addNames(roleNames, "role" + i);
+        }
+        long maxMemory = 512;
+        filter = createFilter(0.01, maxMemory, HOUR, HOUR);
+
+        Map<String, Object> statistics = filter.getStatistics();
+        // each filter is rounded up to whole 64 bit words
+        assertTrue((Long) statistics.get("memoryBytes") <= maxMemory + 16, "memory: "
+                + statistics.get("memoryBytes"));
+        assertEquals(statistics.get("maxMemoryBytes"), maxMemory);
+        // a filter smaller than the target still has no false negatives
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.mayContainUser("user" + i));
+            assertTrue(filter.mayContainRole("role" + i));
+        }
+    }
+
+    @Test
+    public void testAddsModifiedNamesAtRefresh() {
+
+        addNames(userNames, "alice");
+        addNames(roleNames, "admins");
+        filter = createFilter(0.01, 1024 * 1024, 20, HOUR);
+        assertFalse(filter.mayContainUser("dave"));
+
+        // created in the LDAP userstore, and found at the next refresh
+        addNames(userNames, "dave");
+        addNames(roleNames, "auditors");
+        waitFor(() -> filter.mayContainUser("dave") && filter.mayContainRole("auditors"));
+    }
+
+    @Test
+    public void testAddedUserIsNeverMissing() {
+
+        addNames(userNames, "alice");
+        addNames(roleNames, "admins");
+        filter = createFilter(0.01, 1024 * 1024, HOUR, HOUR);
+
+        // e.g. a user who authenticated before the filters were refreshed
+        filter.addUser("Erin");
+        assertTrue(filter.mayContainUser("erin"));
+    }
+
+    @Test
+    public void testLookupsDuringRebuild() throws Exception {
+
+        addNames(userNames, "alice", "bob");
+        addNames(roleNames, "admins");
+        filter = createFilter(0.01, 1024 * 1024, 20, 100);
+        long firstRebuild = (Long) filter.getStatistics().get("lastRebuild");
+
+        rebuildReleased = new CountDownLatch(1);
+        rebuildStarted = new CountDownLatch(1);
+        assertTrue(rebuildStarted.await(WAIT_LIMIT, TimeUnit.MILLISECONDS));
+        // the rebuild has read the names, and the previous filters answer until it completes
+        assertTrue(filter.mayContainUser("alice"));
+        assertFalse(filter.mayContainUser("nobody"));
+        filter.addUser("newcomer");
+        assertTrue(filter.mayContainUser("newcomer"));
+
+        rebuildReleased.countDown();
+        waitFor(() -> (Long) filter.getStatistics().get("lastRebuild") > firstRebuild);
+        // added to the rebuilt filters although the rebuild did not read it
+        assertTrue(filter.mayContainUser("newcomer"));
+        assertTrue(filter.mayContainUser("bob"));
+        assertFalse(filter.mayContainUser("nobody"));
+    }
+
+    private ExistenceFilter createFilter(double falsePositiveRate, long maxMemory, long refreshInterval,
+                                         long rebuildInterval) {
+
+        ExistenceFilter existenceFilter = new ExistenceFilter(this::loadUsers, this::loadRoles, falsePositiveRate,
+                maxMemory, refreshInterval, rebuildInterval);
+        filter = existenceFilter;
+        // the time of the last refresh is recorded once the filters are built
+        waitFor(() -> (Long) existenceFilter.getStatistics().get("lastRefresh") > 0);
+        return existenceFilter;
+    }
+
+    private void loadUsers(String modifiedSince, ExistenceFilter.NameHandler handler) throws UserStoreException {
+
+        load(userNames, modifiedSince, handler);
+        CountDownLatch started = rebuildStarted;
+        CountDownLatch released = rebuildReleased;
+        // a rebuild waits once the usernames are read, until the test releases it
+        if (modifiedSince == null && started != null && released != null) {
+            started.countDown();
+            try {
+                if (!released.await(WAIT_LIMIT, TimeUnit.MILLISECONDS)) {
+                    throw new UserStoreException("The rebuild was not released.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UserStoreException("Interrupted while waiting to rebuild.", e);
+            }
+        }
+    }
+
+    private void loadRoles(String modifiedSince, ExistenceFilter.NameHandler handler) {
+        load(roleNames, modifiedSince, handler);
+    }
+
+    private static void load(List<String[]> names, String modifiedSince, ExistenceFilter.NameHandler handler) {
+        for (String[] name : names) {
+            if (modifiedSince == null || name[1].compareTo(modifiedSince) > 0) {
+                handler.name(name[0], name[1]);
+            }
+        }
+    }
+
+    /**
+     * Adds names modified after all names added before.
+     */
+    private void addNames(List<String[]> names, String... newNames) {
+        for (String name : newNames) {
+            names.add(new String[] { name, String.format("20170101%06dZ", userNames.size() + roleNames.size()) });
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> getUserStatistics() {
+        return (Map<String, Object>) filter.getStatistics().get("users");
+    }
+
+    private static void waitFor(BooleanSupplier condition) {
+
+        long deadline = System.currentTimeMillis() + WAIT_LIMIT;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Condition not met in " + WAIT_LIMIT + "ms.");
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail("Interrupted while waiting.");
+            }
+        }
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.agent.userstore.exception.UserStoreException;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import javax.naming.CommunicationException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.SortControl;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ *  Runs {@link LDAPConnectionPool} over fake connections, which fail like a connection closed by the server once
+ *  they are marked as stale.
+ */
+public class LDAPConnectionPoolTest {
+
+    private static final long LONG_INTERVAL = 60 * 60 * 1000;
+    private static final long WAIT_LIMIT = 5000;
+
+    private final List<FakeConnection> connections = Collections.synchronizedList(new ArrayList<>());
+    private LDAPConnectionPool pool;
+
+    /**
+     *  State of a fake connection.
+     */
+    private static final class FakeConnection {
+
+        private final int id;
+        private volatile boolean stale;
+        // a stale connection fails only once the results are read, as a search sent before the close is noticed
+        private volatile boolean failOnRead;
+        private volatile boolean closed;
+        private Control[] requestControls;
+
+        private FakeConnection(int id) {
+            this.id = id;
+        }
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        if (pool != null) {
+            pool.close();
+        }
+        connections.clear();
+    }
+
+    @Test
+    public void testBorrowReusesIdleConnection() throws Exception {
+
+        pool = createPool(0, 2, 100, 0, 0, LONG_INTERVAL, false);
+        LdapContext context = pool.borrow();
+        assertEquals(search(context), "0");
+        context.close();
+        context = pool.borrow();
+        assertEquals(search(context), "0");
+        context.close();
+        assertEquals(connections.size(), 1);
+        assertEquals(pool.getStatistics().get("borrowed"), 2L);
+        assertEquals(pool.getActiveCount(), 0);
+    }
+
+    @Test
+    public void testClosedProxyCannotBeUsed() throws Exception {
+
+        pool = createPool(0, 1, 100, 0, 0, LONG_INTERVAL, false);
+        LdapContext context = pool.borrow();
+        context.close();
+        context.close();
+        try {
+            search(context);
+            fail("A returned connection was used.");
+        } catch (NamingException e) {
+            assertTrue(e.getMessage().contains("returned to the pool"));
+        }
+        assertEquals(pool.getStatistics().get("idle"), 1);
+    }
+
+    @Test
+    public void testGrowsUpToMaxSizeAndTimesOut() throws Exception {
+
+        pool = createPool(0, 2, 100, 0, 0, LONG_INTERVAL, false);
+        LdapContext first = pool.borrow();
+        LdapContext second = pool.borrow();
+        assertEquals(pool.getStatistics().get("total"), 2);
+        try {
+            pool.borrow();
+            fail("Borrowed more connections than the maximum size.");
+        } catch (UserStoreException e) {
+            assertTrue(e.getMessage().startsWith("Timed out"));
+        }
+        assertEquals(pool.getStatistics().get("timeouts"), 1L);
+        first.close();
+        second.close();
+        assertEquals(pool.getStatistics().get("idle"), 2);
+    }
+
+    @Test
+    public void testFillsUpToMinSize() {
+
+        pool = createPool(2, 4, 100, 0, 0, 50, false);
+        waitFor(() -> Integer.valueOf(2).equals(pool.getStatistics().get("total")));
+        assertEquals(connections.size(), 2);
+    }
+
+    @Test
+    public void testShrinksIdleConnectionsDownToMinSize() throws Exception {
+
+        pool = createPool(1, 3, 100, 100, 0, 50, false);
+        LdapContext[] contexts = { pool.borrow(), pool.borrow(), pool.borrow() };
+        for (LdapContext context : contexts) {
+            context.close();
+        }
+        waitFor(() -> Integer.valueOf(1).equals(pool.getStatistics().get("total")));
+        assertEquals(pool.getStatistics().get("destroyed"), 2L);
+    }
+
+    @Test
+    public void testEvictsExpiredConnections() throws Exception {
+
+        pool = createPool(0, 1, 100, 0, 100, 50, false);
+        pool.borrow().close();
+        waitFor(() -> Integer.valueOf(0).equals(pool.getStatistics().get("total")));
+        assertTrue(connections.get(0).closed);
+        LdapContext context = pool.borrow();
+        assertEquals(search(context), "1");
+        context.close();
+    }
+
+    @Test
+    public void testValidateOnBorrowSkipsStaleConnection() throws Exception {
+
+        pool = createPool(0, 1, 100, 0, 0, LONG_INTERVAL, true);
+        pool.borrow().close();
+        connections.get(0).stale = true;
+        // recently used connections are not validated
+        Thread.sleep(600);
+        LdapContext context = pool.borrow();
+        assertEquals(search(context), "1");
+        context.close();
+        assertEquals(pool.getStatistics().get("stale"), 1L);
+        assertTrue(connections.get(0).closed);
+    }
+
+    @Test
+    public void testStaleConnectionIsRetriedWithItsRequestControls() throws Exception {
+
+        pool = createPool(0, 1, 100, 0, 0, LONG_INTERVAL, false);
+        pool.borrow().close();
+        connections.get(0).stale = true;
+        LdapContext context = pool.borrow();
+        Control[] controls = { new SortControl("cn", Control.NONCRITICAL) };
+        context.setRequestControls(controls);
+        assertEquals(search(context), "1");
+        context.close();
+        assertSame(connections.get(1).requestControls, controls);
+        assertEquals(pool.getStatistics().get("stale"), 1L);
+        assertTrue(connections.get(0).closed);
+    }
+
+    @Test
+    public void testStaleConnectionIsRetriedWhenReadingResults() throws Exception {
+
+        pool = createPool(0, 1, 100, 0, 0, LONG_INTERVAL, false);
+        pool.borrow().close();
+        connections.get(0).stale = true;
+        connections.get(0).failOnRead = true;
+        LdapContext context = pool.borrow();
+        assertEquals(search(context), "1");
+        context.close();
+        assertEquals(pool.getStatistics().get("stale"), 1L);
+    }
+
+    @Test
+    public void testPagedSearchIsNotRetried() throws Exception {
+
+        pool = createPool(0, 1, 100, 0, 0, LONG_INTERVAL, false);
+        pool.borrow().close();
+        connections.get(0).stale = true;
+        LdapContext context = pool.borrow();
+        context.setRequestControls(new Control[] { new PagedResultsControl(10, Control.NONCRITICAL) });
+        try {
+            search(context);
+            fail("A paged search was repeated on a new connection.");
+        } catch (CommunicationException e) {
+            // expected, the cookie of a paged search is only valid on its own connection
+        }
+        context.close();
+        assertEquals(connections.size(), 1);
+        // the broken connection is closed instead of being returned
+        assertTrue(connections.get(0).closed);
+        assertEquals(pool.getStatistics().get("idle"), 0);
+    }
+
+    @Test
+    public void testNewConnectionIsNotRetried() throws Exception {
+
+        pool = createPool(0, 1, 100, 0, 0, LONG_INTERVAL, false);
+        LdapContext context = pool.borrow();
+        connections.get(0).stale = true;
+        try {
+            search(context);
+            fail("A search on a new connection was repeated.");
+        } catch (CommunicationException e) {
+            // expected
+        }
+        context.close();
+        assertEquals(connections.size(), 1);
+        assertEquals(pool.getStatistics().get("total"), 0);
+    }
+
+    private LDAPConnectionPool createPool(int minSize, int maxSize, long maxWait, long maxIdleTime,
+                                          long maxLifetime, long evictionInterval, boolean validateOnBorrow) {
+
+        return new LDAPConnectionPool("test", new Hashtable<>(), minSize, maxSize, maxWait, maxIdleTime,
+                maxLifetime, evictionInterval, validateOnBorrow) {
+
+            @Override
+            LdapContext createContext(Hashtable<String, String> environment) {
+                FakeConnection connection = new FakeConnection(connections.size());
+                connections.add(connection);
+                return createFakeContext(connection);
+            }
+        };
+    }
+
+    /**
+     * @return A context whose searches return a single result named after the id of the connection.
+     */
+    private static LdapContext createFakeContext(FakeConnection connection) {
+
+        return (LdapContext) Proxy.newProxyInstance(LDAPConnectionPoolTest.class.getClassLoader(),
+                new Class<?>[] { LdapContext.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "close":
+                            connection.closed = true;
+                            return null;
+                        case "setRequestControls":
+                            connection.requestControls = (Control[]) args[0];
+                            return null;
+                        case "getRequestControls":
+                            return connection.requestControls;
+                        case "getAttributes":
+                            if (connection.stale) {
+                                throw new CommunicationException("connection closed");
+                            }
+                            return new BasicAttributes();
+                        case "search":
+                            if (connection.stale && !connection.failOnRead) {
+                                throw new CommunicationException("connection closed");
+                            }
+                            return new FakeResults(connection);
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    /**
+     *  Results of a search on a fake connection.
+     */
+    private static final class FakeResults implements NamingEnumeration<SearchResult> {
+
+        private final FakeConnection connection;
+        private final Iterator<SearchResult> results;
+
+        private FakeResults(FakeConnection connection) {
+            this.connection = connection;
+            this.results = Collections.singletonList(new SearchResult(String.valueOf(connection.id), null,
+                    new BasicAttributes())).iterator();
+        }
+
+        @Override
+        public boolean hasMore() throws NamingException {
+            if (connection.stale) {
+                throw new CommunicationException("connection closed");
+            }
+            return results.hasNext();
+        }
+
+        @Override
+        public SearchResult next() throws NamingException {
+            if (connection.stale) {
+                throw new CommunicationException("connection closed");
+            }
+            return results.next();
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return results.hasNext();
+        }
+
+        @Override
+        public SearchResult nextElement() {
+            return results.next();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * @return Name of the single result of a search on the context.
+     */
+    private static String search(LdapContext context) throws NamingException {
+
+        NamingEnumeration<SearchResult> results = context.search("dc=example,dc=com", "(objectClass=*)",
+                new SearchControls());
+        try {
+            assertTrue(results.hasMore());
+            String name = results.next().getName();
+            assertFalse(results.hasMore());
+            return name;
+        } finally {
+            results.close();
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) {
+
+        long deadline = System.currentTimeMillis() + WAIT_LIMIT;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Condition not met in " + WAIT_LIMIT + "ms.");
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail("Interrupted while waiting.");
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.agent.userstore.constant.LDAPConstants;
+import org.wso2.carbon.identity.agent.userstore.exception.UserStoreException;
+import org.wso2.carbon.identity.agent.userstore.model.AuthenticationResult;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ *  Authenticates users of {@link LDAPUserStoreManager} with cached credentials after the in-memory directory is
+ *  shut down.
+ */
+public class LDAPUserStoreManagerOutageTest {
+
+    private InMemoryDirectoryServer directoryServer;
+    private LDAPUserStoreManager userStoreManager;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+
+        directoryServer = AsyncLDAPUserStoreManagerTest.startDirectoryServer();
+        Map<String, String> userStoreProperties =
+                AsyncLDAPUserStoreManagerTest.getUserStoreProperties(directoryServer.getListenPort());
+        userStoreProperties.put(LDAPConstants.CREDENTIAL_CACHE_ENABLED, "true");
+        // expires at once, so that every login binds while the directory is up
+        userStoreProperties.put(LDAPConstants.CREDENTIAL_CACHE_TTL, "1");
+        userStoreProperties.put(LDAPConstants.CREDENTIAL_CACHE_OUTAGE_TTL, "60000");
+        userStoreProperties.put(LDAPConstants.CREDENTIAL_CACHE_HASH_COST, "16");
+        userStoreManager = new LDAPUserStoreManager(userStoreProperties);
+    }
+
+    @AfterClass
+    public void tearDown() {
+        if (userStoreManager != null) {
+            userStoreManager.close();
+        }
+        if (directoryServer != null) {
+            directoryServer.shutDown(true);
+        }
+    }
+
+    @Test
+    public void testAuthenticateWithoutRolesDuringOutage() throws Exception {
+
+        AuthenticationResult result = userStoreManager.doAuthenticateAndGetUser("alice", "alice-password", null);
+        assertTrue(result.isAuthenticated());
+        String[] roles = result.getRoles();
+        Arrays.sort(roles);
+        assertEquals(roles, new String[] { "admins", "staff" });
+
+        Thread.sleep(10);
+        directoryServer.shutDown(true);
+        // the roles cannot be read without the directory, replica or membership index
+        result = userStoreManager.doAuthenticateAndGetUser("alice", "alice-password", null);
+        assertTrue(result.isAuthenticated());
+        assertEquals(result.getRoles().length, 0);
+
+        try {
+            userStoreManager.doAuthenticateAndGetUser("alice", "wrong-password", null);
+            fail("A credential which was never verified was accepted during the outage.");
+        } catch (UserStoreException e) {
+            // expected, as the directory cannot be reached
+        }
+    }
+}
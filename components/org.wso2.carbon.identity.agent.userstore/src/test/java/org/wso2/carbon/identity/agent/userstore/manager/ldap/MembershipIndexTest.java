@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.agent.userstore.util.UserStoreUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ *  Loads a {@link MembershipIndex} from an in-memory list of users and groups, and applies the entries modified
+ *  afterwards as the incremental syncs of the index read them.
+ */
+public class MembershipIndexTest {
+
+    private static final String USERS_DN = ",ou=Users,dc=example,dc=com";
+    private static final String GROUPS_DN = ",ou=Groups,dc=example,dc=com";
+    private static final long WAIT_LIMIT = 5000;
+
+    // entries by DN, each with its modification time
+    private final Map<String, Object[]> users = new ConcurrentHashMap<>();
+    private final Map<String, Object[]> groups = new ConcurrentHashMap<>();
+    private final AtomicInteger clock = new AtomicInteger();
+    private MembershipIndex index;
+
+    @BeforeMethod
+    public void setUp() {
+
+        putUser("alice", "Alice Smith");
+        putUser("bob", null);
+        putUser("carol", null);
+        putGroup("admins", "uid=alice" + USERS_DN, "uid=bob" + USERS_DN);
+        putGroup("staff", "uid=alice" + USERS_DN, "uid=carol" + USERS_DN);
+        // nested group, whose member is the staff group
+        putGroup("everyone", "cn=staff" + GROUPS_DN);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        if (index != null) {
+            index.close();
+        }
+        users.clear();
+        groups.clear();
+    }
+
+    @Test
+    public void testReadsMemberships() {
+
+        index = createIndex(true);
+        assertTrue(index.isUserInRole("bob", "admins"));
+        assertTrue(index.isUserInRole("BOB", "Admins"));
+        assertFalse(index.isUserInRole("carol", "admins"));
+        assertFalse(index.isUserInRole("nobody", "admins"));
+        assertTrue(index.isUserInRole("carol", "everyone"));
+        assertFalse(index.isUserInRole("bob", "everyone"));
+        assertEquals(sorted(index.getRolesOfUser("alice")), Arrays.asList("admins", "everyone", "staff"));
+        assertEquals(index.getRolesOfUser("nobody"), Collections.emptyList());
+        assertEquals(sorted(index.getUsersOfRole("admins", 10)),
+                Arrays.asList(UserStoreUtils.getCombinedName("alice", "Alice Smith"), "bob"));
+        assertEquals(index.getUsersOfRole("admins", 1).size(), 1);
+        // the nested group is not a user
+        assertEquals(index.getUsersOfRole("everyone", 10), Collections.emptyList());
+    }
+
+    @Test
+    public void testNestedGroupsNotResolved() {
+
+        index = createIndex(false);
+        assertFalse(index.isUserInRole("carol", "everyone"));
+        assertEquals(sorted(index.getRolesOfUser("alice")), Arrays.asList("admins", "staff"));
+    }
+
+    @Test
+    public void testAppliesIncrementalSync() {
+
+        index = createIndex(true);
+        putUser("dave", null);
+        putGroup("admins", "uid=bob" + USERS_DN, "uid=dave" + USERS_DN);
+        waitFor(() -> index.isUserInRole("dave", "admins"));
+
+        assertFalse(index.isUserInRole("alice", "admins"));
+        assertEquals(sorted(index.getRolesOfUser("alice")), Arrays.asList("everyone", "staff"));
+        assertEquals(index.getRolesOfUser("dave"), Collections.singletonList("admins"));
+        assertEquals(sorted(index.getUsersOfRole("admins", 10)), Arrays.asList("bob", "dave"));
+        // unchanged entries keep their memberships
+        assertTrue(index.isUserInRole("carol", "everyone"));
+    }
+
+    @Test
+    public void testUpdatesRolesAfterIncrementalSync() {
+
+        index = createIndex(true);
+        putUser("dave", null);
+        putGroup("staff", "uid=alice" + USERS_DN, "uid=carol" + USERS_DN, "uid=dave" + USERS_DN);
+        waitFor(() -> index.isUserInRole("dave", "staff"));
+
+        index.updateRolesOfUser("dave", new String[] { "staff" }, new String[] { "admins" });
+        assertFalse(index.isUserInRole("dave", "staff"));
+        assertFalse(index.isUserInRole("dave", "everyone"));
+        assertTrue(index.isUserInRole("dave", "admins"));
+        assertEquals(index.getRolesOfUser("dave"), Collections.singletonList("admins"));
+        assertEquals(sorted(index.getUsersOfRole("admins", 10)),
+                Arrays.asList(UserStoreUtils.getCombinedName("alice", "Alice Smith"), "bob", "dave"));
+
+        index.updateRolesOfUser("dave", new String[] { "admins" }, null);
+        assertEquals(index.getRolesOfUser("dave"), Collections.emptyList());
+    }
+
+    @Test
+    public void testLargeGroupShrinksInIncrementalSync() {
+
+        List<String> members = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            putUser("user" + i, null);
+            members.add("uid=user" + i + USERS_DN);
+        }
+        putGroup("large", members.toArray(new String[members.size()]));
+        index = createIndex(true);
+        assertEquals(index.getUsersOfRole("large", 10000).size(), 5000);
+        assertTrue(index.isUserInRole("user4999", "large"));
+
+        putGroup("large", members.subList(0, 100).toArray(new String[100]));
+        waitFor(() -> !index.isUserInRole("user4999", "large"));
+        assertEquals(index.getUsersOfRole("large", 10000).size(), 100);
+        assertTrue(index.isUserInRole("user99", "large"));
+        assertFalse(index.isUserInRole("user100", "large"));
+        assertEquals(index.getRolesOfUser("user100"), Collections.emptyList());
+        assertEquals(index.getStatistics().get("memberships"), 100L + 2 + 2 + 1);
+    }
+
+    private MembershipIndex createIndex(boolean nestedGroups) {
+
+        MembershipIndex membershipIndex = new MembershipIndex(new MembershipIndex.Loader() {
+
+            @Override
+            public void loadUsers(String modifiedSince, UserNameIndex.UserHandler handler) {
+                for (Map.Entry<String, Object[]> user : users.entrySet()) {
+                    String modifyTimestamp = (String) user.getValue()[2];
+                    if (modifiedSince == null || modifyTimestamp.compareTo(modifiedSince) > 0) {
+                        handler.user(user.getKey(), (String) user.getValue()[0], (String) user.getValue()[1], true,
+                                modifyTimestamp);
+                    }
+                }
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public void loadGroups(String modifiedSince, NestedGroupGraph.GroupHandler handler) {
+                for (Map.Entry<String, Object[]> group : groups.entrySet()) {
+                    String modifyTimestamp = (String) group.getValue()[2];
+                    if (modifiedSince == null || modifyTimestamp.compareTo(modifiedSince) > 0) {
+                        handler.group(group.getKey(), (String) group.getValue()[0],
+                                (List<String>) group.getValue()[1], modifyTimestamp);
+                    }
+                }
+            }
+        }, false, nestedGroups, 20, 60 * 60 * 1000, 60 * 60 * 1000);
+        index = membershipIndex;
+        waitFor(membershipIndex::isAvailable);
+        return membershipIndex;
+    }
+
+    private void putUser(String userName, String displayName) {
+        users.put("uid=" + userName + USERS_DN, new Object[] { userName, displayName, nextTimestamp() });
+    }
+
+    private void putGroup(String groupName, String... memberDNs) {
+        groups.put("cn=" + groupName + GROUPS_DN,
+                new Object[] { groupName, Arrays.asList(memberDNs), nextTimestamp() });
+    }
+
+    /**
+     * @return Generalized time which is later than all those returned before.
+     */
+    private String nextTimestamp() {
+        return String.format("20170101%06dZ", clock.incrementAndGet());
+    }
+
+    private static List<String> sorted(List<String> names) {
+        List<String> sorted = new ArrayList<>(names);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    private static void waitFor(BooleanSupplier condition) {
+
+        long deadline = System.currentTimeMillis() + WAIT_LIMIT;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Condition not met in " + WAIT_LIMIT + "ms.");
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail("Interrupted while waiting.");
+            }
+        }
+    }
+}
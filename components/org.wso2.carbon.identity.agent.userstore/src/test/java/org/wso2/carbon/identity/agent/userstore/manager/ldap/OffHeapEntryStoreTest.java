@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.userstore.manager.ldap;
+
+import org.testng.annotations.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ *  Stores entries in a small {@link OffHeapEntryStore} of eight segments of 1024 bytes, each holding about nine of
+ *  the entries used here.
+ */
+public class OffHeapEntryStoreTest {
+
+    private static final long CAPACITY = 8 * 1024;
+
+    @Test
+    public void testPutAndGet() {
+
+        OffHeapEntryStore store = new OffHeapEntryStore(CAPACITY);
+        Map<String, OffHeapEntryStore.Attribute> attributes = new LinkedHashMap<>();
+        attributes.put("mail", new OffHeapEntryStore.Attribute("alice@example.com", 1000));
+        attributes.put("telephoneNumber", new OffHeapEntryStore.Attribute(null, 2000));
+        assertTrue(store.put(new OffHeapEntryStore.Entry("alice", "uid=alice,dc=example,dc=com", attributes)));
+        assertTrue(store.put(new OffHeapEntryStore.Entry("bob", null, new LinkedHashMap<>())));
+
+        OffHeapEntryStore.Entry entry = store.get("alice");
+        assertEquals(entry.getKey(), "alice");
+        assertEquals(entry.getDN(), "uid=alice,dc=example,dc=com");
+        assertEquals(entry.getAttributes().size(), 2);
+        assertEquals(entry.getAttributes().get("mail").getValue(), "alice@example.com");
+        assertEquals(entry.getAttributes().get("mail").getLoadedAt(), 1000);
+        assertNull(entry.getAttributes().get("telephoneNumber").getValue());
+        assertEquals(entry.getAttributes().get("telephoneNumber").getLoadedAt(), 2000);
+        assertNull(store.get("bob").getDN());
+        assertTrue(store.get("bob").getAttributes().isEmpty());
+        assertNull(store.get("carol"));
+        assertEquals(store.size(), 2);
+    }
+
+    @Test
+    public void testReplace() {
+
+        OffHeapEntryStore store = new OffHeapEntryStore(CAPACITY);
+        store.put(createEntry("alice", "old@example.com"));
+        store.put(createEntry("alice", "new@example.com"));
+        assertEquals(getMail(store, "alice"), "new@example.com");
+        assertEquals(store.size(), 1);
+        assertTrue((Long) store.getStatistics().get("garbageBytes") > 0);
+    }
+
+    @Test
+    public void testRemove() {
+
+        OffHeapEntryStore store = new OffHeapEntryStore(CAPACITY);
+        // enough keys for some to share probe sequences, which must still be found after a removal
+        for (int i = 0; i < 40; i++) {
+            store.put(createEntry(userName(i), null));
+        }
+        for (int i = 0; i < 40; i += 2) {
+            assertTrue(store.remove(userName(i)));
+        }
+        assertFalse(store.remove(userName(0)));
+        assertEquals(store.size(), 20);
+        for (int i = 0; i < 40; i++) {
+            assertEquals(store.get(userName(i)) != null, i % 2 == 1, userName(i));
+        }
+    }
+
+    @Test
+    public void testEvictsOldestEntriesOnWraparound() {
+
+        OffHeapEntryStore store = new OffHeapEntryStore(CAPACITY);
+        // several rounds over all segments
+        int count = 300;
+        for (int i = 0; i < count; i++) {
+            assertTrue(store.put(createEntry(userName(i), userName(i) + "@example.com")));
+        }
+        Map<String, Object> statistics = store.getStatistics();
+        assertEquals((long) (Long) statistics.get("evictions"), count - store.size());
+        assertTrue((Long) statistics.get("liveBytes") <= CAPACITY);
+        assertNull(store.get(userName(0)));
+        assertEquals(getMail(store, userName(count - 1)), userName(count - 1) + "@example.com");
+        int found = 0;
+        for (int i = 0; i < count; i++) {
+            if (store.get(userName(i)) != null) {
+                found++;
+            }
+        }
+        assertEquals(found, store.size());
+    }
+
+    @Test
+    public void testKeepsReadEntryOnceOnWraparound() {
+
+        OffHeapEntryStore store = new OffHeapEntryStore(CAPACITY);
+        store.put(createEntry("hot", "hot@example.com"));
+        store.put(createEntry("cold", "cold@example.com"));
+        assertNotNull(store.get("hot"));
+        int i = 0;
+        while ((Long) store.getStatistics().get("secondChances") == 0) {
+            store.put(createEntry(userName(i++), null));
+            if (i > 1000) {
+                fail("The first segment was never reached again.");
+            }
+        }
+        assertNull(store.get("cold"));
+        assertEquals(getMail(store, "hot"), "hot@example.com");
+    }
+
+    @Test
+    public void testRejectsEntryLargerThanSegment() {
+
+        OffHeapEntryStore store = new OffHeapEntryStore(CAPACITY);
+        store.put(createEntry("alice", "alice@example.com"));
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 1024; i++) {
+            value.append('x');
+        }
+        // the previous entry of the key is removed, rather than left stale
+        assertFalse(store.put(createEntry("alice", value.toString())));
+        assertNull(store.get("alice"));
+        assertEquals(store.size(), 0);
+        assertEquals(store.getStatistics().get("rejections"), 1L);
+    }
+
+    @Test
+    public void testFillsSegmentUpToItsEnd() {
+
+        OffHeapEntryStore store = new OffHeapEntryStore(CAPACITY);
+        // entries which do not fit the rest of a segment start the next one, without evicting anything
+        for (int i = 0; i < 50; i++) {
+            store.put(createEntry(userName(i), userName(i) + "@example.com"));
+        }
+        assertEquals(store.size(), 50);
+        assertEquals(store.getStatistics().get("evictions"), 0L);
+        for (int i = 0; i < 50; i++) {
+            assertEquals(getMail(store, userName(i)), userName(i) + "@example.com");
+        }
+    }
+
+    @Test
+    public void testCapacityIsValidated() {
+
+        for (long capacity : new long[] { 0, -1, 1L << 41 }) {
+            try {
+                new OffHeapEntryStore(capacity);
+                fail("Store created with capacity " + capacity);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    private static OffHeapEntryStore.Entry createEntry(String userName, String mail) {
+
+        Map<String, OffHeapEntryStore.Attribute> attributes = new LinkedHashMap<>();
+        attributes.put("mail", new OffHeapEntryStore.Attribute(mail, System.currentTimeMillis()));
+        return new OffHeapEntryStore.Entry(userName, "uid=" + userName + ",ou=Users,dc=example,dc=com", attributes);
+    }
+
+    private static String getMail(OffHeapEntryStore store, String userName) {
+        return store.get(userName).getAttributes().get("mail").getValue();
+    }
+
+    private static String userName(int i) {
+        return String.format("user-%03d", i);
+    }
+}